@@ -0,0 +1,393 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+
+import org.jivesoftware.openfire.ldap.LdapManager;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+
+/**
+ * A directory of generated users for the benchmarks to run against, either
+ * served by an in-process LDAP server or answered directly from mocked
+ * attributes with no network round trip.<br />
+ * User <i>n</i> has the username user<i>n</i>.
+ */
+final class BenchmarkDirectory
+{
+    /**
+     * Answers lookups from mocked attributes.
+     */
+    static final String MOCK = "mock";
+
+    /**
+     * Answers lookups from an in-process LDAP server.
+     */
+    static final String IN_PROCESS = "inprocess";
+
+    static final String BASE_DN = "dc=example,dc=com";
+
+    static final String PEOPLE_DN = "ou=people," + BASE_DN;
+
+    static final String ADMIN_DN = "cn=Directory Manager";
+
+    static final String ADMIN_PASSWORD = "password";
+
+    static final String DISPLAY_NAME_TEMPLATE = "{givenName} {sn}";
+
+    static final String SEARCH_FIELDS = "Username/uid,Name/cn,Email/mail,First Name/givenName,Last Name/sn";
+
+    static final String SEARCH_NAME_FIELDS = "First Name,Last Name";
+
+    /**
+     * The maximum number of entries the mocked directory returns for a
+     * search, like a directory server's size limit.
+     */
+    private static final int MOCK_SEARCH_LIMIT = 50;
+
+    private final int size;
+
+    private final InMemoryDirectoryServer server;
+
+    private final LdapManager manager;
+
+    private BenchmarkDirectory(final int size,
+            final InMemoryDirectoryServer server, final LdapManager manager)
+    {
+        this.size = size;
+        this.server = server;
+        this.manager = manager;
+    }
+
+    /**
+     * Creates a directory.
+     *
+     * @param backend
+     *            either {@link #MOCK} or {@link #IN_PROCESS}.
+     * @param size
+     *            the number of users.
+     * @return the directory.
+     */
+    static BenchmarkDirectory create(final String backend, final int size)
+            throws Exception
+    {
+        if (MOCK.equals(backend)) {
+            return new BenchmarkDirectory(size, null, new MockLdapManager(
+                    managerProperties(null), size));
+        }
+        if (IN_PROCESS.equals(backend)) {
+            InMemoryDirectoryServer server = startServer(size);
+
+            return new BenchmarkDirectory(size, server, new LdapManager(
+                    managerProperties(server)));
+        }
+        throw new IllegalArgumentException("Unknown backend: " + backend);
+    }
+
+    /**
+     * @return the number of users.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the manager for the directory.
+     */
+    LdapManager getManager()
+    {
+        return manager;
+    }
+
+    /**
+     * Creates a provider for the directory, with no caching.
+     *
+     * @return the provider.
+     */
+    ExtendedLdapUserProvider createProvider()
+    {
+        return new ExtendedLdapUserProvider(manager, null, null,
+                DISPLAY_NAME_TEMPLATE, true, SEARCH_FIELDS, SEARCH_NAME_FIELDS);
+    }
+
+    /**
+     * Stops the in-process server, if there is one.
+     */
+    void shutdown()
+    {
+        if (server != null) {
+            server.shutDown(true);
+        }
+    }
+
+    static String username(final int index)
+    {
+        return "user" + index;
+    }
+
+    /**
+     * Returns the attributes of a user, as the directory would return them.
+     */
+    static Attributes userAttributes(final int index)
+    {
+        Attributes attrs = new BasicAttributes(true);
+        attrs.put("uid", username(index));
+        attrs.put("cn", "Given" + index + " Surname" + index);
+        attrs.put("givenName", "Given" + index);
+        attrs.put("sn", "Surname" + index);
+        attrs.put("mail", username(index) + "@example.com");
+        attrs.put("createTimestamp", "20110301120000Z");
+        attrs.put("modifyTimestamp", "20110615093000.0Z");
+        return attrs;
+    }
+
+    private static Map<String, String> managerProperties(
+            final InMemoryDirectoryServer server)
+    {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("ldap.host", "localhost");
+        properties.put("ldap.baseDN", PEOPLE_DN);
+        properties.put("ldap.adminDN", ADMIN_DN);
+        properties.put("ldap.adminPassword", ADMIN_PASSWORD);
+        properties.put("ldap.usernameField", "uid");
+        properties.put("ldap.nameField", "cn");
+        properties.put("ldap.emailField", "mail");
+        properties.put("ldap.connectionPoolEnabled", "true");
+
+        if (server != null) {
+            properties.put("ldap.port", String.valueOf(server.getListenPort()));
+        }
+
+        return properties;
+    }
+
+    private static InMemoryDirectoryServer startServer(final int size)
+            throws Exception
+    {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(
+                BASE_DN);
+        config.addAdditionalBindCredentials(ADMIN_DN, ADMIN_PASSWORD);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig(
+                "default", 0));
+
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+
+        server.add("dn: " + BASE_DN, "objectClass: top",
+                "objectClass: domain", "dc: example");
+        server.add("dn: " + PEOPLE_DN, "objectClass: top",
+                "objectClass: organizationalUnit", "ou: people");
+
+        for (int i = 0; i < size; i++) {
+            server.add("dn: uid=" + username(i) + "," + PEOPLE_DN,
+                    "objectClass: top", "objectClass: person",
+                    "objectClass: organizationalPerson",
+                    "objectClass: inetOrgPerson", "uid: " + username(i),
+                    "cn: Given" + i + " Surname" + i, "givenName: Given" + i,
+                    "sn: Surname" + i, "mail: " + username(i)
+                            + "@example.com");
+        }
+
+        server.startListening();
+
+        return server;
+    }
+
+    /**
+     * Parses the index out of a username, DN or filter naming a single user,
+     * or returns -1 if there isn't one.
+     */
+    private static int userIndex(final String value)
+    {
+        int start = value.indexOf("uid=user");
+
+        if (start < 0) {
+            return -1;
+        }
+
+        start += "uid=user".length();
+
+        int end = start;
+
+        while (end < value.length() && Character.isDigit(value.charAt(end))) {
+            end++;
+        }
+
+        if (end == start || (end < value.length() && value.charAt(end) == '*')) {
+            return -1;
+        }
+
+        return Integer.parseInt(value.substring(start, end));
+    }
+
+    /**
+     * A manager whose contexts answer from mocked attributes.
+     */
+    private static final class MockLdapManager extends LdapManager
+    {
+        private final LdapContext context;
+
+        MockLdapManager(final Map<String, String> properties, final int size)
+        {
+            super(properties);
+
+            context = (LdapContext) Proxy.newProxyInstance(
+                    LdapContext.class.getClassLoader(),
+                    new Class<?>[] { LdapContext.class },
+                    new MockContextHandler(size));
+        }
+
+        @Override
+        public LdapContext getContext(final String baseDN)
+        {
+            return context;
+        }
+
+        @Override
+        public String findUserDN(final String username)
+        {
+            return "uid=" + username;
+        }
+
+        @Override
+        public String getUsersBaseDN(final String username)
+        {
+            return PEOPLE_DN;
+        }
+    }
+
+    /**
+     * Implements the few context operations the provider uses.
+     */
+    private static final class MockContextHandler implements
+            InvocationHandler
+    {
+        private final SearchResult[] results;
+
+        MockContextHandler(final int size)
+        {
+            results = new SearchResult[size];
+
+            for (int i = 0; i < size; i++) {
+                results[i] = new SearchResult("uid=" + username(i), null,
+                        userAttributes(i));
+            }
+        }
+
+        public Object invoke(final Object proxy, final Method method,
+                final Object[] args) throws Throwable
+        {
+            String name = method.getName();
+
+            if ("getAttributes".equals(name)) {
+                return userAttributes(userIndex(args[0].toString()));
+            }
+            if ("search".equals(name) && args.length == 3
+                    && args[2] instanceof SearchControls) {
+                return search((String) args[1], (SearchControls) args[2]);
+            }
+            if ("close".equals(name)) {
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private NamingEnumeration<SearchResult> search(final String filter,
+                final SearchControls controls)
+        {
+            int index = userIndex(filter);
+
+            // A lookup of a single user
+            if (index >= 0 && filter.indexOf("uid=") == filter.lastIndexOf("uid=")) {
+                return new ArrayEnumeration(results, index, index + 1);
+            }
+
+            int limit = MOCK_SEARCH_LIMIT;
+
+            if (controls.getCountLimit() > 0) {
+                limit = (int) Math.min(limit, controls.getCountLimit());
+            }
+
+            return new ArrayEnumeration(results, 0, Math.min(limit,
+                    results.length));
+        }
+    }
+
+    /**
+     * Enumerates a range of search results.
+     */
+    private static final class ArrayEnumeration implements
+            NamingEnumeration<SearchResult>
+    {
+        private final SearchResult[] results;
+
+        private final int end;
+
+        private int next;
+
+        ArrayEnumeration(final SearchResult[] results, final int start,
+                final int end)
+        {
+            this.results = results;
+            this.next = start;
+            this.end = end;
+        }
+
+        public boolean hasMore()
+        {
+            return next < end;
+        }
+
+        public boolean hasMoreElements()
+        {
+            return hasMore();
+        }
+
+        public SearchResult next()
+        {
+            if (next >= end) {
+                throw new NoSuchElementException();
+            }
+            return results[next++];
+        }
+
+        public SearchResult nextElement()
+        {
+            return next();
+        }
+
+        public void close() throws NamingException
+        {
+        }
+    }
+}
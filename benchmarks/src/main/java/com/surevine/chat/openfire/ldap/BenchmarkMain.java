@@ -0,0 +1,51 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options, always adding
+ * the gc profiler so that allocation per operation is reported alongside the
+ * timings.
+ */
+public final class BenchmarkMain
+{
+    private BenchmarkMain()
+    {
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        CommandLineOptions options = new CommandLineOptions(args);
+
+        // Options which don't run anything are left to JMH
+        if (options.shouldHelp() || options.shouldList()
+                || options.shouldListWithParams()
+                || options.shouldListProfilers()
+                || options.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        new Runner(new OptionsBuilder().parent(options)
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+}
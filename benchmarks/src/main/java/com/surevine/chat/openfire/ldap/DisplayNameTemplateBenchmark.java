@@ -0,0 +1,103 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares rendering a display name with the compiled
+ * {@link DisplayNameTemplate} against the regular expression based rendering
+ * it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DisplayNameTemplateBenchmark
+{
+    @Param({ "{givenName} {sn}", "{title} {givenName} {initials} {sn} ({ou})" })
+    public String template;
+
+    private DisplayNameTemplate compiled;
+
+    private Attributes attrs;
+
+    @Setup
+    public void setUp()
+    {
+        compiled = new DisplayNameTemplate(template);
+
+        attrs = new BasicAttributes(true);
+        attrs.put("title", "Dr");
+        attrs.put("givenName", "Joanna");
+        attrs.put("initials", "J");
+        attrs.put("sn", "Smith-Jones");
+        attrs.put("ou", "Engineering");
+    }
+
+    @Benchmark
+    public String compiled() throws NamingException
+    {
+        return compiled.render(attrs);
+    }
+
+    @Benchmark
+    public String regex() throws NamingException
+    {
+        // The rendering used before the template was compiled
+        Pattern pattern = Pattern.compile("\\{([^\\}]+)\\}");
+
+        Matcher matcher = pattern.matcher(template);
+
+        StringBuffer result = new StringBuffer();
+
+        while (matcher.find()) {
+            Attribute attr = attrs.get(matcher.group(1));
+
+            if (attr != null) {
+                matcher.appendReplacement(result, (String) attr.get());
+            } else {
+                matcher.appendReplacement(result, "");
+            }
+        }
+
+        matcher.appendTail(result);
+
+        return result.toString().trim();
+    }
+}
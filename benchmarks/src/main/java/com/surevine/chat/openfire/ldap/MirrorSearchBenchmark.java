@@ -0,0 +1,100 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.user.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures typeahead searches of the directory mirror, comparing prefix terms,
+ * which are answered from the prefix index, with terms containing a leading
+ * wildcard, which check every mirrored user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MirrorSearchBenchmark
+{
+    @Param({ "1000", "100000" })
+    public int users;
+
+    private final List<String> nameAttributes = Arrays.asList("givenName",
+            "sn");
+
+    private DirectoryMirror mirror;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        mirror = new DirectoryMirror(new DirectoryScanner() {
+            public void scan(final String extraFilter, final Handler handler)
+            {
+                Date now = new Date();
+
+                for (int i = 0; i < users; i++) {
+                    String username = BenchmarkDirectory.username(i);
+                    handler.handle(username,
+                            BenchmarkDirectory.userAttributes(i), new User(
+                                    username, "Given" + i + " Surname" + i,
+                                    username + "@example.com", now, now));
+                }
+            }
+        }, Arrays.asList("uid", "cn", "mail", "givenName", "sn"),
+                Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        mirror.sync();
+    }
+
+    @Benchmark
+    public List<User> prefixTerm()
+    {
+        return mirror.findUsers(nameAttributes, new String[] { "given12" },
+                0, 20);
+    }
+
+    @Benchmark
+    public List<User> prefixTerms()
+    {
+        return mirror.findUsers(nameAttributes, new String[] { "given12",
+                "surname12" }, 0, 20);
+    }
+
+    @Benchmark
+    public List<User> wildcardTerm()
+    {
+        return mirror.findUsers(nameAttributes, new String[] { "*en12" }, 0,
+                20);
+    }
+}
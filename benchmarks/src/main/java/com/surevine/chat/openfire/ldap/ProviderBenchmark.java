@@ -0,0 +1,96 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures whole provider lookups, with the user cache disabled so every
+ * operation reaches the directory. Run against the mocked directory this
+ * isolates the provider's own cost; run against the in-process server it
+ * includes JNDI and a loopback round trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProviderBenchmark
+{
+    @Param({ BenchmarkDirectory.MOCK, BenchmarkDirectory.IN_PROCESS })
+    public String backend;
+
+    @Param({ "1000" })
+    public int users;
+
+    @Param({ "false", "true" })
+    public boolean singleSearch;
+
+    private BenchmarkDirectory directory;
+
+    private ExtendedLdapUserProvider provider;
+
+    private final Set<String> nameField = Collections.singleton("Name");
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        directory = BenchmarkDirectory.create(backend, users);
+        provider = directory.createProvider();
+        provider.setSingleSearchLoad(singleSearch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        directory.shutdown();
+    }
+
+    @Benchmark
+    public User loadUser() throws UserNotFoundException
+    {
+        return provider.loadUser(BenchmarkDirectory.username(ThreadLocalRandom
+                .current().nextInt(users)));
+    }
+
+    @Benchmark
+    public Collection<User> findUsers()
+    {
+        return provider.findUsers(nameField, "Given1 Surname1", 0, 20);
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the provider's per-lookup processing of mocked attributes and
+ * search input, with no directory involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProviderParsingBenchmark
+{
+    private ExtendedLdapUserProvider provider;
+
+    private Attributes attrs;
+
+    private Set<String> fields;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        provider = BenchmarkDirectory.create(BenchmarkDirectory.MOCK, 1)
+                .createProvider();
+
+        attrs = BenchmarkDirectory.userAttributes(0);
+
+        fields = new HashSet<String>();
+        fields.add("Name");
+        fields.add("Email");
+    }
+
+    @Benchmark
+    public String buildSearchFilter()
+    {
+        return provider.buildSearchFilter(fields, "smi jo");
+    }
+
+    @Benchmark
+    public String constructDisplayName() throws NamingException
+    {
+        return provider.constructDisplayName(attrs);
+    }
+
+    @Benchmark
+    public Date parseLDAPDate()
+    {
+        return ExtendedLdapUserProvider.parseLDAPDate("20110615093000.0Z");
+    }
+
+    @Benchmark
+    public String processSearchTerm()
+    {
+        return provider.processSearchTerm("o'brien(x)");
+    }
+
+    @Benchmark
+    public Map<String, String> parseSearchFields()
+    {
+        return provider.parseSearchFields(BenchmarkDirectory.SEARCH_FIELDS);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import org.jivesoftware.openfire.user.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures bursts of concurrent asynchronous lookups against the in-process
+ * server, run either on one platform thread per lookup or on virtual threads.
+ * Each operation submits a burst and waits for all of it to complete, with
+ * the directory reached through a provider pool of 50 contexts as it would be
+ * in production.<br />
+ * Virtual threads need Java 21 or later, and JNDI only stops pinning their
+ * carrier threads while waiting for a response from Java 24. On older JVMs
+ * both modes use platform threads. Thread stacks aren't heap, so compare
+ * resident memory (for example with <code>-prof gc</code> alongside
+ * <code>-jvmArgs -XX:NativeMemoryTracking=summary</code>) as well as
+ * allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class VirtualThreadBenchmark
+{
+    @Param({ "1000", "10000" })
+    public int lookups;
+
+    @Param({ "false", "true" })
+    public boolean virtualThreads;
+
+    private BenchmarkDirectory directory;
+
+    private ExtendedLdapUserProvider provider;
+
+    private LdapContextPool pool;
+
+    private LookupExecutor executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        directory = BenchmarkDirectory.create(BenchmarkDirectory.IN_PROCESS,
+                1000);
+        provider = directory.createProvider();
+
+        pool = new LdapContextPool(new LdapContextFactory() {
+            public LdapContext createContext(final String baseDN)
+                    throws NamingException
+            {
+                return directory.getManager().getContext(baseDN);
+            }
+        }, 10, 50, 60000, 60000, false);
+        provider.setContextSource(pool);
+
+        // Enough threads that no lookup waits for one, as the platform mode
+        // would need to match virtual threads' concurrency
+        executor = new LookupExecutor(lookups, lookups, 60000, virtualThreads);
+        provider.setLookupExecutor(executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        executor.shutdown();
+        pool.close();
+        directory.shutdown();
+    }
+
+    @Benchmark
+    public int concurrentLookups() throws Exception
+    {
+        final List<Future<User>> futures = new ArrayList<Future<User>>(lookups);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < lookups; i++) {
+            futures.add(provider.loadUserAsync(BenchmarkDirectory
+                    .username(random.nextInt(directory.size())), 0, null));
+        }
+
+        int found = 0;
+
+        for (Future<User> future : futures) {
+            if (future.get() != null) {
+                found++;
+            }
+        }
+
+        return found;
+    }
+}
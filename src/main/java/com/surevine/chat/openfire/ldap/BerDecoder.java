@@ -0,0 +1,228 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.LinkedList;
+
+import javax.naming.NamingException;
+
+/**
+ * Decodes the small subset of BER needed for the values of ldap controls
+ * which JNDI has no class for. Values are read in order; sequences are entered
+ * with {@link #readSequence(int)} and left with {@link #endSequence()}.
+ */
+final class BerDecoder
+{
+    private final byte[] data;
+
+    private int position;
+
+    /**
+     * The end offsets of each sequence which has been entered, innermost
+     * first.
+     */
+    private final LinkedList<Integer> ends = new LinkedList<Integer>();
+
+    /**
+     * @param data
+     *            the encoding.
+     */
+    BerDecoder(final byte[] data)
+    {
+        this.data = data;
+        this.position = 0;
+    }
+
+    /**
+     * @return true if there is more content in the innermost sequence.
+     */
+    boolean hasMore()
+    {
+        return position < currentEnd();
+    }
+
+    /**
+     * @return the tag of the next value, without reading it.
+     * @throws NamingException
+     *             if there is no next value.
+     */
+    int peekTag() throws NamingException
+    {
+        if (!hasMore()) {
+            throw malformed("Unexpected end of value");
+        }
+        return data[position] & 0xff;
+    }
+
+    /**
+     * Enters a sequence, or other constructed value.
+     *
+     * @param tag
+     *            the expected tag.
+     * @throws NamingException
+     *             if the next value isn't a sequence with the tag.
+     */
+    void readSequence(final int tag) throws NamingException
+    {
+        final int length = readHeader(tag);
+
+        ends.addFirst(position + length);
+    }
+
+    /**
+     * Leaves the innermost sequence, skipping any of its content which hasn't
+     * been read.
+     */
+    void endSequence()
+    {
+        if (ends.isEmpty()) {
+            throw new IllegalStateException("No sequence has been entered");
+        }
+        position = ends.removeFirst();
+    }
+
+    /**
+     * @param tag
+     *            the expected tag, usually {@link BerEncoder#INTEGER} or
+     *            {@link BerEncoder#ENUMERATED}.
+     * @return the value.
+     * @throws NamingException
+     *             if the next value isn't an integer with the tag.
+     */
+    long readInteger(final int tag) throws NamingException
+    {
+        final int length = readHeader(tag);
+
+        if (length < 1 || length > 8) {
+            throw malformed("Invalid integer length " + length);
+        }
+
+        // Sign extend from the first byte
+        long value = data[position];
+
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (data[position + i] & 0xff);
+        }
+
+        position += length;
+        return value;
+    }
+
+    /**
+     * @param tag
+     *            the expected tag, usually {@link BerEncoder#BOOLEAN}.
+     * @return the value.
+     * @throws NamingException
+     *             if the next value isn't a boolean with the tag.
+     */
+    boolean readBoolean(final int tag) throws NamingException
+    {
+        final int length = readHeader(tag);
+
+        if (length != 1) {
+            throw malformed("Invalid boolean length " + length);
+        }
+
+        return data[position++] != 0;
+    }
+
+    /**
+     * @param tag
+     *            the expected tag, usually {@link BerEncoder#OCTET_STRING}.
+     * @return the value.
+     * @throws NamingException
+     *             if the next value isn't an octet string with the tag.
+     */
+    byte[] readOctetString(final int tag) throws NamingException
+    {
+        final int length = readHeader(tag);
+        final byte[] value = new byte[length];
+
+        System.arraycopy(data, position, value, 0, length);
+        position += length;
+        return value;
+    }
+
+    /**
+     * Skips the next value, whatever its tag.
+     *
+     * @throws NamingException
+     *             if there is no next value.
+     */
+    void skip() throws NamingException
+    {
+        position += readHeader(peekTag());
+    }
+
+    /**
+     * Reads a tag and length, leaving the position at the start of the
+     * content.
+     *
+     * @return the length of the content.
+     */
+    private int readHeader(final int tag) throws NamingException
+    {
+        final int actual = peekTag();
+
+        if (actual != tag) {
+            throw malformed("Expected tag 0x" + Integer.toHexString(tag)
+                    + " but found 0x" + Integer.toHexString(actual));
+        }
+
+        position++;
+
+        if (position >= currentEnd()) {
+            throw malformed("Missing length");
+        }
+
+        int length = data[position++] & 0xff;
+
+        if (length >= 0x80) {
+            final int lengthBytes = length & 0x7f;
+
+            if (lengthBytes < 1 || lengthBytes > 4
+                    || position + lengthBytes > currentEnd()) {
+                throw malformed("Invalid length");
+            }
+
+            length = 0;
+
+            for (int i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (data[position++] & 0xff);
+            }
+        }
+
+        if (length < 0 || position + length > currentEnd()) {
+            throw malformed("Length " + length + " exceeds the value");
+        }
+
+        return length;
+    }
+
+    private int currentEnd()
+    {
+        if (ends.isEmpty()) {
+            return data.length;
+        }
+        return ends.getFirst();
+    }
+
+    private static NamingException malformed(final String message)
+    {
+        return new NamingException("Malformed BER value: " + message);
+    }
+}
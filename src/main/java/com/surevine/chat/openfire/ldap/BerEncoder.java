@@ -0,0 +1,197 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedList;
+
+/**
+ * Encodes the small subset of BER needed for the values of ldap controls
+ * which JNDI has no class for.
+ */
+final class BerEncoder
+{
+    static final int BOOLEAN = 0x01;
+
+    static final int INTEGER = 0x02;
+
+    static final int OCTET_STRING = 0x04;
+
+    static final int ENUMERATED = 0x0a;
+
+    static final int SEQUENCE = 0x30;
+
+    /**
+     * The tag class and form bits for a constructed context specific tag.
+     */
+    static final int CONTEXT_CONSTRUCTED = 0xa0;
+
+    /**
+     * The tag class bits for a primitive context specific tag.
+     */
+    static final int CONTEXT_PRIMITIVE = 0x80;
+
+    /**
+     * The content of each sequence which is still open, innermost first.
+     */
+    private final LinkedList<ByteArrayOutputStream> open = new LinkedList<ByteArrayOutputStream>();
+
+    /**
+     * The tags of each sequence which is still open, innermost first.
+     */
+    private final LinkedList<Integer> openTags = new LinkedList<Integer>();
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    /**
+     * Starts a sequence, or other constructed value, which is ended by
+     * {@link #endSequence()}.
+     *
+     * @param tag
+     *            the tag.
+     * @return this encoder.
+     */
+    BerEncoder beginSequence(final int tag)
+    {
+        open.addFirst(new ByteArrayOutputStream());
+        openTags.addFirst(tag);
+        return this;
+    }
+
+    /**
+     * Ends the innermost open sequence.
+     *
+     * @return this encoder.
+     */
+    BerEncoder endSequence()
+    {
+        if (open.isEmpty()) {
+            throw new IllegalStateException("No sequence is open");
+        }
+
+        final byte[] content = open.removeFirst().toByteArray();
+
+        write(openTags.removeFirst(), content);
+        return this;
+    }
+
+    /**
+     * @param tag
+     *            the tag, usually {@link #INTEGER} or {@link #ENUMERATED}.
+     * @param value
+     *            the value.
+     * @return this encoder.
+     */
+    BerEncoder writeInteger(final int tag, final long value)
+    {
+        // The minimum number of two's complement bytes
+        int length = 1;
+
+        while (length < 8) {
+            long shifted = value >> (length * 8 - 1);
+
+            if (shifted == 0 || shifted == -1) {
+                break;
+            }
+            length++;
+        }
+
+        final byte[] content = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (value >> ((length - 1 - i) * 8));
+        }
+
+        write(tag, content);
+        return this;
+    }
+
+    /**
+     * @param tag
+     *            the tag, usually {@link #BOOLEAN}.
+     * @param value
+     *            the value.
+     * @return this encoder.
+     */
+    BerEncoder writeBoolean(final int tag, final boolean value)
+    {
+        write(tag, new byte[] { value ? (byte) 0xff : 0 });
+        return this;
+    }
+
+    /**
+     * @param tag
+     *            the tag, usually {@link #OCTET_STRING}.
+     * @param value
+     *            the value.
+     * @return this encoder.
+     */
+    BerEncoder writeOctetString(final int tag, final byte[] value)
+    {
+        write(tag, value);
+        return this;
+    }
+
+    /**
+     * @return the encoding.
+     * @throws IllegalStateException
+     *             if a sequence is still open.
+     */
+    byte[] toByteArray()
+    {
+        if (!open.isEmpty()) {
+            throw new IllegalStateException("A sequence is still open");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a tag, length and content to the innermost open sequence.
+     */
+    private void write(final int tag, final byte[] content)
+    {
+        final ByteArrayOutputStream target;
+
+        if (open.isEmpty()) {
+            target = out;
+        } else {
+            target = open.getFirst();
+        }
+
+        target.write(tag);
+
+        final int length = content.length;
+
+        if (length < 0x80) {
+            target.write(length);
+        } else {
+            int lengthBytes = 1;
+
+            while (lengthBytes < 4 && (length >>> (lengthBytes * 8)) != 0) {
+                lengthBytes++;
+            }
+
+            target.write(0x80 | lengthBytes);
+
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                target.write(length >>> (i * 8));
+            }
+        }
+
+        target.write(content, 0, length);
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Guards one type of directory operation, so that when the directory
+ * degrades callers fail fast rather than each waiting for the read timeout.
+ * <br />
+ * The outcomes of the most recent operations are kept, and once enough of
+ * them have failed or been slow the circuit opens and operations are
+ * rejected without going to the directory. After the open time a single
+ * trial operation is let through: if it succeeds the circuit closes again,
+ * otherwise it stays open for another open time.<br />
+ * Independently, a bulkhead limits how many of the operations can be in
+ * progress at once, so a slow directory can't tie up every thread.
+ */
+public class CircuitBreaker
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(CircuitBreaker.class);
+
+    /**
+     * The state of the circuit.
+     */
+    public enum State
+    {
+        /**
+         * Operations go to the directory.
+         */
+        CLOSED,
+
+        /**
+         * Operations are rejected.
+         */
+        OPEN,
+
+        /**
+         * A single trial operation is allowed, to see if the directory has
+         * recovered.
+         */
+        HALF_OPEN
+    }
+
+    private final String name;
+
+    /**
+     * The percentage of the window which must fail or be slow for the circuit
+     * to open, or 0 if it never opens.
+     */
+    private final int failureRate;
+
+    /**
+     * The time in milliseconds after which a successful operation counts as
+     * slow, or 0 if none do.
+     */
+    private final long slowCallTime;
+
+    /**
+     * The time in milliseconds the circuit stays open before a trial.
+     */
+    private final long openTime;
+
+    /**
+     * The limit on operations in progress, or null if there isn't one.
+     */
+    private final Semaphore bulkhead;
+
+    private final int maxConcurrent;
+
+    /**
+     * The outcomes of the most recent operations, true for those which failed
+     * or were slow, used as a ring.
+     */
+    private final boolean[] window;
+
+    private int windowCount;
+
+    private int windowNext;
+
+    private int windowFailures;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    /**
+     * The thread running the trial operation while half open, or null.
+     */
+    private Thread trial;
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong slowCalls = new AtomicLong();
+
+    private final AtomicLong openRejections = new AtomicLong();
+
+    private final AtomicLong bulkheadRejections = new AtomicLong();
+
+    private final AtomicLong openings = new AtomicLong();
+
+    private final AtomicLong closings = new AtomicLong();
+
+    /**
+     * @param name
+     *            the operation type, used for logging.
+     * @param failureRate
+     *            the percentage of the window which must fail or be slow for
+     *            the circuit to open, or 0 if it never opens.
+     * @param slowCallTime
+     *            the time in milliseconds after which a successful operation
+     *            counts as slow, or 0 if none do.
+     * @param windowSize
+     *            the number of recent operations the failure rate is measured
+     *            over. The circuit can't open until this many have completed.
+     * @param openTime
+     *            the time in milliseconds the circuit stays open before a
+     *            trial operation is allowed.
+     * @param maxConcurrent
+     *            the maximum number of operations in progress at once, or 0
+     *            for no limit.
+     */
+    public CircuitBreaker(final String name, final int failureRate,
+            final long slowCallTime, final int windowSize,
+            final long openTime, final int maxConcurrent)
+    {
+        this.name = name;
+        this.failureRate = Math.min(Math.max(failureRate, 0), 100);
+        this.slowCallTime = slowCallTime;
+        this.window = new boolean[Math.max(windowSize, 1)];
+        this.openTime = openTime;
+        this.maxConcurrent = Math.max(maxConcurrent, 0);
+
+        if (maxConcurrent > 0) {
+            bulkhead = new Semaphore(maxConcurrent);
+        } else {
+            bulkhead = null;
+        }
+    }
+
+    /**
+     * Asks to start an operation. If this returns true then
+     * {@link #release(long, boolean)} must be called once the operation
+     * completes, from the same thread.
+     *
+     * @return false if the operation is rejected, because the circuit is
+     *         open or the bulkhead is full.
+     */
+    public boolean tryAcquire()
+    {
+        boolean isTrial = false;
+
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (currentTime() - openedAt < openTime) {
+                    openRejections.incrementAndGet();
+                    return false;
+                }
+                transition(State.HALF_OPEN);
+            }
+
+            if (state == State.HALF_OPEN) {
+                if (trial != null) {
+                    openRejections.incrementAndGet();
+                    return false;
+                }
+                trial = Thread.currentThread();
+                isTrial = true;
+            }
+        }
+
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            if (isTrial) {
+                synchronized (this) {
+                    trial = null;
+                }
+            }
+            bulkheadRejections.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Records the end of an operation started with {@link #tryAcquire()}.
+     *
+     * @param elapsedNanos
+     *            the time the operation took in nanoseconds.
+     * @param failed
+     *            true if the operation failed because of the directory,
+     *            rather than, say, because a user doesn't exist.
+     */
+    public void release(final long elapsedNanos, final boolean failed)
+    {
+        if (bulkhead != null) {
+            bulkhead.release();
+        }
+
+        final boolean slow = !failed && slowCallTime > 0
+                && elapsedNanos >= slowCallTime * 1000000;
+
+        calls.incrementAndGet();
+
+        if (failed) {
+            failures.incrementAndGet();
+        }
+        if (slow) {
+            slowCalls.incrementAndGet();
+        }
+
+        synchronized (this) {
+            if (state == State.HALF_OPEN) {
+                if (trial == Thread.currentThread()) {
+                    trial = null;
+                    transition(failed || slow ? State.OPEN : State.CLOSED);
+                }
+            } else if (state == State.CLOSED) {
+                record(failed || slow);
+            }
+            // Operations started before the circuit opened are ignored
+        }
+    }
+
+    /**
+     * Adds an outcome to the window, opening the circuit if too many have
+     * failed.
+     */
+    private void record(final boolean bad)
+    {
+        if (windowCount == window.length) {
+            if (window[windowNext]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+
+        window[windowNext] = bad;
+        windowNext = (windowNext + 1) % window.length;
+
+        if (bad) {
+            windowFailures++;
+        }
+
+        if (failureRate > 0 && windowCount == window.length
+                && windowFailures * 100 >= failureRate * windowCount) {
+            transition(State.OPEN);
+        }
+    }
+
+    private void transition(final State newState)
+    {
+        final State oldState = state;
+
+        state = newState;
+
+        switch (newState) {
+        case OPEN:
+            openedAt = currentTime();
+            openings.incrementAndGet();
+            Log.warn("Circuit for " + name + " opened from " + oldState
+                    + ", so operations will be rejected for " + openTime
+                    + "ms");
+            break;
+        case HALF_OPEN:
+            Log.info("Circuit for " + name
+                    + " half open, trying an operation");
+            break;
+        case CLOSED:
+            closings.incrementAndGet();
+            windowCount = 0;
+            windowNext = 0;
+            windowFailures = 0;
+            Log.info("Circuit for " + name + " closed");
+            break;
+        }
+    }
+
+    /**
+     * @return the operation type.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the state of the circuit.
+     */
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return the maximum number of operations in progress at once, or 0 for
+     *         no limit.
+     */
+    public int getMaxConcurrent()
+    {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return the number of operations in progress, or -1 if there is no
+     *         limit on them.
+     */
+    public int getInProgress()
+    {
+        if (bulkhead == null) {
+            return -1;
+        }
+        return maxConcurrent - bulkhead.availablePermits();
+    }
+
+    /**
+     * @return the number of operations which have completed.
+     */
+    public long getCallCount()
+    {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of operations which have failed.
+     */
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of operations which succeeded but were slow.
+     */
+    public long getSlowCallCount()
+    {
+        return slowCalls.get();
+    }
+
+    /**
+     * @return the number of operations rejected because the circuit was open.
+     */
+    public long getOpenRejectionCount()
+    {
+        return openRejections.get();
+    }
+
+    /**
+     * @return the number of operations rejected because the bulkhead was
+     *         full.
+     */
+    public long getBulkheadRejectionCount()
+    {
+        return bulkheadRejections.get();
+    }
+
+    /**
+     * @return the number of times the circuit has opened.
+     */
+    public long getOpenCount()
+    {
+        return openings.get();
+    }
+
+    /**
+     * @return the number of times the circuit has closed after being open.
+     */
+    public long getCloseCount()
+    {
+        return closings.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CircuitBreaker[" + name + ", state=" + getState()
+                + ", calls=" + calls + ", failures=" + failures
+                + ", slowCalls=" + slowCalls + ", openRejections="
+                + openRejections + ", bulkheadRejections="
+                + bulkheadRejections + "]";
+    }
+
+    /**
+     * Returns the current time in milliseconds. Overridden in tests.
+     *
+     * @return the current time.
+     */
+    long currentTime()
+    {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import javax.naming.NamingException;
+
+/**
+ * An {@link LdapContextSource} which creates a new context for every
+ * operation and closes it afterwards. Any reuse of connections is left to
+ * JNDI's own connection pooling.
+ */
+class DirectContextSource implements LdapContextSource
+{
+    /**
+     * Creates the contexts.
+     */
+    private final LdapContextFactory factory;
+
+    /**
+     * @param factory
+     *            creates the contexts.
+     */
+    DirectContextSource(final LdapContextFactory factory)
+    {
+        this.factory = factory;
+    }
+
+    public LdapConnection acquire(final String baseDN) throws NamingException
+    {
+        return new LdapConnection(factory.createContext(baseDN), baseDN,
+                System.currentTimeMillis());
+    }
+
+    public void release(final LdapConnection connection, final boolean broken)
+    {
+        connection.close();
+    }
+
+    public void close()
+    {
+        // Nothing is held open
+    }
+}
@@ -0,0 +1,562 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens for changes to the users under a base DN as they happen, so that
+ * cached users can be invalidated straight away rather than when they expire.
+ * <br />
+ * Changes are received over a dedicated connection with a Content
+ * Synchronization (syncrepl, RFC 4533) search in refreshAndPersist mode, or a
+ * Persistent Search for directories which don't support syncrepl. The search
+ * returns the attributes the handler asks for with each changed entry, so that
+ * a copy of the user can be updated from the change itself rather than by
+ * reading the user again.<br />
+ * If the connection is lost, the listener reconnects with an exponential
+ * backoff. A syncrepl search resumes from the last cookie the directory sent,
+ * so no changes are missed; otherwise the handler is told that anything may
+ * have changed. Without a cookie the directory returns every user when the
+ * syncrepl search starts, so the first connection costs about as much as a
+ * search for every user.
+ */
+public class DirectoryChangeListener
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(DirectoryChangeListener.class);
+
+    /**
+     * The time in milliseconds to wait before the first reconnection attempt.
+     */
+    private static final long MIN_BACKOFF = 1000;
+
+    /**
+     * The longest time in milliseconds to wait between reconnection attempts.
+     */
+    private static final long MAX_BACKOFF = 60 * 1000;
+
+    /**
+     * How changes are received.
+     */
+    public enum Mode
+    {
+        /**
+         * Use syncrepl where the directory supports it, otherwise a persistent
+         * search.
+         */
+        AUTO,
+
+        /**
+         * Use syncrepl.
+         */
+        SYNCREPL,
+
+        /**
+         * Use a persistent search.
+         */
+        PSEARCH;
+
+        /**
+         * Parses a mode name, falling back to the supplied default if the
+         * name is not recognised.
+         *
+         * @param name
+         *            the mode name (case insensitive), may be null.
+         * @param defaultMode
+         *            the mode to use if the name can't be parsed.
+         * @return the mode.
+         */
+        static Mode parse(final String name, final Mode defaultMode)
+        {
+            if (name == null) {
+                return defaultMode;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return defaultMode;
+            }
+        }
+    }
+
+    /**
+     * Receives changes.
+     */
+    interface Handler
+    {
+        /**
+         * @return the attributes to return with each changed entry, as well
+         *         as the username attribute. This is read each time the search
+         *         is established.
+         */
+        String[] getAttributes();
+
+        /**
+         * Called when a user is added, modified or renamed.
+         *
+         * @param attrs
+         *            the user's attributes, which include the username
+         *            attribute and whichever of the attributes from
+         *            {@link #getAttributes()} the user has.
+         * @throws NamingException
+         */
+        void userChanged(Attributes attrs) throws NamingException;
+
+        /**
+         * Called when a user is deleted, or renamed away from a username.
+         *
+         * @param attrs
+         *            attributes holding the username which is no longer in
+         *            use.
+         * @throws NamingException
+         */
+        void userDeleted(Attributes attrs) throws NamingException;
+
+        /**
+         * Called when changes may have been missed, so any user may have
+         * changed.
+         */
+        void allChanged();
+    }
+
+    private final LdapContextFactory contextFactory;
+
+    private final String baseDN;
+
+    private final String filter;
+
+    private final String usernameAttribute;
+
+    private final Mode mode;
+
+    private final Handler handler;
+
+    /**
+     * Whether the directory has rejected syncrepl. Only accessed by the
+     * listening thread.
+     */
+    private boolean syncreplUnsupported;
+
+    /**
+     * The last syncrepl cookie the directory sent, or null. Only accessed by
+     * the listening thread.
+     */
+    private byte[] cookie;
+
+    private volatile boolean running;
+
+    /**
+     * Whether the search is being re-established on request, rather than
+     * because it failed.
+     */
+    private volatile boolean restarting;
+
+    private Thread thread;
+
+    private volatile NamingEnumeration<SearchResult> answer;
+
+    private volatile boolean listening;
+
+    private final AtomicLong changes = new AtomicLong();
+
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param contextFactory
+     *            creates the connection changes are received over.
+     * @param baseDN
+     *            the base DN to listen under.
+     * @param filter
+     *            the filter matching users.
+     * @param usernameAttribute
+     *            the attribute holding the username.
+     * @param mode
+     *            how changes are received.
+     * @param handler
+     *            receives the changes.
+     */
+    DirectoryChangeListener(final LdapContextFactory contextFactory,
+            final String baseDN, final String filter,
+            final String usernameAttribute, final Mode mode,
+            final Handler handler)
+    {
+        this.contextFactory = contextFactory;
+        this.baseDN = baseDN;
+        this.filter = filter;
+        this.usernameAttribute = usernameAttribute;
+        this.mode = mode;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts listening in the background.
+     */
+    public synchronized void start()
+    {
+        if (thread != null) {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run()
+            {
+                listen();
+            }
+        }, "LDAP change listener " + baseDN);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops listening, abandoning the search.
+     */
+    public synchronized void stop()
+    {
+        if (thread == null) {
+            return;
+        }
+
+        running = false;
+        thread.interrupt();
+        closeQuietly(answer);
+        thread = null;
+    }
+
+    /**
+     * Re-establishes the search, such as when the handler wants different
+     * attributes. A syncrepl search resumes from its cookie, so the users
+     * aren't all sent again.
+     */
+    public void restart()
+    {
+        restarting = true;
+        closeQuietly(answer);
+    }
+
+    /**
+     * @return the base DN changes are listened for under.
+     */
+    public String getBaseDN()
+    {
+        return baseDN;
+    }
+
+    /**
+     * @return true if the search is currently established.
+     */
+    public boolean isListening()
+    {
+        return listening;
+    }
+
+    /**
+     * @return the number of changed entries received.
+     */
+    public long getChangeCount()
+    {
+        return changes.get();
+    }
+
+    /**
+     * @return the number of times the search has been re-established after
+     *         ending.
+     */
+    public long getReconnectCount()
+    {
+        return reconnects.get();
+    }
+
+    /**
+     * @return the number of times the search has failed.
+     */
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    private void listen()
+    {
+        long backoff = MIN_BACKOFF;
+        boolean connected = false;
+
+        while (running) {
+            LdapContext context = null;
+            try {
+                if (connected) {
+                    reconnects.incrementAndGet();
+                }
+                context = contextFactory.createContext(baseDN);
+                connected = true;
+
+                search(context);
+            } catch (NamingException e) {
+                if (running && !restarting) {
+                    failures.incrementAndGet();
+                    Log.warn("Change listener for " + baseDN + " failed: "
+                            + e.getMessage());
+                }
+            } finally {
+                if (listening) {
+                    // The search was established, so this is a new outage
+                    backoff = MIN_BACKOFF;
+                }
+                listening = false;
+                closeQuietly(answer);
+                answer = null;
+                closeQuietly(context);
+            }
+
+            if (restarting) {
+                restarting = false;
+                continue;
+            }
+
+            try {
+                if (running) {
+                    Thread.sleep(backoff);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * Runs a persistent search until it ends.
+     *
+     * @throws NamingException
+     *             if the search fails.
+     */
+    private void search(final LdapContext context) throws NamingException
+    {
+        if (mode == Mode.SYNCREPL
+                || (mode == Mode.AUTO && !syncreplUnsupported)) {
+            try {
+                search(context, new SyncRequestControl(cookie));
+                return;
+            } catch (OperationNotSupportedException e) {
+                if (mode == Mode.SYNCREPL) {
+                    throw e;
+                }
+                Log.info("The directory doesn't support syncrepl, so a"
+                        + " persistent search will be used instead: "
+                        + e.getMessage());
+                syncreplUnsupported = true;
+            }
+        }
+
+        search(context, new PersistentSearchControl());
+    }
+
+    private void search(final LdapContext context, final Control control)
+            throws NamingException
+    {
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(getReturningAttributes());
+
+        if (cookie == null || !(control instanceof SyncRequestControl)) {
+            // Changes made while there was no search may have been missed.
+            // This is done first as the search blocks until the first change.
+            handler.allChanged();
+        }
+
+        context.setRequestControls(new Control[] { control });
+        answer = context.search("", filter, controls);
+        listening = true;
+        Log.debug("Listening for changes under " + baseDN);
+
+        while (running && answer.hasMore()) {
+            process(answer.next());
+        }
+    }
+
+    /**
+     * @return the attributes the handler wants, along with the username
+     *         attribute.
+     */
+    private String[] getReturningAttributes()
+    {
+        final Set<String> attributes = new LinkedHashSet<String>();
+
+        attributes.add(usernameAttribute);
+        attributes.addAll(Arrays.asList(handler.getAttributes()));
+
+        return attributes.toArray(new String[attributes.size()]);
+    }
+
+    /**
+     * Passes a changed entry to the handler.
+     *
+     * @param result
+     *            the entry.
+     */
+    void process(final SearchResult result)
+    {
+        changes.incrementAndGet();
+
+        try {
+            Control[] controls = null;
+
+            if (result instanceof HasControls) {
+                controls = ((HasControls) result).getControls();
+            }
+
+            SyncRequestControl.State state = SyncRequestControl
+                    .findState(controls);
+
+            if (state != null) {
+                if (state.getCookie() != null) {
+                    cookie = state.getCookie();
+                }
+                if (state.getState() == SyncRequestControl.PRESENT) {
+                    return;
+                }
+                if (state.getState() == SyncRequestControl.DELETE) {
+                    deleted(usernameAttributes(result.getAttributes(),
+                            result.getName()));
+                    return;
+                }
+            }
+
+            PersistentSearchControl.EntryChange change = PersistentSearchControl
+                    .findEntryChange(controls);
+
+            if (change != null && change.getPreviousDN() != null) {
+                deleted(usernameAttributes(null, change.getPreviousDN()));
+            }
+            if (change != null
+                    && change.getChangeType() == PersistentSearchControl.DELETE) {
+                deleted(usernameAttributes(result.getAttributes(),
+                        result.getName()));
+                return;
+            }
+
+            changed(usernameAttributes(result.getAttributes(),
+                    result.getName()));
+        } catch (NamingException e) {
+            Log.warn("Unable to process change to " + result.getName()
+                    + ", so all users will be invalidated: " + e.getMessage());
+            handler.allChanged();
+        }
+    }
+
+    private void changed(final Attributes attrs) throws NamingException
+    {
+        if (attrs == null) {
+            // Users whose names can't be determined could be anyone
+            handler.allChanged();
+        } else {
+            handler.userChanged(attrs);
+        }
+    }
+
+    private void deleted(final Attributes attrs) throws NamingException
+    {
+        if (attrs == null) {
+            handler.allChanged();
+        } else {
+            handler.userDeleted(attrs);
+        }
+    }
+
+    /**
+     * Finds the username of a changed entry, which deleted entries only have
+     * in their DN.
+     *
+     * @return attributes including the username, or null if it can't be
+     *         found.
+     */
+    private Attributes usernameAttributes(final Attributes attrs,
+            final String name)
+    {
+        if (attrs != null && attrs.get(usernameAttribute) != null) {
+            return attrs;
+        }
+
+        try {
+            final LdapName dn = new LdapName(name);
+
+            if (dn.isEmpty()) {
+                return null;
+            }
+
+            final Rdn rdn = dn.getRdn(dn.size() - 1);
+
+            if (!rdn.getType().equalsIgnoreCase(usernameAttribute)) {
+                return null;
+            }
+
+            final Attributes usernameAttrs = new BasicAttributes(true);
+            final Attribute username = rdn.toAttributes().get(
+                    usernameAttribute);
+            usernameAttrs.put(username);
+            return usernameAttrs;
+        } catch (InvalidNameException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(final NamingEnumeration<?> answer)
+    {
+        try {
+            if (answer != null) {
+                answer.close();
+            }
+        } catch (Exception ignored) {
+            // Ignore.
+        }
+    }
+
+    private static void closeQuietly(final LdapContext context)
+    {
+        try {
+            if (context != null) {
+                context.setRequestControls(null);
+                context.close();
+            }
+        } catch (Exception ignored) {
+            // Ignore.
+        }
+    }
+}
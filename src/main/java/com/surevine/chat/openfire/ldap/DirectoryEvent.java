@@ -0,0 +1,356 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Java Flight Recorder event for one provider operation or directory round
+ * trip, carrying the username or filter, base DN, attributes requested, result
+ * count and whether it was served from a cache, timed from
+ * {@link #begin(String)} to {@link #commit()}.<br />
+ * The event type is defined at runtime with <code>jdk.jfr.EventFactory</code>,
+ * so the provider still runs on JVMs without flight recorder. Until the type
+ * is {@link #register(long) registered}, and whenever no recording has it
+ * enabled, {@link #begin(String)} returns a shared event which ignores
+ * everything, so events cost a single check and nothing is allocated.
+ */
+final class DirectoryEvent
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(DirectoryEvent.class);
+
+    /**
+     * The flight recorder name of the event type.
+     */
+    static final String NAME = "com.surevine.chat.openfire.ldap.DirectoryOperation";
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * The event returned while events aren't being recorded.
+     */
+    private static final DirectoryEvent DISABLED = new DirectoryEvent(null,
+            null, null);
+
+    /**
+     * The registered event type, or null if there isn't one.
+     */
+    private static volatile EventType type;
+
+    private final EventType eventType;
+
+    /**
+     * The flight recorder event, or null if this is the disabled event.
+     */
+    private final Object event;
+
+    private final String operation;
+
+    private String username;
+
+    private String filter;
+
+    private String baseDN;
+
+    private String attributes;
+
+    private int resultCount = -1;
+
+    private boolean cacheHit;
+
+    private DirectoryEvent(final EventType eventType, final Object event,
+            final String operation)
+    {
+        this.eventType = eventType;
+        this.event = event;
+        this.operation = operation;
+    }
+
+    /**
+     * Registers the event type with flight recorder, unless it has already
+     * been registered.
+     * 
+     * @param thresholdMillis
+     *            the duration in milliseconds below which events aren't
+     *            recorded, unless a recording's settings say otherwise.
+     * @return false if flight recorder isn't available.
+     */
+    static synchronized boolean register(final long thresholdMillis)
+    {
+        if (type == null) {
+            try {
+                type = new EventType(thresholdMillis);
+            } catch (ClassNotFoundException e) {
+                Log.debug("Flight recorder isn't available, so no LDAP events"
+                        + " will be recorded");
+                return false;
+            } catch (Exception e) {
+                Log.warn("Unable to register the LDAP flight recorder event",
+                        e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the event type has been registered.
+     */
+    static boolean isRegistered()
+    {
+        return type != null;
+    }
+
+    /**
+     * Starts timing an event.
+     * 
+     * @param operation
+     *            the operation, such as "loadUser" or "search".
+     * @return the event, which is a shared event that records nothing unless a
+     *         recording has the event type enabled.
+     */
+    static DirectoryEvent begin(final String operation)
+    {
+        final EventType eventType = type;
+
+        if (eventType == null || !eventType.isEnabled()) {
+            return DISABLED;
+        }
+
+        try {
+            final Object event = eventType.newEvent.invoke(eventType.factory,
+                    NO_ARGS);
+            eventType.begin.invoke(event, NO_ARGS);
+
+            return new DirectoryEvent(eventType, event, operation);
+        } catch (Exception e) {
+            Log.debug("Unable to begin LDAP flight recorder event", e);
+            return DISABLED;
+        }
+    }
+
+    /**
+     * @return false if this event records nothing.
+     */
+    boolean isEnabled()
+    {
+        return event != null;
+    }
+
+    DirectoryEvent username(final String username)
+    {
+        if (event != null) {
+            this.username = username;
+        }
+        return this;
+    }
+
+    DirectoryEvent filter(final String filter)
+    {
+        if (event != null) {
+            this.filter = filter;
+        }
+        return this;
+    }
+
+    DirectoryEvent baseDN(final String baseDN)
+    {
+        if (event != null) {
+            this.baseDN = baseDN;
+        }
+        return this;
+    }
+
+    DirectoryEvent attributes(final String[] attributes)
+    {
+        if (event != null && attributes != null) {
+            StringBuilder names = new StringBuilder();
+
+            for (String attribute : attributes) {
+                if (names.length() > 0) {
+                    names.append(',');
+                }
+                names.append(attribute);
+            }
+            this.attributes = names.toString();
+        }
+        return this;
+    }
+
+    DirectoryEvent resultCount(final int resultCount)
+    {
+        if (event != null) {
+            this.resultCount = resultCount;
+        }
+        return this;
+    }
+
+    DirectoryEvent cacheHit(final boolean cacheHit)
+    {
+        if (event != null) {
+            this.cacheHit = cacheHit;
+        }
+        return this;
+    }
+
+    /**
+     * Stops timing the event and records it, if it lasted at least the
+     * threshold.
+     */
+    void commit()
+    {
+        if (event == null) {
+            return;
+        }
+
+        try {
+            eventType.end.invoke(event, NO_ARGS);
+
+            if (!Boolean.TRUE.equals(eventType.shouldCommit.invoke(event,
+                    NO_ARGS))) {
+                return;
+            }
+
+            // In the order of the fields in EventType
+            final Object[] values = { operation, username, filter, baseDN,
+                    attributes, Integer.valueOf(resultCount),
+                    Boolean.valueOf(cacheHit) };
+
+            for (int i = 0; i < values.length; i++) {
+                eventType.set.invoke(event, Integer.valueOf(i), values[i]);
+            }
+
+            eventType.commit.invoke(event, NO_ARGS);
+        } catch (Exception e) {
+            Log.debug("Unable to commit LDAP flight recorder event", e);
+        }
+    }
+
+    /**
+     * The event type defined with <code>jdk.jfr.EventFactory</code>, and the
+     * methods used to record its events.
+     */
+    private static final class EventType
+    {
+        final Object factory;
+
+        final Object descriptor;
+
+        final Method isEnabled;
+
+        final Method newEvent;
+
+        final Method begin;
+
+        final Method end;
+
+        final Method shouldCommit;
+
+        final Method set;
+
+        final Method commit;
+
+        private final Constructor<?> annotationElement;
+
+        EventType(final long thresholdMillis) throws Exception
+        {
+            final Class<?> factoryClass = Class
+                    .forName("jdk.jfr.EventFactory");
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            final Class<?> descriptorClass = Class
+                    .forName("jdk.jfr.ValueDescriptor");
+
+            annotationElement = Class.forName("jdk.jfr.AnnotationElement")
+                    .getConstructor(Class.class, Object.class);
+
+            final List<Object> annotations = Arrays.asList(
+                    annotation("Name", NAME),
+                    annotation("Label", "LDAP Operation"),
+                    annotation("Category", new String[] { "Openfire", "LDAP" }),
+                    annotation("Description", "A user provider operation or"
+                            + " directory round trip"),
+                    annotation("Threshold", Math.max(thresholdMillis, 0)
+                            + " ms"),
+                    annotation("StackTrace", Boolean.FALSE));
+
+            final Constructor<?> field = descriptorClass.getConstructor(
+                    Class.class, String.class, List.class);
+
+            final List<Object> fields = Arrays.asList(
+                    field.newInstance(String.class, "operation",
+                            labelled("Operation")),
+                    field.newInstance(String.class, "username",
+                            labelled("Username")),
+                    field.newInstance(String.class, "filter",
+                            labelled("Filter")),
+                    field.newInstance(String.class, "baseDN",
+                            labelled("Base DN")),
+                    field.newInstance(String.class, "attributes",
+                            labelled("Attributes Requested")),
+                    field.newInstance(int.class, "resultCount",
+                            labelled("Result Count")),
+                    field.newInstance(boolean.class, "cacheHit",
+                            labelled("Cache Hit")));
+
+            factory = factoryClass.getMethod("create", List.class, List.class)
+                    .invoke(null, annotations, fields);
+            descriptor = factoryClass.getMethod("getEventType").invoke(factory);
+            isEnabled = Class.forName("jdk.jfr.EventType").getMethod(
+                    "isEnabled");
+            newEvent = factoryClass.getMethod("newEvent");
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            shouldCommit = eventClass.getMethod("shouldCommit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            commit = eventClass.getMethod("commit");
+        }
+
+        /**
+         * @return true if a running recording has the event type enabled.
+         */
+        boolean isEnabled()
+        {
+            try {
+                return Boolean.TRUE.equals(isEnabled.invoke(descriptor,
+                        NO_ARGS));
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        private Object annotation(final String name, final Object value)
+                throws Exception
+        {
+            return annotationElement.newInstance(
+                    Class.forName("jdk.jfr." + name), value);
+        }
+
+        private List<Object> labelled(final String label) throws Exception
+        {
+            return Collections.singletonList(annotation("Label", label));
+        }
+    }
+}
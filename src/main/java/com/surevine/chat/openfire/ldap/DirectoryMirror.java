@@ -0,0 +1,897 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.jivesoftware.openfire.user.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory copy of every user in the directory, so that user lookups and
+ * searches can be answered without a directory round trip.<br />
+ * The mirror is loaded in full when started and again every full sync
+ * interval, which also drops deleted users. In between, users modified since
+ * the last sync are fetched with a <code>(modifyTimestamp&gt;=...)</code>
+ * filter every sync interval, and users the directory reports as changed can be
+ * updated, removed or re-read straight away. Until the first full load
+ * completes, or once the last successful sync is older than the maximum
+ * staleness, the mirror reports itself unusable so that lookups go to the
+ * directory instead.<br />
+ * The values of the search attributes are also held in a {@link PrefixIndex},
+ * so that searches whose terms are all prefixes, as typed by users looking
+ * someone up, only look at the users who match.
+ */
+public class DirectoryMirror
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(DirectoryMirror.class);
+
+    /**
+     * How far before the last sync each incremental sync looks for changes,
+     * to allow for clock differences between Openfire and the directory.
+     */
+    private static final long SYNC_OVERLAP = 5 * 60 * 1000;
+
+    /**
+     * A rough estimate of the bytes used by each mirrored user, not counting
+     * their strings.
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * A mirrored user along with the values they can be searched on.
+     */
+    private static final class Entry
+    {
+        final User user;
+
+        /**
+         * The lower cased values of each search attribute, in the order of
+         * {@link DirectoryMirror#searchAttributes}.
+         */
+        final String[][] values;
+
+        /**
+         * The estimated size in bytes.
+         */
+        final long size;
+
+        Entry(final User user, final String[][] values, final long size)
+        {
+            this.user = user;
+            this.values = values;
+            this.size = size;
+        }
+    }
+
+    private final DirectoryScanner scanner;
+
+    /**
+     * The attributes users can be searched on.
+     */
+    private final List<String> searchAttributes;
+
+    private final long syncInterval;
+
+    private final long fullSyncInterval;
+
+    private final long maxStaleness;
+
+    /**
+     * The mirrored users keyed on lower cased username, or null until the
+     * first full sync completes.
+     */
+    private volatile ConcurrentSkipListMap<String, Entry> users;
+
+    /**
+     * The index of the mirrored users' search attribute values, or null until
+     * the first full sync completes.
+     */
+    private volatile PrefixIndex index;
+
+    /**
+     * The time the last successful sync started.
+     */
+    private volatile long lastSync;
+
+    /**
+     * The time the last successful full sync started. Only accessed by the
+     * syncing thread.
+     */
+    private long lastFullSync;
+
+    /**
+     * Whether the next sync should be a full sync, whenever the last was.
+     */
+    private volatile boolean fullSyncRequested;
+
+    private volatile long estimatedMemory;
+
+    /**
+     * Held while users are added, replaced or removed, which is done by the
+     * syncing thread and as changes are reported.
+     */
+    private final Object updateLock = new Object();
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong fullSyncs = new AtomicLong();
+
+    private final AtomicLong incrementalSyncs = new AtomicLong();
+
+    private final AtomicLong syncFailures = new AtomicLong();
+
+    /**
+     * @param scanner
+     *            loads users from the directory.
+     * @param searchAttributes
+     *            the attributes users can be searched on.
+     * @param syncInterval
+     *            the time in milliseconds between syncs.
+     * @param fullSyncInterval
+     *            the time in milliseconds between full syncs.
+     * @param maxStaleness
+     *            the time in milliseconds since the last successful sync after
+     *            which the mirror isn't used.
+     */
+    public DirectoryMirror(final DirectoryScanner scanner,
+            final Collection<String> searchAttributes, final long syncInterval,
+            final long fullSyncInterval, final long maxStaleness)
+    {
+        this.scanner = scanner;
+        this.searchAttributes = new ArrayList<String>(searchAttributes);
+        this.syncInterval = syncInterval;
+        this.fullSyncInterval = fullSyncInterval;
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * Starts syncing in the background, beginning with a full load.
+     */
+    public synchronized void start()
+    {
+        if (scheduler != null) {
+            return;
+        }
+
+        scheduler = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(final Runnable r)
+                    {
+                        Thread thread = new Thread(r, "LDAP directory mirror");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                sync();
+            }
+        }, 0, Math.max(syncInterval, 1000), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops syncing. The mirror keeps its users, but becomes unusable once
+     * they are too stale.
+     */
+    public synchronized void stop()
+    {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Asks for a full sync to be made straight away in the background, such
+     * as after changes the incremental syncs can't see.
+     */
+    public synchronized void requestFullSync()
+    {
+        fullSyncRequested = true;
+
+        if (scheduler != null) {
+            scheduler.execute(new Runnable() {
+                public void run()
+                {
+                    if (fullSyncRequested) {
+                        sync();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Syncs with the directory, in full if a full sync is due or has been
+     * requested and incrementally otherwise.
+     */
+    void sync()
+    {
+        final long started = currentTime();
+        final boolean full = users == null || fullSyncRequested
+                || started - lastFullSync >= fullSyncInterval;
+
+        try {
+            if (full) {
+                // Cleared first, so a request made during the sync isn't lost
+                fullSyncRequested = false;
+                fullSync(started);
+            } else {
+                incrementalSync(started);
+            }
+        } catch (Exception e) {
+            if (full) {
+                fullSyncRequested = true;
+            }
+            syncFailures.incrementAndGet();
+            Log.error("Error syncing the LDAP directory mirror", e);
+        }
+    }
+
+    private void fullSync(final long started) throws NamingException
+    {
+        final ConcurrentSkipListMap<String, Entry> loaded = new ConcurrentSkipListMap<String, Entry>();
+        final PrefixIndex loadedIndex = new PrefixIndex(
+                searchAttributes.size());
+        final long[] memory = { 0 };
+
+        scanner.scan(null, new DirectoryScanner.Handler() {
+            public void handle(final String username, final Attributes attrs,
+                    final User user)
+            {
+                String key = key(username);
+                Entry entry = createEntry(user, attrs);
+
+                Entry previous = loaded.put(key, entry);
+
+                memory[0] += entry.size;
+
+                if (previous != null) {
+                    memory[0] -= previous.size;
+                }
+
+                loadedIndex.put(key, entry.values, previous == null ? null
+                        : previous.values);
+            }
+        });
+
+        synchronized (updateLock) {
+            // The index is published first so that it is never older than
+            // the users it is used to find
+            index = loadedIndex;
+            users = loaded;
+            estimatedMemory = memory[0];
+        }
+        lastFullSync = started;
+        lastSync = started;
+        fullSyncs.incrementAndGet();
+
+        Log.info("Mirrored " + loaded.size() + " LDAP users in "
+                + (currentTime() - started) + "ms");
+    }
+
+    private void incrementalSync(final long started) throws NamingException
+    {
+        final ConcurrentSkipListMap<String, Entry> current = users;
+        final PrefixIndex currentIndex = index;
+        final int[] count = { 0 };
+
+        scanner.scan("(modifyTimestamp>="
+                + formatGeneralizedTime(lastSync - SYNC_OVERLAP) + ")",
+                new DirectoryScanner.Handler() {
+                    public void handle(final String username,
+                            final Attributes attrs, final User user)
+                    {
+                        update(current, currentIndex, username, attrs, user);
+                        count[0]++;
+                    }
+                });
+
+        lastSync = started;
+        incrementalSyncs.incrementAndGet();
+
+        if (Log.isDebugEnabled()) {
+            Log.debug("Synced " + count[0] + " modified LDAP users");
+        }
+    }
+
+    /**
+     * Re-reads a user, such as one an administrator knows has changed,
+     * removing them if they are no longer found, so that deletions are seen
+     * before the next full sync. This is done on the syncing thread while the mirror is
+     * started, and straight away otherwise.
+     *
+     * @param username
+     *            the username.
+     * @param filter
+     *            a filter matching the user.
+     */
+    public void refreshUser(final String username, final String filter)
+    {
+        final Runnable refresh = new Runnable() {
+            public void run()
+            {
+                refresh(username, filter);
+            }
+        };
+
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.execute(refresh);
+                return;
+            }
+        }
+
+        refresh.run();
+    }
+
+    private void refresh(final String username, final String filter)
+    {
+        final ConcurrentSkipListMap<String, Entry> current = users;
+        final PrefixIndex currentIndex = index;
+
+        if (current == null) {
+            // The first full sync will load them
+            return;
+        }
+
+        final String key = key(username);
+        final boolean[] found = { false };
+
+        try {
+            scanner.scan(filter, new DirectoryScanner.Handler() {
+                public void handle(final String name, final Attributes attrs,
+                        final User user)
+                {
+                    if (key(name).equals(key)) {
+                        found[0] = true;
+                    }
+                    update(current, currentIndex, name, attrs, user);
+                }
+            });
+        } catch (Exception e) {
+            // Only a full sync will see if they were deleted
+            fullSyncRequested = true;
+            syncFailures.incrementAndGet();
+            Log.error("Error refreshing " + username
+                    + " in the LDAP directory mirror", e);
+            return;
+        }
+
+        if (!found[0]) {
+            remove(current, currentIndex, username);
+        }
+    }
+
+    /**
+     * Adds or replaces a user the directory has reported as changed, using
+     * the attributes reported with the change rather than reading them
+     * again.
+     *
+     * @param username
+     *            the username.
+     * @param attrs
+     *            the user's attributes, which should include the search
+     *            attributes.
+     * @param user
+     *            the user built from the attributes.
+     */
+    public void updateUser(final String username, final Attributes attrs,
+            final User user)
+    {
+        synchronized (updateLock) {
+            final ConcurrentSkipListMap<String, Entry> current = users;
+
+            if (current != null) {
+                update(current, index, username, attrs, user);
+            }
+        }
+    }
+
+    /**
+     * Removes a user the directory has reported as deleted.
+     *
+     * @param username
+     *            the username.
+     */
+    public void removeUser(final String username)
+    {
+        synchronized (updateLock) {
+            final ConcurrentSkipListMap<String, Entry> current = users;
+
+            if (current != null) {
+                remove(current, index, username);
+            }
+        }
+    }
+
+    /**
+     * Adds or replaces a user.
+     */
+    private void update(final ConcurrentSkipListMap<String, Entry> current,
+            final PrefixIndex currentIndex, final String username,
+            final Attributes attrs, final User user)
+    {
+        final String key = key(username);
+        final Entry entry = createEntry(user, attrs);
+
+        synchronized (updateLock) {
+            final Entry previous = current.put(key, entry);
+
+            currentIndex.put(key, entry.values, previous == null ? null
+                    : previous.values);
+
+            long memory = estimatedMemory + entry.size;
+
+            if (previous != null) {
+                memory -= previous.size;
+            }
+
+            estimatedMemory = memory;
+        }
+    }
+
+    /**
+     * Removes a user, if they are mirrored.
+     */
+    private void remove(final ConcurrentSkipListMap<String, Entry> current,
+            final PrefixIndex currentIndex, final String username)
+    {
+        final String key = key(username);
+
+        synchronized (updateLock) {
+            final Entry removed = current.remove(key);
+
+            if (removed != null) {
+                currentIndex.remove(key, removed.values);
+                estimatedMemory -= removed.size;
+            }
+        }
+    }
+
+    /**
+     * @return the attributes users can be searched on.
+     */
+    public List<String> getSearchAttributes()
+    {
+        return Collections.unmodifiableList(searchAttributes);
+    }
+
+    /**
+     * @param attributes
+     *            the attributes to search.
+     * @return true if users can be searched on all the attributes.
+     */
+    public boolean isSearchable(final Collection<String> attributes)
+    {
+        for (String attribute : attributes) {
+            boolean found = false;
+
+            for (String searchAttribute : searchAttributes) {
+                if (searchAttribute.equalsIgnoreCase(attribute)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the mirror has been loaded and is fresh enough to use.
+     */
+    public boolean isUsable()
+    {
+        return users != null && currentTime() - lastSync <= maxStaleness;
+    }
+
+    /**
+     * @param username
+     *            the username, which is matched case insensitively.
+     * @return the user, or null if they aren't mirrored.
+     */
+    public User getUser(final String username)
+    {
+        final ConcurrentSkipListMap<String, Entry> current = users;
+
+        if (current == null) {
+            return null;
+        }
+
+        Entry entry = current.get(key(username));
+
+        if (entry == null) {
+            return null;
+        }
+        return entry.user;
+    }
+
+    /**
+     * @return the usernames of the mirrored users, in order.
+     */
+    public Collection<String> getUsernames()
+    {
+        final ConcurrentSkipListMap<String, Entry> current = users;
+
+        if (current == null) {
+            return Collections.emptyList();
+        }
+
+        final List<String> usernames = new ArrayList<String>(current.size());
+
+        for (Entry entry : current.values()) {
+            usernames.add(entry.user.getUsername());
+        }
+
+        return usernames;
+    }
+
+    /**
+     * Searches the mirrored users in username order, with the same matching
+     * as the provider's directory searches: every term must match at least
+     * one of the attributes, where a term matches a value starting with it,
+     * case insensitively, and any "*" in a term matches any characters.<br />
+     * If every term is a plain prefix the matching users are found with the
+     * prefix index, otherwise every user is checked.
+     *
+     * @param attributes
+     *            the attributes to search, which must be search attributes.
+     * @param terms
+     *            the search terms.
+     * @param startIndex
+     *            the number of matching users to skip, or -1 to skip none.
+     * @param numResults
+     *            the maximum number of users to return, or -1 for all.
+     * @return the users found.
+     */
+    public List<User> findUsers(final Collection<String> attributes,
+            final String[] terms, final int startIndex, final int numResults)
+    {
+        final ConcurrentSkipListMap<String, Entry> current = users;
+        final List<User> found = new ArrayList<User>();
+
+        if (current == null || numResults == 0) {
+            return found;
+        }
+
+        final int[] indexes = new int[attributes.size()];
+        int i = 0;
+
+        for (String attribute : attributes) {
+            indexes[i++] = indexOf(attribute);
+        }
+
+        final String[][] patterns = new String[terms.length][];
+
+        for (int t = 0; t < terms.length; t++) {
+            String term = terms[t].toLowerCase(Locale.ENGLISH);
+
+            if (!term.endsWith("*")) {
+                term = term + "*";
+            }
+
+            patterns[t] = term.split("\\*", -1);
+        }
+
+        final String[] prefixes = prefixes(patterns);
+        final PrefixIndex currentIndex = index;
+        final Collection<Entry> candidates;
+
+        if (prefixes != null && currentIndex != null) {
+            candidates = new ArrayList<Entry>();
+
+            for (String key : currentIndex.findAll(indexes, prefixes)) {
+                Entry entry = current.get(key);
+
+                if (entry != null) {
+                    candidates.add(entry);
+                }
+            }
+        } else {
+            candidates = current.values();
+        }
+
+        int toSkip = Math.max(startIndex, 0);
+
+        for (Entry entry : candidates) {
+            // Index candidates are checked too, as the index may be updated
+            // after the users
+            if (!matches(entry, indexes, patterns)) {
+                continue;
+            }
+            if (toSkip > 0) {
+                toSkip--;
+                continue;
+            }
+
+            found.add(entry.user);
+
+            if (numResults > 0 && found.size() >= numResults) {
+                break;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * @return the number of mirrored users.
+     */
+    public int size()
+    {
+        final ConcurrentSkipListMap<String, Entry> current = users;
+
+        if (current == null) {
+            return 0;
+        }
+        return current.size();
+    }
+
+    /**
+     * @return the time in milliseconds since the last successful sync
+     *         started, which is how far behind the directory the mirror may
+     *         be, or -1 if it hasn't been loaded.
+     */
+    public long getSyncLag()
+    {
+        if (users == null) {
+            return -1;
+        }
+        return currentTime() - lastSync;
+    }
+
+    /**
+     * @return a rough estimate of the memory used by the mirrored users, in
+     *         bytes.
+     */
+    public long getEstimatedMemory()
+    {
+        return estimatedMemory;
+    }
+
+    /**
+     * @return the number of successful full syncs.
+     */
+    public long getFullSyncCount()
+    {
+        return fullSyncs.get();
+    }
+
+    /**
+     * @return the number of successful incremental syncs.
+     */
+    public long getIncrementalSyncCount()
+    {
+        return incrementalSyncs.get();
+    }
+
+    /**
+     * @return the number of syncs which failed.
+     */
+    public long getSyncFailureCount()
+    {
+        return syncFailures.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DirectoryMirror[users=" + size() + ", lag=" + getSyncLag()
+                + "ms, memory=" + getEstimatedMemory() + ", fullSyncs="
+                + getFullSyncCount() + ", incrementalSyncs="
+                + getIncrementalSyncCount() + ", failures="
+                + getSyncFailureCount() + "]";
+    }
+
+    /**
+     * Returns the current time in milliseconds. Overridden in tests.
+     *
+     * @return the current time.
+     */
+    long currentTime()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Formats a time as a GeneralizedTime in UTC.
+     */
+    static String formatGeneralizedTime(final long time)
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'",
+                Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private Entry createEntry(final User user, final Attributes attrs)
+    {
+        final String[][] values = new String[searchAttributes.size()][];
+        long size = ENTRY_OVERHEAD + stringSize(user.getUsername())
+                + stringSize(user.getName()) + stringSize(user.getEmail());
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = lowerCaseValues(attrs.get(searchAttributes.get(i)));
+
+            for (String value : values[i]) {
+                // The value, and its key in the prefix index
+                size += 2 * stringSize(value) + 2L
+                        * user.getUsername().length();
+            }
+        }
+
+        return new Entry(user, values, size);
+    }
+
+    private static String[] lowerCaseValues(final Attribute attr)
+    {
+        if (attr == null) {
+            return new String[0];
+        }
+
+        final List<String> values = new ArrayList<String>(attr.size());
+
+        try {
+            NamingEnumeration<?> all = attr.getAll();
+
+            while (all.hasMore()) {
+                Object value = all.next();
+
+                if (value instanceof String) {
+                    values.add(((String) value).toLowerCase(Locale.ENGLISH));
+                }
+            }
+        } catch (NamingException e) {
+            Log.warn("Unable to read attribute " + attr.getID(), e);
+        }
+
+        return values.toArray(new String[values.size()]);
+    }
+
+    private static long stringSize(final String value)
+    {
+        if (value == null) {
+            return 0;
+        }
+        return 40 + 2L * value.length();
+    }
+
+    private int indexOf(final String attribute)
+    {
+        for (int i = 0; i < searchAttributes.size(); i++) {
+            if (searchAttributes.get(i).equalsIgnoreCase(attribute)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(attribute
+                + " is not a mirrored search attribute");
+    }
+
+    /**
+     * @return the prefixes the patterns match, or null if they aren't all
+     *         non-empty prefixes.
+     */
+    private static String[] prefixes(final String[][] patterns)
+    {
+        if (patterns.length == 0) {
+            return null;
+        }
+
+        final String[] prefixes = new String[patterns.length];
+
+        for (int i = 0; i < patterns.length; i++) {
+            String[] pattern = patterns[i];
+
+            if (pattern.length != 2 || pattern[0].length() == 0
+                    || pattern[1].length() != 0) {
+                return null;
+            }
+
+            prefixes[i] = pattern[0];
+        }
+
+        return prefixes;
+    }
+
+    private static boolean matches(final Entry entry, final int[] indexes,
+            final String[][] patterns)
+    {
+        for (String[] pattern : patterns) {
+            boolean matched = false;
+
+            for (int index : indexes) {
+                for (String value : entry.values[index]) {
+                    if (matches(value, pattern)) {
+                        matched = true;
+                        break;
+                    }
+                }
+                if (matched) {
+                    break;
+                }
+            }
+
+            if (!matched) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Matches a value against a substring pattern split on "*".
+     */
+    static boolean matches(final String value, final String[] pattern)
+    {
+        if (!value.startsWith(pattern[0])) {
+            return false;
+        }
+
+        int position = pattern[0].length();
+
+        for (int i = 1; i < pattern.length - 1; i++) {
+            if (pattern[i].length() == 0) {
+                continue;
+            }
+
+            int found = value.indexOf(pattern[i], position);
+
+            if (found < 0) {
+                return false;
+            }
+
+            position = found + pattern[i].length();
+        }
+
+        final String last = pattern[pattern.length - 1];
+
+        return value.length() - position >= last.length()
+                && value.endsWith(last);
+    }
+
+    private static String key(final String username)
+    {
+        return username.toLowerCase(Locale.ENGLISH);
+    }
+}
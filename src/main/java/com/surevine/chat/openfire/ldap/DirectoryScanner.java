@@ -0,0 +1,59 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+
+import org.jivesoftware.openfire.user.User;
+
+/**
+ * Scans the directory for users in bulk, for components which keep their own
+ * copy of user data.
+ */
+interface DirectoryScanner
+{
+    /**
+     * Receives the users found by a scan one at a time.
+     */
+    interface Handler
+    {
+        /**
+         * @param username
+         *            the username.
+         * @param attrs
+         *            the attributes loaded for the user.
+         * @param user
+         *            the user built from the attributes.
+         */
+        void handle(String username, Attributes attrs, User user);
+    }
+
+    /**
+     * Scans for every user matched by the provider's search filter, and by an
+     * extra filter if one is given.
+     *
+     * @param extraFilter
+     *            a filter the users must also match, or null.
+     * @param handler
+     *            receives the users.
+     * @throws NamingException
+     *             if the scan failed, in which case the handler may have
+     *             received some of the users.
+     */
+    void scan(String extraFilter, Handler handler) throws NamingException;
+}
@@ -0,0 +1,186 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+/**
+ * A compiled display name template. Replacements are made by enclosing ldap
+ * attribute names in curly braces, for example: "{givenName} {sn}".<br />
+ * The template is parsed once into alternating literal segments and attribute
+ * slots, so rendering is a single pass with no regular expressions. Attribute
+ * values are copied verbatim, so characters such as '$' and '\' are safe.
+ * Instances are immutable and thread safe.
+ */
+public final class DisplayNameTemplate
+{
+    /**
+     * The number of characters allowed for each attribute value when sizing
+     * the result buffer.
+     */
+    private static final int ESTIMATED_VALUE_LENGTH = 16;
+
+    /**
+     * The template as configured.
+     */
+    private final String template;
+
+    /**
+     * The literal segments. There is always one more literal than there are
+     * attribute slots, literals[i] coming before slots[i].
+     */
+    private final String[] literals;
+
+    /**
+     * The names of the attributes to insert.
+     */
+    private final String[] slots;
+
+    /**
+     * The distinct attribute names used by the template.
+     */
+    private final Set<String> attributeNames;
+
+    /**
+     * The initial capacity of the buffer used to render the template.
+     */
+    private final int estimatedLength;
+
+    /**
+     * Compiles a template.
+     *
+     * @param template
+     *            the template.
+     */
+    public DisplayNameTemplate(final String template)
+    {
+        this.template = template;
+
+        final List<String> literalList = new ArrayList<String>();
+        final List<String> slotList = new ArrayList<String>();
+
+        int literalStart = 0;
+        int open = template.indexOf('{');
+
+        while (open >= 0) {
+            int close = template.indexOf('}', open + 1);
+
+            if (close < 0) {
+                // No more attribute slots
+                break;
+            }
+
+            if (close == open + 1) {
+                // "{}" is literal text
+                open = template.indexOf('{', open + 1);
+                continue;
+            }
+
+            literalList.add(template.substring(literalStart, open));
+            slotList.add(template.substring(open + 1, close));
+
+            literalStart = close + 1;
+            open = template.indexOf('{', literalStart);
+        }
+
+        literalList.add(template.substring(literalStart));
+
+        literals = literalList.toArray(new String[literalList.size()]);
+        slots = slotList.toArray(new String[slotList.size()]);
+        attributeNames = Collections
+                .unmodifiableSet(new LinkedHashSet<String>(slotList));
+
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        estimatedLength = length + slots.length * ESTIMATED_VALUE_LENGTH;
+    }
+
+    /**
+     * Renders the template, replacing each attribute slot with the value of
+     * the attribute, or nothing if the user doesn't have it. Leading and
+     * trailing whitespace is removed.
+     *
+     * @param attrs
+     *            the user's attributes.
+     * @return the display name.
+     * @throws NamingException
+     */
+    public String render(final Attributes attrs) throws NamingException
+    {
+        final StringBuilder result = new StringBuilder(estimatedLength);
+
+        for (int i = 0; i < slots.length; i++) {
+            result.append(literals[i]);
+
+            Attribute attr = attrs.get(slots[i]);
+
+            if (attr != null) {
+                Object value = attr.get();
+
+                if (value != null) {
+                    result.append((String) value);
+                }
+            }
+        }
+
+        result.append(literals[slots.length]);
+
+        int start = 0;
+        int end = result.length();
+
+        while (start < end && result.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && result.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        return result.substring(start, end);
+    }
+
+    /**
+     * @return the distinct names of the attributes used by the template.
+     */
+    public Set<String> getAttributeNames()
+    {
+        return attributeNames;
+    }
+
+    /**
+     * @return the template as configured.
+     */
+    public String getTemplate()
+    {
+        return template;
+    }
+
+    @Override
+    public String toString()
+    {
+        return template;
+    }
+}
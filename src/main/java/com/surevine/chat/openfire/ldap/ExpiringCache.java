@@ -0,0 +1,522 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * A size bounded cache whose entries expire a fixed time after they were
+ * added. When the cache is full the least recently used (LRU) or least
+ * frequently used (LFU) entry is evicted, depending on the
+ * {@link EvictionPolicy}.<br />
+ * Hit, miss, eviction and expiration counts are kept so that the
+ * effectiveness of the cache can be monitored.<br />
+ * Expired entries can be kept for a stale time after they expire, so that
+ * {@link #getStale(Object)} can still return them when fresh values can't be
+ * fetched.
+ *
+ * @param <K>
+ *            the key type.
+ * @param <V>
+ *            the value type.
+ */
+public class ExpiringCache<K, V>
+{
+    /**
+     * The policy used to choose which entry to evict when the cache is full.
+     */
+    public enum EvictionPolicy
+    {
+        /**
+         * Evict the entry which was least recently read or written.
+         */
+        LRU,
+
+        /**
+         * Evict the entry which has been read the fewest times, oldest first.
+         */
+        LFU;
+
+        /**
+         * Parses a policy name, falling back to the supplied default if the
+         * name is not recognised.
+         *
+         * @param name
+         *            the policy name (case insensitive), may be null.
+         * @param defaultPolicy
+         *            the policy to use if the name can't be parsed.
+         * @return the policy.
+         */
+        public static EvictionPolicy parse(final String name,
+                final EvictionPolicy defaultPolicy)
+        {
+            if (name == null) {
+                return defaultPolicy;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return defaultPolicy;
+            }
+        }
+    }
+
+    /**
+     * A cached value along with its bookkeeping.
+     */
+    private static final class Entry<V>
+    {
+        private final V value;
+
+        private final long expiresAt;
+
+        private int frequency = 1;
+
+        Entry(final V value, final long expiresAt)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * The name of the cache, used for logging.
+     */
+    private final String name;
+
+    /**
+     * The maximum number of entries held.
+     */
+    private final int maxSize;
+
+    /**
+     * The time in milliseconds an entry lives for after being added.
+     */
+    private final long timeToLive;
+
+    /**
+     * The time in milliseconds an entry is kept for after it expires.
+     */
+    private final long staleTime;
+
+    /**
+     * The eviction policy used when the cache is full.
+     */
+    private final EvictionPolicy evictionPolicy;
+
+    /**
+     * The cached entries. For the LRU policy this is in access order so the
+     * eldest entry is the one to evict.
+     */
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    /**
+     * For the LFU policy, the keys grouped by how often they have been read.
+     * Each group is in insertion order so ties are broken oldest first.
+     */
+    private final Map<Integer, LinkedHashSet<K>> frequencies = new HashMap<Integer, LinkedHashSet<K>>();
+
+    /**
+     * For the LFU policy, the lowest frequency currently in
+     * {@link #frequencies}.
+     */
+    private int minFrequency;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long expirations;
+
+    private long staleHits;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param name
+     *            the name of the cache, used for logging.
+     * @param maxSize
+     *            the maximum number of entries to hold.
+     * @param timeToLive
+     *            the time in milliseconds an entry lives for.
+     * @param evictionPolicy
+     *            the policy used to evict entries when the cache is full.
+     */
+    public ExpiringCache(final String name, final int maxSize,
+            final long timeToLive, final EvictionPolicy evictionPolicy)
+    {
+        this(name, maxSize, timeToLive, evictionPolicy, 0);
+    }
+
+    /**
+     * Creates a new cache which keeps entries after they expire.
+     *
+     * @param name
+     *            the name of the cache, used for logging.
+     * @param maxSize
+     *            the maximum number of entries to hold.
+     * @param timeToLive
+     *            the time in milliseconds an entry lives for.
+     * @param evictionPolicy
+     *            the policy used to evict entries when the cache is full.
+     * @param staleTime
+     *            the time in milliseconds an entry is kept for after it
+     *            expires, for {@link #getStale(Object)}.
+     */
+    public ExpiringCache(final String name, final int maxSize,
+            final long timeToLive, final EvictionPolicy evictionPolicy,
+            final long staleTime)
+    {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache " + name
+                    + " must have a maximum size of at least 1");
+        }
+        this.name = name;
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.evictionPolicy = evictionPolicy;
+        this.staleTime = Math.max(staleTime, 0);
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f,
+                evictionPolicy == EvictionPolicy.LRU);
+    }
+
+    /**
+     * Returns the value cached against the key, or null if there is no value
+     * or it has expired.
+     *
+     * @param key
+     *            the key.
+     * @return the cached value or null.
+     */
+    public synchronized V get(final K key)
+    {
+        final Entry<V> entry = entries.get(key);
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        final long now = currentTime();
+
+        if (entry.expiresAt <= now) {
+            if (entry.expiresAt + staleTime <= now) {
+                removeEntry(key);
+                expirations++;
+            }
+            misses++;
+            return null;
+        }
+
+        hits++;
+
+        if (evictionPolicy == EvictionPolicy.LFU) {
+            touch(key, entry);
+        }
+
+        return entry.value;
+    }
+
+    /**
+     * Returns the value cached against the key even if it has expired, as
+     * long as it expired less than the stale time ago. This doesn't count as a
+     * hit or a miss.
+     *
+     * @param key
+     *            the key.
+     * @return the cached value or null.
+     */
+    public synchronized V getStale(final K key)
+    {
+        final Entry<V> entry = entries.get(key);
+
+        if (entry == null || entry.expiresAt + staleTime <= currentTime()) {
+            return null;
+        }
+
+        staleHits++;
+
+        return entry.value;
+    }
+
+    /**
+     * Caches a value against a key, replacing any existing value and evicting
+     * an entry if the cache is full.
+     *
+     * @param key
+     *            the key.
+     * @param value
+     *            the value.
+     */
+    public synchronized void put(final K key, final V value)
+    {
+        if (entries.containsKey(key)) {
+            removeEntry(key);
+        } else if (entries.size() >= maxSize) {
+            evict();
+        }
+
+        entries.put(key, new Entry<V>(value, currentTime() + timeToLive));
+
+        if (evictionPolicy == EvictionPolicy.LFU) {
+            bucket(1).add(key);
+            minFrequency = 1;
+        }
+    }
+
+    /**
+     * Removes the value cached against the key.
+     *
+     * @param key
+     *            the key.
+     * @return the value which was removed, or null if there wasn't one.
+     */
+    public synchronized V remove(final K key)
+    {
+        final Entry<V> entry = removeEntry(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        return entry.value;
+    }
+
+    /**
+     * Removes all the entries from the cache. The statistics are retained.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        frequencies.clear();
+        minFrequency = 0;
+    }
+
+    /**
+     * @return the number of entries in the cache, including any which have
+     *         expired but not yet been removed.
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the name of the cache.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the maximum number of entries held.
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return the time in milliseconds an entry lives for.
+     */
+    public long getTimeToLive()
+    {
+        return timeToLive;
+    }
+
+    /**
+     * @return the time in milliseconds an entry is kept for after it expires.
+     */
+    public long getStaleTime()
+    {
+        return staleTime;
+    }
+
+    /**
+     * @return the eviction policy.
+     */
+    public EvictionPolicy getEvictionPolicy()
+    {
+        return evictionPolicy;
+    }
+
+    /**
+     * @return the number of lookups which found an unexpired value.
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups which didn't find an unexpired value.
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return the number of entries evicted to make room for new ones.
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return the number of entries removed because they had expired.
+     */
+    public synchronized long getExpirations()
+    {
+        return expirations;
+    }
+
+    /**
+     * @return the number of values returned by {@link #getStale(Object)}.
+     */
+    public synchronized long getStaleHits()
+    {
+        return staleHits;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return name + "[size=" + entries.size() + "/" + maxSize + ", hits="
+                + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", expirations=" + expirations + ", staleHits=" + staleHits
+                + "]";
+    }
+
+    /**
+     * Returns the current time in milliseconds. Overridden in tests.
+     *
+     * @return the current time.
+     */
+    long currentTime()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Evicts one entry according to the eviction policy.
+     */
+    private void evict()
+    {
+        K victim;
+
+        if (evictionPolicy == EvictionPolicy.LFU) {
+            LinkedHashSet<K> keys = frequencies.get(minFrequency);
+
+            if (keys == null || keys.isEmpty()) {
+                // The lowest frequency has been emptied by a removal
+                minFrequency = Integer.MAX_VALUE;
+                for (Map.Entry<Integer, LinkedHashSet<K>> frequency : frequencies
+                        .entrySet()) {
+                    if (!frequency.getValue().isEmpty()
+                            && frequency.getKey() < minFrequency) {
+                        minFrequency = frequency.getKey();
+                    }
+                }
+                keys = frequencies.get(minFrequency);
+            }
+
+            if (keys == null) {
+                return;
+            }
+
+            victim = keys.iterator().next();
+        } else {
+            final Iterator<K> i = entries.keySet().iterator();
+
+            if (!i.hasNext()) {
+                return;
+            }
+
+            victim = i.next();
+        }
+
+        removeEntry(victim);
+        evictions++;
+    }
+
+    /**
+     * Moves the key up to the next frequency group.
+     */
+    private void touch(final K key, final Entry<V> entry)
+    {
+        final LinkedHashSet<K> keys = frequencies.get(entry.frequency);
+
+        keys.remove(key);
+
+        if (keys.isEmpty()) {
+            frequencies.remove(entry.frequency);
+
+            if (minFrequency == entry.frequency) {
+                minFrequency++;
+            }
+        }
+
+        entry.frequency++;
+        bucket(entry.frequency).add(key);
+    }
+
+    /**
+     * Returns the frequency group, creating it if needed.
+     */
+    private LinkedHashSet<K> bucket(final int frequency)
+    {
+        LinkedHashSet<K> keys = frequencies.get(frequency);
+
+        if (keys == null) {
+            keys = new LinkedHashSet<K>();
+            frequencies.put(frequency, keys);
+        }
+
+        return keys;
+    }
+
+    /**
+     * Removes an entry and its frequency bookkeeping.
+     */
+    private Entry<V> removeEntry(final K key)
+    {
+        final Entry<V> entry = entries.remove(key);
+
+        if (entry != null && evictionPolicy == EvictionPolicy.LFU) {
+            final LinkedHashSet<K> keys = frequencies.get(entry.frequency);
+
+            if (keys != null) {
+                keys.remove(key);
+
+                if (keys.isEmpty()) {
+                    frequencies.remove(entry.frequency);
+                }
+            }
+        }
+
+        return entry;
+    }
+}
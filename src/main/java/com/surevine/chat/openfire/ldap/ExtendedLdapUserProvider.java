@@ -20,35 +20,43 @@
 
 package com.surevine.chat.openfire.ldap;
 
+import com.surevine.chat.openfire.ldap.OperationMetrics.Timed;
+
 import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
 
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.ldap.LdapManager;
 import org.jivesoftware.openfire.ldap.LdapUserProvider;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserAlreadyExistsException;
-import org.jivesoftware.openfire.user.UserCollection;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.openfire.user.UserProvider;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -56,6 +64,8 @@ import org.xmpp.packet.JID;
 /**
  * Extends the {@link LdapUserProvider} to better support ldap repositories
  * which don't have a full name field available.<br />
+ * The latency, errors and directory round trips of each type of operation are
+ * always measured, and can be read through {@link #getMetrics()}.<br />
  * Extra properties are:
  * <dl>
  * <dt>ldap.displayNameTemplate</dt>
@@ -71,14 +81,368 @@ import org.xmpp.packet.JID;
  * for "Name" is received. Note these should be the XMPP field names, not the
  * ldap field names (as defined in ldap.searchFields)</dt>
  * </dl>
+ * Changes to the properties above take effect immediately, through
+ * {@link #reloadConfiguration()}. Extra properties read when the provider
+ * starts are:
+ * <dl>
+ * <dt>ldap.userCache.enabled</dt>
+ * <dd>If this property is set to "true", then loaded users will be cached
+ * in front of the directory.</dd>
+ * <dt>ldap.userCache.maxSize</dt>
+ * <dd>The maximum number of users to cache (default 10000).</dd>
+ * <dt>ldap.userCache.ttl</dt>
+ * <dd>The time in milliseconds a cached user lives for (default 300000).</dd>
+ * <dt>ldap.userCache.evictionPolicy</dt>
+ * <dd>Either "LRU" (the default) or "LFU".</dd>
+ * <dt>ldap.userCache.negative.enabled</dt>
+ * <dd>If this property is set to "true", then usernames which the directory
+ * has no entry for will be cached, so repeated loads fail without a lookup.</dd>
+ * <dt>ldap.userCache.negative.maxSize</dt>
+ * <dd>The maximum number of unknown usernames to cache (default 10000).</dd>
+ * <dt>ldap.userCache.negative.ttl</dt>
+ * <dd>The time in milliseconds an unknown username is cached for (default
+ * 60000).</dd>
+ * <dt>ldap.userLoad.singleSearch</dt>
+ * <dd>If this property is set to "true", then users are loaded with a single
+ * search which returns their attributes.</dd>
+ * <dt>ldap.userLoad.batchSize</dt>
+ * <dd>The maximum number of users looked up by each search when loading users
+ * in bulk (default 50).</dd>
+ * <dt>ldap.providerPool.enabled</dt>
+ * <dd>If this property is set to "true", then the provider keeps its own pool
+ * of ldap contexts rather than relying on JNDI connection pooling.</dd>
+ * <dt>ldap.providerPool.minSize, ldap.providerPool.maxSize</dt>
+ * <dd>The minimum number of idle contexts kept open (default 2) and the
+ * maximum number of contexts open at once (default 20).</dd>
+ * <dt>ldap.providerPool.idleTimeout, ldap.providerPool.maxWait</dt>
+ * <dd>The time in milliseconds after which an idle context is closed (default
+ * 300000) and to wait for a context when the pool is exhausted (default
+ * 5000).</dd>
+ * <dt>ldap.providerPool.validateOnBorrow</dt>
+ * <dd>If this property is set to "true", then contexts are checked before
+ * each use, as well as periodically while idle.</dd>
+ * <dt>ldap.paging.mode</dt>
+ * <dd>How user searches fetch a window of results: "auto" uses a virtual list
+ * view where the directory's root DSE lists it as supported and simple paged
+ * results otherwise, "vlv" and "paged" use one or the other, and "none" (the
+ * default) uses a single search, skipping results on the client.</dd>
+ * <dt>ldap.paging.pageSize</dt>
+ * <dd>The number of results requested per page with simple paged results
+ * (default 500). The mirror is always loaded with simple paged results,
+ * whatever the paging mode.</dd>
+ * <dt>ldap.mirror.enabled</dt>
+ * <dd>If this property is set to "true", then every user is loaded into an
+ * in-memory mirror of the directory, which answers loadUser, findUsers,
+ * getUsernames and getUserCount while it is fresh.</dd>
+ * <dt>ldap.mirror.syncInterval, ldap.mirror.fullSyncInterval</dt>
+ * <dd>The time in milliseconds between syncs of users modified since the last
+ * sync (default 60000) and between full reloads, which also drop deleted users
+ * (default 3600000).</dd>
+ * <dt>ldap.mirror.maxStaleness</dt>
+ * <dd>The time in milliseconds since the last successful sync after which the
+ * mirror isn't used (default 300000).</dd>
+ * <dt>ldap.changeListener.enabled</dt>
+ * <dd>If this property is set to "true", then a persistent search under each
+ * base DN evicts users from the user caches, and updates them in the mirror
+ * from the attributes sent with each change, as soon as their entries change,
+ * so the caches can safely be given long TTLs.</dd>
+ * <dt>ldap.changeListener.mode</dt>
+ * <dd>How changes are received: "auto" (the default) uses syncrepl where the
+ * directory supports it and a persistent search otherwise, and "syncrepl" and
+ * "psearch" use one or the other.</dd>
+ * <dt>ldap.searchCache.enabled</dt>
+ * <dd>If this property is set to "true", then the results of findUsers
+ * searches are cached, shared by every session, and repeated searches are
+ * answered from the cache.</dd>
+ * <dt>ldap.searchCache.maxSize, ldap.searchCache.ttl</dt>
+ * <dd>The maximum number of searches cached (default 1000) and the time in
+ * milliseconds their results are cached for (default 30000).</dd>
+ * <dt>ldap.async.threads, ldap.async.queueSize</dt>
+ * <dd>The maximum number of lookups made through the asynchronous methods run
+ * at once (default 10) and waiting to run (default 1000).</dd>
+ * <dt>ldap.async.timeout</dt>
+ * <dd>The time in milliseconds asynchronous lookups are allowed when the
+ * caller doesn't give a timeout (default 30000).</dd>
+ * <dt>ldap.async.virtualThreads</dt>
+ * <dd>If this property is set to "true", then asynchronous lookups each run
+ * on their own virtual thread where the JVM supports them, up to
+ * ldap.async.threads plus ldap.async.queueSize at once.</dd>
+ * <dt>ldap.loadBalancing.enabled</dt>
+ * <dd>If this property is set to "true", then operations are spread across
+ * every host in ldap.host, rather than going to whichever host LdapManager
+ * picks, and hosts which keep failing or timing out are ejected. Each host
+ * gets its own provider pool if ldap.providerPool.enabled is set.</dd>
+ * <dt>ldap.loadBalancing.strategy</dt>
+ * <dd>How a host is chosen for each operation: "least-outstanding" (the
+ * default) picks the host with the fewest operations in progress,
+ * "round-robin" uses each in turn and "latency-weighted" favours the hosts
+ * which have been responding fastest.</dd>
+ * <dt>ldap.loadBalancing.failureThreshold, ldap.loadBalancing.ejectionTime</dt>
+ * <dd>The number of consecutive failures after which a host is ejected
+ * (default 3) and the time in milliseconds it is ejected for (default
+ * 30000).</dd>
+ * <dt>ldap.loadBalancing.healthCheckInterval</dt>
+ * <dd>The time in milliseconds between health checks of hosts which have
+ * failed (default 5000).</dd>
+ * <dt>ldap.loadBalancing.connectTimeout, ldap.loadBalancing.readTimeout</dt>
+ * <dd>The time in milliseconds to wait for a connection to a host (default
+ * 5000) and for a response (default 10000), after which the operation fails
+ * and counts against the host.</dd>
+ * <dt>ldap.circuitBreaker.enabled</dt>
+ * <dd>If this property is set to "true", then user loads, bulk user loads
+ * and user searches each have a circuit breaker, which rejects them without
+ * going to the directory once too many have recently failed or been slow.
+ * While it is open, cached users and search results which have expired less
+ * than ldap.circuitBreaker.staleTime ago are returned instead.</dd>
+ * <dt>ldap.circuitBreaker.failureRate, ldap.circuitBreaker.window</dt>
+ * <dd>The percentage of the last ldap.circuitBreaker.window operations
+ * (default 20) which must fail or be slow for the circuit to open (default
+ * 50).</dd>
+ * <dt>ldap.circuitBreaker.slowCallTime</dt>
+ * <dd>The time in milliseconds after which an operation counts as slow
+ * (default 5000), or 0 to only count failures.</dd>
+ * <dt>ldap.circuitBreaker.openTime</dt>
+ * <dd>The time in milliseconds a circuit stays open before a trial operation
+ * is let through (default 30000).</dd>
+ * <dt>ldap.circuitBreaker.staleTime</dt>
+ * <dd>The time in milliseconds cached users and search results are kept for
+ * after they expire, to be returned while a circuit is open (default
+ * 600000).</dd>
+ * <dt>ldap.bulkhead.loadUser, ldap.bulkhead.loadUsers,
+ * ldap.bulkhead.findUsers</dt>
+ * <dd>The maximum number of user loads, bulk user loads and user searches
+ * which can be waiting on the directory at once, beyond which they are
+ * rejected (default 0, meaning no limit).</dd>
+ * <dt>ldap.hedging.enabled</dt>
+ * <dd>If this property is set to "true", then a user load which hasn't
+ * completed within the ldap.hedging.percentile (default 95) of recent load
+ * latencies, or ldap.hedging.minDelay milliseconds (default 10) if that is
+ * longer, is started again, and the first to finish is used. This works best
+ * with ldap.loadBalancing.enabled, so the second attempt goes to another
+ * host.</dd>
+ * <dt>ldap.hedging.budget</dt>
+ * <dd>The maximum percentage of user loads which are hedged (default
+ * 10).</dd>
+ * <dt>ldap.hedging.threads</dt>
+ * <dd>The maximum number of user loads and hedges running at once (default
+ * 50), beyond which loads run on the caller's thread without hedging.</dd>
+ * <dt>ldap.jmx.enabled</dt>
+ * <dd>If this property is set to "true", then the provider is registered with
+ * JMX as {@link ProviderMonitor#OBJECT_NAME}.</dd>
+ * <dt>ldap.jfr.enabled</dt>
+ * <dd>If this property is set to "true", then {@link DirectoryEvent}s are
+ * recorded with Java Flight Recorder.</dd>
+ * <dt>ldap.jfr.threshold</dt>
+ * <dd>The duration in milliseconds below which flight recorder events aren't
+ * recorded, unless a recording's settings say otherwise (default 20).</dd>
+ * <dt>ldap.slowQueryLog.enabled</dt>
+ * <dd>If this property is set to "true", then slow user searches are
+ * logged.</dd>
+ * <dt>ldap.slowQueryLog.threshold</dt>
+ * <dd>The duration in milliseconds from which user searches are logged as
+ * slow, by their {@link SlowQueryLog#fingerprint(String) filter shape}
+ * (default 1000).</dd>
+ * <dt>ldap.slowQueryLog.maxShapes</dt>
+ * <dd>The number of the slowest filter shapes aggregates are kept for
+ * (default 20).</dd>
+ * </dl>
  */
 public class ExtendedLdapUserProvider implements UserProvider
 {
     private static final Logger Log = LoggerFactory
             .getLogger(LdapUserProvider.class);
 
-    // LDAP date format parser.
-    private static String LDAP_DATE_FORMAT_STRING = "yyyyMMddHHmmss";
+    /**
+     * The default maximum number of users held in the user cache.
+     */
+    private static final int DEFAULT_USER_CACHE_SIZE = 10000;
+
+    /**
+     * The default time in milliseconds a user is cached for.
+     */
+    private static final long DEFAULT_USER_CACHE_TTL = 5 * 60 * 1000;
+
+    /**
+     * The default number of users looked up by each search when loading users
+     * in bulk.
+     */
+    private static final int DEFAULT_USER_LOAD_BATCH_SIZE = 50;
+
+    /**
+     * The default maximum number of unknown usernames held in the negative
+     * user cache.
+     */
+    private static final int DEFAULT_NEGATIVE_USER_CACHE_SIZE = 10000;
+
+    /**
+     * The default time in milliseconds an unknown username is cached for.
+     */
+    private static final long DEFAULT_NEGATIVE_USER_CACHE_TTL = 60 * 1000;
+
+    /**
+     * The default minimum number of idle contexts kept open by the context
+     * pool.
+     */
+    private static final int DEFAULT_POOL_MIN_SIZE = 2;
+
+    /**
+     * The default maximum number of contexts open in the context pool.
+     */
+    private static final int DEFAULT_POOL_MAX_SIZE = 20;
+
+    /**
+     * The default time in milliseconds after which an idle pooled context is
+     * closed.
+     */
+    private static final long DEFAULT_POOL_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * The default time in milliseconds to wait for a pooled context.
+     */
+    private static final long DEFAULT_POOL_MAX_WAIT = 5 * 1000;
+
+    /**
+     * The default maximum number of searches in the search result cache.
+     */
+    private static final int DEFAULT_SEARCH_CACHE_SIZE = 1000;
+
+    /**
+     * The default time in milliseconds search results are cached for.
+     */
+    private static final long DEFAULT_SEARCH_CACHE_TTL = 30 * 1000;
+
+    /**
+     * The default maximum number of asynchronous lookups run at once.
+     */
+    private static final int DEFAULT_ASYNC_THREADS = 10;
+
+    /**
+     * The default maximum number of asynchronous lookups waiting to run.
+     */
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+
+    /**
+     * The default time in milliseconds asynchronous lookups are allowed.
+     */
+    private static final long DEFAULT_ASYNC_TIMEOUT = 30 * 1000;
+
+    /**
+     * The default number of consecutive failures after which a directory
+     * server is ejected.
+     */
+    private static final int DEFAULT_LB_FAILURE_THRESHOLD = 3;
+
+    /**
+     * The default time in milliseconds a directory server is ejected for.
+     */
+    private static final long DEFAULT_LB_EJECTION_TIME = 30 * 1000;
+
+    /**
+     * The default time in milliseconds between health checks of failed
+     * directory servers.
+     */
+    private static final long DEFAULT_LB_HEALTH_CHECK_INTERVAL = 5 * 1000;
+
+    /**
+     * The default time in milliseconds to wait for a connection to a load
+     * balanced directory server.
+     */
+    private static final long DEFAULT_LB_CONNECT_TIMEOUT = 5 * 1000;
+
+    /**
+     * The default time in milliseconds to wait for a response from a load
+     * balanced directory server.
+     */
+    private static final long DEFAULT_LB_READ_TIMEOUT = 10 * 1000;
+
+    /**
+     * The default percentage of recent operations which must fail or be slow
+     * for a circuit breaker to open.
+     */
+    private static final int DEFAULT_CB_FAILURE_RATE = 50;
+
+    /**
+     * The default number of recent operations a circuit breaker's failure
+     * rate is measured over.
+     */
+    private static final int DEFAULT_CB_WINDOW = 20;
+
+    /**
+     * The default time in milliseconds after which an operation counts as
+     * slow.
+     */
+    private static final long DEFAULT_CB_SLOW_CALL_TIME = 5 * 1000;
+
+    /**
+     * The default time in milliseconds a circuit breaker stays open.
+     */
+    private static final long DEFAULT_CB_OPEN_TIME = 30 * 1000;
+
+    /**
+     * The default time in milliseconds cached values are kept for after they
+     * expire, to be returned while a circuit breaker is open.
+     */
+    private static final long DEFAULT_CB_STALE_TIME = 10 * 60 * 1000;
+
+    /**
+     * The default percentile of recent user load latencies after which a load
+     * is hedged.
+     */
+    private static final int DEFAULT_HEDGING_PERCENTILE = 95;
+
+    /**
+     * The default minimum time in milliseconds before a user load is hedged.
+     */
+    private static final long DEFAULT_HEDGING_MIN_DELAY = 10;
+
+    /**
+     * The default maximum percentage of user loads which are hedged.
+     */
+    private static final int DEFAULT_HEDGING_BUDGET = 10;
+
+    /**
+     * The default maximum number of hedged user loads running at once.
+     */
+    private static final int DEFAULT_HEDGING_THREADS = 50;
+
+    /**
+     * The default duration in milliseconds below which flight recorder events
+     * aren't recorded.
+     */
+    private static final long DEFAULT_JFR_THRESHOLD = 20;
+
+    /**
+     * The default duration in milliseconds from which user searches are
+     * logged as slow.
+     */
+    private static final long DEFAULT_SLOW_QUERY_THRESHOLD = 1000;
+
+    /**
+     * The default number of slow search filter shapes aggregates are kept for.
+     */
+    private static final int DEFAULT_SLOW_QUERY_MAX_SHAPES = 20;
+
+    /**
+     * The default number of results requested per page of a paged search.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * The default time in milliseconds between syncs of the directory mirror.
+     */
+    private static final long DEFAULT_MIRROR_SYNC_INTERVAL = 60 * 1000;
+
+    /**
+     * The default time in milliseconds between full syncs of the directory
+     * mirror.
+     */
+    private static final long DEFAULT_MIRROR_FULL_SYNC_INTERVAL = 60 * 60 * 1000;
+
+    /**
+     * The default time in milliseconds since the last successful sync after
+     * which the directory mirror isn't used.
+     */
+    private static final long DEFAULT_MIRROR_MAX_STALENESS = 5 * 60 * 1000;
 
     /**
      * This is the ldap user provider which will be used to delegate calls to.
@@ -96,244 +460,2334 @@ public class ExtendedLdapUserProvider implements UserProvider
     private final XMPPServer xmppServer;
 
     /**
-     * A template to use for the user's xmpp display (nick) name. Replacements
-     * can be made by enclosing ldap attributes names in curly braces.<br />
-     * For example: "{familyName} {sn}"
+     * The display name template, attributes to load and search settings. These
+     * are reloaded when their properties change, so each operation reads them
+     * once and uses the same configuration throughout.
+     */
+    private volatile ProviderConfiguration config;
+
+    /**
+     * Reloads the configuration when one of its properties changes.
+     */
+    private final PropertyEventListener configListener = new PropertyEventListener() {
+        public void propertySet(final String property,
+                final Map<String, Object> params)
+        {
+            propertyChanged(property);
+        }
+
+        public void propertyDeleted(final String property,
+                final Map<String, Object> params)
+        {
+            propertyChanged(property);
+        }
+
+        public void xmlPropertySet(final String property,
+                final Map<String, Object> params)
+        {
+            // The properties are migrated out of the xml file
+        }
+
+        public void xmlPropertyDeleted(final String property,
+                final Map<String, Object> params)
+        {
+            // The properties are migrated out of the xml file
+        }
+    };
+
+    /**
+     * The cache of loaded users, keyed on the unescaped username. This is null
+     * if user caching is disabled.
+     */
+    private ExpiringCache<String, User> userCache;
+
+    /**
+     * The cache of usernames which the directory has no entry for, so that
+     * repeated loads of unknown users don't go to the directory. This is null
+     * if negative caching is disabled.
+     */
+    private ExpiringCache<String, Boolean> negativeUserCache;
+
+    /**
+     * The cache of findUsers results, or null if search caching is disabled.
+     */
+    private SearchResultCache searchResultCache;
+
+    /**
+     * Guards the directory lookups made by {@link #loadUser(String)}, or null
+     * if they aren't guarded.
+     */
+    private CircuitBreaker loadUserBreaker;
+
+    /**
+     * Guards the directory searches made by
+     * {@link #loadUsers(Collection, Collection)}, or null if they aren't
+     * guarded.
+     */
+    private CircuitBreaker loadUsersBreaker;
+
+    /**
+     * Guards the directory searches made by
+     * {@link #findUsers(Set, String, int, int)}, or null if they aren't
+     * guarded.
+     */
+    private CircuitBreaker findUsersBreaker;
+
+    /**
+     * The latency, errors and round trips of each type of operation.
+     */
+    private final ProviderMetrics metrics = new ProviderMetrics();
+
+    /**
+     * Hedges slow user loads, or null if they aren't hedged.
+     */
+    private RequestHedger hedger;
+
+    /**
+     * Logs slow user searches, or null if they aren't logged.
+     */
+    private SlowQueryLog slowQueryLog;
+
+    /**
+     * If this property is set to true, then users are loaded with a single
+     * search which returns their attributes, rather than a search for their DN
+     * followed by a read of their entry.
+     */
+    private boolean singleSearchLoad;
+
+    /**
+     * The maximum number of users looked up by each search when loading users
+     * in bulk.
+     */
+    private int userLoadBatchSize = DEFAULT_USER_LOAD_BATCH_SIZE;
+
+    /**
+     * Shares lookups between concurrent loads of the same user.
+     */
+    private final RequestCoalescer<String, User> userLoadCoalescer = new RequestCoalescer<String, User>();
+
+    /**
+     * Creates ldap contexts through the {@link LdapManager}.
+     */
+    private final LdapContextFactory contextFactory = new LdapContextFactory() {
+        public LdapContext createContext(final String baseDN)
+                throws NamingException
+        {
+            return manager.getContext(baseDN);
+        }
+    };
+
+    /**
+     * The source of the ldap contexts used for directory operations. This is
+     * either an {@link LdapContextPool} owned by the provider, or a source
+     * which creates a new context for each operation.
+     */
+    private LdapContextSource contextSource = new DirectContextSource(
+            contextFactory);
+
+    /**
+     * Scans the directory for the {@link #mirror}.
+     */
+    private final DirectoryScanner scanner = new DirectoryScanner() {
+        public void scan(final String extraFilter, final Handler handler)
+                throws NamingException
+        {
+            scanUsers(extraFilter, handler);
+        }
+    };
+
+    /**
+     * The in-memory mirror of the directory, or null if mirroring is
+     * disabled.
+     */
+    private DirectoryMirror mirror;
+
+    /**
+     * Listens for changes to users under each base DN, or empty if change
+     * listening is disabled.
+     */
+    private final List<DirectoryChangeListener> changeListeners = new ArrayList<DirectoryChangeListener>();
+
+    /**
+     * Evicts users from the caches, and updates them in the mirror from the
+     * reported attributes, as the {@link #changeListeners} report changes.
+     */
+    private final DirectoryChangeListener.Handler changeHandler = new DirectoryChangeListener.Handler() {
+        public String[] getAttributes()
+        {
+            if (mirror == null) {
+                return new String[0];
+            }
+
+            final Set<String> attributes = getMirroredAttributes(config);
+
+            return attributes.toArray(new String[attributes.size()]);
+        }
+
+        public void userChanged(final Attributes attrs)
+                throws NamingException
+        {
+            final String username = getUsername(attrs);
+
+            if (username == null) {
+                return;
+            }
+
+            evictUser(username);
+
+            if (mirror != null) {
+                try {
+                    mirror.updateUser(username, attrs, buildUser(username,
+                            attrs, config));
+                } catch (UserNotFoundException e) {
+                    Log.warn("Unable to build user " + username, e);
+                }
+            }
+        }
+
+        public void userDeleted(final Attributes attrs)
+                throws NamingException
+        {
+            final String username = getUsername(attrs);
+
+            if (username == null) {
+                return;
+            }
+
+            evictUser(username);
+
+            if (mirror != null) {
+                mirror.removeUser(username);
+            }
+        }
+
+        public void allChanged()
+        {
+            resync();
+        }
+    };
+
+    /**
+     * Runs the lookups made through the asynchronous methods, or null until
+     * the first is made.
+     */
+    private LookupExecutor lookupExecutor;
+
+    /**
+     * Fetches windows of search results.
+     */
+    private PagedSearch pagedSearch = new PagedSearch(PagedSearch.Mode.NONE,
+            DEFAULT_PAGE_SIZE);
+
+    /**
+     * Default constructor which will configure all the dependencies from
+     * openfire properties.
+     */
+    public ExtendedLdapUserProvider()
+    {
+        delegate = new LdapUserProvider();
+        manager = LdapManager.getInstance();
+        xmppServer = XMPPServer.getInstance();
+
+        // Convert XML based provider setup to Database based
+        JiveGlobals.migrateProperty("ldap.displayNameTemplate");
+        JiveGlobals.migrateProperty("ldap.seperateSearchTerms");
+        JiveGlobals.migrateProperty("ldap.searchFields");
+        JiveGlobals.migrateProperty("ldap.searchNameFields");
+        JiveGlobals.migrateProperty("ldap.userCache.enabled");
+        JiveGlobals.migrateProperty("ldap.userCache.maxSize");
+        JiveGlobals.migrateProperty("ldap.userCache.ttl");
+        JiveGlobals.migrateProperty("ldap.userCache.evictionPolicy");
+        JiveGlobals.migrateProperty("ldap.userCache.negative.enabled");
+        JiveGlobals.migrateProperty("ldap.userCache.negative.maxSize");
+        JiveGlobals.migrateProperty("ldap.userCache.negative.ttl");
+        JiveGlobals.migrateProperty("ldap.searchCache.enabled");
+        JiveGlobals.migrateProperty("ldap.searchCache.maxSize");
+        JiveGlobals.migrateProperty("ldap.searchCache.ttl");
+        JiveGlobals.migrateProperty("ldap.async.threads");
+        JiveGlobals.migrateProperty("ldap.async.queueSize");
+        JiveGlobals.migrateProperty("ldap.async.timeout");
+        JiveGlobals.migrateProperty("ldap.async.virtualThreads");
+        JiveGlobals.migrateProperty("ldap.userLoad.singleSearch");
+        JiveGlobals.migrateProperty("ldap.userLoad.batchSize");
+        JiveGlobals.migrateProperty("ldap.providerPool.enabled");
+        JiveGlobals.migrateProperty("ldap.providerPool.minSize");
+        JiveGlobals.migrateProperty("ldap.providerPool.maxSize");
+        JiveGlobals.migrateProperty("ldap.providerPool.idleTimeout");
+        JiveGlobals.migrateProperty("ldap.providerPool.maxWait");
+        JiveGlobals.migrateProperty("ldap.providerPool.validateOnBorrow");
+        JiveGlobals.migrateProperty("ldap.loadBalancing.enabled");
+        JiveGlobals.migrateProperty("ldap.loadBalancing.strategy");
+        JiveGlobals.migrateProperty("ldap.loadBalancing.failureThreshold");
+        JiveGlobals.migrateProperty("ldap.loadBalancing.ejectionTime");
+        JiveGlobals.migrateProperty("ldap.loadBalancing.healthCheckInterval");
+        JiveGlobals.migrateProperty("ldap.loadBalancing.connectTimeout");
+        JiveGlobals.migrateProperty("ldap.loadBalancing.readTimeout");
+        JiveGlobals.migrateProperty("ldap.circuitBreaker.enabled");
+        JiveGlobals.migrateProperty("ldap.circuitBreaker.failureRate");
+        JiveGlobals.migrateProperty("ldap.circuitBreaker.window");
+        JiveGlobals.migrateProperty("ldap.circuitBreaker.slowCallTime");
+        JiveGlobals.migrateProperty("ldap.circuitBreaker.openTime");
+        JiveGlobals.migrateProperty("ldap.circuitBreaker.staleTime");
+        JiveGlobals.migrateProperty("ldap.bulkhead.loadUser");
+        JiveGlobals.migrateProperty("ldap.bulkhead.loadUsers");
+        JiveGlobals.migrateProperty("ldap.bulkhead.findUsers");
+        JiveGlobals.migrateProperty("ldap.hedging.enabled");
+        JiveGlobals.migrateProperty("ldap.hedging.percentile");
+        JiveGlobals.migrateProperty("ldap.hedging.minDelay");
+        JiveGlobals.migrateProperty("ldap.hedging.budget");
+        JiveGlobals.migrateProperty("ldap.hedging.threads");
+        JiveGlobals.migrateProperty("ldap.jmx.enabled");
+        JiveGlobals.migrateProperty("ldap.jfr.enabled");
+        JiveGlobals.migrateProperty("ldap.jfr.threshold");
+        JiveGlobals.migrateProperty("ldap.slowQueryLog.enabled");
+        JiveGlobals.migrateProperty("ldap.slowQueryLog.threshold");
+        JiveGlobals.migrateProperty("ldap.slowQueryLog.maxShapes");
+        JiveGlobals.migrateProperty("ldap.paging.mode");
+        JiveGlobals.migrateProperty("ldap.paging.pageSize");
+        JiveGlobals.migrateProperty("ldap.mirror.enabled");
+        JiveGlobals.migrateProperty("ldap.mirror.syncInterval");
+        JiveGlobals.migrateProperty("ldap.mirror.fullSyncInterval");
+        JiveGlobals.migrateProperty("ldap.mirror.maxStaleness");
+        JiveGlobals.migrateProperty("ldap.changeListener.enabled");
+        JiveGlobals.migrateProperty("ldap.changeListener.mode");
+
+        singleSearchLoad = JiveGlobals.getBooleanProperty(
+                "ldap.userLoad.singleSearch", false);
+        setUserLoadBatchSize(JiveGlobals.getIntProperty(
+                "ldap.userLoad.batchSize", DEFAULT_USER_LOAD_BATCH_SIZE));
+
+        config = loadConfiguration();
+
+        final boolean circuitBreakers = JiveGlobals.getBooleanProperty(
+                "ldap.circuitBreaker.enabled", false);
+
+        loadUserBreaker = createCircuitBreaker("loadUser", circuitBreakers);
+        loadUsersBreaker = createCircuitBreaker("loadUsers", circuitBreakers);
+        findUsersBreaker = createCircuitBreaker("findUsers", circuitBreakers);
+
+        // Expired values are only kept if there's a circuit to serve them
+        long staleTime = 0;
+
+        if (circuitBreakers) {
+            staleTime = JiveGlobals.getLongProperty(
+                    "ldap.circuitBreaker.staleTime", DEFAULT_CB_STALE_TIME);
+        }
+
+        if (JiveGlobals.getBooleanProperty("ldap.hedging.enabled", false)) {
+            hedger = new RequestHedger(JiveGlobals.getIntProperty(
+                    "ldap.hedging.threads", DEFAULT_HEDGING_THREADS),
+                    JiveGlobals.getIntProperty("ldap.hedging.percentile",
+                            DEFAULT_HEDGING_PERCENTILE),
+                    JiveGlobals.getLongProperty("ldap.hedging.minDelay",
+                            DEFAULT_HEDGING_MIN_DELAY),
+                    JiveGlobals.getIntProperty("ldap.hedging.budget",
+                            DEFAULT_HEDGING_BUDGET));
+        }
+
+        if (JiveGlobals.getBooleanProperty("ldap.slowQueryLog.enabled", false)) {
+            slowQueryLog = new SlowQueryLog(JiveGlobals.getLongProperty(
+                    "ldap.slowQueryLog.threshold",
+                    DEFAULT_SLOW_QUERY_THRESHOLD), JiveGlobals.getIntProperty(
+                    "ldap.slowQueryLog.maxShapes",
+                    DEFAULT_SLOW_QUERY_MAX_SHAPES));
+        }
+
+        if (JiveGlobals.getBooleanProperty("ldap.userCache.enabled", false)) {
+            userCache = new ExpiringCache<String, User>("LDAP User Cache",
+                    JiveGlobals.getIntProperty("ldap.userCache.maxSize",
+                            DEFAULT_USER_CACHE_SIZE),
+                    JiveGlobals.getLongProperty("ldap.userCache.ttl",
+                            DEFAULT_USER_CACHE_TTL),
+                    ExpiringCache.EvictionPolicy.parse(JiveGlobals
+                            .getProperty("ldap.userCache.evictionPolicy"),
+                            ExpiringCache.EvictionPolicy.LRU), staleTime);
+        }
+
+        if (JiveGlobals.getBooleanProperty("ldap.userCache.negative.enabled",
+                false)) {
+            negativeUserCache = new ExpiringCache<String, Boolean>(
+                    "LDAP Negative User Cache", JiveGlobals.getIntProperty(
+                            "ldap.userCache.negative.maxSize",
+                            DEFAULT_NEGATIVE_USER_CACHE_SIZE),
+                    JiveGlobals.getLongProperty("ldap.userCache.negative.ttl",
+                            DEFAULT_NEGATIVE_USER_CACHE_TTL),
+                    ExpiringCache.EvictionPolicy.LRU);
+        }
+
+        if (JiveGlobals.getBooleanProperty("ldap.searchCache.enabled", false)) {
+            searchResultCache = new SearchResultCache(
+                    JiveGlobals.getIntProperty("ldap.searchCache.maxSize",
+                            DEFAULT_SEARCH_CACHE_SIZE),
+                    JiveGlobals.getLongProperty("ldap.searchCache.ttl",
+                            DEFAULT_SEARCH_CACHE_TTL), staleTime);
+        }
+
+        if (JiveGlobals.getBooleanProperty("ldap.loadBalancing.enabled",
+                false)) {
+            contextSource = createLoadBalancedContextSource();
+        } else {
+            contextSource = createContextSource(contextFactory);
+        }
+
+        pagedSearch = new PagedSearch(PagedSearch.Mode.parse(
+                JiveGlobals.getProperty("ldap.paging.mode"),
+                PagedSearch.Mode.NONE), JiveGlobals.getIntProperty(
+                "ldap.paging.pageSize", DEFAULT_PAGE_SIZE),
+                new PagedSearch.ControlSupport() {
+                    public Set<String> getSupportedControls()
+                            throws NamingException
+                    {
+                        return readSupportedControls();
+                    }
+                });
+
+        if (JiveGlobals.getBooleanProperty("ldap.mirror.enabled", false)) {
+            mirror = new DirectoryMirror(scanner, config.getSearchFields()
+                    .values(),
+                    JiveGlobals.getLongProperty("ldap.mirror.syncInterval",
+                            DEFAULT_MIRROR_SYNC_INTERVAL),
+                    JiveGlobals.getLongProperty(
+                            "ldap.mirror.fullSyncInterval",
+                            DEFAULT_MIRROR_FULL_SYNC_INTERVAL),
+                    JiveGlobals.getLongProperty("ldap.mirror.maxStaleness",
+                            DEFAULT_MIRROR_MAX_STALENESS));
+            mirror.start();
+        }
+
+        if (JiveGlobals.getBooleanProperty("ldap.changeListener.enabled",
+                false)) {
+            startChangeListeners(DirectoryChangeListener.Mode.parse(
+                    JiveGlobals.getProperty("ldap.changeListener.mode"),
+                    DirectoryChangeListener.Mode.AUTO));
+        }
+
+        if (JiveGlobals.getBooleanProperty("ldap.jfr.enabled", false)) {
+            DirectoryEvent.register(JiveGlobals.getLongProperty(
+                    "ldap.jfr.threshold", DEFAULT_JFR_THRESHOLD));
+        }
+
+        if (JiveGlobals.getBooleanProperty("ldap.jmx.enabled", false)) {
+            ProviderMonitor.register(this);
+        }
+
+        PropertyEventDispatcher.addListener(configListener);
+    }
+
+    /**
+     * Stops the provider's background work and releases what it holds open:
+     * the mirror's syncs, the change listeners, the context pools and their
+     * sweepers, the load balancer's health checks, the hedging and
+     * asynchronous lookup threads, the property listener and the JMX
+     * registration. The provider shouldn't be used afterwards.<br />
+     * Openfire doesn't tell a user provider when it is replaced, so this is
+     * called when provider.user.className is changed to another class.
+     */
+    public void close()
+    {
+        PropertyEventDispatcher.removeListener(configListener);
+        ProviderMonitor.unregister(this);
+
+        if (mirror != null) {
+            mirror.stop();
+        }
+        for (DirectoryChangeListener listener : changeListeners) {
+            listener.stop();
+        }
+        if (hedger != null) {
+            hedger.shutdown();
+        }
+        synchronized (this) {
+            if (lookupExecutor != null) {
+                lookupExecutor.shutdown();
+            }
+        }
+        contextSource.close();
+
+        Log.info("Closed the LDAP user provider");
+    }
+
+    /**
+     * Reads the reloadable configuration from openfire properties.
      */
-    private String displayNameTemplate;
+    private ProviderConfiguration loadConfiguration()
+    {
+        return new ProviderConfiguration(getRequiredAttributes(),
+                JiveGlobals.getProperty("ldap.displayNameTemplate"),
+                JiveGlobals.getBooleanProperty("ldap.seperateSearchTerms",
+                        false), parseSearchFields(JiveGlobals
+                        .getProperty("ldap.searchFields")),
+                parseSearchNameFields(JiveGlobals
+                        .getProperty("ldap.searchNameFields")));
+    }
+
+    /**
+     * @return the attributes loaded for every user, whatever the display name
+     *         template.
+     */
+    private Set<String> getRequiredAttributes()
+    {
+        final Set<String> attributes = new HashSet<String>();
+
+        attributes.add(manager.getUsernameField());
+        attributes.add(manager.getNameField());
+        attributes.add(manager.getEmailField());
+        attributes.add("createTimestamp");
+        attributes.add("modifyTimestamp");
+
+        return attributes;
+    }
+
+    /**
+     * Creates the guard for one type of operation, configured from openfire
+     * properties.
+     * 
+     * @param operation
+     *            the operation type, which names its bulkhead property.
+     * @param circuitBreaker
+     *            true if the guard should open on failures, rather than just
+     *            limiting concurrency.
+     * @return the guard, or null if the operation doesn't need one.
+     */
+    private static CircuitBreaker createCircuitBreaker(final String operation,
+            final boolean circuitBreaker)
+    {
+        final int maxConcurrent = JiveGlobals.getIntProperty("ldap.bulkhead."
+                + operation, 0);
+
+        if (!circuitBreaker && maxConcurrent <= 0) {
+            return null;
+        }
+
+        if (!circuitBreaker) {
+            return new CircuitBreaker(operation, 0, 0, 1, 0, maxConcurrent);
+        }
+
+        return new CircuitBreaker(operation, JiveGlobals.getIntProperty(
+                "ldap.circuitBreaker.failureRate", DEFAULT_CB_FAILURE_RATE),
+                JiveGlobals.getLongProperty("ldap.circuitBreaker.slowCallTime",
+                        DEFAULT_CB_SLOW_CALL_TIME), JiveGlobals.getIntProperty(
+                        "ldap.circuitBreaker.window", DEFAULT_CB_WINDOW),
+                JiveGlobals.getLongProperty("ldap.circuitBreaker.openTime",
+                        DEFAULT_CB_OPEN_TIME), maxConcurrent);
+    }
+
+    /**
+     * Creates a source of contexts from a factory, configured from openfire
+     * properties: a provider pool if pooling is enabled, otherwise a source
+     * which creates a context for each operation.
+     * 
+     * @param factory
+     *            creates the contexts.
+     * @return the source.
+     */
+    private static LdapContextSource createContextSource(
+            final LdapContextFactory factory)
+    {
+        if (!JiveGlobals.getBooleanProperty("ldap.providerPool.enabled", false)) {
+            return new DirectContextSource(factory);
+        }
+
+        LdapContextPool pool = new LdapContextPool(factory,
+                JiveGlobals.getIntProperty("ldap.providerPool.minSize",
+                        DEFAULT_POOL_MIN_SIZE), JiveGlobals.getIntProperty(
+                        "ldap.providerPool.maxSize", DEFAULT_POOL_MAX_SIZE),
+                JiveGlobals.getLongProperty("ldap.providerPool.idleTimeout",
+                        DEFAULT_POOL_IDLE_TIMEOUT),
+                JiveGlobals.getLongProperty("ldap.providerPool.maxWait",
+                        DEFAULT_POOL_MAX_WAIT), JiveGlobals.getBooleanProperty(
+                        "ldap.providerPool.validateOnBorrow", false));
+        pool.start();
+        return pool;
+    }
+
+    /**
+     * Creates a source of contexts which spreads operations across every
+     * ldap host, configured from openfire properties.
+     * 
+     * @return the source.
+     */
+    private LoadBalancedContextSource createLoadBalancedContextSource()
+    {
+        final long connectTimeout = JiveGlobals.getLongProperty(
+                "ldap.loadBalancing.connectTimeout",
+                DEFAULT_LB_CONNECT_TIMEOUT);
+        final long readTimeout = JiveGlobals.getLongProperty(
+                "ldap.loadBalancing.readTimeout", DEFAULT_LB_READ_TIMEOUT);
+        // Read by LdapManager, which doesn't expose them
+        final boolean startTls = JiveGlobals.getBooleanProperty(
+                "ldap.startTlsEnabled", false);
+        final boolean derefAliases = JiveGlobals.getBooleanProperty(
+                "ldap.autoFollowAliasReferrals", true);
+        final List<LdapServer> servers = new ArrayList<LdapServer>();
+
+        for (String host : manager.getHosts()) {
+            String url = ServerContextFactory.url(host, manager.getPort());
+
+            servers.add(new LdapServer(url,
+                    createContextSource(new ServerContextFactory(manager,
+                            url, connectTimeout, readTimeout, startTls,
+                            derefAliases))));
+        }
+
+        LoadBalancedContextSource source = new LoadBalancedContextSource(
+                servers, LoadBalancedContextSource.Strategy.parse(
+                        JiveGlobals.getProperty("ldap.loadBalancing.strategy"),
+                        LoadBalancedContextSource.Strategy.LEAST_OUTSTANDING),
+                JiveGlobals.getIntProperty(
+                        "ldap.loadBalancing.failureThreshold",
+                        DEFAULT_LB_FAILURE_THRESHOLD),
+                JiveGlobals.getLongProperty("ldap.loadBalancing.ejectionTime",
+                        DEFAULT_LB_EJECTION_TIME), JiveGlobals.getLongProperty(
+                        "ldap.loadBalancing.healthCheckInterval",
+                        DEFAULT_LB_HEALTH_CHECK_INTERVAL), manager.getBaseDN());
+        source.start();
+
+        Log.info("Balancing LDAP operations across " + servers.size()
+                + " servers");
+
+        return source;
+    }
+
+    /**
+     * Constructor for testing into which all the dependencies can be passed.
+     * 
+     * @param ldapManager
+     * @param delegate
+     * @param xmppServer
+     * @param displayNameTemplate
+     * @param seperateSearchTerms
+     * @param searchFieldString
+     */
+    ExtendedLdapUserProvider(final LdapManager ldapManager,
+            final LdapUserProvider delegate, final XMPPServer xmppServer,
+            final String displayNameTemplate,
+            final boolean seperateSearchTerms, final String searchFieldsString,
+            final String searchNameFieldsString)
+    {
+        this.manager = ldapManager;
+        this.delegate = delegate;
+        this.xmppServer = xmppServer;
+        this.config = new ProviderConfiguration(getRequiredAttributes(),
+                displayNameTemplate, seperateSearchTerms,
+                parseSearchFields(searchFieldsString),
+                parseSearchNameFields(searchNameFieldsString));
+    }
+
+    public User loadUser(final String username) throws UserNotFoundException
+    {
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.LOAD_USER);
+
+        return operation.time(new Timed<User, UserNotFoundException>() {
+            public User call() throws UserNotFoundException
+            {
+                return lookupUser(username);
+            }
+        });
+    }
+
+    /**
+     * Loads a user from the mirror, the user cache or the directory.
+     * 
+     * @param username
+     *            the username or JID.
+     * @return the user.
+     * @throws UserNotFoundException
+     */
+    private User lookupUser(String username) throws UserNotFoundException
+    {
+        if (username.contains("@")) {
+            if (!xmppServer.isLocal(new JID(username))) {
+                throw new UnknownUserException(
+                        "Cannot load user of remote server: " + username);
+            }
+        }
+        username = toLdapUsername(username);
+
+        final DirectoryEvent event = DirectoryEvent.begin("loadUser")
+                .username(username).cacheHit(true).resultCount(0);
+        try {
+            if (isMirrorUsable()) {
+                User user = mirror.getUser(username);
+
+                if (user != null) {
+                    event.resultCount(1);
+                    return user;
+                }
+            }
+
+            if (userCache != null) {
+                User user = userCache.get(username);
+
+                if (user != null) {
+                    event.resultCount(1);
+                    return user;
+                }
+            }
+
+            if (isKnownMissing(username)) {
+                throw new UnknownUserException("Username " + username
+                        + " not found");
+            }
+
+            event.cacheHit(false);
+
+            final String ldapUsername = username;
+
+            try {
+                // Concurrent loads of the same user share a single lookup
+                User user = userLoadCoalescer.load(ldapUsername,
+                        new Callable<User>() {
+                            public User call() throws UserNotFoundException
+                            {
+                                return loadUserFromDirectory(ldapUsername);
+                            }
+                        });
+                event.resultCount(1);
+                return user;
+            } catch (UserNotFoundException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new UserNotFoundException(e);
+            }
+        } finally {
+            event.commit();
+        }
+    }
+
+    /**
+     * Loads a user from the directory and adds them to the user cache.
+     * 
+     * @param username
+     *            the unescaped username.
+     * @return the user.
+     * @throws UserNotFoundException
+     */
+    private User loadUserFromDirectory(final String username)
+            throws UserNotFoundException
+    {
+        if (loadUserBreaker != null && !loadUserBreaker.tryAcquire()) {
+            return loadStaleUser(username);
+        }
+
+        final ProviderConfiguration config = this.config;
+        final long started = System.nanoTime();
+        boolean failed = true;
+        User user;
+
+        try {
+            user = buildUser(username, loadUserAttributes(username, config),
+                    config);
+            failed = false;
+        } catch (UnknownUserException e) {
+            failed = false;
+            if (negativeUserCache != null) {
+                negativeUserCache.put(username, Boolean.TRUE);
+            }
+            throw e;
+        } finally {
+            if (loadUserBreaker != null) {
+                loadUserBreaker.release(System.nanoTime() - started, failed);
+            }
+        }
+
+        cacheUser(username, user, config);
+
+        return user;
+    }
+
+    /**
+     * Loads a user's attributes from the directory, hedging the lookup if
+     * hedging is enabled.
+     * 
+     * @param username
+     *            the unescaped username.
+     * @param config
+     *            the configuration giving the attributes to load.
+     * @return the user's attributes.
+     * @throws UserNotFoundException
+     */
+    private Attributes loadUserAttributes(final String username,
+            final ProviderConfiguration config) throws UserNotFoundException
+    {
+        if (hedger == null) {
+            return lookupUserAttributes(username, config);
+        }
+
+        final OperationMetrics operation = OperationMetrics.current();
+
+        try {
+            return hedger.call(new Callable<Attributes>() {
+                public Attributes call() throws UserNotFoundException
+                {
+                    // Count the round trips against the load being hedged
+                    final OperationMetrics outer = OperationMetrics
+                            .setCurrent(operation);
+                    try {
+                        return lookupUserAttributes(username, config);
+                    } finally {
+                        OperationMetrics.setCurrent(outer);
+                    }
+                }
+            });
+        } catch (UserNotFoundException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UserNotFoundException(e);
+        }
+    }
+
+    /**
+     * Loads a user's attributes from the directory in whichever way is
+     * configured.
+     * 
+     * @param username
+     *            the unescaped username.
+     * @param config
+     *            the configuration giving the attributes to load.
+     * @return the user's attributes.
+     * @throws UserNotFoundException
+     */
+    private Attributes lookupUserAttributes(final String username,
+            final ProviderConfiguration config) throws UserNotFoundException
+    {
+        if (singleSearchLoad) {
+            return searchUserAttributes(username, config);
+        }
+        return readUserAttributes(username, config);
+    }
+
+    /**
+     * Returns a user from the user cache even if they have expired, for when
+     * the directory can't be asked.
+     * 
+     * @param username
+     *            the unescaped username.
+     * @return the user.
+     * @throws UserNotFoundException
+     *             if the user isn't cached.
+     */
+    private User loadStaleUser(final String username)
+            throws UserNotFoundException
+    {
+        if (userCache != null) {
+            User user = userCache.getStale(username);
+
+            if (user != null) {
+                return user;
+            }
+        }
+
+        throw new UserNotFoundException("Directory lookups are suspended, so "
+                + username + " can't be loaded");
+    }
+
+    /**
+     * Adds a user to the user cache, and removes them from the negative user
+     * cache as they clearly exist.
+     * 
+     * @param username
+     *            the unescaped username.
+     * @param user
+     *            the user.
+     * @param config
+     *            the configuration the user was built with. The user isn't
+     *            cached if it has been replaced.
+     */
+    private void cacheUser(final String username, final User user,
+            final ProviderConfiguration config)
+    {
+        if (userCache != null) {
+            // Users built with a configuration which has since been replaced
+            // might have the old display name. The check is made under the
+            // lock applyConfiguration swaps the configuration and empties the
+            // cache under, so the user can't be put just after it is emptied.
+            synchronized (this) {
+                if (config == this.config) {
+                    userCache.put(username, user);
+                }
+            }
+        }
+        if (negativeUserCache != null) {
+            negativeUserCache.remove(username);
+        }
+    }
+
+    /**
+     * @param username
+     *            the unescaped username.
+     * @return true if the negative user cache records that the directory has
+     *         no entry for the user.
+     */
+    private boolean isKnownMissing(final String username)
+    {
+        return negativeUserCache != null
+                && negativeUserCache.get(username) != null;
+    }
+
+    /**
+     * Returns the coalescer which shares lookups between concurrent loads of
+     * the same user, which can be used to monitor how many are coalesced.
+     * 
+     * @return the user load coalescer.
+     */
+    public RequestCoalescer<String, User> getUserLoadCoalescer()
+    {
+        return userLoadCoalescer;
+    }
+
+    /**
+     * Loads a user without blocking the caller, on the provider's lookup
+     * threads.
+     * 
+     * @param username
+     *            the username or JID.
+     * @param timeout
+     *            the time in milliseconds the lookup is allowed, or 0 for the
+     *            default.
+     * @param callback
+     *            told of the outcome, or null.
+     * @return the future user, which fails with a
+     *         {@link UserNotFoundException} if there is no such user.
+     * @see LookupExecutor
+     */
+    public Future<User> loadUserAsync(final String username,
+            final long timeout, final LookupExecutor.Callback<User> callback)
+    {
+        return getLookupExecutor().submit(new Callable<User>() {
+            public User call() throws UserNotFoundException
+            {
+                return loadUser(username);
+            }
+        }, timeout, callback);
+    }
+
+    /**
+     * Loads many users at once without blocking the caller, on the provider's
+     * lookup threads.
+     * 
+     * @param usernames
+     *            the usernames to load.
+     * @param timeout
+     *            the time in milliseconds the lookup is allowed, or 0 for the
+     *            default.
+     * @param callback
+     *            told of the outcome, or null.
+     * @return the future users which were found, keyed on the requested
+     *         username.
+     * @see #loadUsers(Collection)
+     */
+    public Future<Map<String, User>> loadUsersAsync(
+            final Collection<String> usernames, final long timeout,
+            final LookupExecutor.Callback<Map<String, User>> callback)
+    {
+        return getLookupExecutor().submit(new Callable<Map<String, User>>() {
+            public Map<String, User> call()
+            {
+                return loadUsers(usernames);
+            }
+        }, timeout, callback);
+    }
+
+    /**
+     * Searches for users without blocking the caller, on the provider's
+     * lookup threads.
+     * 
+     * @param fields
+     *            the fields to search.
+     * @param query
+     *            the query.
+     * @param startIndex
+     *            the index of the first result wanted.
+     * @param numResults
+     *            the maximum number of results wanted.
+     * @param timeout
+     *            the time in milliseconds the search is allowed, or 0 for the
+     *            default.
+     * @param callback
+     *            told of the outcome, or null.
+     * @return the future users found.
+     * @see #findUsers(Set, String, int, int)
+     */
+    public Future<Collection<User>> findUsersAsync(final Set<String> fields,
+            final String query, final int startIndex, final int numResults,
+            final long timeout,
+            final LookupExecutor.Callback<Collection<User>> callback)
+    {
+        return getLookupExecutor().submit(new Callable<Collection<User>>() {
+            public Collection<User> call()
+            {
+                return findUsers(fields, query, startIndex, numResults);
+            }
+        }, timeout, callback);
+    }
+
+    /**
+     * Returns the executor which runs asynchronous lookups, creating it from
+     * the ldap.async properties if there isn't one yet.
+     * 
+     * @return the executor.
+     */
+    public synchronized LookupExecutor getLookupExecutor()
+    {
+        if (lookupExecutor == null) {
+            lookupExecutor = new LookupExecutor(JiveGlobals.getIntProperty(
+                    "ldap.async.threads", DEFAULT_ASYNC_THREADS),
+                    JiveGlobals.getIntProperty("ldap.async.queueSize",
+                            DEFAULT_ASYNC_QUEUE_SIZE),
+                    JiveGlobals.getLongProperty("ldap.async.timeout",
+                            DEFAULT_ASYNC_TIMEOUT),
+                    JiveGlobals.getBooleanProperty(
+                            "ldap.async.virtualThreads", false));
+        }
+        return lookupExecutor;
+    }
+
+    /**
+     * Sets the executor which runs asynchronous lookups.
+     * 
+     * @param lookupExecutor
+     */
+    synchronized void setLookupExecutor(final LookupExecutor lookupExecutor)
+    {
+        this.lookupExecutor = lookupExecutor;
+    }
+
+    /**
+     * Loads many users at once. The usernames are looked up in batches of
+     * {@link #userLoadBatchSize}, each batch with a single search, so this is
+     * much cheaper than calling {@link #loadUser(String)} for each user.
+     * 
+     * @param usernames
+     *            the usernames to load.
+     * @return the users which were found, keyed on the requested username.
+     */
+    public Map<String, User> loadUsers(final Collection<String> usernames)
+    {
+        return loadUsers(usernames, null);
+    }
+
+    /**
+     * Loads many users at once. The usernames are looked up in batches of
+     * {@link #userLoadBatchSize}, each batch with a single search, so this is
+     * much cheaper than calling {@link #loadUser(String)} for each user.
+     * 
+     * @param usernames
+     *            the usernames to load.
+     * @param missing
+     *            if not null, the requested usernames which couldn't be loaded
+     *            are added to this collection.
+     * @return the users which were found, keyed on the requested username.
+     */
+    public Map<String, User> loadUsers(final Collection<String> usernames,
+            final Collection<String> missing)
+    {
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.LOAD_USERS);
+
+        return operation.time(new Timed<Map<String, User>, RuntimeException>() {
+            public Map<String, User> call()
+            {
+                return lookupUsers(usernames, missing);
+            }
+        });
+    }
+
+    /**
+     * Loads many users from the user cache or the directory.
+     * 
+     * @see #loadUsers(Collection, Collection)
+     */
+    private Map<String, User> lookupUsers(final Collection<String> usernames,
+            final Collection<String> missing)
+    {
+        final DirectoryEvent event = DirectoryEvent.begin("loadUsers");
+        final Map<String, User> users = new LinkedHashMap<String, User>();
+
+        // The requested usernames still to load, grouped by the lower cased
+        // ldap username as the directory will match them case insensitively.
+        // Every spelling is kept so each gets the user it asked for.
+        final Map<String, List<String>> pending =
+                new LinkedHashMap<String, List<String>>();
+
+        for (String requested : usernames) {
+            if (requested.contains("@")
+                    && !xmppServer.isLocal(new JID(requested))) {
+                if (missing != null) {
+                    missing.add(requested);
+                }
+                continue;
+            }
+
+            String username = toLdapUsername(requested);
+            User user = null;
+
+            if (userCache != null) {
+                user = userCache.get(username);
+            }
+
+            if (user != null) {
+                users.put(requested, user);
+            } else if (isKnownMissing(username)) {
+                if (missing != null) {
+                    missing.add(requested);
+                }
+            } else {
+                List<String> spellings = pending.get(username.toLowerCase());
+
+                if (spellings == null) {
+                    spellings = new ArrayList<String>(1);
+                    pending.put(username.toLowerCase(), spellings);
+                }
+                spellings.add(requested);
+            }
+        }
+
+        event.cacheHit(pending.isEmpty());
+
+        final List<String> batch = new ArrayList<String>(userLoadBatchSize);
+        // Copied, as found users are removed from pending as batches load
+        final Iterator<String> i = new ArrayList<String>(pending.keySet())
+                .iterator();
+
+        while (i.hasNext()) {
+            batch.add(i.next());
+
+            if (batch.size() == userLoadBatchSize || !i.hasNext()) {
+                if (loadUserBatch(batch, pending, users)
+                        && negativeUserCache != null) {
+                    // The search worked so the users not found don't exist
+                    for (String username : batch) {
+                        List<String> spellings = pending.get(username);
+
+                        if (spellings != null) {
+                            for (String requested : spellings) {
+                                negativeUserCache.put(
+                                        toLdapUsername(requested),
+                                        Boolean.TRUE);
+                            }
+                        }
+                    }
+                }
+                batch.clear();
+            }
+        }
+
+        if (missing != null) {
+            // Anything left pending wasn't found
+            for (List<String> spellings : pending.values()) {
+                missing.addAll(spellings);
+            }
+        }
+
+        event.resultCount(users.size()).commit();
+
+        return users;
+    }
+
+    /**
+     * Loads a batch of users with a single search.
+     * 
+     * @param batch
+     *            the lower cased ldap usernames to load.
+     * @param pending
+     *            the requested usernames still to load, grouped by the lower
+     *            cased ldap username. Users which are found are removed.
+     * @param users
+     *            the map to add the users which are found to.
+     * @return false if the search failed.
+     */
+    private boolean loadUserBatch(final List<String> batch,
+            final Map<String, List<String>> pending,
+            final Map<String, User> users)
+    {
+        final StringBuilder filter = new StringBuilder();
+
+        if (batch.size() > 1) {
+            filter.append("(|");
+        }
+        for (String username : batch) {
+            filter.append(MessageFormat.format(manager.getSearchFilter(),
+                    escapeFilterValue(username)));
+        }
+        if (batch.size() > 1) {
+            filter.append(")");
+        }
+
+        if (loadUsersBreaker != null && !loadUsersBreaker.tryAcquire()) {
+            loadStaleUsers(batch, pending, users);
+            return false;
+        }
+
+        final long started = System.nanoTime();
+        boolean failed = true;
+
+        try {
+            for (User user : searchUsers(filter.toString(), -1, -1,
+                    this.config)) {
+                List<String> spellings = pending.remove(JID.unescapeNode(
+                        user.getUsername()).toLowerCase());
+
+                if (spellings != null) {
+                    for (String requested : spellings) {
+                        users.put(requested, user);
+                    }
+                }
+            }
+            failed = false;
+            return true;
+        } catch (NamingException e) {
+            Log.error("Error loading users with filter " + filter, e);
+            metrics.get(ProviderMetrics.Operation.LOAD_USERS).error(e);
+            return false;
+        } finally {
+            if (loadUsersBreaker != null) {
+                loadUsersBreaker.release(System.nanoTime() - started, failed);
+            }
+        }
+    }
+
+    /**
+     * Adds the users in a batch which are in the user cache, even if they
+     * have expired, for when the directory can't be asked.
+     * 
+     * @param batch
+     *            the lower cased ldap usernames to load.
+     * @param pending
+     *            the requested usernames still to load, grouped by the lower
+     *            cased ldap username. Users which are found are removed.
+     * @param users
+     *            the map to add the users which are found to.
+     */
+    private void loadStaleUsers(final List<String> batch,
+            final Map<String, List<String>> pending,
+            final Map<String, User> users)
+    {
+        if (userCache == null) {
+            return;
+        }
+
+        for (String username : batch) {
+            final Iterator<String> i = pending.get(username).iterator();
+
+            while (i.hasNext()) {
+                String requested = i.next();
+                User user = userCache.getStale(toLdapUsername(requested));
+
+                if (user != null) {
+                    i.remove();
+                    users.put(requested, user);
+                }
+            }
+
+            if (pending.get(username).isEmpty()) {
+                pending.remove(username);
+            }
+        }
+    }
+
+    /**
+     * Converts a username or JID as passed to the provider into the username
+     * held in ldap, by removing any domain and un-escaping it.
+     * 
+     * @param username
+     *            the username or JID.
+     * @return the ldap username.
+     */
+    private String toLdapUsername(String username)
+    {
+        if (username.contains("@")) {
+            username = username.substring(0, username.lastIndexOf("@"));
+        }
+        // Un-escape username.
+        return JID.unescapeNode(username);
+    }
+
+    /**
+     * Sets the maximum number of users looked up by each search in
+     * {@link #loadUsers(Collection, Collection)}.
+     * 
+     * @param userLoadBatchSize
+     */
+    void setUserLoadBatchSize(final int userLoadBatchSize)
+    {
+        this.userLoadBatchSize = Math.max(userLoadBatchSize, 1);
+    }
+
+    /**
+     * Loads a user's attributes by finding their DN and then reading their
+     * entry, the same way the {@link LdapUserProvider} does. This takes two
+     * directory operations.
+     * 
+     * @param username
+     *            the unescaped username.
+     * @param config
+     *            the configuration giving the attributes to load.
+     * @return the user's attributes.
+     * @throws UserNotFoundException
+     */
+    private Attributes readUserAttributes(final String username,
+            final ProviderConfiguration config) throws UserNotFoundException
+    {
+        String userDN;
+        try {
+            OperationMetrics.roundTrip();
+            userDN = manager.findUserDN(username);
+        } catch (UserNotFoundException e) {
+            throw new UnknownUserException("Username " + username
+                    + " not found");
+        } catch (Exception e) {
+            throw new UserNotFoundException(e);
+        }
+
+        final String[] attributes = config.getUserAttributes();
+        final DirectoryEvent event = DirectoryEvent.begin("read")
+                .username(username).baseDN(userDN).attributes(attributes);
+        LdapConnection connection = null;
+        boolean broken = false;
+        try {
+            connection = contextSource.acquire(manager
+                    .getUsersBaseDN(username));
+
+            OperationMetrics.roundTrip();
+            final Attributes attrs = connection.getContext().getAttributes(
+                    userDN, attributes);
+
+            event.resultCount(1);
+            return attrs;
+        } catch (NamingException e) {
+            broken = LdapConnection.isConnectionFailure(e);
+            throw new UserNotFoundException(e);
+        } catch (Exception e) {
+            throw new UserNotFoundException(e);
+        } finally {
+            if (connection != null) {
+                contextSource.release(connection, broken);
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Loads a user's attributes with a single search which returns the
+     * configured user attributes directly. The alternate base DN is searched if
+     * the user isn't found under the base DN.
+     * 
+     * @param username
+     *            the unescaped username.
+     * @param config
+     *            the configuration giving the attributes to load.
+     * @return the user's attributes.
+     * @throws UserNotFoundException
+     */
+    private Attributes searchUserAttributes(final String username,
+            final ProviderConfiguration config) throws UserNotFoundException
+    {
+        final String filter = MessageFormat.format(manager.getSearchFilter(),
+                escapeFilterValue(username));
+
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(config.getUserAttributes());
+
+        try {
+            for (String baseDN : getSearchBaseDNs()) {
+                Attributes attrs = searchFirst(baseDN, filter, controls);
+
+                if (attrs != null) {
+                    return attrs;
+                }
+            }
+        } catch (Exception e) {
+            throw new UserNotFoundException(e);
+        }
+
+        throw new UnknownUserException("Username " + username + " not found");
+    }
+
+    /**
+     * Reads the controls the directory supports from its root DSE.
+     * 
+     * @return the OIDs of the supported controls.
+     * @throws NamingException
+     */
+    private Set<String> readSupportedControls() throws NamingException
+    {
+        final LdapConnection connection = contextSource.acquire("");
+        boolean broken = false;
+        try {
+            OperationMetrics.roundTrip();
+            final Attribute attribute = connection.getContext()
+                    .getAttributes("", new String[] { "supportedControl" })
+                    .get("supportedControl");
+            final Set<String> controls = new HashSet<String>();
+
+            if (attribute != null) {
+                final NamingEnumeration<?> values = attribute.getAll();
+
+                while (values.hasMore()) {
+                    controls.add(values.next().toString());
+                }
+            }
+            return controls;
+        } catch (NamingException e) {
+            broken = LdapConnection.isConnectionFailure(e);
+            throw e;
+        } finally {
+            contextSource.release(connection, broken);
+        }
+    }
+
+    /**
+     * Runs a search and returns the attributes of the first result.
+     * 
+     * @return the attributes of the first result, or null if there were no
+     *         results.
+     * @throws NamingException
+     */
+    private Attributes searchFirst(final String baseDN, final String filter,
+            final SearchControls controls) throws NamingException
+    {
+        final DirectoryEvent event = DirectoryEvent.begin("search")
+                .filter(filter).baseDN(baseDN)
+                .attributes(controls.getReturningAttributes())
+                .resultCount(0);
+        final LdapConnection connection = contextSource.acquire(baseDN);
+        NamingEnumeration<SearchResult> answer = null;
+        boolean broken = false;
+        try {
+            OperationMetrics.roundTrip();
+            answer = connection.getContext().search("", filter, controls);
+
+            if (answer == null || !answer.hasMoreElements()) {
+                return null;
+            }
+
+            event.resultCount(1);
+            return answer.next().getAttributes();
+        } catch (NamingException e) {
+            broken = LdapConnection.isConnectionFailure(e);
+            throw e;
+        } finally {
+            closeQuietly(answer);
+            contextSource.release(connection, broken);
+            event.commit();
+        }
+    }
+
+    /**
+     * Searches for users, returning them fully built from the configured user
+     * attributes returned by the search so that no further
+     * lookups are needed. The users found are added to the user cache.<br />
+     * The window is fetched with {@link #pagedSearch}, so that the directory
+     * does the skipping where it can.
+     * 
+     * @param filter
+     *            the search filter.
+     * @param startIndex
+     *            the number of results to skip, or -1 to skip none.
+     * @param numResults
+     *            the maximum number of users to return, or -1 for all.
+     * @param config
+     *            the configuration to search and build the users with, which
+     *            the caller should also have used to build the filter.
+     * @return the users found.
+     * @throws NamingException
+     */
+    private List<User> searchUsers(final String filter, final int startIndex,
+            final int numResults, final ProviderConfiguration config)
+            throws NamingException
+    {
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(config.getUserAttributes());
+
+        final List<User> users = new ArrayList<User>();
+        final String usernameField = manager.getUsernameField();
+        int toSkip = Math.max(startIndex, 0);
+
+        for (String baseDN : getSearchBaseDNs()) {
+            if (numResults >= 0 && users.size() >= numResults) {
+                break;
+            }
+
+            final List<SearchResult> results = new ArrayList<SearchResult>();
+            final DirectoryEvent event = DirectoryEvent.begin("search")
+                    .filter(filter).baseDN(baseDN)
+                    .attributes(config.getUserAttributes());
+            final LdapConnection connection = contextSource.acquire(baseDN);
+            boolean broken = false;
+            try {
+                int wanted = -1;
+
+                if (numResults >= 0) {
+                    wanted = numResults - users.size();
+                }
+
+                toSkip -= pagedSearch.search(connection.getContext(), filter,
+                        controls, usernameField, toSkip, wanted, results);
+            } catch (NamingException e) {
+                broken = LdapConnection.isConnectionFailure(e);
+                throw e;
+            } finally {
+                contextSource.release(connection, broken);
+                event.resultCount(results.size()).commit();
+            }
+
+            for (SearchResult result : results) {
+                Attributes attrs = result.getAttributes();
+                String username = getUsername(attrs);
+
+                if (username == null) {
+                    continue;
+                }
+
+                try {
+                    User user = buildUser(username, attrs, config);
+
+                    cacheUser(username, user, config);
+
+                    users.add(user);
+                } catch (UserNotFoundException e) {
+                    Log.warn("Unable to build user " + username, e);
+                }
+            }
+        }
+
+        return users;
+    }
+
+    /**
+     * Closes a search result enumeration, ignoring any errors.
+     */
+    private static void closeQuietly(final NamingEnumeration<?> answer)
+    {
+        try {
+            if (answer != null) {
+                answer.close();
+            }
+        } catch (Exception ignored) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Returns the pool of ldap contexts owned by the provider, which can be
+     * used to monitor its usage.
+     * 
+     * @return the context pool, or null if the provider isn't pooling
+     *         contexts itself.
+     */
+    public LdapContextPool getContextPool()
+    {
+        if (contextSource instanceof LdapContextPool) {
+            return (LdapContextPool) contextSource;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the source which spreads operations across the ldap hosts,
+     * which can be used to monitor their health and load.
+     * 
+     * @return the load balancer, or null if load balancing is disabled.
+     */
+    public LoadBalancedContextSource getLoadBalancer()
+    {
+        if (contextSource instanceof LoadBalancedContextSource) {
+            return (LoadBalancedContextSource) contextSource;
+        }
+        return null;
+    }
+
+    /**
+     * Sets the source of the ldap contexts used for directory operations.
+     * 
+     * @param contextSource
+     */
+    void setContextSource(final LdapContextSource contextSource)
+    {
+        this.contextSource = contextSource;
+    }
+
+    /**
+     * Sets how windows of search results are fetched.
+     * 
+     * @param pagedSearch
+     */
+    void setPagedSearch(final PagedSearch pagedSearch)
+    {
+        this.pagedSearch = pagedSearch;
+    }
+
+    /**
+     * @return the base DN followed by the alternate base DN, if there is one.
+     */
+    private List<String> getSearchBaseDNs()
+    {
+        final List<String> baseDNs = new ArrayList<String>(2);
+
+        baseDNs.add(manager.getBaseDN());
+
+        if (manager.getAlternateBaseDN() != null) {
+            baseDNs.add(manager.getAlternateBaseDN());
+        }
+
+        return baseDNs;
+    }
+
+    /**
+     * Scans for every user matched by the search filter, and by an extra
+     * filter if one is given, loading the configured user attributes and the
+     * search field attributes. The scan is paged, so users are passed to
+     * the handler as they arrive.
+     * 
+     * @param extraFilter
+     *            a filter the users must also match, or null.
+     * @param handler
+     *            receives the users.
+     * @throws NamingException
+     */
+    void scanUsers(final String extraFilter,
+            final DirectoryScanner.Handler handler) throws NamingException
+    {
+        String filter = MessageFormat.format(manager.getSearchFilter(), "*");
+
+        if (extraFilter != null) {
+            filter = "(&" + filter + extraFilter + ")";
+        }
+
+        final ProviderConfiguration config = this.config;
+        final Set<String> attributes = getMirroredAttributes(config);
+        attributes.addAll(config.getSearchFields().values());
+
+        final SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(attributes
+                .toArray(new String[attributes.size()]));
+
+        final int[] scanned = { 0 };
+
+        final PagedSearch.ResultHandler resultHandler = new PagedSearch.ResultHandler() {
+            public boolean handle(final SearchResult result)
+                    throws NamingException
+            {
+                scanned[0]++;
+
+                Attributes attrs = result.getAttributes();
+                String username = getUsername(attrs);
+
+                if (username != null) {
+                    try {
+                        handler.handle(username, attrs,
+                                buildUser(username, attrs, config));
+                    } catch (UserNotFoundException e) {
+                        Log.warn("Unable to build user " + username, e);
+                    }
+                }
+                return true;
+            }
+        };
+
+        for (String baseDN : getSearchBaseDNs()) {
+            final DirectoryEvent event = DirectoryEvent.begin("scan")
+                    .filter(filter).baseDN(baseDN)
+                    .attributes(controls.getReturningAttributes());
+            final int before = scanned[0];
+            final LdapConnection connection = contextSource.acquire(baseDN);
+            boolean broken = false;
+            try {
+                pagedSearch.scan(connection.getContext(), filter, controls,
+                        resultHandler);
+            } catch (NamingException e) {
+                broken = LdapConnection.isConnectionFailure(e);
+                throw e;
+            } finally {
+                contextSource.release(connection, broken);
+                event.resultCount(scanned[0] - before).commit();
+            }
+        }
+    }
+
+    /**
+     * @return the attributes users are built from and, if the directory is
+     *         mirrored, indexed on by the mirror.
+     */
+    private Set<String> getMirroredAttributes(
+            final ProviderConfiguration config)
+    {
+        final Set<String> attributes = new HashSet<String>(
+                Arrays.asList(config.getUserAttributes()));
+
+        if (mirror != null) {
+            // The mirror indexes the search fields it was started with
+            attributes.addAll(mirror.getSearchAttributes());
+        }
+
+        return attributes;
+    }
+
+    /**
+     * @return the username in a user's attributes, without any username
+     *         suffix, or null if there isn't one.
+     * @throws NamingException
+     */
+    private String getUsername(final Attributes attrs) throws NamingException
+    {
+        final Attribute usernameAttr = attrs.get(manager.getUsernameField());
+
+        if (usernameAttr == null) {
+            return null;
+        }
+
+        String username = (String) usernameAttr.get();
+        final String usernameSuffix = manager.getUsernameSuffix();
+
+        if (usernameSuffix != null && username.endsWith(usernameSuffix)) {
+            username = username.substring(0, username.length()
+                    - usernameSuffix.length());
+        }
+
+        return username;
+    }
+
+    /**
+     * @return true if there is a directory mirror which is fresh enough to
+     *         answer lookups.
+     */
+    private boolean isMirrorUsable()
+    {
+        return mirror != null && mirror.isUsable();
+    }
+
+    /**
+     * Returns the in-memory mirror of the directory, which can be used to
+     * monitor its sync lag and size.
+     * 
+     * @return the mirror, or null if mirroring is disabled.
+     */
+    public DirectoryMirror getMirror()
+    {
+        return mirror;
+    }
+
+    /**
+     * Starts listening for changes to users under each base DN.
+     *
+     * @param mode
+     *            how changes are received.
+     */
+    private void startChangeListeners(final DirectoryChangeListener.Mode mode)
+    {
+        final String filter = MessageFormat.format(manager.getSearchFilter(),
+                "*");
+
+        for (String baseDN : getSearchBaseDNs()) {
+            DirectoryChangeListener listener = new DirectoryChangeListener(
+                    contextFactory, baseDN, filter,
+                    manager.getUsernameField(), mode, changeHandler);
+            listener.start();
+            changeListeners.add(listener);
+        }
+    }
+
+    /**
+     * Returns the listeners for changes to users, which can be used to
+     * monitor them.
+     *
+     * @return the listeners, one per base DN, or an empty list if change
+     *         listening is disabled.
+     */
+    public List<DirectoryChangeListener> getChangeListeners()
+    {
+        return Collections.unmodifiableList(changeListeners);
+    }
+
+    /**
+     * Returns the handler which evicts users as the directory reports changes
+     * to them.
+     *
+     * @return the handler.
+     */
+    DirectoryChangeListener.Handler getChangeHandler()
+    {
+        return changeHandler;
+    }
+
+    /**
+     * Sets the in-memory mirror of the directory.
+     * 
+     * @param mirror
+     *            the mirror, or null to disable mirroring.
+     */
+    void setMirror(final DirectoryMirror mirror)
+    {
+        this.mirror = mirror;
+    }
+
+    /**
+     * Builds a user from their ldap attributes.
+     * 
+     * @param username
+     *            the unescaped username.
+     * @param attrs
+     *            the user's attributes, which should include the
+     *            configuration's user attributes.
+     * @param config
+     *            the configuration giving the display name template.
+     * @return the user.
+     * @throws UserNotFoundException
+     *             if the attributes can't be read.
+     */
+    private User buildUser(final String username, final Attributes attrs,
+            final ProviderConfiguration config) throws UserNotFoundException
+    {
+        try {
+            String name = constructDisplayName(attrs,
+                    config.getDisplayNameTemplate());
+
+            if (Log.isDebugEnabled()) {
+                Log.debug("Using " + name + " as display name for user "
+                        + username);
+            }
+
+            String email = null;
+            Attribute emailField = attrs.get(manager.getEmailField());
+            if (emailField != null) {
+                email = (String) emailField.get();
+            }
+
+            Date creationDate = null;
+            Attribute creationDateField = attrs.get("createTimestamp");
+            if (creationDateField != null) {
+                creationDate = parseLDAPDate((String) creationDateField.get());
+            }
+
+            Date modificationDate = null;
+            Attribute modificationDateField = attrs.get("modifyTimestamp");
+            if (modificationDateField != null) {
+                modificationDate = parseLDAPDate((String) modificationDateField
+                        .get());
+            }
+
+            if (creationDate == null) {
+                creationDate = new Date();
+            }
+            if (modificationDate == null) {
+                modificationDate = new Date();
+            }
+
+            // Escape the username so that it can be used as a JID.
+            return new User(JID.escapeNode(username), name, email,
+                    creationDate, modificationDate);
+        } catch (Exception e) {
+            throw new UserNotFoundException(e);
+        }
+    }
+
+    /**
+     * Sets whether users are loaded with a single search rather than a search
+     * for their DN followed by a read of their entry.
+     * 
+     * @param singleSearchLoad
+     */
+    void setSingleSearchLoad(final boolean singleSearchLoad)
+    {
+        this.singleSearchLoad = singleSearchLoad;
+    }
+
+    /**
+     * Sets the template used to construct the user's display name. Users built
+     * with the old template are dropped from the caches, and the mirror is
+     * resynced.
+     * 
+     * @param displayNameTemplate
+     */
+    public synchronized void setDisplayNameTemplate(
+            final String displayNameTemplate)
+    {
+        applyConfiguration(config.withDisplayNameTemplate(displayNameTemplate));
+    }
+
+    /**
+     * Reloads the display name template and search settings from openfire
+     * properties.
+     */
+    void reloadConfiguration()
+    {
+        applyConfiguration(loadConfiguration());
+
+        Log.info("Reloaded the LDAP user provider configuration: " + config);
+    }
+
+    /**
+     * Reloads the configuration if one of its properties has changed, or
+     * closes the provider if it is being replaced.
+     * 
+     * @param property
+     *            the name of the property which changed.
+     */
+    void propertyChanged(final String property)
+    {
+        if ("provider.user.className".equals(property)) {
+            // Openfire falls back to its default provider if it is deleted
+            if (!getClass().getName().equals(
+                    JiveGlobals.getProperty(property))) {
+                close();
+            }
+            return;
+        }
+
+        if ("ldap.displayNameTemplate".equals(property)
+                || "ldap.seperateSearchTerms".equals(property)
+                || "ldap.searchFields".equals(property)
+                || "ldap.searchNameFields".equals(property)) {
+            reloadConfiguration();
+        }
+    }
+
+    /**
+     * Swaps in a new configuration, invalidating only what it changes. Users
+     * built with another display name template are dropped from the user and
+     * search result caches, and the mirror is fully resynced so its users are
+     * rebuilt. Search results are cached on the attributes and terms searched,
+     * so they are still valid after the search settings change.
+     * 
+     * @param updated
+     *            the new configuration.
+     */
+    synchronized void applyConfiguration(final ProviderConfiguration updated)
+    {
+        final ProviderConfiguration previous = config;
+
+        config = updated;
+
+        if (previous.buildsSameUsers(updated)) {
+            return;
+        }
+
+        if (userCache != null) {
+            userCache.clear();
+        }
+        if (searchResultCache != null) {
+            searchResultCache.invalidate();
+        }
+        if (mirror != null) {
+            mirror.requestFullSync();
+
+            // Users are now built from different attributes, which changes
+            // have to report for the mirror to be updated from them
+            for (DirectoryChangeListener listener : changeListeners) {
+                listener.restart();
+            }
+        }
+    }
+
+    /**
+     * @return the configuration the provider is currently using.
+     */
+    ProviderConfiguration getConfiguration()
+    {
+        return config;
+    }
+
+    /**
+     * @return the listener which reloads the configuration when its
+     *         properties change.
+     */
+    PropertyEventListener getConfigurationListener()
+    {
+        return configListener;
+    }
+
+    /**
+     * Returns the cache of loaded users, which can be used to monitor its
+     * effectiveness.
+     * 
+     * @return the user cache, or null if user caching is disabled.
+     */
+    public ExpiringCache<String, User> getUserCache()
+    {
+        return userCache;
+    }
+
+    /**
+     * Returns the cache of usernames which the directory has no entry for,
+     * which can be used to monitor its effectiveness.
+     * 
+     * @return the negative user cache, or null if it is disabled.
+     */
+    public ExpiringCache<String, Boolean> getNegativeUserCache()
+    {
+        return negativeUserCache;
+    }
+
+    /**
+     * Sets the cache of usernames which the directory has no entry for.
+     * 
+     * @param negativeUserCache
+     *            the cache, or null to disable negative caching.
+     */
+    void setNegativeUserCache(
+            final ExpiringCache<String, Boolean> negativeUserCache)
+    {
+        this.negativeUserCache = negativeUserCache;
+    }
+
+    /**
+     * Returns the cache of search results, which can be used to monitor its
+     * hit rate and the time it saves.
+     * 
+     * @return the search result cache, or null if it is disabled.
+     */
+    public SearchResultCache getSearchResultCache()
+    {
+        return searchResultCache;
+    }
+
+    /**
+     * Sets the cache of search results.
+     * 
+     * @param searchResultCache
+     *            the cache, or null to disable search caching.
+     */
+    void setSearchResultCache(final SearchResultCache searchResultCache)
+    {
+        this.searchResultCache = searchResultCache;
+    }
+
+    /**
+     * Returns the guards on user loads, bulk user loads and user searches,
+     * which can be used to monitor their state and rejections.
+     * 
+     * @return the circuit breakers, leaving out any operations which aren't
+     *         guarded.
+     */
+    public List<CircuitBreaker> getCircuitBreakers()
+    {
+        final List<CircuitBreaker> breakers = new ArrayList<CircuitBreaker>(3);
+
+        for (CircuitBreaker breaker : new CircuitBreaker[] { loadUserBreaker,
+                loadUsersBreaker, findUsersBreaker }) {
+            if (breaker != null) {
+                breakers.add(breaker);
+            }
+        }
+
+        return breakers;
+    }
+
+    /**
+     * Empties the user, negative user and search result caches, so that
+     * every user is looked up afresh.
+     */
+    public void flushCaches()
+    {
+        evictAllUsers();
+        Log.info("Flushed the LDAP user caches");
+    }
+
+    /**
+     * Removes a user from the caches and re-reads them into the mirror, so
+     * that they are looked up afresh.
+     * 
+     * @param username
+     *            the username or JID.
+     */
+    public void evictCachedUser(final String username)
+    {
+        final String ldapUsername = toLdapUsername(username);
+
+        evictUser(ldapUsername);
+
+        if (mirror != null) {
+            mirror.refreshUser(ldapUsername, MessageFormat.format(
+                    manager.getSearchFilter(),
+                    escapeFilterValue(ldapUsername)));
+        }
+    }
+
+    /**
+     * Empties the caches and, if the directory is mirrored, starts a full
+     * sync of the mirror, for after changes the provider can't have seen.
+     */
+    public void resync()
+    {
+        evictAllUsers();
+
+        if (mirror != null) {
+            mirror.requestFullSync();
+        }
+
+        Log.info("Resyncing with the LDAP directory");
+    }
+
+    /**
+     * @return the template for users' display names, or null if the name
+     *         field is used.
+     */
+    public String getDisplayNameTemplate()
+    {
+        return config.getDisplayNameTemplateString();
+    }
+
+    /**
+     * @return the ldap attribute searched for each search field.
+     */
+    public Map<String, String> getSearchFieldAttributes()
+    {
+        return config.getSearchFields();
+    }
 
     /**
-     * This is an array of fieldnames, the union of the usual fields and those
-     * extracted from the {@link #displayNameTemplate}. This is used to limit
-     * the fields retrieved from ldap to only those actually required.
+     * @return true if search queries are split into separate terms on
+     *         whitespace.
      */
-    private String[] userAttributesToLoad;
+    public boolean isSeperateSearchTerms()
+    {
+        return config.isSeperateSearchTerms();
+    }
 
     /**
-     * If this property is set to true, then search string will be split into
-     * separate search terms
+     * Returns the latency histograms, throughput, errors and directory round
+     * trips of each type of operation.
+     * 
+     * @return the metrics.
      */
-    private boolean seperateSearchTerms;
+    public ProviderMetrics getMetrics()
+    {
+        return metrics;
+    }
 
     /**
-     * We have to replicate the searchFields logic here because we don't have
-     * enough access to the delegate
+     * Returns the hedger of slow user loads, which can be used to monitor how
+     * often loads are hedged and how often the hedge wins.
+     * 
+     * @return the hedger, or null if hedging is disabled.
      */
-    private Map<String, String> searchFields;
+    public RequestHedger getHedger()
+    {
+        return hedger;
+    }
 
     /**
-     * The set of fields which will be searched through if a query for "Name" is
-     * received
+     * Sets the hedger of slow user loads.
+     * 
+     * @param hedger
+     *            the hedger, or null to disable hedging.
      */
-    private Set<String> searchNameFields;
+    void setHedger(final RequestHedger hedger)
+    {
+        this.hedger = hedger;
+    }
 
     /**
-     * Default constructor which will configure all the dependencies from
-     * openfire properties.
+     * Returns the log of slow user searches, which keeps aggregates for the
+     * slowest filter shapes.
+     * 
+     * @return the slow query log, or null if slow searches aren't logged.
      */
-    public ExtendedLdapUserProvider()
+    public SlowQueryLog getSlowQueryLog()
     {
-        delegate = new LdapUserProvider();
-        manager = LdapManager.getInstance();
-        xmppServer = XMPPServer.getInstance();
-
-        // Convert XML based provider setup to Database based
-        JiveGlobals.migrateProperty("ldap.displayNameTemplate");
-        JiveGlobals.migrateProperty("ldap.seperateSearchTerms");
-        JiveGlobals.migrateProperty("ldap.searchFields");
-        JiveGlobals.migrateProperty("ldap.searchNameFields");
-
-        seperateSearchTerms = false;
-        String seperateSearchTermsStr = JiveGlobals
-                .getProperty("ldap.seperateSearchTerms");
-        if (seperateSearchTermsStr != null) {
-            seperateSearchTerms = Boolean.valueOf(seperateSearchTermsStr);
-        }
-
-        searchFields = parseSearchFields(JiveGlobals
-                .getProperty("ldap.searchFields"));
-
-        searchNameFields = parseSearchNameFields(JiveGlobals
-                .getProperty("ldap.searchNameFields"));
-
-        setDisplayNameTemplate(JiveGlobals
-                .getProperty("ldap.displayNameTemplate"));
+        return slowQueryLog;
     }
 
     /**
-     * Constructor for testing into which all the dependencies can be passed.
+     * Sets the log of slow user searches.
      * 
-     * @param ldapManager
-     * @param delegate
-     * @param xmppServer
-     * @param displayNameTemplate
-     * @param seperateSearchTerms
-     * @param searchFieldString
+     * @param slowQueryLog
+     *            the slow query log, or null to not log slow searches.
      */
-    ExtendedLdapUserProvider(final LdapManager ldapManager,
-            final LdapUserProvider delegate, final XMPPServer xmppServer,
-            final String displayNameTemplate,
-            final boolean seperateSearchTerms, final String searchFieldsString,
-            final String searchNameFieldsString)
+    void setSlowQueryLog(final SlowQueryLog slowQueryLog)
     {
-        this.manager = ldapManager;
-        this.delegate = delegate;
-        this.xmppServer = xmppServer;
-        this.seperateSearchTerms = seperateSearchTerms;
-        this.searchFields = parseSearchFields(searchFieldsString);
-        this.searchNameFields = parseSearchNameFields(searchNameFieldsString);
-
-        setDisplayNameTemplate(displayNameTemplate);
+        this.slowQueryLog = slowQueryLog;
     }
 
-    public User loadUser(String username) throws UserNotFoundException
+    /**
+     * Sets the guards on each type of operation.
+     * 
+     * @param loadUserBreaker
+     *            guards user loads, or null.
+     * @param loadUsersBreaker
+     *            guards bulk user loads, or null.
+     * @param findUsersBreaker
+     *            guards user searches, or null.
+     */
+    void setCircuitBreakers(final CircuitBreaker loadUserBreaker,
+            final CircuitBreaker loadUsersBreaker,
+            final CircuitBreaker findUsersBreaker)
     {
-        if (username.contains("@")) {
-            if (!xmppServer.isLocal(new JID(username))) {
-                throw new UserNotFoundException(
-                        "Cannot load user of remote server: " + username);
-            }
-            username = username.substring(0, username.lastIndexOf("@"));
-        }
-        // Un-escape username.
-        username = JID.unescapeNode(username);
-        DirContext ctx = null;
-        try {
-            String userDN = manager.findUserDN(username);
-            ctx = manager.getContext(manager.getUsersBaseDN(username));
-
-            Attributes attrs = ctx.getAttributes(userDN, userAttributesToLoad);
-
-            String name = constructDisplayName(attrs);
-
-            if (Log.isDebugEnabled()) {
-                Log.debug("Using " + name + " as display name for user "
-                        + username);
-            }
-
-            String email = null;
-            Attribute emailField = attrs.get(manager.getEmailField());
-            if (emailField != null) {
-                email = (String) emailField.get();
-            }
-
-            Date creationDate = new Date();
-            Attribute creationDateField = attrs.get("createTimestamp");
-            if (creationDateField != null
-                    && "".equals(((String) creationDateField.get()).trim())) {
-                creationDate = parseLDAPDate((String) creationDateField.get());
-            }
-
-            Date modificationDate = new Date();
-            Attribute modificationDateField = attrs.get("modifyTimestamp");
-            if (modificationDateField != null
-                    && "".equals(((String) modificationDateField.get()).trim())) {
-                modificationDate = parseLDAPDate((String) modificationDateField
-                        .get());
-            }
-
-            // Escape the username so that it can be used as a JID.
-            username = JID.escapeNode(username);
-            return new User(username, name, email, creationDate,
-                    modificationDate);
-        } catch (Exception e) {
-            throw new UserNotFoundException(e);
-        } finally {
-            try {
-                if (ctx != null) {
-                    ctx.close();
-                }
-            } catch (Exception ignored) {
-                // Ignore.
-            }
-        }
+        this.loadUserBreaker = loadUserBreaker;
+        this.loadUsersBreaker = loadUsersBreaker;
+        this.findUsersBreaker = findUsersBreaker;
     }
 
     /**
-     * Sets the template used to construct the user's display name.
+     * Sets the cache of loaded users.
      * 
-     * @param displayNameTemplate
+     * @param userCache
+     *            the cache, or null to disable user caching.
      */
-    public void setDisplayNameTemplate(final String displayNameTemplate)
+    void setUserCache(final ExpiringCache<String, User> userCache)
     {
-        this.displayNameTemplate = displayNameTemplate;
-
-        final Set<String> fields = new HashSet<String>();
-
-        fields.add(manager.getUsernameField());
-        fields.add(manager.getNameField());
-        fields.add(manager.getEmailField());
-        fields.add("createTimestamp");
-        fields.add("modifyTimestamp");
-
-        if (displayNameTemplate != null) {
-            Pattern pattern = Pattern.compile("\\{([^\\}]+)\\}");
-
-            Matcher matcher = pattern.matcher(displayNameTemplate);
-
-            while (matcher.find()) {
-                fields.add(matcher.group(1));
-            }
-        }
-
-        userAttributesToLoad = new String[fields.size()];
-
-        userAttributesToLoad = fields.toArray(userAttributesToLoad);
+        this.userCache = userCache;
     }
 
-    public User createUser(String username, String password, String name,
-            String email) throws UserAlreadyExistsException
+    public User createUser(final String username, final String password,
+            final String name, final String email)
+            throws UserAlreadyExistsException
     {
-        return delegate.createUser(username, password, name, email);
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.CREATE_USER);
+
+        return operation.time(new Timed<User, UserAlreadyExistsException>() {
+            public User call() throws UserAlreadyExistsException
+            {
+                if (negativeUserCache != null) {
+                    negativeUserCache.remove(JID.unescapeNode(username));
+                }
+                return delegate.createUser(username, password, name, email);
+            }
+        });
     }
 
-    public void deleteUser(String username)
+    public void deleteUser(final String username)
     {
-        delegate.deleteUser(username);
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.DELETE_USER);
+
+        operation.time(new Timed<Void, RuntimeException>() {
+            public Void call()
+            {
+                delegate.deleteUser(username);
+                invalidateUser(username);
+                return null;
+            }
+        });
     }
 
     public int getUserCount()
     {
-        return delegate.getUserCount();
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.GET_USER_COUNT);
+
+        return operation.time(new Timed<Integer, RuntimeException>() {
+            public Integer call()
+            {
+                if (isMirrorUsable()) {
+                    return mirror.size();
+                }
+                return delegate.getUserCount();
+            }
+        });
     }
 
     public Collection<User> getUsers()
     {
-        return delegate.getUsers();
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.GET_USERS);
+
+        return operation.time(new Timed<Collection<User>, RuntimeException>() {
+            public Collection<User> call()
+            {
+                return delegate.getUsers();
+            }
+        });
     }
 
     public Collection<String> getUsernames()
     {
-        return delegate.getUsernames();
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.GET_USERNAMES);
+
+        return operation.time(new Timed<Collection<String>, RuntimeException>() {
+            public Collection<String> call()
+            {
+                if (isMirrorUsable()) {
+                    return mirror.getUsernames();
+                }
+                return delegate.getUsernames();
+            }
+        });
     }
 
-    public Collection<User> getUsers(int startIndex, int numResults)
+    public Collection<User> getUsers(final int startIndex, final int numResults)
     {
-        return delegate.getUsers(startIndex, numResults);
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.GET_USERS);
+
+        return operation.time(new Timed<Collection<User>, RuntimeException>() {
+            public Collection<User> call()
+            {
+                return delegate.getUsers(startIndex, numResults);
+            }
+        });
     }
 
-    public void setName(String username, String name)
+    public void setName(final String username, final String name)
             throws UserNotFoundException
     {
-        delegate.setName(username, name);
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.UPDATE_USER);
+
+        operation.time(new Timed<Void, UserNotFoundException>() {
+            public Void call() throws UserNotFoundException
+            {
+                delegate.setName(username, name);
+                invalidateUser(username);
+                return null;
+            }
+        });
     }
 
-    public void setEmail(String username, String email)
+    public void setEmail(final String username, final String email)
             throws UserNotFoundException
     {
-        delegate.setEmail(username, email);
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.UPDATE_USER);
+
+        operation.time(new Timed<Void, UserNotFoundException>() {
+            public Void call() throws UserNotFoundException
+            {
+                delegate.setEmail(username, email);
+                invalidateUser(username);
+                return null;
+            }
+        });
     }
 
-    public void setCreationDate(String username, Date creationDate)
+    public void setCreationDate(final String username, final Date creationDate)
             throws UserNotFoundException
     {
-        delegate.setCreationDate(username, creationDate);
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.UPDATE_USER);
+
+        operation.time(new Timed<Void, UserNotFoundException>() {
+            public Void call() throws UserNotFoundException
+            {
+                delegate.setCreationDate(username, creationDate);
+                invalidateUser(username);
+                return null;
+            }
+        });
     }
 
-    public void setModificationDate(String username, Date modificationDate)
+    public void setModificationDate(final String username,
+            final Date modificationDate)
             throws UserNotFoundException
     {
-        delegate.setModificationDate(username, modificationDate);
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.UPDATE_USER);
+
+        operation.time(new Timed<Void, UserNotFoundException>() {
+            public Void call() throws UserNotFoundException
+            {
+                delegate.setModificationDate(username, modificationDate);
+                invalidateUser(username);
+                return null;
+            }
+        });
     }
 
     public Set<String> getSearchFields() throws UnsupportedOperationException
@@ -347,9 +2801,29 @@ public class ExtendedLdapUserProvider implements UserProvider
         return this.findUsers(fields, query, -1, -1);
     }
 
-    public Collection<User> findUsers(Set<String> fields, String query,
-            int startIndex, int numResults)
+    public Collection<User> findUsers(final Set<String> fields,
+            final String query, final int startIndex, final int numResults)
             throws UnsupportedOperationException
+    {
+        final OperationMetrics operation = metrics
+                .get(ProviderMetrics.Operation.FIND_USERS);
+
+        return operation.time(new Timed<Collection<User>, RuntimeException>() {
+            public Collection<User> call()
+            {
+                return searchForUsers(fields, query, startIndex, numResults);
+            }
+        });
+    }
+
+    /**
+     * Searches the mirror, the search result cache or the directory for
+     * users.
+     * 
+     * @see #findUsers(Set, String, int, int)
+     */
+    private Collection<User> searchForUsers(final Set<String> fields,
+            final String query, final int startIndex, final int numResults)
     {
         if (Log.isDebugEnabled()) {
             Log.debug(this.getClass().getSimpleName() + ": Search for " + query);
@@ -360,27 +2834,134 @@ public class ExtendedLdapUserProvider implements UserProvider
         if (fields.isEmpty() || query == null || "".equals(query)) {
             return Collections.emptyList();
         }
-        if (!searchFields.keySet().containsAll(fields)) {
+
+        final ProviderConfiguration config = this.config;
+
+        if (!config.getSearchFields().keySet().containsAll(fields)) {
             throw new IllegalArgumentException("Search fields " + fields
                     + " are not valid.");
         }
 
-        Set<String> fieldsToSearch = new HashSet<String>(fields);
+        final DirectoryEvent event = DirectoryEvent.begin("findUsers")
+                .filter(query).cacheHit(true);
+        Collection<User> users = Collections.emptyList();
+        try {
+            final Set<String> attributes = getSearchAttributes(fields, config);
+            final String[] terms = getSearchTerms(query, config);
+
+            // Attributes added to the search fields since the mirror started
+            // aren't mirrored
+            if (isMirrorUsable() && mirror.isSearchable(attributes)) {
+                users = mirror.findUsers(attributes, terms, startIndex,
+                        numResults);
+                return users;
+            }
 
-        if (fieldsToSearch.contains("Name")) {
-            fieldsToSearch.remove("Name");
-            fieldsToSearch.addAll(searchNameFields);
-        }
+            String cacheKey = null;
+            long cacheGeneration = 0;
 
-        String[] searchTerms;
+            if (searchResultCache != null) {
+                cacheKey = SearchResultCache.key(attributes, terms,
+                        startIndex, numResults);
 
-        if (seperateSearchTerms) {
-            // Split the query into search terms
-            searchTerms = query.split("\\s+");
-        } else {
-            searchTerms = new String[] { query };
+                List<User> cached = searchResultCache.get(cacheKey);
+
+                if (cached != null) {
+                    users = cached;
+                    return users;
+                }
+
+                cacheGeneration = searchResultCache.getGeneration();
+            }
+
+            String filter = buildSearchFilter(attributes, terms);
+
+            event.filter(filter).cacheHit(false);
+
+            if (Log.isDebugEnabled()) {
+                Log.debug(this.getClass().getSimpleName() + ": ldap query = "
+                        + filter);
+            }
+
+            if (findUsersBreaker != null && !findUsersBreaker.tryAcquire()) {
+                if (searchResultCache != null) {
+                    List<User> stale = searchResultCache.getStale(cacheKey);
+
+                    if (stale != null) {
+                        users = stale;
+                        return users;
+                    }
+                }
+                Log.debug("Directory searches are suspended, so no users"
+                        + " found");
+                return Collections.emptyList();
+            }
+
+            final long started = System.nanoTime();
+            boolean failed = true;
+
+            try {
+                final List<User> found = searchUsers(filter, startIndex,
+                        numResults, config);
+
+                failed = false;
+                users = found;
+
+                if (searchResultCache != null) {
+                    users = searchResultCache.put(cacheKey, found,
+                            cacheGeneration, System.nanoTime() - started);
+                }
+                return users;
+            } catch (NamingException e) {
+                Log.error("Error searching for users with filter " + filter,
+                        e);
+                metrics.get(ProviderMetrics.Operation.FIND_USERS).error(e);
+                return Collections.emptyList();
+            } finally {
+                final long elapsed = System.nanoTime() - started;
+
+                if (findUsersBreaker != null) {
+                    findUsersBreaker.release(elapsed, failed);
+                }
+                if (slowQueryLog != null) {
+                    slowQueryLog.record(filter, elapsed, users.size());
+                }
+            }
+        } finally {
+            event.resultCount(users.size()).commit();
         }
+    }
+
+    /**
+     * Builds the ldap filter for a user search.
+     * 
+     * @param fields
+     *            the fields to search, which must all be valid search fields.
+     * @param query
+     *            the query.
+     * @return the filter.
+     */
+    String buildSearchFilter(final Set<String> fields, final String query)
+    {
+        final ProviderConfiguration config = this.config;
+
+        return buildSearchFilter(getSearchAttributes(fields, config),
+                getSearchTerms(query, config));
+    }
 
+    /**
+     * Builds the ldap filter for a user search.
+     * 
+     * @param attributes
+     *            the attributes to search.
+     * @param terms
+     *            the search terms, each of which must match one of the
+     *            attributes.
+     * @return the filter.
+     */
+    private String buildSearchFilter(final Set<String> attributes,
+            final String[] terms)
+    {
         StringBuilder filter = new StringBuilder();
         // Add the global search filter so only those users the directory
         // administrator wants to include
@@ -388,31 +2969,64 @@ public class ExtendedLdapUserProvider implements UserProvider
         filter.append("(&(");
         filter.append(MessageFormat.format(manager.getSearchFilter(), "*"));
         filter.append(")");
-        for (String searchTerm : searchTerms) {
+        for (String searchTerm : terms) {
             searchTerm = processSearchTerm(searchTerm);
 
-            if (fieldsToSearch.size() > 1) {
+            if (attributes.size() > 1) {
                 filter.append("(|");
             }
-            for (String field : fieldsToSearch) {
-                String attribute = searchFields.get(field);
+            for (String attribute : attributes) {
                 filter.append("(").append(attribute).append("=")
                         .append(searchTerm).append(")");
             }
-            if (fieldsToSearch.size() > 1) {
+            if (attributes.size() > 1) {
                 filter.append(")");
             }
         }
         filter.append(")");
-        if (Log.isDebugEnabled()) {
-            Log.debug(this.getClass().getSimpleName() + ": ldap query = "
-                    + filter.toString());
+
+        return filter.toString();
+    }
+
+    /**
+     * Returns the attributes to search for the given search fields, with the
+     * "Name" field expanded into the search name fields.
+     * 
+     * @param fields
+     *            the fields to search, which must all be valid search fields.
+     * @return the attributes.
+     */
+    private static Set<String> getSearchAttributes(final Set<String> fields,
+            final ProviderConfiguration config)
+    {
+        Set<String> fieldsToSearch = new HashSet<String>(fields);
+
+        if (fieldsToSearch.contains("Name")) {
+            fieldsToSearch.remove("Name");
+            fieldsToSearch.addAll(config.getSearchNameFields());
         }
 
-        List<String> userlist = manager.retrieveList(
-                manager.getUsernameField(), filter.toString(), startIndex,
-                numResults, manager.getUsernameSuffix());
-        return new UserCollection(userlist.toArray(new String[userlist.size()]));
+        Set<String> attributes = new LinkedHashSet<String>();
+
+        for (String field : fieldsToSearch) {
+            attributes.add(config.getSearchFields().get(field));
+        }
+
+        return attributes;
+    }
+
+    /**
+     * @return the search terms in a query, which is split on whitespace if
+     *         search terms are separated.
+     */
+    private static String[] getSearchTerms(final String query,
+            final ProviderConfiguration config)
+    {
+        if (config.isSeperateSearchTerms()) {
+            // Split the query into search terms
+            return query.split("\\s+");
+        }
+        return new String[] { query };
     }
 
     public boolean isReadOnly()
@@ -430,6 +3044,64 @@ public class ExtendedLdapUserProvider implements UserProvider
         return delegate.isEmailRequired();
     }
 
+    /**
+     * Removes a user from the user cache so that the next load sees any
+     * changes, and empties the search result cache, which may hold them.
+     * 
+     * @param username
+     *            the (escaped) username.
+     */
+    private void invalidateUser(final String username)
+    {
+        if (userCache != null) {
+            userCache.remove(JID.unescapeNode(username));
+        }
+        if (searchResultCache != null) {
+            searchResultCache.invalidate();
+        }
+    }
+
+    /**
+     * Removes a user whose directory entry has changed from the user caches.
+     * 
+     * @param username
+     *            the username held in ldap.
+     */
+    private void evictUser(final String username)
+    {
+        // Usernames are usually looked up in lower case, whatever their case
+        // in the directory
+        final String lowerCaseUsername = username.toLowerCase();
+
+        if (userCache != null) {
+            userCache.remove(username);
+            userCache.remove(lowerCaseUsername);
+        }
+        if (negativeUserCache != null) {
+            negativeUserCache.remove(username);
+            negativeUserCache.remove(lowerCaseUsername);
+        }
+        if (searchResultCache != null) {
+            searchResultCache.invalidate();
+        }
+    }
+
+    /**
+     * Empties the user caches, as any user may have changed.
+     */
+    private void evictAllUsers()
+    {
+        if (userCache != null) {
+            userCache.clear();
+        }
+        if (negativeUserCache != null) {
+            negativeUserCache.clear();
+        }
+        if (searchResultCache != null) {
+            searchResultCache.invalidate();
+        }
+    }
+
     /**
      * Parses dates/time stamps stored in LDAP. Some possible values:
      * 
@@ -438,41 +3110,38 @@ public class ExtendedLdapUserProvider implements UserProvider
      * <li>20030228150820Z</li>
      * <li>20050228150820.12</li>
      * <li>20060711011740.0Z</li>
+     * <li>20060711011740+0100</li>
      * </ul>
      * 
      * @param dateText
      *            the date string.
-     * @return the Date.
+     * @return the Date, or null if the date string is blank or invalid.
+     * @see GeneralizedTimeParser
      */
-    private static Date parseLDAPDate(String dateText)
+    static Date parseLDAPDate(final String dateText)
     {
-        // If the date ends with a "Z", that means that it's in the UTC time
-        // zone. Otherwise,
-        // Use the default time zone.
-        boolean useUTC = false;
-        if (dateText.endsWith("Z")) {
-            useUTC = true;
+        if (dateText == null) {
+            return null;
+        }
+
+        final String trimmed = dateText.trim();
+
+        if (trimmed.length() == 0) {
+            return null;
         }
-        Date date = new Date();
+
         try {
-        	final SimpleDateFormat ldapDateFormat = new SimpleDateFormat(
-                    LDAP_DATE_FORMAT_STRING);
-            if (useUTC) {
-                ldapDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-            } else {
-                ldapDateFormat.setTimeZone(TimeZone.getDefault());
-            }
-            date = ldapDateFormat.parse(dateText);
-        } catch (Exception e) {
-            Log.error(e.getMessage(), e);
+            return new Date(GeneralizedTimeParser.parse(trimmed));
+        } catch (IllegalArgumentException e) {
+            Log.error(e.getMessage());
+            return null;
         }
-        return date;
     }
 
     /**
      * Parses the string parameter for the search fields into a map
      */
-    private Map<String, String> parseSearchFields(final String searchFields)
+    Map<String, String> parseSearchFields(final String searchFields)
     {
         final Map<String, String> searchFieldMap = new LinkedHashMap<String, String>();
 
@@ -499,7 +3168,7 @@ public class ExtendedLdapUserProvider implements UserProvider
     /**
      * Parses the string parameter for the search name fields into a set.
      */
-    private Set<String> parseSearchNameFields(
+    Set<String> parseSearchNameFields(
             final String searchNameFieldsString)
     {
         if (searchNameFieldsString == null) {
@@ -517,10 +3186,45 @@ public class ExtendedLdapUserProvider implements UserProvider
         return searchNameFields;
     }
 
+    /**
+     * Escapes a value so that it can be used as an assertion value in an ldap
+     * search filter (RFC 4515).
+     */
+    private static String escapeFilterValue(final String value)
+    {
+        final StringBuilder result = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+            case '\\':
+                result.append("\\5c");
+                break;
+            case '*':
+                result.append("\\2a");
+                break;
+            case '(':
+                result.append("\\28");
+                break;
+            case ')':
+                result.append("\\29");
+                break;
+            case '\0':
+                result.append("\\00");
+                break;
+            default:
+                result.append(c);
+            }
+        }
+
+        return result.toString();
+    }
+
     /**
      * Adds wilcarding onto a search string and replaces naughty ldap characters
      */
-    private String processSearchTerm(final String term)
+    String processSearchTerm(final String term)
     {
         String result;
 
@@ -542,7 +3246,24 @@ public class ExtendedLdapUserProvider implements UserProvider
      * @return the display name.
      * @throws NamingException
      */
-    private String constructDisplayName(final Attributes attrs)
+    String constructDisplayName(final Attributes attrs)
+            throws NamingException
+    {
+        return constructDisplayName(attrs, config.getDisplayNameTemplate());
+    }
+
+    /**
+     * Replaces the various bits of data into a display name template.
+     * 
+     * @param attrs
+     *            the attributes for the user.
+     * @param displayNameTemplate
+     *            the template, or null to use the name field.
+     * @return the display name.
+     * @throws NamingException
+     */
+    private String constructDisplayName(final Attributes attrs,
+            final DisplayNameTemplate displayNameTemplate)
             throws NamingException
     {
         if (displayNameTemplate == null) {
@@ -555,24 +3276,6 @@ public class ExtendedLdapUserProvider implements UserProvider
             return null;
         }
 
-        Pattern pattern = Pattern.compile("\\{([^\\}]+)\\}");
-
-        Matcher matcher = pattern.matcher(displayNameTemplate);
-
-        StringBuffer result = new StringBuffer();
-
-        while (matcher.find()) {
-            Attribute attr = attrs.get(matcher.group(1));
-
-            if (attr != null) {
-                matcher.appendReplacement(result, (String) attr.get());
-            } else {
-                matcher.appendReplacement(result, "");
-            }
-        }
-
-        matcher.appendTail(result);
-
-        return result.toString().trim();
+        return displayNameTemplate.render(attrs);
     }
 }
@@ -0,0 +1,266 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.TimeZone;
+
+/**
+ * Parses LDAP GeneralizedTime values (RFC 4517 section 3.3.13) such as:
+ * <ul>
+ * <li>2003022815Z</li>
+ * <li>20030228150820Z</li>
+ * <li>20060711011740.0Z</li>
+ * <li>200607110117,5+0100</li>
+ * <li>20060711011740-05</li>
+ * </ul>
+ * Values with no time zone, which some directories still produce, are taken
+ * to be in the default time zone.<br />
+ * The parser works directly on the characters of the value, so it is thread
+ * safe and allocates nothing (unless the value is invalid).
+ */
+public final class GeneralizedTimeParser
+{
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    /**
+     * The maximum number of fraction digits which are significant. Any more
+     * are ignored, as they are below millisecond precision anyway.
+     */
+    private static final int MAX_FRACTION_DIGITS = 9;
+
+    /**
+     * The days in each month of a non leap year.
+     */
+    private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31,
+            31, 30, 31, 30, 31 };
+
+    /**
+     * The time zone used for values with no time zone. This is looked up once
+     * as {@link TimeZone#getDefault()} returns a new copy on each call.
+     */
+    private static final TimeZone DEFAULT_TIME_ZONE = TimeZone.getDefault();
+
+    private GeneralizedTimeParser()
+    {
+    }
+
+    /**
+     * Parses a GeneralizedTime value.
+     *
+     * @param value
+     *            the value.
+     * @return the time in milliseconds since the epoch.
+     * @throws IllegalArgumentException
+     *             if the value isn't a valid GeneralizedTime.
+     */
+    public static long parse(final String value)
+    {
+        final int length = value.length();
+
+        // Date and hour are mandatory
+        if (length < 10) {
+            throw invalid(value);
+        }
+
+        final int year = digits(value, 0, 4);
+        final int month = digits(value, 4, 2);
+        final int day = digits(value, 6, 2);
+        final int hour = digits(value, 8, 2);
+
+        int minute = 0;
+        int second = 0;
+
+        // The unit any fraction is a fraction of
+        long fractionUnit = MILLIS_PER_HOUR;
+
+        int i = 10;
+
+        if (i < length && isDigit(value.charAt(i))) {
+            minute = digits(value, i, 2);
+            fractionUnit = MILLIS_PER_MINUTE;
+            i += 2;
+
+            if (i < length && isDigit(value.charAt(i))) {
+                second = digits(value, i, 2);
+                fractionUnit = MILLIS_PER_SECOND;
+                i += 2;
+            }
+        }
+
+        if (month < 1 || month > 12 || day < 1
+                || day > daysInMonth(year, month) || hour > 23 || minute > 59
+                || second > 60) {
+            throw invalid(value);
+        }
+
+        long fractionMillis = 0;
+
+        if (i < length && (value.charAt(i) == '.' || value.charAt(i) == ',')) {
+            i++;
+
+            long numerator = 0;
+            long denominator = 1;
+            int start = i;
+
+            while (i < length && isDigit(value.charAt(i))) {
+                if (i - start < MAX_FRACTION_DIGITS) {
+                    numerator = numerator * 10 + (value.charAt(i) - '0');
+                    denominator *= 10;
+                }
+                i++;
+            }
+
+            if (i == start) {
+                throw invalid(value);
+            }
+
+            fractionMillis = numerator * fractionUnit / denominator;
+        }
+
+        final long localMillis = daysFromEpoch(year, month, day)
+                * MILLIS_PER_DAY + hour * MILLIS_PER_HOUR + minute
+                * MILLIS_PER_MINUTE + second * MILLIS_PER_SECOND
+                + fractionMillis;
+
+        if (i == length) {
+            // No time zone, so use the default
+            return localMillis
+                    - DEFAULT_TIME_ZONE.getOffset(localMillis
+                            - DEFAULT_TIME_ZONE.getRawOffset());
+        }
+
+        final char zone = value.charAt(i);
+
+        if (zone == 'Z' && i + 1 == length) {
+            return localMillis;
+        }
+
+        if ((zone == '+' || zone == '-') && (i + 3 == length || i + 5 == length)) {
+            int offsetHours = digits(value, i + 1, 2);
+            int offsetMinutes = 0;
+
+            if (i + 5 == length) {
+                offsetMinutes = digits(value, i + 3, 2);
+            }
+
+            if (offsetHours > 23 || offsetMinutes > 59) {
+                throw invalid(value);
+            }
+
+            long offset = offsetHours * MILLIS_PER_HOUR + offsetMinutes
+                    * MILLIS_PER_MINUTE;
+
+            if (zone == '+') {
+                return localMillis - offset;
+            }
+            return localMillis + offset;
+        }
+
+        throw invalid(value);
+    }
+
+    /**
+     * Parses a run of decimal digits.
+     */
+    private static int digits(final String value, final int start,
+            final int count)
+    {
+        if (start + count > value.length()) {
+            throw invalid(value);
+        }
+
+        int result = 0;
+
+        for (int i = start; i < start + count; i++) {
+            char c = value.charAt(i);
+
+            if (!isDigit(c)) {
+                throw invalid(value);
+            }
+
+            result = result * 10 + (c - '0');
+        }
+
+        return result;
+    }
+
+    private static boolean isDigit(final char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int daysInMonth(final int year, final int month)
+    {
+        if (month == 2 && isLeapYear(year)) {
+            return 29;
+        }
+        return DAYS_IN_MONTH[month - 1];
+    }
+
+    private static boolean isLeapYear(final int year)
+    {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    /**
+     * Returns the number of days between 1970-01-01 and the given date in the
+     * proleptic Gregorian calendar.
+     */
+    private static long daysFromEpoch(final int year, final int month,
+            final int day)
+    {
+        // Count years from March so the leap day is the last day of the year
+        final long y;
+        final int m;
+
+        if (month <= 2) {
+            y = year - 1;
+            m = month + 9;
+        } else {
+            y = year;
+            m = month - 3;
+        }
+
+        final long era;
+
+        if (y >= 0) {
+            era = y / 400;
+        } else {
+            era = (y - 399) / 400;
+        }
+
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear = (153 * m + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra
+                / 100 + dayOfYear;
+
+        // 719468 days from 0000-03-01 to 1970-01-01
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static IllegalArgumentException invalid(final String value)
+    {
+        return new IllegalArgumentException("Invalid GeneralizedTime: "
+                + value);
+    }
+}
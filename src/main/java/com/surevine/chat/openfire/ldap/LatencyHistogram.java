@@ -0,0 +1,197 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with log-linear buckets, in the style of
+ * HdrHistogram: each power of two is split into 32 equal buckets, so any
+ * recorded latency is known to within about 3% however large it is, while
+ * the histogram stays a fixed size. Recording doesn't allocate or lock, so it
+ * can be done on every operation.<br />
+ * Latencies are recorded in nanoseconds, up to about 36 minutes, and longer
+ * ones are counted as that. Figures are reported in milliseconds.
+ */
+public class LatencyHistogram
+{
+    /**
+     * The number of bits of each latency below its highest bit which pick
+     * its bucket.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The highest power of two recorded.
+     */
+    private static final int MAX_MAGNITUDE = 40;
+
+    private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(
+            (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos
+     *            the latency in nanoseconds.
+     */
+    public void record(final long nanos)
+    {
+        final long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        long current = max.get();
+
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return the bucket a value falls in.
+     */
+    static int index(final long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS))
+                & (SUB_BUCKETS - 1);
+
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value which falls in a bucket.
+     */
+    static long highestValue(final int index)
+    {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        final int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @return the number of latencies recorded.
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return the mean latency in milliseconds, or 0 if none have been
+     *         recorded.
+     */
+    public double getMean()
+    {
+        final long n = count.get();
+
+        if (n == 0) {
+            return 0;
+        }
+        return total.get() / 1000000.0 / n;
+    }
+
+    /**
+     * @return the highest latency in milliseconds.
+     */
+    public double getMax()
+    {
+        return max.get() / 1000000.0;
+    }
+
+    /**
+     * Returns the latency at a percentile, such as 99 for the latency which
+     * 99% of those recorded were no slower than.
+     *
+     * @param percentile
+     *            the percentile, from 0 to 100.
+     * @return the latency in milliseconds, or 0 if none have been recorded.
+     */
+    public double getValueAtPercentile(final double percentile)
+    {
+        long n = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            n += counts.get(i);
+        }
+
+        if (n == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(
+                (long) Math.ceil(n * Math.min(percentile, 100) / 100.0), 1);
+        long seen = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get()) / 1000000.0;
+            }
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Forgets every latency recorded. Latencies recorded while this runs may
+     * be partly forgotten.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + ", mean=" + getMean() + "ms, p50="
+                + getValueAtPercentile(50) + "ms, p99="
+                + getValueAtPercentile(99) + "ms, max=" + getMax() + "ms";
+    }
+}
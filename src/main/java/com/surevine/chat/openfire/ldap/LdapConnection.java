@@ -0,0 +1,147 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * An ldap context acquired from an {@link LdapContextSource}, along with the
+ * bookkeeping needed to pool it.
+ */
+final class LdapConnection
+{
+    /**
+     * The context.
+     */
+    private final LdapContext context;
+
+    /**
+     * The base DN the context is relative to.
+     */
+    private final String baseDN;
+
+    /**
+     * The time in milliseconds the connection was created.
+     */
+    private final long createdAt;
+
+    /**
+     * The time in milliseconds the connection was last released.
+     */
+    private long lastUsed;
+
+    /**
+     * @param context
+     *            the context.
+     * @param baseDN
+     *            the base DN the context is relative to.
+     * @param createdAt
+     *            the time in milliseconds the connection was created.
+     */
+    LdapConnection(final LdapContext context, final String baseDN,
+            final long createdAt)
+    {
+        this.context = context;
+        this.baseDN = baseDN;
+        this.createdAt = createdAt;
+        this.lastUsed = createdAt;
+    }
+
+    /**
+     * @return the context.
+     */
+    LdapContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * @return the base DN the context is relative to.
+     */
+    String getBaseDN()
+    {
+        return baseDN;
+    }
+
+    /**
+     * @return the time in milliseconds the connection was created.
+     */
+    long getCreatedAt()
+    {
+        return createdAt;
+    }
+
+    /**
+     * @return the time in milliseconds the connection was last released.
+     */
+    long getLastUsed()
+    {
+        return lastUsed;
+    }
+
+    /**
+     * @param lastUsed
+     *            the time in milliseconds the connection was last released.
+     */
+    void setLastUsed(final long lastUsed)
+    {
+        this.lastUsed = lastUsed;
+    }
+
+    /**
+     * Closes the context, ignoring any errors.
+     */
+    void close()
+    {
+        try {
+            context.close();
+        } catch (Exception ignored) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Decides whether an exception means the connection it was thrown on is
+     * broken, rather than the operation having failed. An interrupted
+     * operation may leave its response unread, so counts as broken.
+     *
+     * @param e
+     *            the exception.
+     * @return true if the connection shouldn't be reused.
+     */
+    static boolean isConnectionFailure(final NamingException e)
+    {
+        return e instanceof CommunicationException
+                || e instanceof ServiceUnavailableException
+                || e instanceof InterruptedNamingException
+                || isReadTimeout(e);
+    }
+
+    /**
+     * JNDI reports a read timeout with a plain {@link NamingException}, and
+     * closes the connection.
+     */
+    private static boolean isReadTimeout(final NamingException e)
+    {
+        return e.getMessage() != null
+                && e.getMessage().startsWith("LDAP response read timed out");
+    }
+}
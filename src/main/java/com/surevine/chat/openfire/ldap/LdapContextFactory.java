@@ -0,0 +1,37 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Creates new ldap contexts, each with its own connection to the directory.
+ */
+interface LdapContextFactory
+{
+    /**
+     * Creates a new context.
+     *
+     * @param baseDN
+     *            the base DN the context is relative to.
+     * @return the new context.
+     * @throws NamingException
+     *             if the directory can't be connected to.
+     */
+    LdapContext createContext(String baseDN) throws NamingException;
+}
@@ -0,0 +1,611 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of ldap contexts, owned by the provider so that connection
+ * reuse doesn't depend on how JNDI's own pooling is configured.<br />
+ * At most {@link #getMaxSize()} contexts are open at once, whether in use or
+ * idle. Idle contexts are closed once they have been idle for the idle
+ * timeout, apart from the {@link #getMinSize()} most recently used, and are
+ * checked by a background sweep so that broken connections are evicted before
+ * they are borrowed. Contexts released as broken are closed rather than
+ * reused.<br />
+ * Once the pool is closed, no more contexts can be borrowed, and contexts
+ * still borrowed are closed when they are released.
+ */
+public class LdapContextPool implements LdapContextSource
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(LdapContextPool.class);
+
+    /**
+     * The attributes to request when checking a connection, "1.1" meaning no
+     * attributes.
+     */
+    private static final String[] NO_ATTRIBUTES = { "1.1" };
+
+    /**
+     * Creates new contexts.
+     */
+    private final LdapContextFactory factory;
+
+    /**
+     * The minimum number of idle contexts kept open.
+     */
+    private final int minSize;
+
+    /**
+     * The maximum number of contexts open at once.
+     */
+    private final int maxSize;
+
+    /**
+     * The time in milliseconds after which an idle context is closed.
+     */
+    private final long idleTimeout;
+
+    /**
+     * The time in milliseconds to wait for a context when the pool is
+     * exhausted.
+     */
+    private final long maxWait;
+
+    /**
+     * If true, contexts are checked before each borrow.
+     */
+    private final boolean validateOnBorrow;
+
+    /**
+     * The number of contexts open, whether borrowed or idle.
+     */
+    private int openCount;
+
+    /**
+     * The idle connections keyed on base DN, most recently used first.
+     */
+    private final Map<String, LinkedList<LdapConnection>> idle = new HashMap<String, LinkedList<LdapConnection>>();
+
+    /**
+     * The number of idle connections.
+     */
+    private int idleCount;
+
+    /**
+     * Whether the pool has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Runs the idle sweep, if started.
+     */
+    private ScheduledExecutorService sweeper;
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final AtomicLong destroyed = new AtomicLong();
+
+    private final AtomicLong borrowed = new AtomicLong();
+
+    private final AtomicLong brokenEvictions = new AtomicLong();
+
+    private final AtomicLong idleEvictions = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Creates a new pool. The idle sweep isn't run until {@link #start()} is
+     * called.
+     *
+     * @param factory
+     *            creates new contexts.
+     * @param minSize
+     *            the minimum number of idle contexts kept open.
+     * @param maxSize
+     *            the maximum number of contexts open at once.
+     * @param idleTimeout
+     *            the time in milliseconds after which an idle context is
+     *            closed.
+     * @param maxWait
+     *            the time in milliseconds to wait for a context when the pool
+     *            is exhausted.
+     * @param validateOnBorrow
+     *            if true, contexts are checked before each borrow.
+     */
+    public LdapContextPool(final LdapContextFactory factory, final int minSize,
+            final int maxSize, final long idleTimeout, final long maxWait,
+            final boolean validateOnBorrow)
+    {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(
+                    "The pool must have a maximum size of at least 1");
+        }
+        this.factory = factory;
+        this.minSize = Math.max(0, Math.min(minSize, maxSize));
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.maxWait = maxWait;
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    /**
+     * Starts the background sweep which closes contexts which have been idle
+     * too long and evicts broken ones.
+     */
+    public synchronized void start()
+    {
+        if (sweeper != null || closed || idleTimeout <= 0) {
+            return;
+        }
+
+        sweeper = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(final Runnable r)
+                    {
+                        Thread thread = new Thread(r, "LDAP context pool sweeper");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        final long period = Math.max(idleTimeout / 2, 1000);
+
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                try {
+                    sweep();
+                } catch (Exception e) {
+                    Log.error("Error sweeping the LDAP context pool", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public LdapConnection acquire(final String baseDN) throws NamingException
+    {
+        final long deadline = currentTime() + maxWait;
+
+        while (true) {
+            LdapConnection connection = null;
+            LdapConnection toReplace = null;
+
+            synchronized (this) {
+                while (connection == null && toReplace == null) {
+                    if (closed) {
+                        throw new ServiceUnavailableException(
+                                "The LDAP context pool is closed");
+                    }
+
+                    connection = takeIdle(baseDN);
+
+                    if (connection != null) {
+                        break;
+                    }
+
+                    if (openCount < maxSize) {
+                        // Reserve the slot for a new connection
+                        openCount++;
+                        break;
+                    }
+
+                    // Close a connection idle for another base DN to make room
+                    toReplace = takeIdle(null);
+
+                    if (toReplace != null) {
+                        break;
+                    }
+
+                    long remaining = deadline - currentTime();
+
+                    if (remaining <= 0) {
+                        timeouts.incrementAndGet();
+                        throw new ServiceUnavailableException(
+                                "Timed out waiting for an LDAP context after "
+                                        + maxWait + "ms");
+                    }
+
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ServiceUnavailableException(
+                                "Interrupted waiting for an LDAP context");
+                    }
+                }
+            }
+
+            if (toReplace != null) {
+                // The slot passes to the new connection
+                destroy(toReplace);
+            }
+
+            if (connection == null) {
+                return create(baseDN);
+            }
+
+            if (idleTimeout > 0
+                    && connection.getLastUsed() <= currentTime() - idleTimeout) {
+                idleEvictions.incrementAndGet();
+                discard(connection);
+            } else if (validateOnBorrow && !validate(connection)) {
+                brokenEvictions.incrementAndGet();
+                discard(connection);
+            } else {
+                borrowed.incrementAndGet();
+                return connection;
+            }
+        }
+    }
+
+    public void release(final LdapConnection connection, final boolean broken)
+    {
+        if (broken) {
+            brokenEvictions.incrementAndGet();
+            discard(connection);
+            return;
+        }
+
+        connection.setLastUsed(currentTime());
+
+        synchronized (this) {
+            if (!closed) {
+                addIdle(connection, true);
+                notifyAll();
+                return;
+            }
+        }
+
+        discard(connection);
+    }
+
+    public void close()
+    {
+        final List<LdapConnection> toClose = new ArrayList<LdapConnection>();
+
+        synchronized (this) {
+            closed = true;
+
+            if (sweeper != null) {
+                sweeper.shutdownNow();
+                sweeper = null;
+            }
+
+            for (LinkedList<LdapConnection> connections : idle.values()) {
+                toClose.addAll(connections);
+            }
+
+            idle.clear();
+            idleCount = 0;
+            openCount -= toClose.size();
+            notifyAll();
+        }
+
+        for (LdapConnection connection : toClose) {
+            destroy(connection);
+        }
+    }
+
+    /**
+     * Closes contexts which have been idle longer than the idle timeout,
+     * keeping the {@link #minSize} most recently used, and checks the rest so
+     * that broken connections are evicted.
+     */
+    void sweep()
+    {
+        final long expiry = currentTime() - idleTimeout;
+        final List<LdapConnection> all = new ArrayList<LdapConnection>();
+
+        synchronized (this) {
+            // Take every idle connection out of the pool while it is checked
+            for (LinkedList<LdapConnection> connections : idle.values()) {
+                all.addAll(connections);
+            }
+
+            idle.clear();
+            idleCount = 0;
+        }
+
+        // Most recently used first
+        Collections.sort(all, new Comparator<LdapConnection>() {
+            public int compare(final LdapConnection a, final LdapConnection b)
+            {
+                if (a.getLastUsed() > b.getLastUsed()) {
+                    return -1;
+                }
+                if (a.getLastUsed() < b.getLastUsed()) {
+                    return 1;
+                }
+                return 0;
+            }
+        });
+
+        int kept = 0;
+
+        for (LdapConnection connection : all) {
+            if (kept >= minSize && connection.getLastUsed() <= expiry) {
+                idleEvictions.incrementAndGet();
+                discard(connection);
+            } else if (!validate(connection)) {
+                brokenEvictions.incrementAndGet();
+                discard(connection);
+            } else {
+                kept++;
+
+                synchronized (this) {
+                    if (!closed) {
+                        // Connections released since the sweep started are
+                        // more recently used
+                        addIdle(connection, false);
+                        notifyAll();
+                        continue;
+                    }
+                }
+
+                discard(connection);
+            }
+        }
+    }
+
+    /**
+     * @return the minimum number of idle contexts kept open.
+     */
+    public int getMinSize()
+    {
+        return minSize;
+    }
+
+    /**
+     * @return the maximum number of contexts open at once.
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of contexts currently borrowed.
+     */
+    public synchronized int getActiveCount()
+    {
+        return openCount - idleCount;
+    }
+
+    /**
+     * @return the number of contexts open, whether borrowed or idle.
+     */
+    public synchronized int getOpenCount()
+    {
+        return openCount;
+    }
+
+    /**
+     * @return the number of idle contexts.
+     */
+    public synchronized int getIdleCount()
+    {
+        return idleCount;
+    }
+
+    /**
+     * @return the number of contexts created.
+     */
+    public long getCreatedCount()
+    {
+        return created.get();
+    }
+
+    /**
+     * @return the number of contexts closed.
+     */
+    public long getDestroyedCount()
+    {
+        return destroyed.get();
+    }
+
+    /**
+     * @return the number of times a context has been borrowed.
+     */
+    public long getBorrowedCount()
+    {
+        return borrowed.get();
+    }
+
+    /**
+     * @return the number of contexts closed because they were broken.
+     */
+    public long getBrokenEvictionCount()
+    {
+        return brokenEvictions.get();
+    }
+
+    /**
+     * @return the number of contexts closed because they were idle too long.
+     */
+    public long getIdleEvictionCount()
+    {
+        return idleEvictions.get();
+    }
+
+    /**
+     * @return the number of times a borrow timed out because the pool was
+     *         exhausted.
+     */
+    public long getTimeoutCount()
+    {
+        return timeouts.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LdapContextPool[active=" + getActiveCount() + ", idle="
+                + getIdleCount() + ", max=" + maxSize + ", created="
+                + getCreatedCount() + ", destroyed=" + getDestroyedCount()
+                + ", borrowed=" + getBorrowedCount() + ", timeouts="
+                + getTimeoutCount() + "]";
+    }
+
+    /**
+     * Returns the current time in milliseconds. Overridden in tests.
+     *
+     * @return the current time.
+     */
+    long currentTime()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Takes the most recently used idle connection for the base DN, or for
+     * any base DN if it is null. Must be called holding the lock.
+     */
+    private LdapConnection takeIdle(final String baseDN)
+    {
+        LinkedList<LdapConnection> connections = null;
+
+        if (baseDN != null) {
+            connections = idle.get(baseDN);
+        } else {
+            for (LinkedList<LdapConnection> candidate : idle.values()) {
+                if (!candidate.isEmpty()) {
+                    connections = candidate;
+                    break;
+                }
+            }
+        }
+
+        if (connections == null || connections.isEmpty()) {
+            return null;
+        }
+
+        idleCount--;
+
+        if (baseDN == null) {
+            // Least recently used, as it is about to be closed
+            return connections.removeLast();
+        }
+        return connections.removeFirst();
+    }
+
+    /**
+     * Adds a connection to the idle connections. Must be called holding the
+     * lock.
+     *
+     * @param first
+     *            true to add it as the most recently used.
+     */
+    private void addIdle(final LdapConnection connection, final boolean first)
+    {
+        LinkedList<LdapConnection> connections = idle.get(connection
+                .getBaseDN());
+
+        if (connections == null) {
+            connections = new LinkedList<LdapConnection>();
+            idle.put(connection.getBaseDN(), connections);
+        }
+
+        if (first) {
+            connections.addFirst(connection);
+        } else {
+            connections.addLast(connection);
+        }
+        idleCount++;
+    }
+
+    /**
+     * Creates a new connection in a slot already reserved in
+     * {@link #openCount}.
+     */
+    private LdapConnection create(final String baseDN) throws NamingException
+    {
+        boolean createdContext = false;
+        try {
+            LdapConnection connection = new LdapConnection(
+                    factory.createContext(baseDN), baseDN, currentTime());
+            createdContext = true;
+            created.incrementAndGet();
+            borrowed.incrementAndGet();
+            return connection;
+        } finally {
+            if (!createdContext) {
+                synchronized (this) {
+                    openCount--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a connection which is no longer in the pool, freeing its slot.
+     */
+    private void discard(final LdapConnection connection)
+    {
+        destroy(connection);
+
+        synchronized (this) {
+            openCount--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Checks a connection by reading the base entry with no attributes.
+     */
+    private boolean validate(final LdapConnection connection)
+    {
+        try {
+            connection.getContext().getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            if (Log.isDebugEnabled()) {
+                Log.debug("LDAP context for " + connection.getBaseDN()
+                        + " failed validation: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Closes a connection.
+     */
+    private void destroy(final LdapConnection connection)
+    {
+        destroyed.incrementAndGet();
+        connection.close();
+    }
+}
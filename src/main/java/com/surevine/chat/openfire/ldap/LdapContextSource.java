@@ -0,0 +1,52 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import javax.naming.NamingException;
+
+/**
+ * A source of ldap contexts for directory operations. Every context acquired
+ * must be released once the operation is complete.
+ */
+interface LdapContextSource
+{
+    /**
+     * Acquires a context for exclusive use.
+     *
+     * @param baseDN
+     *            the base DN the context should be relative to.
+     * @return the connection holding the context.
+     * @throws NamingException
+     *             if no context can be acquired.
+     */
+    LdapConnection acquire(String baseDN) throws NamingException;
+
+    /**
+     * Releases a context acquired from this source.
+     *
+     * @param connection
+     *            the connection.
+     * @param broken
+     *            true if the connection failed and must not be reused.
+     */
+    void release(LdapConnection connection, boolean broken);
+
+    /**
+     * Closes the source and any contexts it holds.
+     */
+    void close();
+}
@@ -0,0 +1,237 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One directory server behind a {@link LoadBalancedContextSource}, with the
+ * health and load figures used to choose between servers.<br />
+ * A server is ejected, so that lookups avoid it, once enough consecutive
+ * operations on it have failed. It returns when a health check succeeds, or
+ * on probation once the ejection time has passed, when a single further
+ * failure ejects it again.
+ */
+public class LdapServer
+{
+    /**
+     * The weight given to each new latency sample in the moving average.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final String url;
+
+    private final LdapContextSource source;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * The exponentially weighted moving average of operation latency in
+     * nanoseconds, or 0 if there have been no operations.
+     */
+    private volatile double averageLatency;
+
+    private volatile int consecutiveFailures;
+
+    /**
+     * The time in milliseconds until which the server is ejected.
+     */
+    private volatile long ejectedUntil;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong ejections = new AtomicLong();
+
+    /**
+     * @param url
+     *            the server's ldap URL, without a base DN.
+     * @param source
+     *            the source of contexts connected to the server.
+     */
+    LdapServer(final String url, final LdapContextSource source)
+    {
+        this.url = url;
+        this.source = source;
+    }
+
+    /**
+     * @return the server's ldap URL.
+     */
+    public String getUrl()
+    {
+        return url;
+    }
+
+    LdapContextSource getSource()
+    {
+        return source;
+    }
+
+    /**
+     * @param now
+     *            the current time in milliseconds.
+     * @return true if the server isn't ejected.
+     */
+    boolean isAvailable(final long now)
+    {
+        return ejectedUntil <= now;
+    }
+
+    /**
+     * @return the time in milliseconds until which the server is ejected.
+     */
+    long getEjectedUntil()
+    {
+        return ejectedUntil;
+    }
+
+    /**
+     * Records the start of an operation on the server.
+     */
+    void started()
+    {
+        requests.incrementAndGet();
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Records the end of an operation on the server.
+     *
+     * @param latency
+     *            the time the operation took in nanoseconds.
+     * @param failed
+     *            true if the operation failed because of the server.
+     * @param now
+     *            the current time in milliseconds.
+     * @param failureThreshold
+     *            the number of consecutive failures after which the server is
+     *            ejected.
+     * @param ejectionTime
+     *            the time in milliseconds the server is ejected for.
+     */
+    void completed(final long latency, final boolean failed, final long now,
+            final int failureThreshold, final long ejectionTime)
+    {
+        outstanding.decrementAndGet();
+
+        if (failed) {
+            failed(now, failureThreshold, ejectionTime);
+        } else {
+            synchronized (this) {
+                averageLatency = averageLatency == 0 ? latency
+                        : averageLatency + LATENCY_WEIGHT
+                                * (latency - averageLatency);
+            }
+            consecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * Records a failure, ejecting the server if there have been too many in a
+     * row.
+     */
+    synchronized void failed(final long now, final int failureThreshold,
+            final long ejectionTime)
+    {
+        failures.incrementAndGet();
+
+        if (++consecutiveFailures >= failureThreshold
+                && isAvailable(now)) {
+            ejections.incrementAndGet();
+            ejectedUntil = now + ejectionTime;
+        }
+    }
+
+    /**
+     * Returns the server to use after a successful health check.
+     */
+    synchronized void reinstate()
+    {
+        consecutiveFailures = 0;
+        ejectedUntil = 0;
+    }
+
+    /**
+     * @return true if operations on the server have failed since it last
+     *         succeeded, so that it should be health checked.
+     */
+    boolean isSuspect()
+    {
+        return consecutiveFailures > 0;
+    }
+
+    /**
+     * @return the number of operations in progress on the server.
+     */
+    public int getOutstanding()
+    {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the moving average of operation latency in milliseconds, or 0 if
+     *         there have been no operations.
+     */
+    public double getAverageLatency()
+    {
+        return averageLatency / 1000000.0;
+    }
+
+    /**
+     * @return the number of operations started on the server.
+     */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of operations which failed because of the server.
+     */
+    public long getFailureCount()
+    {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of times the server has been ejected.
+     */
+    public long getEjectionCount()
+    {
+        return ejections.get();
+    }
+
+    /**
+     * @return true if the server is currently ejected.
+     */
+    public boolean isEjected()
+    {
+        return !isAvailable(System.currentTimeMillis());
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LdapServer[" + url + ", outstanding=" + getOutstanding()
+                + ", latency=" + getAverageLatency() + "ms, requests="
+                + getRequestCount() + ", failures=" + getFailureCount()
+                + ", ejections=" + getEjectionCount() + "]";
+    }
+}
@@ -0,0 +1,444 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link LdapContextSource} which spreads operations across several
+ * replicas of the directory, each with its own source of contexts.<br />
+ * Each operation goes to a server chosen by the {@link Strategy}. If a context
+ * can't be acquired from it, the other servers are tried in turn. Servers
+ * which fail too many operations in a row, including those which time out,
+ * are ejected for a while, and suspect servers are health checked in the
+ * background so that they return as soon as they recover. If every server is
+ * ejected, the one due back first is used rather than failing outright.
+ */
+public class LoadBalancedContextSource implements LdapContextSource
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(LoadBalancedContextSource.class);
+
+    /**
+     * The attributes to request when health checking, "1.1" meaning no
+     * attributes.
+     */
+    private static final String[] NO_ATTRIBUTES = { "1.1" };
+
+    /**
+     * How a server is chosen for each operation.
+     */
+    public enum Strategy
+    {
+        /**
+         * Use each available server in turn.
+         */
+        ROUND_ROBIN,
+
+        /**
+         * Use the available server with the fewest operations in progress.
+         */
+        LEAST_OUTSTANDING,
+
+        /**
+         * Choose an available server at random, weighted by the inverse of
+         * its average latency.
+         */
+        LATENCY_WEIGHTED;
+
+        /**
+         * Parses a strategy name, such as "round-robin", falling back to the
+         * supplied default if the name is not recognised.
+         *
+         * @param name
+         *            the strategy name (case insensitive), may be null.
+         * @param defaultStrategy
+         *            the strategy to use if the name can't be parsed.
+         * @return the strategy.
+         */
+        static Strategy parse(final String name,
+                final Strategy defaultStrategy)
+        {
+            if (name == null) {
+                return defaultStrategy;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                return defaultStrategy;
+            }
+        }
+    }
+
+    /**
+     * A connection borrowed from a server.
+     */
+    private static final class Borrow
+    {
+        final LdapServer server;
+
+        final long startedAt;
+
+        Borrow(final LdapServer server, final long startedAt)
+        {
+            this.server = server;
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final List<LdapServer> servers;
+
+    private final Strategy strategy;
+
+    private final int failureThreshold;
+
+    private final long ejectionTime;
+
+    private final long healthCheckInterval;
+
+    /**
+     * The base DN health checks read.
+     */
+    private final String healthCheckDN;
+
+    private final ConcurrentMap<LdapConnection, Borrow> borrows = new ConcurrentHashMap<LdapConnection, Borrow>();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final Random random = new Random();
+
+    private ScheduledExecutorService healthChecker;
+
+    /**
+     * @param servers
+     *            the servers.
+     * @param strategy
+     *            how a server is chosen for each operation.
+     * @param failureThreshold
+     *            the number of consecutive failures after which a server is
+     *            ejected.
+     * @param ejectionTime
+     *            the time in milliseconds a server is ejected for.
+     * @param healthCheckInterval
+     *            the time in milliseconds between health checks of suspect
+     *            servers.
+     * @param healthCheckDN
+     *            the base DN health checks read.
+     */
+    LoadBalancedContextSource(final List<LdapServer> servers,
+            final Strategy strategy, final int failureThreshold,
+            final long ejectionTime, final long healthCheckInterval,
+            final String healthCheckDN)
+    {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "At least one LDAP server is needed");
+        }
+        this.servers = new ArrayList<LdapServer>(servers);
+        this.strategy = strategy;
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.ejectionTime = ejectionTime;
+        this.healthCheckInterval = healthCheckInterval;
+        this.healthCheckDN = healthCheckDN;
+    }
+
+    /**
+     * Starts health checking suspect servers in the background.
+     */
+    public synchronized void start()
+    {
+        if (healthChecker != null || healthCheckInterval <= 0) {
+            return;
+        }
+
+        healthChecker = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(final Runnable r)
+                    {
+                        Thread thread = new Thread(r,
+                                "LDAP server health check");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                try {
+                    checkHealth();
+                } catch (Exception e) {
+                    Log.error("Error health checking LDAP servers", e);
+                }
+            }
+        }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public LdapConnection acquire(final String baseDN) throws NamingException
+    {
+        final Set<LdapServer> tried = new HashSet<LdapServer>();
+        NamingException failure = null;
+
+        for (int i = 0; i < servers.size(); i++) {
+            final LdapServer server = select(tried);
+            tried.add(server);
+
+            server.started();
+            final long started = System.nanoTime();
+
+            try {
+                LdapConnection connection = server.getSource().acquire(baseDN);
+                borrows.put(connection, new Borrow(server, started));
+                return connection;
+            } catch (NamingException e) {
+                final boolean broken = LdapConnection.isConnectionFailure(e);
+
+                server.completed(System.nanoTime() - started, broken,
+                        currentTime(), failureThreshold, ejectionTime);
+
+                if (!broken) {
+                    throw e;
+                }
+
+                Log.warn("Unable to connect to LDAP server "
+                        + server.getUrl() + ": " + e.getMessage());
+                failure = e;
+            }
+        }
+
+        throw failure;
+    }
+
+    public void release(final LdapConnection connection, final boolean broken)
+    {
+        final Borrow borrow = borrows.remove(connection);
+
+        if (borrow == null) {
+            connection.close();
+            return;
+        }
+
+        borrow.server.getSource().release(connection, broken);
+        borrow.server.completed(System.nanoTime() - borrow.startedAt, broken,
+                currentTime(), failureThreshold, ejectionTime);
+    }
+
+    public void close()
+    {
+        synchronized (this) {
+            if (healthChecker != null) {
+                healthChecker.shutdownNow();
+                healthChecker = null;
+            }
+        }
+
+        for (LdapServer server : servers) {
+            server.getSource().close();
+        }
+    }
+
+    /**
+     * @return the servers, which can be used to monitor their health and
+     *         load.
+     */
+    public List<LdapServer> getServers()
+    {
+        return Collections.unmodifiableList(servers);
+    }
+
+    /**
+     * @return how a server is chosen for each operation.
+     */
+    public Strategy getStrategy()
+    {
+        return strategy;
+    }
+
+    /**
+     * Checks each suspect server, reinstating those which respond and
+     * ejecting those which don't.
+     */
+    void checkHealth()
+    {
+        for (LdapServer server : servers) {
+            if (!server.isSuspect()) {
+                continue;
+            }
+
+            LdapConnection connection = null;
+            boolean healthy = false;
+            try {
+                connection = server.getSource().acquire(healthCheckDN);
+                connection.getContext().getAttributes("", NO_ATTRIBUTES);
+                healthy = true;
+            } catch (NamingException e) {
+                if (Log.isDebugEnabled()) {
+                    Log.debug("LDAP server " + server.getUrl()
+                            + " failed its health check: " + e.getMessage());
+                }
+            } finally {
+                if (connection != null) {
+                    server.getSource().release(connection, !healthy);
+                }
+            }
+
+            if (healthy) {
+                if (!server.isAvailable(currentTime())) {
+                    Log.info("LDAP server " + server.getUrl()
+                            + " has recovered");
+                }
+                server.reinstate();
+            } else {
+                // Treated as an operation failure, so a server on probation
+                // is ejected again
+                server.failed(currentTime(), failureThreshold, ejectionTime);
+            }
+        }
+    }
+
+    /**
+     * Chooses a server which hasn't been tried yet.
+     */
+    LdapServer select(final Set<LdapServer> tried)
+    {
+        final long now = currentTime();
+        final List<LdapServer> candidates = new ArrayList<LdapServer>(
+                servers.size());
+        final int offset = next.getAndIncrement() & Integer.MAX_VALUE;
+
+        // Rotated so ties go to each server in turn
+        for (int i = 0; i < servers.size(); i++) {
+            LdapServer server = servers.get((offset + i) % servers.size());
+
+            if (!tried.contains(server) && server.isAvailable(now)) {
+                candidates.add(server);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return soonestBack(tried);
+        }
+
+        switch (strategy) {
+        case LEAST_OUTSTANDING:
+            return leastOutstanding(candidates);
+        case LATENCY_WEIGHTED:
+            return latencyWeighted(candidates);
+        default:
+            return candidates.get(0);
+        }
+    }
+
+    private LdapServer soonestBack(final Set<LdapServer> tried)
+    {
+        LdapServer soonest = null;
+
+        for (LdapServer server : servers) {
+            if (!tried.contains(server)
+                    && (soonest == null || server.getEjectedUntil() < soonest
+                            .getEjectedUntil())) {
+                soonest = server;
+            }
+        }
+
+        return soonest;
+    }
+
+    private static LdapServer leastOutstanding(
+            final List<LdapServer> candidates)
+    {
+        LdapServer least = candidates.get(0);
+
+        for (LdapServer server : candidates) {
+            if (server.getOutstanding() < least.getOutstanding()) {
+                least = server;
+            }
+        }
+
+        return least;
+    }
+
+    private LdapServer latencyWeighted(final List<LdapServer> candidates)
+    {
+        final double[] weights = new double[candidates.size()];
+        double maxWeight = 0;
+
+        for (int i = 0; i < weights.length; i++) {
+            double latency = candidates.get(i).getAverageLatency();
+
+            if (latency > 0) {
+                weights[i] = 1 / Math.max(latency, 0.1);
+                maxWeight = Math.max(maxWeight, weights[i]);
+            }
+        }
+
+        double total = 0;
+
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] == 0) {
+                // Servers with no latency yet are tried as often as the
+                // fastest, so they get measured
+                weights[i] = maxWeight > 0 ? maxWeight : 1;
+            }
+            total += weights[i];
+        }
+
+        double choice;
+
+        synchronized (random) {
+            choice = random.nextDouble() * total;
+        }
+
+        for (int i = 0; i < weights.length; i++) {
+            choice -= weights[i];
+
+            if (choice < 0) {
+                return candidates.get(i);
+            }
+        }
+
+        return candidates.get(candidates.size() - 1);
+    }
+
+    /**
+     * Returns the current time in milliseconds. Overridden in tests.
+     *
+     * @return the current time.
+     */
+    long currentTime()
+    {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,456 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs directory lookups on a dedicated, bounded pool of threads, so that
+ * callers such as Openfire's packet processing threads don't block for the
+ * round trip.<br />
+ * Each lookup has a deadline: a lookup still queued at its deadline isn't run,
+ * and a running lookup is interrupted, either way failing with a
+ * {@link TimeoutException}. Lookups can be cancelled through their
+ * {@link Future}, and can report their outcome to a {@link Callback} as well.
+ * When the queue is full, lookups fail straight away with a
+ * {@link RejectedExecutionException}.<br />
+ * Lookups can instead each run on their own virtual thread, where the JVM
+ * supports them (Java 21 and later), so that thousands of concurrent lookups
+ * blocked on the directory don't need thousands of platform threads. The
+ * number of lookups in flight is still bounded, by the thread count plus the
+ * queue size. On older JVMs a platform thread pool is used instead.
+ */
+public class LookupExecutor
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(LookupExecutor.class);
+
+    /**
+     * Receives the outcome of a lookup, on the thread which ran it.
+     *
+     * @param <V>
+     *            the result type.
+     */
+    public interface Callback<V>
+    {
+        /**
+         * @param result
+         *            the result of the lookup.
+         */
+        void completed(V result);
+
+        /**
+         * @param cause
+         *            why the lookup failed: the exception it threw, a
+         *            {@link TimeoutException} if it passed its deadline, a
+         *            {@link CancellationException} if it was cancelled or a
+         *            {@link RejectedExecutionException} if the queue was full.
+         */
+        void failed(Throwable cause);
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * The platform thread pool, or null if lookups run on virtual threads.
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * Bounds the lookups in flight on virtual threads, or null if lookups run
+     * on the platform thread pool.
+     */
+    private final Semaphore permits;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Enforces the deadlines of running lookups.
+     */
+    private final ScheduledExecutorService timer;
+
+    private final long defaultTimeout;
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param threads
+     *            the maximum number of lookups run at once.
+     * @param queueSize
+     *            the maximum number of lookups waiting to run.
+     * @param defaultTimeout
+     *            the time in milliseconds lookups are allowed by default.
+     */
+    public LookupExecutor(final int threads, final int queueSize,
+            final long defaultTimeout)
+    {
+        this(threads, queueSize, defaultTimeout, false);
+    }
+
+    /**
+     * @param threads
+     *            the maximum number of lookups run at once on platform
+     *            threads.
+     * @param queueSize
+     *            the maximum number of lookups waiting to run on platform
+     *            threads.
+     * @param defaultTimeout
+     *            the time in milliseconds lookups are allowed by default.
+     * @param virtualThreads
+     *            if true, lookups run on virtual threads where the JVM
+     *            supports them, up to <code>threads + queueSize</code> at
+     *            once.
+     */
+    public LookupExecutor(final int threads, final int queueSize,
+            final long defaultTimeout, final boolean virtualThreads)
+    {
+        final int poolSize = Math.max(threads, 1);
+        final int maxQueued = Math.max(queueSize, 1);
+        ExecutorService virtualExecutor = null;
+
+        if (virtualThreads) {
+            virtualExecutor = newVirtualThreadExecutor();
+        }
+
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            pool = null;
+            permits = new Semaphore(poolSize + maxQueued);
+        } else {
+            final AtomicInteger threadCount = new AtomicInteger();
+
+            pool = new ThreadPoolExecutor(poolSize, poolSize, 60,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                            maxQueued), new ThreadFactory() {
+                        public Thread newThread(final Runnable r)
+                        {
+                            Thread thread = new Thread(r, "LDAP lookup "
+                                    + threadCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            permits = null;
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r)
+            {
+                Thread thread = new Thread(r, "LDAP lookup timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    /**
+     * Submits a lookup.
+     *
+     * @param lookup
+     *            the lookup.
+     * @param timeout
+     *            the time in milliseconds the lookup is allowed, or 0 or less
+     *            for the default.
+     * @param callback
+     *            told of the outcome, or null.
+     * @return the lookup's future, which fails with a
+     *         {@link RejectedExecutionException} if it couldn't be queued.
+     */
+    public <V> Future<V> submit(final Callable<V> lookup, final long timeout,
+            final Callback<V> callback)
+    {
+        final long allowed = timeout > 0 ? timeout : defaultTimeout;
+        final Lookup<V> task = new Lookup<V>(lookup, currentTime() + allowed,
+                callback);
+
+        if (permits != null && !permits.tryAcquire()) {
+            rejections.incrementAndGet();
+            task.fail(new RejectedExecutionException(
+                    "Too many LDAP lookups in flight"));
+            return task;
+        }
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            rejections.incrementAndGet();
+            task.fail(e);
+            return task;
+        }
+
+        task.scheduleTimeout(allowed);
+
+        return task;
+    }
+
+    /**
+     * Stops running lookups. Queued lookups are cancelled.
+     */
+    public void shutdown()
+    {
+        for (Runnable queued : executor.shutdownNow()) {
+            ((Future<?>) queued).cancel(false);
+        }
+        timer.shutdownNow();
+    }
+
+    /**
+     * @return true if lookups run on virtual threads.
+     */
+    public boolean isUsingVirtualThreads()
+    {
+        return pool == null;
+    }
+
+    /**
+     * @return the number of lookups running.
+     */
+    public int getActiveCount()
+    {
+        return active.get();
+    }
+
+    /**
+     * @return the number of lookups waiting to run, which is always 0 on
+     *         virtual threads.
+     */
+    public int getQueueSize()
+    {
+        if (pool == null) {
+            return 0;
+        }
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return the number of lookups which passed their deadline.
+     */
+    public long getTimeoutCount()
+    {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the number of lookups rejected because the queue was full.
+     */
+    public long getRejectionCount()
+    {
+        return rejections.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LookupExecutor[virtualThreads=" + isUsingVirtualThreads()
+                + ", active=" + getActiveCount() + ", queued="
+                + getQueueSize() + ", timeouts=" + getTimeoutCount()
+                + ", rejections=" + getRejectionCount() + "]";
+    }
+
+    /**
+     * Creates an executor which runs each task on a new virtual thread,
+     * through reflection as the provider is built for older JVMs.
+     *
+     * @return the executor, or null if the JVM doesn't support virtual
+     *         threads.
+     */
+    static ExecutorService newVirtualThreadExecutor()
+    {
+        try {
+            Method method = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException e) {
+            Log.info("Virtual threads aren't supported by this JVM, so LDAP"
+                    + " lookups will run on platform threads");
+        } catch (Exception e) {
+            // Such as a preview release with preview features disabled
+            Log.warn("Unable to create virtual threads, so LDAP lookups will"
+                    + " run on platform threads: " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the current time in milliseconds. Overridden in tests.
+     *
+     * @return the current time.
+     */
+    long currentTime()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * A lookup with a deadline.
+     */
+    private final class Lookup<V> extends FutureTask<V>
+    {
+        private final long deadline;
+
+        private final Callback<V> callback;
+
+        /**
+         * The thread running the lookup, or null if it isn't running.
+         * Guarded by this.
+         */
+        private Thread runner;
+
+        private volatile ScheduledFuture<?> timeout;
+
+        Lookup(final Callable<V> lookup, final long deadline,
+                final Callback<V> callback)
+        {
+            super(lookup);
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+
+        void scheduleTimeout(final long allowed)
+        {
+            try {
+                timeout = timer.schedule(new Runnable() {
+                    public void run()
+                    {
+                        timeOut();
+                    }
+                }, allowed, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down
+            }
+
+            if (isDone() && timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                if (currentTime() >= deadline) {
+                    // A lookup which timed out while queued was counted then
+                    if (!isDone()) {
+                        timeouts.incrementAndGet();
+                        fail(new TimeoutException(
+                                "Lookup passed its deadline before it started"));
+                    }
+                    return;
+                }
+
+                synchronized (this) {
+                    runner = Thread.currentThread();
+                }
+                active.incrementAndGet();
+                try {
+                    super.run();
+                } finally {
+                    active.decrementAndGet();
+                    synchronized (this) {
+                        runner = null;
+                    }
+                    // Don't leave a timeout's interrupt for the next lookup
+                    Thread.interrupted();
+                }
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        }
+
+        void fail(final Throwable cause)
+        {
+            setException(cause);
+        }
+
+        private void timeOut()
+        {
+            if (isDone()) {
+                return;
+            }
+
+            timeouts.incrementAndGet();
+            fail(new TimeoutException("Lookup passed its deadline"));
+
+            synchronized (this) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+        }
+
+        @Override
+        protected void done()
+        {
+            final ScheduledFuture<?> scheduled = timeout;
+
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+
+            if (callback == null) {
+                return;
+            }
+
+            try {
+                try {
+                    callback.completed(get());
+                } catch (ExecutionException e) {
+                    callback.failed(e.getCause());
+                } catch (CancellationException e) {
+                    callback.failed(e);
+                } catch (InterruptedException e) {
+                    // Can't happen once done
+                    Thread.currentThread().interrupt();
+                }
+            } catch (RuntimeException e) {
+                Log.warn("Lookup callback failed", e);
+            }
+        }
+    }
+}
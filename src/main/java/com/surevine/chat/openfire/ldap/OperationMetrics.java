@@ -0,0 +1,313 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latency, throughput, errors and directory round trips of one type of
+ * provider operation.<br />
+ * An operation is timed from {@link #enter()} to
+ * {@link #exit(OperationMetrics, long, Throwable)}, usually by running it
+ * with {@link #time(Timed)}, and while it is in
+ * progress it is the current operation of its thread, so that the directory
+ * round trips made for it can be counted with {@link #roundTrip()} from
+ * wherever they are made. Recording doesn't allocate, except for the first
+ * error of each type.
+ */
+public class OperationMetrics
+{
+    /**
+     * The operation in progress on each thread.
+     */
+    private static final ThreadLocal<OperationMetrics> CURRENT = new ThreadLocal<OperationMetrics>();
+
+    private final String name;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicLong> errorsByType = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    /**
+     * The time in milliseconds counting started.
+     */
+    private volatile long since = System.currentTimeMillis();
+
+    /**
+     * @param name
+     *            the operation type.
+     */
+    public OperationMetrics(final String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @return the operation in progress on this thread, or null.
+     */
+    static OperationMetrics current()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes an operation the current operation of this thread, such as when
+     * part of it is run on another thread.
+     *
+     * @param operation
+     *            the operation, or null for none.
+     * @return the operation which was current before.
+     */
+    static OperationMetrics setCurrent(final OperationMetrics operation)
+    {
+        final OperationMetrics previous = CURRENT.get();
+
+        CURRENT.set(operation);
+
+        return previous;
+    }
+
+    /**
+     * Counts a directory round trip against the operation in progress on this
+     * thread, if there is one.
+     */
+    static void roundTrip()
+    {
+        final OperationMetrics operation = CURRENT.get();
+
+        if (operation != null) {
+            operation.roundTrips.incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts an operation on this thread.
+     *
+     * @return the operation which was in progress before, to pass to
+     *         {@link #exit(OperationMetrics, long, Throwable)}.
+     */
+    OperationMetrics enter()
+    {
+        return setCurrent(this);
+    }
+
+    /**
+     * Ends an operation on this thread, recording how long it took and any
+     * error.
+     *
+     * @param outer
+     *            the operation returned by {@link #enter()}.
+     * @param started
+     *            the {@link System#nanoTime()} the operation started.
+     * @param failure
+     *            the exception the operation failed with, or null.
+     */
+    void exit(final OperationMetrics outer, final long started,
+            final Throwable failure)
+    {
+        latency.record(System.nanoTime() - started);
+
+        if (failure != null) {
+            error(failure);
+        }
+
+        CURRENT.set(outer);
+    }
+
+    /**
+     * Runs an operation on this thread between {@link #enter()} and
+     * {@link #exit(OperationMetrics, long, Throwable)}.
+     *
+     * @param operation
+     *            the operation.
+     * @return the result of the operation.
+     * @throws E
+     *             if the operation fails, after it has been counted as an
+     *             error.
+     */
+    @SuppressWarnings("unchecked")
+    <V, E extends Exception> V time(final Timed<V, E> operation) throws E
+    {
+        final OperationMetrics outer = enter();
+        final long started = System.nanoTime();
+        Throwable failure = null;
+
+        try {
+            return operation.call();
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Exception e) {
+            // The only checked exception the operation can throw is an E.
+            failure = e;
+            throw (E) e;
+        } finally {
+            exit(outer, started, failure);
+        }
+    }
+
+    /**
+     * An operation to run with {@link OperationMetrics#time(Timed)}.
+     *
+     * @param <V>
+     *            the type of result.
+     * @param <E>
+     *            the checked exception the operation can throw, or
+     *            {@link RuntimeException} for none.
+     */
+    interface Timed<V, E extends Exception>
+    {
+        V call() throws E;
+    }
+
+    /**
+     * Counts an error, including one which the operation recovered from.
+     *
+     * @param failure
+     *            the error.
+     */
+    void error(final Throwable failure)
+    {
+        errors.incrementAndGet();
+
+        final String type = failure.getClass().getSimpleName();
+        AtomicLong typeCount = errorsByType.get(type);
+
+        if (typeCount == null) {
+            final AtomicLong newCount = new AtomicLong();
+
+            typeCount = errorsByType.putIfAbsent(type, newCount);
+
+            if (typeCount == null) {
+                typeCount = newCount;
+            }
+        }
+
+        typeCount.incrementAndGet();
+    }
+
+    /**
+     * @return the operation type.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the latencies of the operations.
+     */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * @return the number of operations completed.
+     */
+    public long getCount()
+    {
+        return latency.getCount();
+    }
+
+    /**
+     * @return the operations completed per second since counting started.
+     */
+    public double getThroughput()
+    {
+        final long elapsed = System.currentTimeMillis() - since;
+
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return getCount() * 1000.0 / elapsed;
+    }
+
+    /**
+     * @return the number of errors.
+     */
+    public long getErrorCount()
+    {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of errors keyed on the simple name of their
+     *         exception class.
+     */
+    public Map<String, Long> getErrorCountsByType()
+    {
+        final Map<String, Long> counts = new TreeMap<String, Long>();
+
+        for (Map.Entry<String, AtomicLong> entry : errorsByType.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * @return the number of directory round trips made for the operations.
+     */
+    public long getRoundTripCount()
+    {
+        return roundTrips.get();
+    }
+
+    /**
+     * @return the mean number of directory round trips per operation, or 0
+     *         if none have completed.
+     */
+    public double getRoundTripsPerOperation()
+    {
+        final long n = getCount();
+
+        if (n == 0) {
+            return 0;
+        }
+        return roundTrips.get() / (double) n;
+    }
+
+    /**
+     * Starts counting afresh.
+     */
+    public void reset()
+    {
+        latency.reset();
+        errors.set(0);
+        errorsByType.clear();
+        roundTrips.set(0);
+        since = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + "[" + latency + ", errors=" + errors + " "
+                + getErrorCountsByType() + ", roundTrips=" + roundTrips + "]";
+    }
+}
@@ -0,0 +1,536 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs searches for a window of results, so that later pages of a user search
+ * don't cost more than the first.<br />
+ * Where the directory supports it, each window, including the first, is
+ * fetched with a Virtual List View sorted on the username, so the directory
+ * returns only the entries in the window and every page comes from the same
+ * ordering. Otherwise results are fetched with Simple Paged Results (RFC
+ * 2696), so no single response is bigger than a page and the directory's size
+ * limit doesn't cut deep windows short, and the search is abandoned as soon as
+ * the window is full.
+ */
+final class PagedSearch
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(PagedSearch.class);
+
+    /**
+     * How windows are fetched.
+     */
+    enum Mode
+    {
+        /**
+         * Use a Virtual List View where the directory's root DSE lists it and
+         * server side sorting as supported controls, otherwise Simple Paged
+         * Results. Once a Virtual List View search fails, Simple Paged
+         * Results are used from then on.
+         */
+        AUTO,
+
+        /**
+         * Use a Virtual List View, falling back to Simple Paged Results for
+         * each search it fails for.
+         */
+        VLV,
+
+        /**
+         * Use Simple Paged Results.
+         */
+        PAGED,
+
+        /**
+         * Use a single plain search, skipping results on the client.
+         */
+        NONE;
+
+        /**
+         * Parses a mode name, falling back to the supplied default if the
+         * name is not recognised.
+         *
+         * @param name
+         *            the mode name (case insensitive), may be null.
+         * @param defaultMode
+         *            the mode to use if the name can't be parsed.
+         * @return the mode.
+         */
+        static Mode parse(final String name, final Mode defaultMode)
+        {
+            if (name == null) {
+                return defaultMode;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return defaultMode;
+            }
+        }
+    }
+
+    /**
+     * Receives the results of a search one at a time.
+     */
+    interface ResultHandler
+    {
+        /**
+         * @param result
+         *            the next result.
+         * @return false if no more results are wanted.
+         * @throws NamingException
+         */
+        boolean handle(SearchResult result) throws NamingException;
+    }
+
+    /**
+     * Reads the controls a directory supports.
+     */
+    interface ControlSupport
+    {
+        /**
+         * @return the OIDs listed in the supportedControl attribute of the
+         *         directory's root DSE.
+         * @throws NamingException
+         */
+        Set<String> getSupportedControls() throws NamingException;
+    }
+
+    private final Mode mode;
+
+    private final int pageSize;
+
+    /**
+     * Tells whether the directory supports Virtual List View, or null to try
+     * it until it fails.
+     */
+    private final ControlSupport controlSupport;
+
+    /**
+     * Whether the directory supports Virtual List View, or null if it isn't
+     * known yet.
+     */
+    private volatile Boolean vlvSupported;
+
+    /**
+     * @param mode
+     *            how windows are fetched.
+     * @param pageSize
+     *            the number of results requested per page with Simple Paged
+     *            Results.
+     */
+    PagedSearch(final Mode mode, final int pageSize)
+    {
+        this(mode, pageSize, null);
+    }
+
+    /**
+     * @param mode
+     *            how windows are fetched.
+     * @param pageSize
+     *            the number of results requested per page with Simple Paged
+     *            Results.
+     * @param controlSupport
+     *            tells whether the directory supports Virtual List View, or
+     *            null to try it until it fails.
+     */
+    PagedSearch(final Mode mode, final int pageSize,
+            final ControlSupport controlSupport)
+    {
+        this.mode = mode;
+        this.pageSize = Math.max(pageSize, 1);
+        this.controlSupport = controlSupport;
+    }
+
+    /**
+     * @return how windows are fetched.
+     */
+    Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Searches for a window of results.
+     *
+     * @param context
+     *            the context to search, whose request controls are cleared
+     *            afterwards.
+     * @param filter
+     *            the search filter.
+     * @param controls
+     *            the search controls.
+     * @param sortAttribute
+     *            the attribute to sort on for a Virtual List View.
+     * @param skip
+     *            the number of results to skip.
+     * @param count
+     *            the maximum number of results wanted, or -1 for all.
+     * @param results
+     *            the list to add the results to.
+     * @return the number of results skipped, which is less than
+     *         <code>skip</code> if there weren't that many.
+     * @throws NamingException
+     */
+    int search(final LdapContext context, final String filter,
+            final SearchControls controls, final String sortAttribute,
+            final int skip, final int count, final List<SearchResult> results)
+            throws NamingException
+    {
+        if (count == 0) {
+            return 0;
+        }
+
+        // The first window is fetched the same way as later ones, so that
+        // every page of a search comes from the same sorted list
+        if (count > 0 && useVirtualListView()) {
+            try {
+                return searchVirtualListView(context, filter, controls,
+                        sortAttribute, skip, count, results);
+            } catch (NamingException e) {
+                if (LdapConnection.isConnectionFailure(e)) {
+                    throw e;
+                }
+
+                if (mode == Mode.AUTO) {
+                    Log.info("Virtual list view search failed, so searches"
+                            + " will be paged instead: " + e.getMessage());
+                    vlvSupported = Boolean.FALSE;
+                } else {
+                    Log.warn("Virtual list view search failed, so it will be"
+                            + " paged instead: " + e.getMessage());
+                }
+            }
+        }
+
+        if (mode == Mode.NONE) {
+            return searchPlain(context, filter, controls, skip, count, results);
+        }
+
+        return searchPaged(context, filter, controls, skip, count, results);
+    }
+
+    /**
+     * Searches for every result, passing each to a handler as it arrives
+     * rather than collecting them, so that very large searches can be
+     * processed in bounded memory. The search is always paged with Simple
+     * Paged Results, whatever the mode, as the mode only decides how windows
+     * are fetched and an unpaged search for every entry would be cut short by
+     * the directory's size limit.
+     *
+     * @param context
+     *            the context to search, whose request controls are cleared
+     *            afterwards.
+     * @param filter
+     *            the search filter.
+     * @param controls
+     *            the search controls.
+     * @param handler
+     *            receives the results.
+     * @throws NamingException
+     */
+    void scan(final LdapContext context, final String filter,
+            final SearchControls controls, final ResultHandler handler)
+            throws NamingException
+    {
+        searchPaged(context, filter, controls, handler);
+    }
+
+    private boolean useVirtualListView()
+    {
+        if (mode == Mode.VLV) {
+            return true;
+        }
+        if (mode != Mode.AUTO) {
+            return false;
+        }
+
+        final Boolean supported = vlvSupported;
+
+        if (supported == null && controlSupport != null) {
+            return readVirtualListViewSupport();
+        }
+        return !Boolean.FALSE.equals(supported);
+    }
+
+    /**
+     * Checks the directory's supported controls for Virtual List View and
+     * the server side sorting it needs.
+     *
+     * @return true if both are supported.
+     */
+    private boolean readVirtualListViewSupport()
+    {
+        final Set<String> supported;
+
+        try {
+            supported = controlSupport.getSupportedControls();
+        } catch (NamingException e) {
+            // Checked again for the next search
+            Log.warn("Unable to read the directory's supported controls, so"
+                    + " this search will be paged: " + e.getMessage());
+            return false;
+        }
+
+        if (supported.contains(VirtualListViewControl.OID)
+                && supported.contains(SortControl.OID)) {
+            vlvSupported = Boolean.TRUE;
+            return true;
+        }
+
+        Log.info("The directory doesn't support virtual list views, so"
+                + " searches will be paged instead");
+        vlvSupported = Boolean.FALSE;
+        return false;
+    }
+
+    private int searchVirtualListView(final LdapContext context,
+            final String filter, final SearchControls controls,
+            final String sortAttribute, final int skip, final int count,
+            final List<SearchResult> results) throws NamingException
+    {
+        try {
+            context.setRequestControls(new Control[] {
+                    new SortControl(sortAttribute, Control.CRITICAL),
+                    new VirtualListViewControl(skip + 1, count) });
+        } catch (IOException e) {
+            throw new OperationNotSupportedException(e.getMessage());
+        }
+
+        try {
+            final List<SearchResult> window = new ArrayList<SearchResult>();
+            NamingEnumeration<SearchResult> answer = null;
+            try {
+                OperationMetrics.roundTrip();
+                answer = context.search("", filter, controls);
+
+                while (answer.hasMore()) {
+                    window.add(answer.next());
+                }
+            } finally {
+                closeQuietly(answer);
+            }
+
+            final VirtualListViewControl.Response response = VirtualListViewControl
+                    .findResponse(context.getResponseControls());
+
+            if (response == null) {
+                throw new OperationNotSupportedException(
+                        "No virtual list view response");
+            }
+            if (response.getResult() != VirtualListViewControl.SUCCESS) {
+                throw new OperationNotSupportedException(
+                        "Virtual list view result " + response.getResult());
+            }
+
+            vlvSupported = Boolean.TRUE;
+
+            if (skip >= response.getContentCount()) {
+                // The window starts after the last entry, in which case the
+                // directory returns the last entry instead
+                return response.getContentCount();
+            }
+
+            for (int i = 0; i < window.size() && i < count; i++) {
+                results.add(window.get(i));
+            }
+
+            return skip;
+        } finally {
+            context.setRequestControls(null);
+        }
+    }
+
+    private int searchPaged(final LdapContext context, final String filter,
+            final SearchControls controls, final int skip, final int count,
+            final List<SearchResult> results) throws NamingException
+    {
+        final int[] skipped = { 0 };
+
+        searchPaged(context, filter, controls, new ResultHandler() {
+            private int added;
+
+            public boolean handle(final SearchResult result)
+            {
+                if (skipped[0] < skip) {
+                    skipped[0]++;
+                } else {
+                    results.add(result);
+                    added++;
+                }
+                return count < 0 || added < count;
+            }
+        });
+
+        return skipped[0];
+    }
+
+    private void searchPaged(final LdapContext context, final String filter,
+            final SearchControls controls, final ResultHandler handler)
+            throws NamingException
+    {
+        boolean wanted = true;
+        byte[] cookie = null;
+
+        try {
+            do {
+                context.setRequestControls(new Control[] { pagedResultsControl(
+                        pageSize, cookie) });
+
+                NamingEnumeration<SearchResult> answer = null;
+                try {
+                    OperationMetrics.roundTrip();
+                    answer = context.search("", filter, controls);
+
+                    // The rest of the page is read even once no more are
+                    // wanted, as the cookie comes after the last result
+                    while (answer.hasMore()) {
+                        SearchResult result = answer.next();
+
+                        if (wanted) {
+                            wanted = handler.handle(result);
+                        }
+                    }
+                } finally {
+                    closeQuietly(answer);
+                }
+
+                cookie = findCookie(context.getResponseControls());
+
+                if (cookie != null && !wanted) {
+                    abandon(context, filter, controls, cookie);
+                    break;
+                }
+            } while (cookie != null);
+        } finally {
+            context.setRequestControls(null);
+        }
+    }
+
+    private int searchPlain(final LdapContext context, final String filter,
+            final SearchControls controls, final int skip, final int count,
+            final List<SearchResult> results) throws NamingException
+    {
+        int skipped = 0;
+        int added = 0;
+
+        NamingEnumeration<SearchResult> answer = null;
+        try {
+            OperationMetrics.roundTrip();
+            answer = context.search("", filter, controls);
+
+            while (answer.hasMore() && (count < 0 || added < count)) {
+                SearchResult result = answer.next();
+
+                if (skipped < skip) {
+                    skipped++;
+                } else {
+                    results.add(result);
+                    added++;
+                }
+            }
+        } finally {
+            closeQuietly(answer);
+        }
+
+        return skipped;
+    }
+
+    /**
+     * Tells the directory the rest of a paged search isn't wanted, so it can
+     * release the search's resources.
+     */
+    private void abandon(final LdapContext context, final String filter,
+            final SearchControls controls, final byte[] cookie)
+    {
+        try {
+            context.setRequestControls(new Control[] { pagedResultsControl(0,
+                    cookie) });
+            OperationMetrics.roundTrip();
+            closeQuietly(context.search("", filter, controls));
+        } catch (NamingException e) {
+            Log.debug("Unable to abandon paged search: " + e.getMessage());
+        }
+    }
+
+    private static Control pagedResultsControl(final int size,
+            final byte[] cookie) throws NamingException
+    {
+        try {
+            // Not critical, so directories without paging return everything
+            return new PagedResultsControl(size, cookie, Control.NONCRITICAL);
+        } catch (IOException e) {
+            NamingException ne = new NamingException(e.getMessage());
+            ne.setRootCause(e);
+            throw ne;
+        }
+    }
+
+    /**
+     * @return the cookie for the next page, or null if there are no more.
+     */
+    private static byte[] findCookie(final Control[] controls)
+    {
+        if (controls == null) {
+            return null;
+        }
+
+        for (Control control : controls) {
+            if (control instanceof PagedResultsResponseControl) {
+                byte[] cookie = ((PagedResultsResponseControl) control)
+                        .getCookie();
+
+                if (cookie != null && cookie.length > 0) {
+                    return cookie;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static void closeQuietly(final NamingEnumeration<?> answer)
+    {
+        try {
+            if (answer != null) {
+                answer.close();
+            }
+        } catch (Exception ignored) {
+            // Ignore.
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.io.UnsupportedEncodingException;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.Control;
+
+/**
+ * The Persistent Search request control (draft-ietf-ldapext-psearch), asking
+ * for a search which returns changed entries as they happen, for directories
+ * which don't support syncrepl. JNDI has no class for it, so it is encoded
+ * here, along with the Entry Change Notification control returned with each
+ * entry.
+ */
+final class PersistentSearchControl implements Control
+{
+    private static final long serialVersionUID = 1L;
+
+    static final String OID = "2.16.840.1.113730.3.4.3";
+
+    static final String ENTRY_CHANGE_OID = "2.16.840.1.113730.3.4.7";
+
+    static final int ADD = 1;
+
+    static final int DELETE = 2;
+
+    static final int MODIFY = 4;
+
+    static final int MODIFY_DN = 8;
+
+    private final byte[] value;
+
+    /**
+     * Creates a control asking for every kind of change, but not the current
+     * content.
+     */
+    PersistentSearchControl()
+    {
+        value = new BerEncoder().beginSequence(BerEncoder.SEQUENCE)
+                .writeInteger(BerEncoder.INTEGER,
+                        ADD | DELETE | MODIFY | MODIFY_DN) // changeTypes
+                .writeBoolean(BerEncoder.BOOLEAN, true) // changesOnly
+                .writeBoolean(BerEncoder.BOOLEAN, true) // returnECs
+                .endSequence().toByteArray();
+    }
+
+    public String getID()
+    {
+        return OID;
+    }
+
+    public boolean isCritical()
+    {
+        return CRITICAL;
+    }
+
+    public byte[] getEncodedValue()
+    {
+        return value.clone();
+    }
+
+    /**
+     * Finds and decodes the Entry Change Notification control of an entry.
+     *
+     * @param controls
+     *            the entry's controls, which may be null.
+     * @return the change, or null if there isn't one.
+     * @throws NamingException
+     *             if the control is malformed.
+     */
+    static EntryChange findEntryChange(final Control[] controls)
+            throws NamingException
+    {
+        if (controls == null) {
+            return null;
+        }
+
+        for (Control control : controls) {
+            if (ENTRY_CHANGE_OID.equals(control.getID())) {
+                return EntryChange.decode(control.getEncodedValue());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The Entry Change Notification control.
+     */
+    static final class EntryChange
+    {
+        private final int changeType;
+
+        private final String previousDN;
+
+        EntryChange(final int changeType, final String previousDN)
+        {
+            this.changeType = changeType;
+            this.previousDN = previousDN;
+        }
+
+        static EntryChange decode(final byte[] value) throws NamingException
+        {
+            if (value == null) {
+                throw new NamingException("Empty entry change control");
+            }
+
+            BerDecoder decoder = new BerDecoder(value);
+            decoder.readSequence(BerEncoder.SEQUENCE);
+
+            int changeType = (int) decoder.readInteger(BerEncoder.ENUMERATED);
+            String previousDN = null;
+
+            if (decoder.hasMore()
+                    && decoder.peekTag() == BerEncoder.OCTET_STRING) {
+                try {
+                    previousDN = new String(
+                            decoder.readOctetString(BerEncoder.OCTET_STRING),
+                            "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            // Any change number isn't needed
+            decoder.endSequence();
+
+            return new EntryChange(changeType, previousDN);
+        }
+
+        /**
+         * @return the change type, one of {@link PersistentSearchControl#ADD},
+         *         {@link PersistentSearchControl#DELETE},
+         *         {@link PersistentSearchControl#MODIFY} or
+         *         {@link PersistentSearchControl#MODIFY_DN}.
+         */
+        int getChangeType()
+        {
+            return changeType;
+        }
+
+        /**
+         * @return the DN of the entry before it was renamed, or null.
+         */
+        String getPreviousDN()
+        {
+            return previousDN;
+        }
+    }
+}
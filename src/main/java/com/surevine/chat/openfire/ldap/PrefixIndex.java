@@ -0,0 +1,182 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted index of the values of each search attribute, so that users whose
+ * values start with a prefix can be found without looking at every user.<br />
+ * Each attribute's index holds one key per value, made of the value, a
+ * separator and the key of the user it belongs to, so a prefix matches a
+ * contiguous range of keys. The index is safe for concurrent reads and
+ * updates.
+ */
+final class PrefixIndex
+{
+    /**
+     * Separates values from user keys, and sorts before any other character
+     * so that a user's keys for a value are adjacent.
+     */
+    private static final char SEPARATOR = '\u0000';
+
+    /**
+     * Sorts after any character in a prefix, to end its range.
+     */
+    private static final char MAX_CHAR = '\uffff';
+
+    private final List<ConcurrentSkipListSet<String>> indexes;
+
+    /**
+     * @param attributeCount
+     *            the number of attributes to index.
+     */
+    PrefixIndex(final int attributeCount)
+    {
+        indexes = new ArrayList<ConcurrentSkipListSet<String>>(attributeCount);
+
+        for (int i = 0; i < attributeCount; i++) {
+            indexes.add(new ConcurrentSkipListSet<String>());
+        }
+    }
+
+    /**
+     * Indexes a user's values, replacing those they had before. New values
+     * are added before old ones are removed, so the user can be found
+     * throughout.
+     *
+     * @param key
+     *            the user's key.
+     * @param values
+     *            the user's values for each attribute.
+     * @param previousValues
+     *            the values the user was indexed with, or null if they
+     *            weren't.
+     */
+    void put(final String key, final String[][] values,
+            final String[][] previousValues)
+    {
+        for (int i = 0; i < indexes.size(); i++) {
+            final ConcurrentSkipListSet<String> index = indexes.get(i);
+            final Set<String> added = new HashSet<String>();
+
+            for (String value : values[i]) {
+                String indexKey = indexKey(value, key);
+                index.add(indexKey);
+                added.add(indexKey);
+            }
+
+            if (previousValues != null) {
+                for (String value : previousValues[i]) {
+                    String indexKey = indexKey(value, key);
+
+                    if (!added.contains(indexKey)) {
+                        index.remove(indexKey);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a user's values.
+     *
+     * @param key
+     *            the user's key.
+     * @param values
+     *            the values the user was indexed with.
+     */
+    void remove(final String key, final String[][] values)
+    {
+        for (int i = 0; i < indexes.size(); i++) {
+            for (String value : values[i]) {
+                indexes.get(i).remove(indexKey(value, key));
+            }
+        }
+    }
+
+    /**
+     * Finds the users with a value starting with a prefix in any of the given
+     * attributes.
+     *
+     * @param attributeIndexes
+     *            the indexes of the attributes to look in.
+     * @param prefix
+     *            the prefix, which must be in the same case as the values.
+     * @return the keys of the users found, in order.
+     */
+    TreeSet<String> find(final int[] attributeIndexes, final String prefix)
+    {
+        final TreeSet<String> keys = new TreeSet<String>();
+
+        for (int attributeIndex : attributeIndexes) {
+            for (String indexKey : indexes.get(attributeIndex).subSet(prefix,
+                    prefix + MAX_CHAR)) {
+                keys.add(indexKey
+                        .substring(indexKey.lastIndexOf(SEPARATOR) + 1));
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * Finds the users with a value starting with every one of a set of
+     * prefixes, each of which may be in a different attribute.
+     *
+     * @param attributeIndexes
+     *            the indexes of the attributes to look in.
+     * @param prefixes
+     *            the prefixes, which must be in the same case as the values.
+     * @return the keys of the users found, in order.
+     */
+    TreeSet<String> findAll(final int[] attributeIndexes,
+            final String[] prefixes)
+    {
+        TreeSet<String> keys = null;
+
+        for (String prefix : prefixes) {
+            final TreeSet<String> found = find(attributeIndexes, prefix);
+
+            if (keys == null) {
+                keys = found;
+            } else {
+                keys.retainAll(found);
+            }
+
+            if (keys.isEmpty()) {
+                break;
+            }
+        }
+
+        if (keys == null) {
+            return new TreeSet<String>();
+        }
+        return keys;
+    }
+
+    private static String indexKey(final String value, final String key)
+    {
+        return new StringBuilder(value.length() + key.length() + 1)
+                .append(value).append(SEPARATOR).append(key).toString();
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The provider configuration which can be changed while it is running: the
+ * compiled display name template, the attributes loaded for each user and the
+ * search fields.<br />
+ * Instances are immutable. The provider swaps in a new instance when the
+ * configuration changes, and each operation uses the instance current when it
+ * started, so it never sees a half updated configuration.
+ */
+final class ProviderConfiguration
+{
+    /**
+     * The attributes loaded for every user, whatever the template.
+     */
+    private final Set<String> requiredAttributes;
+
+    /**
+     * The display name template, or null if the name field is used.
+     */
+    private final DisplayNameTemplate displayNameTemplate;
+
+    /**
+     * The union of the required attributes and those used by the
+     * {@link #displayNameTemplate}, so that only the attributes actually needed
+     * are loaded.
+     */
+    private final String[] userAttributes;
+
+    private final boolean seperateSearchTerms;
+
+    /**
+     * The ldap attribute searched for each search field.
+     */
+    private final Map<String, String> searchFields;
+
+    /**
+     * The search fields searched by a query for "Name".
+     */
+    private final Set<String> searchNameFields;
+
+    /**
+     * @param requiredAttributes
+     *            the attributes loaded for every user.
+     * @param displayNameTemplate
+     *            the display name template, or null to use the name field.
+     * @param seperateSearchTerms
+     *            true if search queries are split into separate terms on
+     *            whitespace.
+     * @param searchFields
+     *            the ldap attribute searched for each search field.
+     * @param searchNameFields
+     *            the search fields searched by a query for "Name".
+     */
+    ProviderConfiguration(final Collection<String> requiredAttributes,
+            final String displayNameTemplate,
+            final boolean seperateSearchTerms,
+            final Map<String, String> searchFields,
+            final Set<String> searchNameFields)
+    {
+        this.requiredAttributes = Collections
+                .unmodifiableSet(new LinkedHashSet<String>(requiredAttributes));
+        this.seperateSearchTerms = seperateSearchTerms;
+        this.searchFields = Collections
+                .unmodifiableMap(new LinkedHashMap<String, String>(
+                        searchFields));
+        this.searchNameFields = Collections
+                .unmodifiableSet(new HashSet<String>(searchNameFields));
+
+        if (displayNameTemplate == null) {
+            this.displayNameTemplate = null;
+        } else {
+            this.displayNameTemplate = new DisplayNameTemplate(
+                    displayNameTemplate);
+        }
+
+        final Set<String> attributes = new HashSet<String>(requiredAttributes);
+
+        if (this.displayNameTemplate != null) {
+            attributes.addAll(this.displayNameTemplate.getAttributeNames());
+        }
+
+        userAttributes = attributes.toArray(new String[attributes.size()]);
+    }
+
+    /**
+     * @param template
+     *            the display name template, or null to use the name field.
+     * @return a copy of this configuration with another display name
+     *         template.
+     */
+    ProviderConfiguration withDisplayNameTemplate(final String template)
+    {
+        return new ProviderConfiguration(requiredAttributes, template,
+                seperateSearchTerms, searchFields, searchNameFields);
+    }
+
+    /**
+     * @return the display name template, or null if the name field is used.
+     */
+    DisplayNameTemplate getDisplayNameTemplate()
+    {
+        return displayNameTemplate;
+    }
+
+    /**
+     * @return the display name template as configured, or null.
+     */
+    String getDisplayNameTemplateString()
+    {
+        if (displayNameTemplate == null) {
+            return null;
+        }
+        return displayNameTemplate.getTemplate();
+    }
+
+    /**
+     * @return the attributes to load for each user, which is shared and
+     *         mustn't be modified.
+     */
+    String[] getUserAttributes()
+    {
+        return userAttributes;
+    }
+
+    /**
+     * @return true if search queries are split into separate terms on
+     *         whitespace.
+     */
+    boolean isSeperateSearchTerms()
+    {
+        return seperateSearchTerms;
+    }
+
+    /**
+     * @return the ldap attribute searched for each search field.
+     */
+    Map<String, String> getSearchFields()
+    {
+        return searchFields;
+    }
+
+    /**
+     * @return the search fields searched by a query for "Name".
+     */
+    Set<String> getSearchNameFields()
+    {
+        return searchNameFields;
+    }
+
+    /**
+     * @param other
+     *            another configuration.
+     * @return true if users built with either configuration are the same, so
+     *         users already built can be kept.
+     */
+    boolean buildsSameUsers(final ProviderConfiguration other)
+    {
+        final String template = getDisplayNameTemplateString();
+        final String otherTemplate = other.getDisplayNameTemplateString();
+
+        return template == null ? otherTemplate == null : template
+                .equals(otherTemplate);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ProviderConfiguration[displayNameTemplate="
+                + getDisplayNameTemplateString() + ", seperateSearchTerms="
+                + seperateSearchTerms + ", searchFields=" + searchFields
+                + ", searchNameFields=" + searchNameFields + "]";
+    }
+}
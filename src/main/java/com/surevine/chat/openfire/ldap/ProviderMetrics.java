@@ -0,0 +1,144 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The metrics of each type of operation made on the
+ * {@link ExtendedLdapUserProvider}, which can be read to alert on a slow or
+ * failing directory.
+ */
+public class ProviderMetrics
+{
+    /**
+     * The types of operation measured.
+     */
+    public enum Operation
+    {
+        /**
+         * Loading a single user.
+         */
+        LOAD_USER("loadUser"),
+
+        /**
+         * Loading many users at once.
+         */
+        LOAD_USERS("loadUsers"),
+
+        /**
+         * Searching for users.
+         */
+        FIND_USERS("findUsers"),
+
+        /**
+         * Listing users, which is passed to the delegate provider.
+         */
+        GET_USERS("getUsers"),
+
+        /**
+         * Listing usernames.
+         */
+        GET_USERNAMES("getUsernames"),
+
+        /**
+         * Counting users.
+         */
+        GET_USER_COUNT("getUserCount"),
+
+        /**
+         * Creating a user, which is passed to the delegate provider.
+         */
+        CREATE_USER("createUser"),
+
+        /**
+         * Deleting a user, which is passed to the delegate provider.
+         */
+        DELETE_USER("deleteUser"),
+
+        /**
+         * Setting a user's name, email or dates, which is passed to the
+         * delegate provider.
+         */
+        UPDATE_USER("updateUser");
+
+        private final String name;
+
+        private Operation(final String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * @return the name the operation is reported under.
+         */
+        public String getName()
+        {
+            return name;
+        }
+    }
+
+    private final OperationMetrics[] operations;
+
+    public ProviderMetrics()
+    {
+        final Operation[] types = Operation.values();
+
+        operations = new OperationMetrics[types.length];
+
+        for (int i = 0; i < types.length; i++) {
+            operations[i] = new OperationMetrics(types[i].getName());
+        }
+    }
+
+    /**
+     * @param operation
+     *            the type of operation.
+     * @return its metrics.
+     */
+    public OperationMetrics get(final Operation operation)
+    {
+        return operations[operation.ordinal()];
+    }
+
+    /**
+     * @return the metrics of every type of operation.
+     */
+    public List<OperationMetrics> getAll()
+    {
+        return Collections.unmodifiableList(Arrays.asList(operations));
+    }
+
+    /**
+     * Starts counting afresh for every type of operation.
+     */
+    public void reset()
+    {
+        for (OperationMetrics operation : operations) {
+            operation.reset();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ProviderMetrics" + Arrays.toString(operations);
+    }
+}
@@ -0,0 +1,457 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exposes an {@link ExtendedLdapUserProvider} over JMX.
+ */
+public class ProviderMonitor implements ProviderMonitorMXBean
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(ProviderMonitor.class);
+
+    /**
+     * The name the monitor is registered under.
+     */
+    public static final String OBJECT_NAME = "com.surevine.chat.openfire.ldap:type=ExtendedLdapUserProvider";
+
+    /**
+     * The monitor registered with the platform MBean server, or null if there
+     * isn't one.
+     */
+    private static ProviderMonitor registered;
+
+    private final ExtendedLdapUserProvider provider;
+
+    /**
+     * @param provider
+     *            the provider to expose.
+     */
+    public ProviderMonitor(final ExtendedLdapUserProvider provider)
+    {
+        this.provider = provider;
+    }
+
+    /**
+     * Registers a monitor for a provider with the platform MBean server,
+     * replacing the monitor of any earlier provider.
+     *
+     * @param provider
+     *            the provider to expose.
+     * @return the monitor, or null if it couldn't be registered.
+     */
+    public static synchronized ProviderMonitor register(
+            final ExtendedLdapUserProvider provider)
+    {
+        final ProviderMonitor monitor = new ProviderMonitor(provider);
+
+        try {
+            final MBeanServer server = ManagementFactory
+                    .getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(monitor, name);
+            registered = monitor;
+
+            return monitor;
+        } catch (JMException e) {
+            Log.warn("Unable to register the LDAP provider with JMX", e);
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters the monitor for a provider, unless it has been replaced by
+     * the monitor of a later provider.
+     *
+     * @param provider
+     *            the provider whose monitor is unregistered.
+     */
+    public static synchronized void unregister(
+            final ExtendedLdapUserProvider provider)
+    {
+        if (registered == null || registered.provider != provider) {
+            return;
+        }
+
+        registered = null;
+
+        try {
+            final MBeanServer server = ManagementFactory
+                    .getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            Log.warn("Unable to unregister the LDAP provider from JMX", e);
+        }
+    }
+
+    public String getDisplayNameTemplate()
+    {
+        return provider.getDisplayNameTemplate();
+    }
+
+    public void setDisplayNameTemplate(final String displayNameTemplate)
+    {
+        provider.setDisplayNameTemplate(displayNameTemplate);
+    }
+
+    public Map<String, String> getSearchFields()
+    {
+        return new LinkedHashMap<String, String>(
+                provider.getSearchFieldAttributes());
+    }
+
+    public boolean isSeperateSearchTerms()
+    {
+        return provider.isSeperateSearchTerms();
+    }
+
+    public int getUserCacheSize()
+    {
+        return size(provider.getUserCache());
+    }
+
+    public double getUserCacheHitRatio()
+    {
+        return hitRatio(provider.getUserCache());
+    }
+
+    public int getNegativeUserCacheSize()
+    {
+        return size(provider.getNegativeUserCache());
+    }
+
+    public double getNegativeUserCacheHitRatio()
+    {
+        return hitRatio(provider.getNegativeUserCache());
+    }
+
+    public int getSearchCacheSize()
+    {
+        final SearchResultCache cache = provider.getSearchResultCache();
+
+        return size(cache == null ? null : cache.getCache());
+    }
+
+    public double getSearchCacheHitRatio()
+    {
+        final SearchResultCache cache = provider.getSearchResultCache();
+
+        return hitRatio(cache == null ? null : cache.getCache());
+    }
+
+    private static int size(final ExpiringCache<?, ?> cache)
+    {
+        if (cache == null) {
+            return -1;
+        }
+        return cache.size();
+    }
+
+    private static double hitRatio(final ExpiringCache<?, ?> cache)
+    {
+        if (cache == null) {
+            return -1;
+        }
+
+        final long hits = cache.getHits();
+        final long lookups = hits + cache.getMisses();
+
+        if (lookups == 0) {
+            return 0;
+        }
+        return hits / (double) lookups;
+    }
+
+    /**
+     * @return the provider's own context pools: the one pool, or one for each
+     *         load balanced server.
+     */
+    private List<LdapContextPool> getPools()
+    {
+        final List<LdapContextPool> pools = new ArrayList<LdapContextPool>();
+
+        if (provider.getContextPool() != null) {
+            pools.add(provider.getContextPool());
+        }
+
+        final LoadBalancedContextSource balancer = provider.getLoadBalancer();
+
+        if (balancer != null) {
+            for (LdapServer server : balancer.getServers()) {
+                if (server.getSource() instanceof LdapContextPool) {
+                    pools.add((LdapContextPool) server.getSource());
+                }
+            }
+        }
+
+        return pools;
+    }
+
+    public int getPoolActiveCount()
+    {
+        final List<LdapContextPool> pools = getPools();
+
+        if (pools.isEmpty()) {
+            return -1;
+        }
+
+        int active = 0;
+
+        for (LdapContextPool pool : pools) {
+            active += pool.getActiveCount();
+        }
+
+        return active;
+    }
+
+    public int getPoolIdleCount()
+    {
+        final List<LdapContextPool> pools = getPools();
+
+        if (pools.isEmpty()) {
+            return -1;
+        }
+
+        int idle = 0;
+
+        for (LdapContextPool pool : pools) {
+            idle += pool.getIdleCount();
+        }
+
+        return idle;
+    }
+
+    public long getPoolTimeoutCount()
+    {
+        final List<LdapContextPool> pools = getPools();
+
+        if (pools.isEmpty()) {
+            return -1;
+        }
+
+        long timeouts = 0;
+
+        for (LdapContextPool pool : pools) {
+            timeouts += pool.getTimeoutCount();
+        }
+
+        return timeouts;
+    }
+
+    public Map<String, String> getServerStates()
+    {
+        final Map<String, String> states = new LinkedHashMap<String, String>();
+        final LoadBalancedContextSource balancer = provider.getLoadBalancer();
+
+        if (balancer != null) {
+            for (LdapServer server : balancer.getServers()) {
+                states.put(server.getUrl(), (server.isEjected() ? "ejected"
+                        : "available")
+                        + ", outstanding="
+                        + server.getOutstanding()
+                        + ", averageLatency="
+                        + server.getAverageLatency() + "ms");
+            }
+        }
+
+        return states;
+    }
+
+    public int getMirrorSize()
+    {
+        final DirectoryMirror mirror = provider.getMirror();
+
+        if (mirror == null) {
+            return -1;
+        }
+        return mirror.size();
+    }
+
+    public long getMirrorSyncLag()
+    {
+        final DirectoryMirror mirror = provider.getMirror();
+
+        if (mirror == null) {
+            return -1;
+        }
+        return mirror.getSyncLag();
+    }
+
+    public Map<String, String> getCircuitStates()
+    {
+        final Map<String, String> states = new LinkedHashMap<String, String>();
+
+        for (CircuitBreaker breaker : provider.getCircuitBreakers()) {
+            states.put(breaker.getName(), breaker.getState().name());
+        }
+
+        return states;
+    }
+
+    public Map<String, Long> getOperationCounts()
+    {
+        final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+        for (OperationMetrics operation : provider.getMetrics().getAll()) {
+            counts.put(operation.getName(), operation.getCount());
+        }
+
+        return counts;
+    }
+
+    public Map<String, Long> getErrorCounts()
+    {
+        final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+        for (OperationMetrics operation : provider.getMetrics().getAll()) {
+            counts.put(operation.getName(), operation.getErrorCount());
+        }
+
+        return counts;
+    }
+
+    public Map<String, Double> getMeanLatency()
+    {
+        final Map<String, Double> latencies = new LinkedHashMap<String, Double>();
+
+        for (OperationMetrics operation : provider.getMetrics().getAll()) {
+            latencies.put(operation.getName(), operation.getLatency()
+                    .getMean());
+        }
+
+        return latencies;
+    }
+
+    public Map<String, Double> getMedianLatency()
+    {
+        return getLatencyAtPercentile(50);
+    }
+
+    public Map<String, Double> getLatency99thPercentile()
+    {
+        return getLatencyAtPercentile(99);
+    }
+
+    private Map<String, Double> getLatencyAtPercentile(final double percentile)
+    {
+        final Map<String, Double> latencies = new LinkedHashMap<String, Double>();
+
+        for (OperationMetrics operation : provider.getMetrics().getAll()) {
+            latencies.put(operation.getName(), operation.getLatency()
+                    .getValueAtPercentile(percentile));
+        }
+
+        return latencies;
+    }
+
+    public Map<String, Double> getMaxLatency()
+    {
+        final Map<String, Double> latencies = new LinkedHashMap<String, Double>();
+
+        for (OperationMetrics operation : provider.getMetrics().getAll()) {
+            latencies.put(operation.getName(), operation.getLatency()
+                    .getMax());
+        }
+
+        return latencies;
+    }
+
+    public Map<String, Double> getRoundTripsPerOperation()
+    {
+        final Map<String, Double> roundTrips = new LinkedHashMap<String, Double>();
+
+        for (OperationMetrics operation : provider.getMetrics().getAll()) {
+            roundTrips.put(operation.getName(),
+                    operation.getRoundTripsPerOperation());
+        }
+
+        return roundTrips;
+    }
+
+    public long getSlowQueryCount()
+    {
+        final SlowQueryLog log = provider.getSlowQueryLog();
+
+        if (log == null) {
+            return -1;
+        }
+        return log.getSlowQueryCount();
+    }
+
+    public Map<String, String> getSlowestQueryShapes()
+    {
+        final Map<String, String> shapes = new LinkedHashMap<String, String>();
+        final SlowQueryLog log = provider.getSlowQueryLog();
+
+        if (log != null) {
+            for (SlowQueryLog.Shape shape : log.getSlowestShapes()) {
+                shapes.put(shape.getFingerprint(), "count=" + shape.getCount()
+                        + ", mean=" + shape.getMeanTime() + "ms, max="
+                        + shape.getMaxTime() + "ms, meanResults="
+                        + shape.getMeanResultCount());
+            }
+        }
+
+        return shapes;
+    }
+
+    public void flushCaches()
+    {
+        provider.flushCaches();
+    }
+
+    public void evictUser(final String username)
+    {
+        provider.evictCachedUser(username);
+    }
+
+    public void resync()
+    {
+        provider.resync();
+    }
+
+    public void resetMetrics()
+    {
+        provider.getMetrics().reset();
+
+        if (provider.getSlowQueryLog() != null) {
+            provider.getSlowQueryLog().reset();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.Map;
+
+/**
+ * The management interface of the {@link ExtendedLdapUserProvider}, through
+ * which operators can watch the provider and act on it while Openfire runs.
+ * <br />
+ * Figures for features which are disabled are reported as -1. Figures for
+ * each type of operation are keyed on the operation's name.
+ */
+public interface ProviderMonitorMXBean
+{
+    /**
+     * @return the template for users' display names, or null if the name
+     *         field is used.
+     */
+    String getDisplayNameTemplate();
+
+    /**
+     * Changes the template for users' display names, dropping users built
+     * with the old template from the caches and resyncing the mirror, so that
+     * users already loaded get the new name.
+     *
+     * @param displayNameTemplate
+     *            the template, or null to use the name field.
+     */
+    void setDisplayNameTemplate(String displayNameTemplate);
+
+    /**
+     * @return the ldap attribute searched for each search field.
+     */
+    Map<String, String> getSearchFields();
+
+    /**
+     * @return true if search queries are split into separate terms.
+     */
+    boolean isSeperateSearchTerms();
+
+    /**
+     * @return the number of users in the user cache.
+     */
+    int getUserCacheSize();
+
+    /**
+     * @return the fraction of user cache lookups which were hits.
+     */
+    double getUserCacheHitRatio();
+
+    /**
+     * @return the number of usernames in the negative user cache.
+     */
+    int getNegativeUserCacheSize();
+
+    /**
+     * @return the fraction of negative user cache lookups which were hits.
+     */
+    double getNegativeUserCacheHitRatio();
+
+    /**
+     * @return the number of searches in the search result cache.
+     */
+    int getSearchCacheSize();
+
+    /**
+     * @return the fraction of search result cache lookups which were hits.
+     */
+    double getSearchCacheHitRatio();
+
+    /**
+     * @return the number of pooled contexts in use, across every server.
+     */
+    int getPoolActiveCount();
+
+    /**
+     * @return the number of idle pooled contexts, across every server.
+     */
+    int getPoolIdleCount();
+
+    /**
+     * @return the number of times a pooled context couldn't be had in time.
+     */
+    long getPoolTimeoutCount();
+
+    /**
+     * @return the state of each load balanced server, keyed on its URL.
+     */
+    Map<String, String> getServerStates();
+
+    /**
+     * @return the number of users in the directory mirror.
+     */
+    int getMirrorSize();
+
+    /**
+     * @return the time in milliseconds since the mirror last synced.
+     */
+    long getMirrorSyncLag();
+
+    /**
+     * @return the state of each circuit breaker.
+     */
+    Map<String, String> getCircuitStates();
+
+    /**
+     * @return the number of operations of each type.
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * @return the number of errors in each type of operation.
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * @return the mean latency in milliseconds of each type of operation.
+     */
+    Map<String, Double> getMeanLatency();
+
+    /**
+     * @return the median latency in milliseconds of each type of operation.
+     */
+    Map<String, Double> getMedianLatency();
+
+    /**
+     * @return the 99th percentile latency in milliseconds of each type of
+     *         operation.
+     */
+    Map<String, Double> getLatency99thPercentile();
+
+    /**
+     * @return the highest latency in milliseconds of each type of operation.
+     */
+    Map<String, Double> getMaxLatency();
+
+    /**
+     * @return the mean directory round trips made by each type of operation.
+     */
+    Map<String, Double> getRoundTripsPerOperation();
+
+    /**
+     * @return the number of slow user searches.
+     */
+    long getSlowQueryCount();
+
+    /**
+     * @return a summary of the slow searches of each of the slowest filter
+     *         shapes, keyed on the shape.
+     */
+    Map<String, String> getSlowestQueryShapes();
+
+    /**
+     * Empties the caches.
+     */
+    void flushCaches();
+
+    /**
+     * Removes a user from the caches and re-reads them into the mirror.
+     *
+     * @param username
+     *            the username or JID.
+     */
+    void evictUser(String username);
+
+    /**
+     * Empties the caches and starts a full sync of the mirror.
+     */
+    void resync();
+
+    /**
+     * Starts counting the operation figures and slow searches afresh.
+     */
+    void resetMetrics();
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent requests for the same key so that only one of them is
+ * actually run. Any request made while another for the same key is in flight
+ * waits for, and shares, its result or exception.
+ *
+ * @param <K>
+ *            the key type.
+ * @param <V>
+ *            the result type.
+ */
+public class RequestCoalescer<K, V>
+{
+    /**
+     * The requests currently running, keyed on their key.
+     */
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * The number of requests which shared the result of another.
+     */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs the loader for the key, unless a request for the key is already in
+     * flight in which case its result is waited for instead.
+     *
+     * @param key
+     *            the key.
+     * @param loader
+     *            the loader to run.
+     * @return the result.
+     * @throws Exception
+     *             the exception thrown by the loader.
+     */
+    public V load(final K key, final Callable<V> loader) throws Exception
+    {
+        FutureTask<V> task = new FutureTask<V>(loader);
+
+        final FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else {
+            coalesced.incrementAndGet();
+            task = existing;
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of requests which shared the result of another.
+     */
+    public long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of requests currently in flight.
+     */
+    public int getInFlightCount()
+    {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,387 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs lookups with hedging, to cut the tail latency caused by an occasional
+ * slow server: if a lookup hasn't completed within a delay, the same lookup
+ * is started again, and whichever finishes first wins.<br />
+ * The delay is a percentile of the recent latency of lookups, so only the
+ * slowest few are hedged, with a minimum so that a very fast directory
+ * doesn't get hedges for ordinary jitter. Hedges are also capped by a budget,
+ * a percentage of lookups, which builds up as lookups are made and is spent
+ * by hedges, so a directory which is slow across the board doesn't get twice
+ * the load. No hedges are made until enough latencies have been recorded.
+ * <br />
+ * Lookups run on a dedicated pool of threads. When every thread is busy the
+ * lookup runs on the caller's thread without hedging.
+ */
+public class RequestHedger
+{
+    /**
+     * The number of latencies kept for working out the delay.
+     */
+    private static final int SAMPLE_SIZE = 1024;
+
+    /**
+     * The number of latencies needed before any lookups are hedged.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * The number of latencies recorded between recalculations of the delay.
+     */
+    private static final int RECALCULATE_INTERVAL = 64;
+
+    /**
+     * The most hedges the budget can build up for a burst.
+     */
+    private static final double MAX_BUDGET = 10;
+
+    private final ThreadPoolExecutor pool;
+
+    private final int percentile;
+
+    private final long minDelay;
+
+    /**
+     * The budget added by each lookup, as a fraction of a hedge.
+     */
+    private final double budgetPerRequest;
+
+    /**
+     * The hedges which can currently be made.
+     */
+    private double budget;
+
+    /**
+     * The recent latencies in nanoseconds, used as a ring.
+     */
+    private final long[] samples = new long[SAMPLE_SIZE];
+
+    private int sampleCount;
+
+    private int sampleNext;
+
+    private int sinceRecalculation;
+
+    /**
+     * The time in nanoseconds after which a lookup is hedged, or -1 until
+     * enough latencies have been recorded.
+     */
+    private volatile long delay = -1;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong hedges = new AtomicLong();
+
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    private final AtomicLong budgetRefusals = new AtomicLong();
+
+    private final AtomicLong unhedged = new AtomicLong();
+
+    /**
+     * @param threads
+     *            the maximum number of lookups and hedges running at once.
+     * @param percentile
+     *            the percentile of recent latencies after which a lookup is
+     *            hedged, from 1 to 99.
+     * @param minDelay
+     *            the minimum time in milliseconds before a lookup is hedged.
+     * @param budgetPercent
+     *            the maximum percentage of lookups which are hedged.
+     */
+    public RequestHedger(final int threads, final int percentile,
+            final long minDelay, final int budgetPercent)
+    {
+        this.percentile = Math.min(Math.max(percentile, 1), 99);
+        this.minDelay = Math.max(minDelay, 0);
+        this.budgetPerRequest = Math.min(Math.max(budgetPercent, 0), 100) / 100.0;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        pool = new ThreadPoolExecutor(0, Math.max(threads, 1), 60,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable r)
+                    {
+                        Thread thread = new Thread(r, "LDAP hedged lookup "
+                                + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Runs a lookup, hedging it if it is slow.
+     *
+     * @param lookup
+     *            the lookup, which may be run twice at once.
+     * @return the result of whichever run of the lookup succeeded first.
+     * @throws Exception
+     *             the exception thrown by the lookup, if every run of it
+     *             failed.
+     */
+    public <V> V call(final Callable<V> lookup) throws Exception
+    {
+        requests.incrementAndGet();
+
+        synchronized (this) {
+            budget = Math.min(budget + budgetPerRequest, MAX_BUDGET);
+        }
+
+        final Callable<V> timed = new Callable<V>() {
+            public V call() throws Exception
+            {
+                final long started = System.nanoTime();
+
+                try {
+                    return lookup.call();
+                } finally {
+                    // Recorded even if the run lost or failed, so hedging
+                    // doesn't hide the latency it is reacting to
+                    record(System.nanoTime() - started);
+                }
+            }
+        };
+
+        final CompletionService<V> completion = new ExecutorCompletionService<V>(
+                pool);
+        final Future<V> primary;
+
+        try {
+            primary = completion.submit(timed);
+        } catch (RejectedExecutionException e) {
+            unhedged.incrementAndGet();
+            return timed.call();
+        }
+
+        Future<V> hedge = null;
+
+        try {
+            int running = 1;
+            Future<V> done = null;
+            final long hedgeDelay = delay;
+
+            if (hedgeDelay >= 0) {
+                done = completion.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+
+                if (done == null && spendBudget()) {
+                    try {
+                        hedge = completion.submit(timed);
+                        hedges.incrementAndGet();
+                        running++;
+                    } catch (RejectedExecutionException e) {
+                        refundBudget();
+                    }
+                }
+            }
+
+            while (true) {
+                if (done == null) {
+                    done = completion.take();
+                }
+
+                try {
+                    final V result = done.get();
+
+                    if (done == hedge) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return result;
+                } catch (ExecutionException e) {
+                    if (--running == 0) {
+                        throw unwrap(e);
+                    }
+                    done = null;
+                }
+            }
+        } finally {
+            // The losing run is left to finish rather than interrupted, so
+            // its latency is recorded and its connection isn't left
+            // half-read
+            primary.cancel(false);
+
+            if (hedge != null) {
+                hedge.cancel(false);
+            }
+        }
+    }
+
+    private synchronized boolean spendBudget()
+    {
+        if (budget < 1) {
+            budgetRefusals.incrementAndGet();
+            return false;
+        }
+        budget--;
+        return true;
+    }
+
+    private synchronized void refundBudget()
+    {
+        budget++;
+    }
+
+    /**
+     * Records the latency of a run of a lookup, recalculating the delay from
+     * time to time.
+     *
+     * @param latency
+     *            the latency in nanoseconds.
+     */
+    void record(final long latency)
+    {
+        long[] sorted = null;
+
+        synchronized (samples) {
+            samples[sampleNext] = latency;
+            sampleNext = (sampleNext + 1) % samples.length;
+
+            if (sampleCount < samples.length) {
+                sampleCount++;
+            }
+
+            if (sampleCount >= MIN_SAMPLES
+                    && (delay < 0 || ++sinceRecalculation >= RECALCULATE_INTERVAL)) {
+                sinceRecalculation = 0;
+                sorted = Arrays.copyOf(samples, sampleCount);
+            }
+        }
+
+        if (sorted != null) {
+            Arrays.sort(sorted);
+
+            final int index = Math.max((int) Math.ceil(sorted.length
+                    * percentile / 100.0) - 1, 0);
+
+            delay = Math.max(sorted[index], minDelay * 1000000);
+        }
+    }
+
+    /**
+     * @return the number of latencies the delay is calculated from.
+     */
+    int getSampleCount()
+    {
+        synchronized (samples) {
+            return sampleCount;
+        }
+    }
+
+    private static Exception unwrap(final ExecutionException e)
+    {
+        final Throwable cause = e.getCause();
+
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        return e;
+    }
+
+    /**
+     * @return the time in milliseconds after which a lookup is hedged, or -1
+     *         until enough latencies have been recorded.
+     */
+    public double getDelay()
+    {
+        final long current = delay;
+
+        if (current < 0) {
+            return -1;
+        }
+        return current / 1000000.0;
+    }
+
+    /**
+     * @return the number of lookups made.
+     */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of lookups which were hedged.
+     */
+    public long getHedgeCount()
+    {
+        return hedges.get();
+    }
+
+    /**
+     * @return the number of hedged lookups where the hedge finished first.
+     */
+    public long getHedgeWinCount()
+    {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return the number of slow lookups which weren't hedged because the
+     *         budget was spent.
+     */
+    public long getBudgetRefusalCount()
+    {
+        return budgetRefusals.get();
+    }
+
+    /**
+     * @return the number of lookups run on the caller's thread because every
+     *         thread was busy.
+     */
+    public long getUnhedgedCount()
+    {
+        return unhedged.get();
+    }
+
+    /**
+     * Stops the threads once the lookups in progress have finished.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RequestHedger[delay=" + getDelay() + "ms, requests="
+                + requests + ", hedges=" + hedges + ", hedgeWins="
+                + hedgeWins + ", budgetRefusals=" + budgetRefusals + "]";
+    }
+}
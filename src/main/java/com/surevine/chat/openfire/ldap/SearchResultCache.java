@@ -0,0 +1,246 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.user.User;
+
+/**
+ * A short lived cache of user search results, shared by every session, so
+ * that searches repeated as users retype a query or clients reconnect don't
+ * each go to the directory.<br />
+ * Searches are keyed on their normalized form: the sorted attributes searched,
+ * after the "Name" field has been expanded, the sorted, lower cased and
+ * de-duplicated search terms, and the window of results. Alongside the hit
+ * rate, the time spent on the searches which missed is recorded, so that the
+ * time saved by the hits can be estimated.
+ */
+public class SearchResultCache
+{
+    /**
+     * Separates the parts of a key, and can't appear in attribute names or
+     * search terms.
+     */
+    private static final char SEPARATOR = '\u0000';
+
+    private final ExpiringCache<String, List<User>> cache;
+
+    /**
+     * Counts invalidations, so that searches which were running when the
+     * cache was invalidated don't cache their now stale results.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong missTime = new AtomicLong();
+
+    private final AtomicLong timedMisses = new AtomicLong();
+
+    /**
+     * @param maxSize
+     *            the maximum number of searches to cache.
+     * @param timeToLive
+     *            the time in milliseconds a search's results are cached for.
+     */
+    public SearchResultCache(final int maxSize, final long timeToLive)
+    {
+        this(maxSize, timeToLive, 0);
+    }
+
+    /**
+     * @param maxSize
+     *            the maximum number of searches to cache.
+     * @param timeToLive
+     *            the time in milliseconds a search's results are cached for.
+     * @param staleTime
+     *            the time in milliseconds a search's results are kept for
+     *            after they expire, for {@link #getStale(String)}.
+     */
+    public SearchResultCache(final int maxSize, final long timeToLive,
+            final long staleTime)
+    {
+        cache = new ExpiringCache<String, List<User>>("LDAP Search Cache",
+                maxSize, timeToLive, ExpiringCache.EvictionPolicy.LRU,
+                staleTime);
+    }
+
+    /**
+     * Builds the normalized key of a search.
+     *
+     * @param attributes
+     *            the attributes searched.
+     * @param terms
+     *            the search terms.
+     * @param startIndex
+     *            the index of the first result wanted.
+     * @param numResults
+     *            the maximum number of results wanted.
+     * @return the key.
+     */
+    static String key(final Collection<String> attributes,
+            final String[] terms, final int startIndex, final int numResults)
+    {
+        final TreeSet<String> sortedAttributes = new TreeSet<String>();
+
+        for (String attribute : attributes) {
+            sortedAttributes.add(attribute.toLowerCase(Locale.ENGLISH));
+        }
+
+        final TreeSet<String> sortedTerms = new TreeSet<String>();
+
+        for (String term : terms) {
+            String trimmed = term.trim();
+
+            if (trimmed.length() > 0) {
+                sortedTerms.add(trimmed.toLowerCase(Locale.ENGLISH));
+            }
+        }
+
+        final StringBuilder key = new StringBuilder();
+
+        for (String attribute : sortedAttributes) {
+            key.append(attribute).append(SEPARATOR);
+        }
+        key.append(SEPARATOR);
+
+        for (String term : sortedTerms) {
+            key.append(term).append(SEPARATOR);
+        }
+        key.append(SEPARATOR);
+
+        return key.append(Math.max(startIndex, -1)).append(SEPARATOR)
+                .append(Math.max(numResults, -1)).toString();
+    }
+
+    /**
+     * @param key
+     *            the search's key.
+     * @return the cached results, which can't be modified, or null if the
+     *         search isn't cached.
+     */
+    public List<User> get(final String key)
+    {
+        return cache.get(key);
+    }
+
+    /**
+     * @param key
+     *            the search's key.
+     * @return the cached results, even if they have expired, as long as they
+     *         are within the stale time, or null.
+     */
+    public List<User> getStale(final String key)
+    {
+        return cache.getStale(key);
+    }
+
+    /**
+     * Returns a token to pass to {@link #put(String, List, long, long)} once a
+     * search which missed the cache completes.
+     *
+     * @return the token.
+     */
+    public long getGeneration()
+    {
+        return generation.get();
+    }
+
+    /**
+     * Caches the results of a search, unless the cache has been invalidated
+     * since the search started.
+     *
+     * @param key
+     *            the search's key.
+     * @param users
+     *            the results.
+     * @param startGeneration
+     *            the {@link #getGeneration()} from before the search started.
+     * @param elapsedNanos
+     *            the time the search took, in nanoseconds.
+     * @return the results, which can't be modified.
+     */
+    public List<User> put(final String key, final List<User> users,
+            final long startGeneration, final long elapsedNanos)
+    {
+        final List<User> results = Collections
+                .unmodifiableList(new ArrayList<User>(users));
+
+        missTime.addAndGet(elapsedNanos);
+        timedMisses.incrementAndGet();
+
+        if (generation.get() == startGeneration) {
+            cache.put(key, results);
+        }
+
+        return results;
+    }
+
+    /**
+     * Empties the cache, as users have changed.
+     */
+    public void invalidate()
+    {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    /**
+     * @return the cache holding the results, which can be used to monitor its
+     *         hit rate.
+     */
+    public ExpiringCache<String, List<User>> getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * @return the average time in milliseconds taken by the searches which
+     *         missed the cache, or 0 if none have.
+     */
+    public double getAverageMissTime()
+    {
+        final long misses = timedMisses.get();
+
+        if (misses == 0) {
+            return 0;
+        }
+        return missTime.get() / 1000000.0 / misses;
+    }
+
+    /**
+     * @return an estimate of the time in milliseconds saved by hits, assuming
+     *         each would have taken the average time of a miss.
+     */
+    public double getEstimatedTimeSaved()
+    {
+        return cache.getHits() * getAverageMissTime();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SearchResultCache[" + cache + ", averageMissTime="
+                + getAverageMissTime() + "ms, estimatedTimeSaved="
+                + getEstimatedTimeSaved() + "ms]";
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Hashtable;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
+
+import org.jivesoftware.openfire.ldap.LdapManager;
+
+/**
+ * Creates ldap contexts connected to one particular server, with the rest of
+ * the connection settings taken from the {@link LdapManager}, which would
+ * otherwise choose the server itself. The environment is built the same way
+ * LdapManager builds its own, including StartTLS, alias dereferencing, BER
+ * tracing and connection pooling.
+ */
+class ServerContextFactory implements LdapContextFactory
+{
+    /**
+     * The socket factory Openfire uses for ldaps, which accepts any
+     * certificate as LdapManager does.
+     */
+    private static final String SSL_SOCKET_FACTORY = "org.jivesoftware.util.SimpleSSLSocketFactory";
+
+    private final LdapManager manager;
+
+    private final String url;
+
+    private final long connectTimeout;
+
+    private final long readTimeout;
+
+    private final boolean startTls;
+
+    private final boolean derefAliases;
+
+    /**
+     * @param manager
+     *            supplies the connection settings.
+     * @param url
+     *            the server's ldap URL, without a base DN.
+     * @param connectTimeout
+     *            the time in milliseconds to wait for a connection, or 0 to
+     *            wait indefinitely.
+     * @param readTimeout
+     *            the time in milliseconds to wait for a response, or 0 to wait
+     *            indefinitely.
+     * @param startTls
+     *            whether to secure each connection with StartTLS before
+     *            binding, unless ldaps is used.
+     * @param derefAliases
+     *            whether the directory should dereference aliases.
+     */
+    ServerContextFactory(final LdapManager manager, final String url,
+            final long connectTimeout, final long readTimeout,
+            final boolean startTls, final boolean derefAliases)
+    {
+        this.manager = manager;
+        this.url = url;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.startTls = startTls;
+        this.derefAliases = derefAliases;
+    }
+
+    /**
+     * Builds the URL of a server. As with LdapManager, ldaps is requested
+     * through the security protocol rather than the URL.
+     *
+     * @param host
+     *            the host name, optionally followed by ":" and a port.
+     * @param port
+     *            the port to use if the host doesn't give one.
+     * @return the URL.
+     */
+    static String url(final String host, final int port)
+    {
+        if (host.indexOf(':') >= 0) {
+            return "ldap://" + host;
+        }
+        return "ldap://" + host + ":" + port;
+    }
+
+    public LdapContext createContext(final String baseDN)
+            throws NamingException
+    {
+        final LdapContext context = newContext(getEnvironment(baseDN));
+
+        if (isStartTls()) {
+            try {
+                startTls(context);
+            } catch (NamingException e) {
+                closeQuietly(context);
+                throw e;
+            } catch (IOException e) {
+                closeQuietly(context);
+                NamingException ne = new CommunicationException(
+                        "StartTLS negotiation failed: " + e.getMessage());
+                ne.setRootCause(e);
+                throw ne;
+            }
+        }
+
+        return context;
+    }
+
+    /**
+     * Builds the environment for a new context.
+     *
+     * @param baseDN
+     *            the base DN the context is relative to.
+     * @return the environment.
+     */
+    Hashtable<String, Object> getEnvironment(final String baseDN)
+    {
+        final Hashtable<String, Object> env = new Hashtable<String, Object>();
+
+        env.put(Context.INITIAL_CONTEXT_FACTORY,
+                manager.getInitialContextFactory());
+        env.put(Context.PROVIDER_URL, url + "/" + encode(baseDN));
+
+        if (manager.isSslEnabled()) {
+            env.put("java.naming.ldap.factory.socket", SSL_SOCKET_FACTORY);
+            env.put(Context.SECURITY_PROTOCOL, "ssl");
+        }
+
+        // With StartTLS the credentials mustn't be sent until the connection
+        // is secured, so the bind is made afterwards
+        if (manager.getAdminDN() != null && !isStartTls()) {
+            env.put(Context.SECURITY_AUTHENTICATION, "simple");
+            env.put(Context.SECURITY_PRINCIPAL, manager.getAdminDN());
+
+            if (manager.getAdminPassword() != null) {
+                env.put(Context.SECURITY_CREDENTIALS,
+                        manager.getAdminPassword());
+            }
+        } else {
+            env.put(Context.SECURITY_AUTHENTICATION, "none");
+        }
+
+        if (manager.isDebugEnabled()) {
+            env.put("com.sun.jndi.ldap.trace.ber", System.err);
+        }
+
+        // Connections which have had StartTLS can't be pooled
+        env.put("com.sun.jndi.ldap.connect.pool", String.valueOf(manager
+                .isConnectionPoolEnabled()
+                && !isStartTls()));
+
+        if (manager.isFollowReferralsEnabled()) {
+            env.put(Context.REFERRAL, "follow");
+        }
+
+        env.put("java.naming.ldap.derefAliases", derefAliases ? "always"
+                : "never");
+
+        if (connectTimeout > 0) {
+            env.put("com.sun.jndi.ldap.connect.timeout",
+                    String.valueOf(connectTimeout));
+        }
+        if (readTimeout > 0) {
+            env.put("com.sun.jndi.ldap.read.timeout",
+                    String.valueOf(readTimeout));
+        }
+
+        return env;
+    }
+
+    /**
+     * Connects a new context.
+     *
+     * @param env
+     *            the context's environment.
+     * @return the context.
+     * @throws NamingException
+     */
+    LdapContext newContext(final Hashtable<String, Object> env)
+            throws NamingException
+    {
+        return new InitialLdapContext(env, null);
+    }
+
+    /**
+     * @return true if connections are secured with StartTLS, which isn't
+     *         needed if they use ldaps.
+     */
+    private boolean isStartTls()
+    {
+        return startTls && !manager.isSslEnabled();
+    }
+
+    /**
+     * Secures a context's connection with StartTLS and then sets the admin
+     * credentials, so the bind made by the next operation is encrypted. The
+     * TLS session ends when the context is closed, as its connection isn't
+     * pooled.
+     */
+    private void startTls(final LdapContext context) throws NamingException,
+            IOException
+    {
+        final StartTlsResponse tls = (StartTlsResponse) context
+                .extendedOperation(new StartTlsRequest());
+
+        tls.negotiate();
+
+        if (manager.getAdminDN() != null) {
+            context.addToEnvironment(Context.SECURITY_AUTHENTICATION,
+                    "simple");
+            context.addToEnvironment(Context.SECURITY_PRINCIPAL, manager
+                    .getAdminDN());
+
+            if (manager.getAdminPassword() != null) {
+                context.addToEnvironment(Context.SECURITY_CREDENTIALS,
+                        manager.getAdminPassword());
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return url;
+    }
+
+    private static String encode(final String baseDN)
+    {
+        try {
+            return URLEncoder.encode(baseDN, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(final LdapContext context)
+    {
+        try {
+            context.close();
+        } catch (Exception ignored) {
+            // Ignore.
+        }
+    }
+}
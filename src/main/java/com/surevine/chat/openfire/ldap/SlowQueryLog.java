@@ -0,0 +1,324 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+
+package com.surevine.chat.openfire.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs user searches which take longer than a threshold, and keeps
+ * aggregates for the slowest filter shapes.<br />
+ * Searches are identified by the {@link #fingerprint(String) fingerprint} of
+ * their filter, which keeps the attributes, operators and wildcards but not
+ * the search terms, so that searches of the same shape are counted together
+ * and no user input is logged. Slow searches are logged to this class's own
+ * logger, so they can be sent somewhere of their own. Once
+ * <code>maxShapes</code> shapes are held, a new shape replaces the shape with
+ * the least total time if it took longer than that.
+ */
+public class SlowQueryLog
+{
+    private static final Logger Log = LoggerFactory
+            .getLogger(SlowQueryLog.class);
+
+    /**
+     * Orders shapes by total time.
+     */
+    private static final Comparator<Shape> BY_TOTAL_TIME = new Comparator<Shape>() {
+        public int compare(final Shape a, final Shape b)
+        {
+            return Long.valueOf(a.totalNanos).compareTo(
+                    Long.valueOf(b.totalNanos));
+        }
+    };
+
+    private final long thresholdNanos;
+
+    private final int maxShapes;
+
+    /**
+     * The slowest shapes, keyed on fingerprint. Guarded by itself.
+     */
+    private final Map<String, Shape> shapes = new HashMap<String, Shape>();
+
+    private final AtomicLong slowQueries = new AtomicLong();
+
+    /**
+     * @param threshold
+     *            the duration in milliseconds from which searches are slow.
+     * @param maxShapes
+     *            the maximum number of shapes to keep aggregates for.
+     */
+    public SlowQueryLog(final long threshold, final int maxShapes)
+    {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(
+                threshold, 0));
+        this.maxShapes = Math.max(maxShapes, 1);
+    }
+
+    /**
+     * Reduces a filter to its shape, replacing each run of literal characters
+     * in an assertion value with "?". For example
+     * <code>(&amp;(uid=*)(|(givenName=jo*)(sn=*smi*)))</code> becomes
+     * <code>(&amp;(uid=*)(|(givenName=?*)(sn=*?*)))</code>.
+     * 
+     * @param filter
+     *            the ldap filter.
+     * @return the fingerprint.
+     */
+    public static String fingerprint(final String filter)
+    {
+        final StringBuilder shape = new StringBuilder(filter.length());
+        boolean inValue = false;
+        boolean inLiteral = false;
+
+        for (int i = 0; i < filter.length(); i++) {
+            final char c = filter.charAt(i);
+
+            if (!inValue) {
+                shape.append(c);
+                inValue = c == '=';
+            } else if (c == ')') {
+                shape.append(c);
+                inValue = false;
+                inLiteral = false;
+            } else if (c == '*') {
+                shape.append(c);
+                inLiteral = false;
+            } else if (!inLiteral) {
+                // Escaped characters are part of the literal, as the escapes
+                // never contain a '*' or ')'
+                shape.append('?');
+                inLiteral = true;
+            }
+        }
+
+        return shape.toString();
+    }
+
+    /**
+     * Records a search, logging it if it was slow.
+     * 
+     * @param filter
+     *            the search filter.
+     * @param elapsedNanos
+     *            how long the search took in nanoseconds.
+     * @param resultCount
+     *            the number of users found.
+     */
+    public void record(final String filter, final long elapsedNanos,
+            final int resultCount)
+    {
+        if (elapsedNanos < thresholdNanos) {
+            return;
+        }
+
+        slowQueries.incrementAndGet();
+
+        final String fingerprint = fingerprint(filter);
+
+        Log.warn("Slow user search took "
+                + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms for "
+                + resultCount + " results: " + fingerprint);
+
+        synchronized (shapes) {
+            Shape shape = shapes.get(fingerprint);
+
+            if (shape == null) {
+                if (shapes.size() >= maxShapes) {
+                    final Shape fastest = Collections.min(shapes.values(),
+                            BY_TOTAL_TIME);
+
+                    if (fastest.totalNanos >= elapsedNanos) {
+                        return;
+                    }
+                    shapes.remove(fastest.fingerprint);
+                }
+                shape = new Shape(fingerprint);
+                shapes.put(fingerprint, shape);
+            }
+
+            shape.add(elapsedNanos, resultCount);
+        }
+    }
+
+    /**
+     * @return a copy of the aggregates for the slowest shapes, in order of
+     *         total time, longest first.
+     */
+    public List<Shape> getSlowestShapes()
+    {
+        final List<Shape> slowest = new ArrayList<Shape>();
+
+        synchronized (shapes) {
+            for (Shape shape : shapes.values()) {
+                slowest.add(shape.copy());
+            }
+        }
+
+        Collections.sort(slowest, Collections.reverseOrder(BY_TOTAL_TIME));
+
+        return slowest;
+    }
+
+    /**
+     * @return the number of slow searches.
+     */
+    public long getSlowQueryCount()
+    {
+        return slowQueries.get();
+    }
+
+    /**
+     * @return the duration in milliseconds from which searches are slow.
+     */
+    public long getThreshold()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    /**
+     * @return the maximum number of shapes aggregates are kept for.
+     */
+    public int getMaxShapes()
+    {
+        return maxShapes;
+    }
+
+    /**
+     * Forgets the slow searches recorded so far.
+     */
+    public void reset()
+    {
+        synchronized (shapes) {
+            shapes.clear();
+        }
+        slowQueries.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SlowQueryLog[threshold=" + getThreshold() + "ms, slowQueries="
+                + slowQueries + ", shapes=" + getSlowestShapes() + "]";
+    }
+
+    /**
+     * The aggregate of the slow searches of one shape.
+     */
+    public static class Shape
+    {
+        private final String fingerprint;
+
+        private long count;
+
+        private long totalNanos;
+
+        private long maxNanos;
+
+        private long totalResults;
+
+        Shape(final String fingerprint)
+        {
+            this.fingerprint = fingerprint;
+        }
+
+        void add(final long elapsedNanos, final int resultCount)
+        {
+            count++;
+            totalNanos += elapsedNanos;
+            maxNanos = Math.max(maxNanos, elapsedNanos);
+            totalResults += resultCount;
+        }
+
+        Shape copy()
+        {
+            final Shape copy = new Shape(fingerprint);
+            copy.count = count;
+            copy.totalNanos = totalNanos;
+            copy.maxNanos = maxNanos;
+            copy.totalResults = totalResults;
+            return copy;
+        }
+
+        /**
+         * @return the filter fingerprint.
+         */
+        public String getFingerprint()
+        {
+            return fingerprint;
+        }
+
+        /**
+         * @return the number of slow searches of this shape.
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return the total time in milliseconds of the slow searches.
+         */
+        public double getTotalTime()
+        {
+            return totalNanos / 1000000.0;
+        }
+
+        /**
+         * @return the mean time in milliseconds of the slow searches.
+         */
+        public double getMeanTime()
+        {
+            return count == 0 ? 0 : getTotalTime() / count;
+        }
+
+        /**
+         * @return the longest time in milliseconds of the slow searches.
+         */
+        public double getMaxTime()
+        {
+            return maxNanos / 1000000.0;
+        }
+
+        /**
+         * @return the mean number of users found by the slow searches.
+         */
+        public double getMeanResultCount()
+        {
+            return count == 0 ? 0 : (double) totalResults / count;
+        }
+
+        @Override
+        public String toString()
+        {
+            return fingerprint + ": count=" + count + ", mean="
+                    + getMeanTime() + "ms, max=" + getMaxTime()
+                    + "ms, meanResults=" + getMeanResultCount();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.Control;
+
+/**
+ * The Content Synchronization (syncrepl) request control (RFC 4533), asking
+ * for a search which returns changed entries as they happen. JNDI has no class
+ * for it, so it is encoded here, along with the Sync State control returned
+ * with each entry.
+ */
+final class SyncRequestControl implements Control
+{
+    private static final long serialVersionUID = 1L;
+
+    static final String OID = "1.3.6.1.4.1.4203.1.9.1.1";
+
+    static final String STATE_OID = "1.3.6.1.4.1.4203.1.9.1.2";
+
+    /**
+     * The mode which returns the current content and then persists, returning
+     * changes as they happen.
+     */
+    static final int REFRESH_AND_PERSIST = 3;
+
+    /**
+     * The entry is unchanged since the cookie.
+     */
+    static final int PRESENT = 0;
+
+    static final int ADD = 1;
+
+    static final int MODIFY = 2;
+
+    static final int DELETE = 3;
+
+    private final byte[] value;
+
+    /**
+     * @param cookie
+     *            the cookie to resume from, or null to start afresh.
+     */
+    SyncRequestControl(final byte[] cookie)
+    {
+        BerEncoder encoder = new BerEncoder().beginSequence(
+                BerEncoder.SEQUENCE).writeInteger(BerEncoder.ENUMERATED,
+                REFRESH_AND_PERSIST);
+
+        if (cookie != null) {
+            encoder.writeOctetString(BerEncoder.OCTET_STRING, cookie);
+        }
+
+        value = encoder.endSequence().toByteArray();
+    }
+
+    public String getID()
+    {
+        return OID;
+    }
+
+    public boolean isCritical()
+    {
+        return CRITICAL;
+    }
+
+    public byte[] getEncodedValue()
+    {
+        return value.clone();
+    }
+
+    /**
+     * Finds and decodes the Sync State control of an entry.
+     *
+     * @param controls
+     *            the entry's controls, which may be null.
+     * @return the state, or null if there isn't one.
+     * @throws NamingException
+     *             if the control is malformed.
+     */
+    static State findState(final Control[] controls) throws NamingException
+    {
+        if (controls == null) {
+            return null;
+        }
+
+        for (Control control : controls) {
+            if (STATE_OID.equals(control.getID())) {
+                return State.decode(control.getEncodedValue());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The Sync State control.
+     */
+    static final class State
+    {
+        private final int state;
+
+        private final byte[] cookie;
+
+        State(final int state, final byte[] cookie)
+        {
+            this.state = state;
+            this.cookie = cookie;
+        }
+
+        static State decode(final byte[] value) throws NamingException
+        {
+            if (value == null) {
+                throw new NamingException("Empty sync state control");
+            }
+
+            BerDecoder decoder = new BerDecoder(value);
+            decoder.readSequence(BerEncoder.SEQUENCE);
+
+            int state = (int) decoder.readInteger(BerEncoder.ENUMERATED);
+
+            // The entryUUID isn't needed
+            decoder.readOctetString(BerEncoder.OCTET_STRING);
+
+            byte[] cookie = null;
+
+            if (decoder.hasMore()) {
+                cookie = decoder.readOctetString(BerEncoder.OCTET_STRING);
+            }
+
+            decoder.endSequence();
+
+            return new State(state, cookie);
+        }
+
+        /**
+         * @return the state, one of {@link SyncRequestControl#PRESENT},
+         *         {@link SyncRequestControl#ADD},
+         *         {@link SyncRequestControl#MODIFY} or
+         *         {@link SyncRequestControl#DELETE}.
+         */
+        int getState()
+        {
+            return state;
+        }
+
+        /**
+         * @return the cookie to resume from after this entry, or null if the
+         *         directory didn't send one.
+         */
+        byte[] getCookie()
+        {
+            return cookie;
+        }
+    }
+}
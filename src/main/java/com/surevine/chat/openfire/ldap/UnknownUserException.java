@@ -0,0 +1,50 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import org.jivesoftware.openfire.user.UserNotFoundException;
+
+/**
+ * Thrown when the directory definitely has no entry for a user, as opposed to
+ * the user being unavailable because of a directory error.<br />
+ * Unknown usernames are common (federated and spam traffic) so this exception
+ * doesn't capture a stack trace, which makes it cheap to throw.
+ */
+public class UnknownUserException extends UserNotFoundException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message
+     *            the detail message.
+     */
+    public UnknownUserException(final String message)
+    {
+        super(message);
+    }
+
+    /**
+     * Doesn't fill in the stack trace, as it is never needed.
+     *
+     * @return this exception.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+        return this;
+    }
+}
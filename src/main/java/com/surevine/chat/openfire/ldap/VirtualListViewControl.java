@@ -0,0 +1,168 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * (C) 2011 Surevine Ltd.
+ */
+
+package com.surevine.chat.openfire.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.Control;
+
+/**
+ * The Virtual List View request control (draft-ietf-ldapext-ldapv3-vlv),
+ * asking for a window of a sorted search by offset. It must be sent with a
+ * server side sort control. JNDI has no class for it, so it is encoded here.
+ */
+final class VirtualListViewControl implements Control
+{
+    private static final long serialVersionUID = 1L;
+
+    static final String OID = "2.16.840.1.113730.3.4.9";
+
+    static final String RESPONSE_OID = "2.16.840.1.113730.3.4.10";
+
+    /**
+     * The result code of a successful response.
+     */
+    static final int SUCCESS = 0;
+
+    private final byte[] value;
+
+    /**
+     * @param offset
+     *            the one based position of the first entry wanted.
+     * @param count
+     *            the number of entries wanted.
+     */
+    VirtualListViewControl(final int offset, final int count)
+    {
+        if (offset < 1 || count < 1) {
+            throw new IllegalArgumentException("Invalid window: offset "
+                    + offset + ", count " + count);
+        }
+
+        value = new BerEncoder().beginSequence(BerEncoder.SEQUENCE)
+                .writeInteger(BerEncoder.INTEGER, 0) // beforeCount
+                .writeInteger(BerEncoder.INTEGER, count - 1) // afterCount
+                .beginSequence(BerEncoder.CONTEXT_CONSTRUCTED) // byOffset
+                .writeInteger(BerEncoder.INTEGER, offset)
+                .writeInteger(BerEncoder.INTEGER, 0) // contentCount unknown
+                .endSequence().endSequence().toByteArray();
+    }
+
+    public String getID()
+    {
+        return OID;
+    }
+
+    public boolean isCritical()
+    {
+        return CRITICAL;
+    }
+
+    public byte[] getEncodedValue()
+    {
+        return value.clone();
+    }
+
+    /**
+     * Finds and decodes the response control.
+     *
+     * @param controls
+     *            the response controls of a search, which may be null.
+     * @return the response, or null if there isn't one.
+     * @throws NamingException
+     *             if the response is malformed.
+     */
+    static Response findResponse(final Control[] controls)
+            throws NamingException
+    {
+        if (controls == null) {
+            return null;
+        }
+
+        for (Control control : controls) {
+            if (RESPONSE_OID.equals(control.getID())) {
+                return Response.decode(control.getEncodedValue());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The Virtual List View response control.
+     */
+    static final class Response
+    {
+        private final int targetPosition;
+
+        private final int contentCount;
+
+        private final int result;
+
+        Response(final int targetPosition, final int contentCount,
+                final int result)
+        {
+            this.targetPosition = targetPosition;
+            this.contentCount = contentCount;
+            this.result = result;
+        }
+
+        static Response decode(final byte[] value) throws NamingException
+        {
+            if (value == null) {
+                throw new NamingException("Empty virtual list view response");
+            }
+
+            BerDecoder decoder = new BerDecoder(value);
+            decoder.readSequence(BerEncoder.SEQUENCE);
+
+            int targetPosition = (int) decoder.readInteger(BerEncoder.INTEGER);
+            int contentCount = (int) decoder.readInteger(BerEncoder.INTEGER);
+            int result = (int) decoder.readInteger(BerEncoder.ENUMERATED);
+
+            // Any context ID is ignored, as each window is a new search
+            decoder.endSequence();
+
+            return new Response(targetPosition, contentCount, result);
+        }
+
+        /**
+         * @return the one based position of the first entry returned.
+         */
+        int getTargetPosition()
+        {
+            return targetPosition;
+        }
+
+        /**
+         * @return the server's estimate of the number of entries in the
+         *         sorted list.
+         */
+        int getContentCount()
+        {
+            return contentCount;
+        }
+
+        /**
+         * @return the result code, {@link VirtualListViewControl#SUCCESS} if
+         *         the window was returned.
+         */
+        int getResult()
+        {
+            return result;
+        }
+    }
+}
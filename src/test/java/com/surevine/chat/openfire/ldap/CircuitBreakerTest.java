@@ -0,0 +1,184 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest
+{
+    static final long MILLIS = 1000000;
+
+    long now;
+
+    CircuitBreaker breaker;
+
+    @Before
+    public void setUp()
+    {
+        now = 1000000;
+        breaker = createBreaker(0);
+    }
+
+    CircuitBreaker createBreaker(final int maxConcurrent)
+    {
+        return new CircuitBreaker("test", 50, 100, 4, 1000, maxConcurrent) {
+            @Override
+            long currentTime()
+            {
+                return now;
+            }
+        };
+    }
+
+    void call(final long millis, final boolean failed)
+    {
+        assertTrue("Operation rejected", breaker.tryAcquire());
+        breaker.release(millis * MILLIS, failed);
+    }
+
+    @Test
+    public void testOpensOnFailureRate()
+    {
+        call(1, false);
+        call(1, true);
+        call(1, false);
+
+        assertEquals("Opened before the window was full",
+                CircuitBreaker.State.CLOSED, breaker.getState());
+
+        call(1, true);
+
+        assertEquals("Not opened", CircuitBreaker.State.OPEN,
+                breaker.getState());
+        assertFalse("Operation allowed while open", breaker.tryAcquire());
+        assertEquals("Rejection not counted", 1,
+                breaker.getOpenRejectionCount());
+        assertEquals("Opening not counted", 1, breaker.getOpenCount());
+    }
+
+    @Test
+    public void testSlowCallsCount()
+    {
+        call(1, false);
+        call(1, false);
+        call(200, false);
+        call(150, false);
+
+        assertEquals("Not opened by slow calls", CircuitBreaker.State.OPEN,
+                breaker.getState());
+        assertEquals("Slow calls not counted", 2, breaker.getSlowCallCount());
+        assertEquals("Slow calls counted as failures", 0,
+                breaker.getFailureCount());
+    }
+
+    @Test
+    public void testWindowSlides()
+    {
+        call(1, true);
+        call(1, false);
+        call(1, false);
+        call(1, false);
+        call(1, true);
+
+        assertEquals("Old failure still in window",
+                CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testTrialClosesCircuit()
+    {
+        for (int i = 0; i < 4; i++) {
+            call(1, true);
+        }
+
+        now += 1000;
+
+        assertTrue("Trial not allowed", breaker.tryAcquire());
+        assertEquals("Not half open", CircuitBreaker.State.HALF_OPEN,
+                breaker.getState());
+        assertFalse("Second trial allowed", breaker.tryAcquire());
+
+        breaker.release(MILLIS, false);
+
+        assertEquals("Not closed", CircuitBreaker.State.CLOSED,
+                breaker.getState());
+        assertEquals("Closing not counted", 1, breaker.getCloseCount());
+
+        // The window starts afresh
+        call(1, true);
+        assertEquals("Old failures kept", CircuitBreaker.State.CLOSED,
+                breaker.getState());
+    }
+
+    @Test
+    public void testFailedTrialReopensCircuit()
+    {
+        for (int i = 0; i < 4; i++) {
+            call(1, true);
+        }
+
+        now += 1000;
+        call(1, true);
+
+        assertEquals("Not reopened", CircuitBreaker.State.OPEN,
+                breaker.getState());
+        assertEquals("Reopening not counted", 2, breaker.getOpenCount());
+
+        now += 999;
+        assertFalse("Operation allowed before open time",
+                breaker.tryAcquire());
+    }
+
+    @Test
+    public void testBulkheadLimitsConcurrency() throws Exception
+    {
+        breaker = createBreaker(1);
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread holder = new Thread() {
+            @Override
+            public void run()
+            {
+                breaker.tryAcquire();
+                acquired.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    // Finish
+                }
+                breaker.release(MILLIS, false);
+            }
+        };
+        holder.start();
+        acquired.await();
+
+        assertEquals("Wrong operations in progress", 1,
+                breaker.getInProgress());
+        assertFalse("Bulkhead exceeded", breaker.tryAcquire());
+        assertEquals("Rejection not counted", 1,
+                breaker.getBulkheadRejectionCount());
+
+        done.countDown();
+        holder.join();
+
+        call(1, false);
+    }
+
+    @Test
+    public void testNoFailureRateNeverOpens()
+    {
+        breaker = new CircuitBreaker("test", 0, 0, 2, 1000, 0);
+
+        for (int i = 0; i < 4; i++) {
+            call(1, true);
+        }
+
+        assertEquals("Opened", CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals("No limit reported", -1, breaker.getInProgress());
+    }
+}
@@ -0,0 +1,240 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryChangeListenerTest
+{
+    /**
+     * A search result with response controls, as returned by a persistent
+     * search.
+     */
+    static class ResultWithControls extends SearchResult implements
+            HasControls
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Control[] controls;
+
+        ResultWithControls(final String name, final Attributes attrs,
+                final Control... controls)
+        {
+            super(name, null, attrs);
+            this.controls = controls;
+        }
+
+        public Control[] getControls()
+        {
+            return controls;
+        }
+    }
+
+    /**
+     * The usernames reported changed, with "-" before deleted usernames and
+     * "*" for everyone.
+     */
+    List<String> changed;
+
+    DirectoryChangeListener listener;
+
+    @Before
+    public void setUp()
+    {
+        changed = new ArrayList<String>();
+
+        listener = new DirectoryChangeListener(new LdapContextFactory() {
+            public LdapContext createContext(final String baseDN)
+                    throws NamingException
+            {
+                throw new NamingException("Not used");
+            }
+        }, "ou=people", "(uid=*)", "uid", DirectoryChangeListener.Mode.AUTO,
+                new DirectoryChangeListener.Handler() {
+                    public String[] getAttributes()
+                    {
+                        return new String[] { "cn", "mail" };
+                    }
+
+                    public void userChanged(final Attributes attrs)
+                            throws NamingException
+                    {
+                        changed.add((String) attrs.get("uid").get());
+                    }
+
+                    public void userDeleted(final Attributes attrs)
+                            throws NamingException
+                    {
+                        changed.add("-" + attrs.get("uid").get());
+                    }
+
+                    public void allChanged()
+                    {
+                        changed.add("*");
+                    }
+                });
+    }
+
+    static Attributes uid(final String username)
+    {
+        Attributes attrs = new BasicAttributes(true);
+        attrs.put("uid", username);
+        return attrs;
+    }
+
+    static Control syncState(final int state, final String cookie)
+            throws Exception
+    {
+        BerEncoder encoder = new BerEncoder()
+                .beginSequence(BerEncoder.SEQUENCE)
+                .writeInteger(BerEncoder.ENUMERATED, state)
+                .writeOctetString(BerEncoder.OCTET_STRING, new byte[16]);
+
+        if (cookie != null) {
+            encoder.writeOctetString(BerEncoder.OCTET_STRING,
+                    cookie.getBytes("UTF-8"));
+        }
+
+        return new BasicControl(SyncRequestControl.STATE_OID, false, encoder
+                .endSequence().toByteArray());
+    }
+
+    static Control entryChange(final int changeType, final String previousDN)
+            throws Exception
+    {
+        BerEncoder encoder = new BerEncoder().beginSequence(
+                BerEncoder.SEQUENCE).writeInteger(BerEncoder.ENUMERATED,
+                changeType);
+
+        if (previousDN != null) {
+            encoder.writeOctetString(BerEncoder.OCTET_STRING,
+                    previousDN.getBytes("UTF-8"));
+        }
+
+        return new BasicControl(PersistentSearchControl.ENTRY_CHANGE_OID,
+                false, encoder.writeInteger(BerEncoder.INTEGER, 42)
+                        .endSequence().toByteArray());
+    }
+
+    @Test
+    public void testEncodeSyncRequest() throws Exception
+    {
+        SyncRequestControl control = new SyncRequestControl(
+                "c".getBytes("UTF-8"));
+
+        assertEquals("Wrong OID", "1.3.6.1.4.1.4203.1.9.1.1", control.getID());
+        assertTrue("Control not critical", control.isCritical());
+        assertArrayEquals("Wrong encoding", VirtualListViewControlTest.bytes(
+                0x30, 0x06, 0x0a, 0x01, 0x03, 0x04, 0x01, 0x63),
+                control.getEncodedValue());
+        assertArrayEquals("Wrong encoding without cookie",
+                VirtualListViewControlTest.bytes(0x30, 0x03, 0x0a, 0x01, 0x03),
+                new SyncRequestControl(null).getEncodedValue());
+    }
+
+    @Test
+    public void testEncodePersistentSearch()
+    {
+        PersistentSearchControl control = new PersistentSearchControl();
+
+        assertEquals("Wrong OID", "2.16.840.1.113730.3.4.3", control.getID());
+        assertArrayEquals("Wrong encoding", VirtualListViewControlTest.bytes(
+                0x30, 0x09, 0x02, 0x01, 0x0f, 0x01, 0x01, 0xff, 0x01, 0x01,
+                0xff), control.getEncodedValue());
+    }
+
+    @Test
+    public void testSyncreplChange() throws Exception
+    {
+        listener.process(new ResultWithControls("uid=jsmith", uid("jsmith"),
+                syncState(SyncRequestControl.MODIFY, "cookie1")));
+
+        assertEquals("Wrong changes", Arrays.asList("jsmith"), changed);
+        assertEquals("Change not counted", 1, listener.getChangeCount());
+    }
+
+    @Test
+    public void testSyncreplPresentEntryIsIgnored() throws Exception
+    {
+        listener.process(new ResultWithControls("uid=jsmith", uid("jsmith"),
+                syncState(SyncRequestControl.PRESENT, null)));
+
+        assertTrue("Unchanged entry reported", changed.isEmpty());
+    }
+
+    @Test
+    public void testSyncreplDeleteUsesDN() throws Exception
+    {
+        listener.process(new ResultWithControls("uid=bjones,ou=staff",
+                new BasicAttributes(true), syncState(
+                        SyncRequestControl.DELETE, null)));
+
+        assertEquals("Wrong changes", Arrays.asList("-bjones"), changed);
+    }
+
+    @Test
+    public void testUnknownUsernameChangesEveryone() throws Exception
+    {
+        listener.process(new ResultWithControls("cn=Bob Jones",
+                new BasicAttributes(true), syncState(
+                        SyncRequestControl.DELETE, null)));
+
+        assertEquals("Wrong changes", Arrays.asList("*"), changed);
+    }
+
+    @Test
+    public void testPersistentSearchRename() throws Exception
+    {
+        listener.process(new ResultWithControls("uid=anne", uid("anne"),
+                entryChange(PersistentSearchControl.MODIFY_DN,
+                        "uid=asmithers,ou=people")));
+
+        assertEquals("Wrong changes", Arrays.asList("-asmithers", "anne"),
+                changed);
+    }
+
+    @Test
+    public void testPersistentSearchDelete() throws Exception
+    {
+        listener.process(new ResultWithControls("uid=anne,ou=people",
+                new BasicAttributes(true), entryChange(
+                        PersistentSearchControl.DELETE, null)));
+
+        assertEquals("Wrong changes", Arrays.asList("-anne"), changed);
+    }
+
+    @Test
+    public void testMalformedControlChangesEveryone() throws Exception
+    {
+        listener.process(new ResultWithControls("uid=jsmith", uid("jsmith"),
+                new BasicControl(SyncRequestControl.STATE_OID, false,
+                        VirtualListViewControlTest.bytes(0x30, 0x05))));
+
+        assertEquals("Wrong changes", Arrays.asList("*"), changed);
+    }
+
+    @Test
+    public void testParseMode()
+    {
+        assertEquals(DirectoryChangeListener.Mode.PSEARCH,
+                DirectoryChangeListener.Mode.parse("PSearch",
+                        DirectoryChangeListener.Mode.AUTO));
+        assertEquals(DirectoryChangeListener.Mode.AUTO,
+                DirectoryChangeListener.Mode.parse("dirsync",
+                        DirectoryChangeListener.Mode.AUTO));
+    }
+}
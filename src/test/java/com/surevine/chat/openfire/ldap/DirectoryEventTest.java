@@ -0,0 +1,99 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DirectoryEventTest
+{
+    /**
+     * Calls the public method with the given name and number of arguments.
+     */
+    static Object invoke(final Object target, final String name,
+            final Object... args) throws Exception
+    {
+        final Class<?> type = target instanceof Class ? (Class<?>) target
+                : target.getClass();
+
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name)
+                    && method.getParameterTypes().length == args.length) {
+                return method.invoke(target instanceof Class ? null : target,
+                        args);
+            }
+        }
+
+        throw new NoSuchMethodException(name);
+    }
+
+    @Test
+    public void testNothingRecordedWithoutRecording()
+    {
+        DirectoryEvent.register(0);
+
+        DirectoryEvent event = DirectoryEvent.begin("search");
+
+        assertFalse("Event enabled without a recording", event.isEnabled());
+        assertSame("Disabled event allocated", event,
+                DirectoryEvent.begin("read"));
+        assertSame("Setter returned another event", event,
+                event.username("jsmith").resultCount(1).cacheHit(true));
+
+        event.commit();
+    }
+
+    @Test
+    public void testEventIsRecorded() throws Exception
+    {
+        assumeTrue(DirectoryEvent.register(0));
+
+        final Object recording = Class.forName("jdk.jfr.Recording")
+                .newInstance();
+        invoke(invoke(recording, "enable", DirectoryEvent.NAME),
+                "withThreshold", Class.forName("java.time.Duration")
+                        .getField("ZERO").get(null));
+
+        final File file = File.createTempFile("ldap", ".jfr");
+        try {
+            invoke(recording, "start");
+
+            DirectoryEvent.begin("search").filter("(uid=jsmith)")
+                    .baseDN("ou=people").attributes(new String[] { "uid",
+                            "cn" }).resultCount(1).commit();
+
+            invoke(recording, "stop");
+            invoke(recording, "dump", invoke(file, "toPath"));
+
+            final List<?> events = (List<?>) invoke(
+                    Class.forName("jdk.jfr.consumer.RecordingFile"),
+                    "readAllEvents", invoke(file, "toPath"));
+
+            assertEquals("Wrong number of events", 1, events.size());
+
+            final Object event = events.get(0);
+
+            assertEquals("Wrong event type", DirectoryEvent.NAME, invoke(
+                    invoke(event, "getEventType"), "getName"));
+            assertEquals("Wrong operation", "search",
+                    invoke(event, "getString", "operation"));
+            assertEquals("Wrong filter", "(uid=jsmith)",
+                    invoke(event, "getString", "filter"));
+            assertEquals("Wrong base DN", "ou=people",
+                    invoke(event, "getString", "baseDN"));
+            assertEquals("Wrong attributes", "uid,cn",
+                    invoke(event, "getString", "attributes"));
+            assertEquals("Wrong result count", 1,
+                    invoke(event, "getInt", "resultCount"));
+            assertEquals("Wrong cache hit flag", Boolean.FALSE,
+                    invoke(event, "getBoolean", "cacheHit"));
+        } finally {
+            invoke(recording, "close");
+            file.delete();
+        }
+    }
+}
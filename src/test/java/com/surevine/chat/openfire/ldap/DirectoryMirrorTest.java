@@ -0,0 +1,300 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+
+import org.jivesoftware.openfire.user.User;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryMirrorTest
+{
+    /**
+     * The users the scanner returns, keyed on username.
+     */
+    Map<String, Attributes> directory;
+
+    /**
+     * The extra filters the scanner has been called with.
+     */
+    List<String> scans;
+
+    boolean failScans;
+
+    long now;
+
+    DirectoryMirror mirror;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = new LinkedHashMap<String, Attributes>();
+        scans = new ArrayList<String>();
+        now = 1300000000000L;
+
+        addUser("jsmith", "John", "Smith");
+        addUser("asmithers", "Anne", "Smithers");
+        addUser("bjones", "Bob", "Jones");
+
+        DirectoryScanner scanner = new DirectoryScanner() {
+            public void scan(final String extraFilter, final Handler handler)
+                    throws NamingException
+            {
+                scans.add(extraFilter);
+
+                if (failScans) {
+                    throw new CommunicationException();
+                }
+
+                for (Map.Entry<String, Attributes> entry : directory
+                        .entrySet()) {
+                    if (extraFilter != null
+                            && extraFilter.startsWith("(uid=")
+                            && !extraFilter.equals("(uid=" + entry.getKey()
+                                    + ")")) {
+                        continue;
+                    }
+                    handler.handle(entry.getKey(), entry.getValue(), new User(
+                            entry.getKey(), entry.getKey() + " name", null,
+                            new Date(), new Date()));
+                }
+            }
+        };
+
+        mirror = new DirectoryMirror(scanner,
+                Arrays.asList("uid", "givenName", "sn"), 60000, 3600000,
+                300000) {
+            @Override
+            long currentTime()
+            {
+                return now;
+            }
+        };
+    }
+
+    void addUser(final String username, final String givenName,
+            final String sn)
+    {
+        Attributes attrs = new BasicAttributes(true);
+        attrs.put("uid", username);
+        attrs.put("givenName", givenName);
+        attrs.put("sn", sn);
+        directory.put(username, attrs);
+    }
+
+    static List<String> usernames(final List<User> users)
+    {
+        List<String> usernames = new ArrayList<String>();
+
+        for (User user : users) {
+            usernames.add(user.getUsername());
+        }
+
+        return usernames;
+    }
+
+    @Test
+    public void testNotUsableUntilLoaded() throws Exception
+    {
+        assertFalse("Mirror usable before loading", mirror.isUsable());
+        assertEquals("Lag reported before loading", -1, mirror.getSyncLag());
+
+        mirror.sync();
+
+        assertTrue("Mirror not usable after loading", mirror.isUsable());
+        assertEquals("Wrong number of users", 3, mirror.size());
+        assertNull("Full sync used an extra filter", scans.get(0));
+        assertTrue("Memory not estimated", mirror.getEstimatedMemory() > 0);
+    }
+
+    @Test
+    public void testGetUser() throws Exception
+    {
+        mirror.sync();
+
+        assertEquals("User not found", "jsmith", mirror.getUser("JSmith")
+                .getUsername());
+        assertNull("Unknown user found", mirror.getUser("nobody"));
+        assertEquals("Wrong usernames",
+                Arrays.asList("asmithers", "bjones", "jsmith"),
+                new ArrayList<String>(mirror.getUsernames()));
+    }
+
+    @Test
+    public void testFindUsers() throws Exception
+    {
+        mirror.sync();
+
+        List<String> nameAttributes = Arrays.asList("givenName", "sn");
+
+        assertEquals("Wrong users found", Arrays.asList("asmithers", "jsmith"),
+                usernames(mirror.findUsers(nameAttributes,
+                        new String[] { "smi" }, -1, -1)));
+        assertEquals("Terms not all required", Arrays.asList("jsmith"),
+                usernames(mirror.findUsers(nameAttributes, new String[] {
+                        "Smi", "jo" }, -1, -1)));
+        assertEquals("Wildcard not matched", Arrays.asList("asmithers"),
+                usernames(mirror.findUsers(nameAttributes,
+                        new String[] { "*thers" }, -1, -1)));
+        assertTrue("Unsearched attribute matched", mirror.findUsers(
+                Arrays.asList("uid"), new String[] { "smi" }, -1, -1)
+                .isEmpty());
+    }
+
+    @Test
+    public void testFindUsersSeesModifiedValues() throws Exception
+    {
+        mirror.sync();
+
+        now += 60000;
+        addUser("asmithers", "Anne", "Jones");
+
+        mirror.sync();
+
+        List<String> nameAttributes = Arrays.asList("givenName", "sn");
+
+        assertEquals("Old value matched", Arrays.asList("jsmith"),
+                usernames(mirror.findUsers(nameAttributes,
+                        new String[] { "smi" }, -1, -1)));
+        assertEquals("New value not matched",
+                Arrays.asList("asmithers", "bjones"),
+                usernames(mirror.findUsers(nameAttributes,
+                        new String[] { "jones" }, -1, -1)));
+    }
+
+    @Test
+    public void testFindUsersWindow() throws Exception
+    {
+        mirror.sync();
+
+        assertEquals("Wrong window", Arrays.asList("bjones"),
+                usernames(mirror.findUsers(Arrays.asList("uid"),
+                        new String[] { "*" }, 1, 1)));
+    }
+
+    @Test
+    public void testIncrementalSync() throws Exception
+    {
+        mirror.sync();
+
+        now += 60000;
+        addUser("cbrown", "Charlie", "Brown");
+
+        mirror.sync();
+
+        assertEquals("Modified users not requested",
+                "(modifyTimestamp>=20110313070140Z)", scans.get(1));
+        assertEquals("New user not mirrored", 4, mirror.size());
+        assertEquals("Incremental sync not counted", 1,
+                mirror.getIncrementalSyncCount());
+    }
+
+    @Test
+    public void testFullSyncDropsDeletedUsers() throws Exception
+    {
+        mirror.sync();
+
+        directory.remove("bjones");
+        now += 3600000;
+
+        mirror.sync();
+
+        assertNull("Deleted user still mirrored", mirror.getUser("bjones"));
+        assertEquals("Full sync not counted", 2, mirror.getFullSyncCount());
+    }
+
+    @Test
+    public void testRefreshUser() throws Exception
+    {
+        mirror.sync();
+
+        addUser("asmithers", "Anne", "Jones");
+        mirror.refreshUser("asmithers", "(uid=asmithers)");
+
+        assertEquals("Changed user not refreshed",
+                Arrays.asList("asmithers", "bjones"),
+                usernames(mirror.findUsers(Arrays.asList("sn"),
+                        new String[] { "jones" }, -1, -1)));
+
+        directory.remove("bjones");
+        mirror.refreshUser("BJones", "(uid=bjones)");
+
+        assertNull("Deleted user still mirrored", mirror.getUser("bjones"));
+        assertTrue("Deleted user still indexed", mirror.findUsers(
+                Arrays.asList("givenName"), new String[] { "bob" }, -1, -1)
+                .isEmpty());
+        assertEquals("Wrong number of users", 2, mirror.size());
+    }
+
+    @Test
+    public void testUpdateAndRemoveUser() throws Exception
+    {
+        mirror.updateUser("early", directory.get("bjones"), null);
+        mirror.sync();
+
+        assertNull("User added before loading", mirror.getUser("early"));
+
+        Attributes attrs = new BasicAttributes(true);
+        attrs.put("uid", "cbrown");
+        attrs.put("givenName", "Carol");
+        attrs.put("sn", "Jones");
+        mirror.updateUser("cbrown", attrs, new User("cbrown", "Carol Brown",
+                null, new Date(), new Date()));
+        mirror.removeUser("BJones");
+
+        assertEquals("Changes not applied", Arrays.asList("cbrown"),
+                usernames(mirror.findUsers(Arrays.asList("sn"),
+                        new String[] { "jones" }, -1, -1)));
+        assertEquals("Wrong number of users", 3, mirror.size());
+        assertEquals("Directory read for changes", 1, scans.size());
+    }
+
+    @Test
+    public void testFailedRefreshRequestsFullSync() throws Exception
+    {
+        mirror.sync();
+
+        failScans = true;
+        mirror.refreshUser("bjones", "(uid=bjones)");
+        failScans = false;
+
+        assertEquals("User dropped after failure", 3, mirror.size());
+
+        mirror.sync();
+
+        assertEquals("Full sync not made", 2, mirror.getFullSyncCount());
+    }
+
+    @Test
+    public void testStaleMirrorIsNotUsable() throws Exception
+    {
+        mirror.sync();
+
+        failScans = true;
+        now += 300001;
+
+        mirror.sync();
+
+        assertFalse("Stale mirror usable", mirror.isUsable());
+        assertEquals("Failure not counted", 1, mirror.getSyncFailureCount());
+        assertEquals("Users dropped after failure", 3, mirror.size());
+    }
+
+    @Test
+    public void testFormatGeneralizedTime()
+    {
+        assertEquals("20030228150820Z",
+                DirectoryMirror.formatGeneralizedTime(1046444900000L));
+    }
+}
@@ -0,0 +1,92 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DisplayNameTemplateTest
+{
+    Attributes attrs;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        attrs = new BasicAttributes(true);
+        attrs.put("givenName", "Given");
+        attrs.put("sn", "Surname");
+    }
+
+    @Test
+    public void testRender() throws Exception
+    {
+        DisplayNameTemplate template = new DisplayNameTemplate(
+                "{givenName} {sn}");
+
+        assertEquals("Name not correctly rendered", "Given Surname",
+                template.render(attrs));
+    }
+
+    @Test
+    public void testRenderWithLiterals() throws Exception
+    {
+        DisplayNameTemplate template = new DisplayNameTemplate(
+                "Dr. {sn}, {givenName} (staff)");
+
+        assertEquals("Name not correctly rendered",
+                "Dr. Surname, Given (staff)", template.render(attrs));
+    }
+
+    @Test
+    public void testRenderWithMissingAttributeIsTrimmed() throws Exception
+    {
+        DisplayNameTemplate template = new DisplayNameTemplate(
+                "{initials} {sn} {title}");
+
+        assertEquals("Name not correctly rendered", "Surname",
+                template.render(attrs));
+    }
+
+    @Test
+    public void testRenderWithSpecialCharactersInValues() throws Exception
+    {
+        attrs.put("sn", "$1 \\ {sn}");
+
+        DisplayNameTemplate template = new DisplayNameTemplate(
+                "{givenName} {sn}");
+
+        assertEquals("Value not inserted verbatim", "Given $1 \\ {sn}",
+                template.render(attrs));
+    }
+
+    @Test
+    public void testUnmatchedBracesAreLiteral() throws Exception
+    {
+        DisplayNameTemplate template = new DisplayNameTemplate(
+                "{} {sn} {givenName");
+
+        assertEquals("Name not correctly rendered", "{} Surname {givenName",
+                template.render(attrs));
+        assertEquals("Wrong attributes found", Arrays.asList("sn"),
+                new ArrayList<String>(template.getAttributeNames()));
+    }
+
+    @Test
+    public void testAttributeNames() throws Exception
+    {
+        DisplayNameTemplate template = new DisplayNameTemplate(
+                "{sn}, {givenName} {sn}");
+
+        assertEquals("Wrong attributes found",
+                Arrays.asList("sn", "givenName"), new ArrayList<String>(
+                        template.getAttributeNames()));
+        assertEquals("Template not retained", "{sn}, {givenName} {sn}",
+                template.getTemplate());
+    }
+}
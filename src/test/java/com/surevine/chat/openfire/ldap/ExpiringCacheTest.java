@@ -0,0 +1,180 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpiringCacheTest
+{
+    /**
+     * The time returned by the caches under test.
+     */
+    long now;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        now = 1000;
+    }
+
+    @Test
+    public void testGetReturnsCachedValue()
+    {
+        ExpiringCache<String, String> cache = createCache(10, 100,
+                ExpiringCache.EvictionPolicy.LRU);
+
+        cache.put("a", "A");
+
+        assertEquals("Value not returned", "A", cache.get("a"));
+        assertNull("Unknown key returned a value", cache.get("b"));
+        assertEquals("Hits not counted", 1, cache.getHits());
+        assertEquals("Misses not counted", 1, cache.getMisses());
+    }
+
+    @Test
+    public void testEntriesExpire()
+    {
+        ExpiringCache<String, String> cache = createCache(10, 100,
+                ExpiringCache.EvictionPolicy.LRU);
+
+        cache.put("a", "A");
+
+        now += 99;
+        assertEquals("Value expired too early", "A", cache.get("a"));
+
+        now += 1;
+        assertNull("Value didn't expire", cache.get("a"));
+        assertEquals("Expiration not counted", 1, cache.getExpirations());
+        assertEquals("Expired entry not removed", 0, cache.size());
+    }
+
+    @Test
+    public void testStaleEntriesAreKept()
+    {
+        ExpiringCache<String, String> cache = new ExpiringCache<String, String>(
+                "test", 10, 100, ExpiringCache.EvictionPolicy.LRU, 50) {
+            @Override
+            long currentTime()
+            {
+                return now;
+            }
+        };
+
+        cache.put("a", "A");
+
+        now += 120;
+        assertNull("Stale value returned as fresh", cache.get("a"));
+        assertEquals("Stale value not returned", "A", cache.getStale("a"));
+        assertEquals("Stale hit not counted", 1, cache.getStaleHits());
+        assertEquals("Stale entry counted as expired", 0,
+                cache.getExpirations());
+
+        now += 30;
+        assertNull("Value kept past the stale time", cache.getStale("a"));
+        assertNull("Value didn't expire", cache.get("a"));
+        assertEquals("Expired entry not removed", 0, cache.size());
+    }
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed()
+    {
+        ExpiringCache<String, String> cache = createCache(2, 100,
+                ExpiringCache.EvictionPolicy.LRU);
+
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+        cache.put("c", "C");
+
+        assertEquals("Recently used entry evicted", "A", cache.get("a"));
+        assertNull("Least recently used entry not evicted", cache.get("b"));
+        assertEquals("Eviction not counted", 1, cache.getEvictions());
+    }
+
+    @Test
+    public void testLfuEvictsLeastFrequentlyUsed()
+    {
+        ExpiringCache<String, String> cache = createCache(2, 100,
+                ExpiringCache.EvictionPolicy.LFU);
+
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        cache.put("c", "C");
+
+        assertEquals("Frequently used entry evicted", "A", cache.get("a"));
+        assertNull("Least frequently used entry not evicted", cache.get("b"));
+
+        // c has only been read once, so it goes before a
+        cache.get("c");
+        cache.put("d", "D");
+
+        assertEquals("Frequently used entry evicted", "A", cache.get("a"));
+        assertNull("Least frequently used entry not evicted", cache.get("c"));
+    }
+
+    @Test
+    public void testLfuEvictsAfterRemoval()
+    {
+        ExpiringCache<String, String> cache = createCache(2, 100,
+                ExpiringCache.EvictionPolicy.LFU);
+
+        cache.put("a", "A");
+        cache.get("a");
+        cache.put("b", "B");
+        cache.remove("b");
+        cache.put("c", "C");
+        cache.put("d", "D");
+
+        assertEquals("Frequently used entry evicted", "A", cache.get("a"));
+        assertNull("Least frequently used entry not evicted", cache.get("c"));
+        assertEquals("D", cache.get("d"));
+    }
+
+    @Test
+    public void testRemoveAndClear()
+    {
+        ExpiringCache<String, String> cache = createCache(10, 100,
+                ExpiringCache.EvictionPolicy.LRU);
+
+        cache.put("a", "A");
+        cache.put("b", "B");
+
+        assertEquals("Removed value not returned", "A", cache.remove("a"));
+        assertNull("Value not removed", cache.get("a"));
+
+        cache.clear();
+
+        assertEquals("Cache not cleared", 0, cache.size());
+    }
+
+    @Test
+    public void testParseEvictionPolicy()
+    {
+        assertEquals(ExpiringCache.EvictionPolicy.LFU,
+                ExpiringCache.EvictionPolicy.parse(" lfu ",
+                        ExpiringCache.EvictionPolicy.LRU));
+        assertEquals(ExpiringCache.EvictionPolicy.LRU,
+                ExpiringCache.EvictionPolicy.parse("unknown",
+                        ExpiringCache.EvictionPolicy.LRU));
+        assertEquals(ExpiringCache.EvictionPolicy.LRU,
+                ExpiringCache.EvictionPolicy.parse(null,
+                        ExpiringCache.EvictionPolicy.LRU));
+    }
+
+    private ExpiringCache<String, String> createCache(int maxSize,
+            long timeToLive, ExpiringCache.EvictionPolicy policy)
+    {
+        return new ExpiringCache<String, String>("test", maxSize, timeToLive,
+                policy) {
+            @Override
+            long currentTime()
+            {
+                return now;
+            }
+        };
+    }
+}
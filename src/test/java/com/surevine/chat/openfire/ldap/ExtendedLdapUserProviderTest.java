@@ -1,18 +1,31 @@
 package com.surevine.chat.openfire.ldap;
 
+import static com.surevine.chat.openfire.ldap.DirectoryChangeListenerTest.syncState;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import com.surevine.chat.openfire.ldap.DirectoryChangeListenerTest.ResultWithControls;
+
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapContext;
 
 import org.apache.commons.collections.CollectionUtils;
@@ -22,6 +35,8 @@ import org.jivesoftware.openfire.ldap.LdapUserProvider;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -35,7 +50,8 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest(UserManager.class)
+@PrepareForTest( { UserManager.class, JiveGlobals.class,
+        PropertyEventDispatcher.class })
 public class ExtendedLdapUserProviderTest
 {
 
@@ -161,9 +177,315 @@ public class ExtendedLdapUserProviderTest
         assertEquals("Name not correctly set", "sn", user.getName());
     }
 
+    @Test
+    public void testLoadUserParsesTimestamps() throws Exception
+    {
+        String username = "testuser";
+
+        attributeOverrides.put("createTimestamp", "20030228150820Z");
+        attributeOverrides.put("modifyTimestamp", "20060711011740.5+0100");
+
+        User user = loadUser(username, attrs);
+
+        assertEquals("Creation date not parsed", 1046444900000L, user
+                .getCreationDate().getTime());
+        assertEquals("Modification date not parsed",
+                1152580660000L - 60 * 60 * 1000 + 500, user
+                        .getModificationDate().getTime());
+    }
+
+    @Test
+    public void testLoadUserUsesCache() throws Exception
+    {
+        String username = "testuser";
+
+        userProvider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU));
+
+        User user = loadUser(username, attrs);
+
+        assertSame("Cached user not returned", user,
+                userProvider.loadUser(username));
+        verify(manager, times(1)).findUserDN(username);
+        assertEquals("Cache hit not counted", 1, userProvider.getUserCache()
+                .getHits());
+    }
+
+    @Test
+    public void testLoadUserAsync() throws Exception
+    {
+        String username = "testuser";
+
+        userProvider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU));
+        userProvider.setLookupExecutor(new LookupExecutor(1, 10, 10000));
+
+        User user = loadUser(username, attrs);
+
+        assertSame("Wrong user loaded", user, userProvider.loadUserAsync(
+                username, 0, null).get(5, TimeUnit.SECONDS));
+
+        try {
+            userProvider.loadUserAsync("remote@elsewhere", 0, null).get(5,
+                    TimeUnit.SECONDS);
+            fail("Remote user loaded");
+        } catch (ExecutionException e) {
+            assertTrue("Wrong failure",
+                    e.getCause() instanceof UserNotFoundException);
+        }
+
+        userProvider.getLookupExecutor().shutdown();
+    }
+
+    @Test
+    public void testLoadUserWithHedging() throws Exception
+    {
+        userProvider.setHedger(new RequestHedger(2, 95, 10, 10));
+
+        User user = loadUser("testuser", attrs);
+
+        assertEquals("Name not correctly set", "givenName sn", user.getName());
+        assertEquals("Load not made through hedger", 1, userProvider
+                .getHedger().getRequestCount());
+
+        userProvider.getHedger().shutdown();
+    }
+
+    @Test
+    public void testLoadUserIsMeasured() throws Exception
+    {
+        loadUser("testuser", attrs);
+
+        try {
+            userProvider.loadUser("remote@elsewhere");
+        } catch (UserNotFoundException e) {
+            // Counted as an error
+        }
+
+        OperationMetrics metrics = userProvider.getMetrics().get(
+                ProviderMetrics.Operation.LOAD_USER);
+
+        assertEquals("Loads not counted", 2, metrics.getCount());
+        assertEquals("Round trips not counted", 2,
+                metrics.getRoundTripCount());
+        assertEquals("Error not counted by type", Long.valueOf(1), metrics
+                .getErrorCountsByType().get("UnknownUserException"));
+    }
+
+    @Test
+    public void testMirrorAnswersLookups() throws Exception
+    {
+        final User mirrored = new User("testuser", "Test User", null,
+                new Date(), new Date());
+
+        DirectoryMirror mirror = new DirectoryMirror(new DirectoryScanner() {
+            public void scan(final String extraFilter, final Handler handler)
+            {
+                handler.handle("testuser", userResult("testuser")
+                        .getAttributes(), mirrored);
+            }
+        }, Arrays.asList("uid", "mail", "givenName", "sn"), 60000, 3600000,
+                300000);
+        mirror.sync();
+
+        userProvider.setMirror(mirror);
+
+        assertSame("Mirrored user not returned", mirrored,
+                userProvider.loadUser("testuser"));
+        assertEquals("Mirrored user not found", Arrays.asList(mirrored),
+                new ArrayList<User>(userProvider.findUsers(
+                        new HashSet<String>(Arrays.asList("Name")), "giv")));
+        assertEquals("Wrong user count", 1, userProvider.getUserCount());
+
+        verify(manager, never()).findUserDN(anyString());
+        verify(manager, never()).getContext(anyString());
+        verify(delegate, never()).getUserCount();
+    }
+
+    @Test
+    public void testSetNameInvalidatesCache() throws Exception
+    {
+        String username = "testuser";
+
+        userProvider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU));
+
+        User user = loadUser(username, attrs);
+
+        userProvider.setName(username, "New Name");
+
+        assertNotSame("Stale user returned", user,
+                userProvider.loadUser(username));
+        verify(delegate).setName(username, "New Name");
+    }
+
+    @Test
+    public void testDirectoryChangeEvictsUser() throws Exception
+    {
+        String username = "testuser";
+
+        userProvider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU));
+
+        User user = loadUser(username, attrs);
+
+        Attributes changed = new BasicAttributes(true);
+        changed.put("uid", "TestUser");
+        userProvider.getChangeHandler().userChanged(changed);
+
+        assertNotSame("Changed user returned from cache", user,
+                userProvider.loadUser(username));
+
+        userProvider.getChangeHandler().allChanged();
+
+        assertEquals("Cache not emptied", 0, userProvider.getUserCache()
+                .size());
+    }
+
+    @Test
+    public void testDirectoryChangeUpdatesMirror() throws Exception
+    {
+        final List<String> scans = new ArrayList<String>();
+        DirectoryMirror mirror = mirror(scans, "testuser", "olduser");
+
+        userProvider.setMirror(mirror);
+
+        final User original = mirror.getUser("testuser");
+
+        Attributes changed = userResult("testuser").getAttributes();
+        changed.put("givenName", "Renamed");
+        userProvider.getChangeHandler().userChanged(changed);
+
+        userProvider.getChangeHandler().userDeleted(
+                userResult("olduser").getAttributes());
+
+        assertNotSame("Changed user not updated", original,
+                userProvider.loadUser("testuser"));
+        assertNull("Deleted user still mirrored", mirror.getUser("olduser"));
+        assertEquals("Directory read for changes", 1, scans.size());
+
+        userProvider.getChangeHandler().allChanged();
+        mirror.sync();
+
+        assertEquals("Full sync not made after missed changes", 2,
+                mirror.getFullSyncCount());
+        verify(manager, never()).findUserDN(anyString());
+    }
+
+    @Test
+    public void testSyncreplRefreshDoesNotScanEachUser() throws Exception
+    {
+        final List<String> scans = new ArrayList<String>();
+        DirectoryMirror mirror = mirror(scans, "testuser");
+
+        userProvider.setMirror(mirror);
+
+        DirectoryChangeListener listener = new DirectoryChangeListener(
+                new LdapContextFactory() {
+                    public LdapContext createContext(final String baseDN)
+                            throws NamingException
+                    {
+                        throw new NamingException("Not used");
+                    }
+                }, "ou=test", "(uid=*)", "uid",
+                DirectoryChangeListener.Mode.SYNCREPL,
+                userProvider.getChangeHandler());
+
+        // Without a cookie the directory sends every user as an add
+        for (int i = 0; i < 1000; i++) {
+            SearchResult result = userResult("user" + i);
+
+            listener.process(new ResultWithControls(result.getName(),
+                    result.getAttributes(), syncState(SyncRequestControl.ADD,
+                            null)));
+        }
+
+        assertEquals("Users scanned one at a time", 1, scans.size());
+        assertEquals("Added users not mirrored", 1001, mirror.size());
+        assertNotNull("Added user not mirrored", mirror.getUser("user999"));
+    }
+
+    /**
+     * Creates and loads a mirror of a directory holding some users.
+     *
+     * @param scans
+     *            receives the extra filter of each scan the mirror makes.
+     */
+    private DirectoryMirror mirror(final List<String> scans,
+            final String... usernames) throws Exception
+    {
+        DirectoryMirror mirror = new DirectoryMirror(new DirectoryScanner() {
+            public void scan(final String extraFilter, final Handler handler)
+            {
+                scans.add(extraFilter);
+
+                for (String username : usernames) {
+                    handler.handle(username, userResult(username)
+                            .getAttributes(), new User(username, username,
+                            null, new Date(), new Date()));
+                }
+            }
+        }, Arrays.asList("uid", "mail", "givenName", "sn"), 60000, 3600000,
+                300000);
+        mirror.sync();
+
+        return mirror;
+    }
+
+    @Test
+    public void testLoadUserWithSingleSearch() throws Exception
+    {
+        String username = "test(user)";
+        String baseDn = "ou=test";
+        LdapContext context = mock(LdapContext.class);
+        SearchResult searchResult = new SearchResult("cn=test", null, attrs);
+
+        userProvider.setSingleSearchLoad(true);
+
+        when(manager.getSearchFilter()).thenReturn("(uid={0})");
+        when(manager.getBaseDN()).thenReturn(baseDn);
+        when(manager.getContext(baseDn)).thenReturn(context);
+        when(
+                context.search(eq(""), eq("(uid=test\\28user\\29)"),
+                        any(SearchControls.class))).thenReturn(
+                searchResults(searchResult));
+
+        User user = userProvider.loadUser(username);
+
+        assertEquals("Name not correctly set", "givenName sn", user.getName());
+        verify(manager, never()).findUserDN(anyString());
+        verify(context).close();
+    }
+
+    @Test(expected = UserNotFoundException.class)
+    public void testLoadUserWithSingleSearchNotFound() throws Exception
+    {
+        String baseDn = "ou=test";
+        String alternateBaseDn = "ou=other";
+        LdapContext context = mock(LdapContext.class);
+
+        userProvider.setSingleSearchLoad(true);
+
+        when(manager.getSearchFilter()).thenReturn("(uid={0})");
+        when(manager.getBaseDN()).thenReturn(baseDn);
+        when(manager.getAlternateBaseDN()).thenReturn(alternateBaseDn);
+        when(manager.getContext(anyString())).thenReturn(context);
+        when(
+                context.search(anyString(), anyString(),
+                        any(SearchControls.class))).thenReturn(
+                searchResults());
+
+        try {
+            userProvider.loadUser("testuser");
+        } finally {
+            verify(manager).getContext(baseDn);
+            verify(manager).getContext(alternateBaseDn);
+        }
+    }
+
     @Test
     public void testFindUsersSingleTermWithNaughtyCharacters()
-            throws UserNotFoundException
+            throws Exception
     {
         String searchTerm = "*sea()\\/rch*";
         String escapedSearchTerm = "*sea\\28\\29\\5c\\2frch*";
@@ -182,7 +504,7 @@ public class ExtendedLdapUserProviderTest
     }
 
     @Test
-    public void testFindUsersSingleTerm() throws UserNotFoundException
+    public void testFindUsersSingleTerm() throws Exception
     {
         String searchTerm = "*search*";
 
@@ -198,7 +520,7 @@ public class ExtendedLdapUserProviderTest
     }
 
     @Test
-    public void testFindUsersMultipleTerms() throws UserNotFoundException
+    public void testFindUsersMultipleTerms() throws Exception
     {
         String term1 = "*search*";
         String term2 = "*term*";
@@ -216,7 +538,7 @@ public class ExtendedLdapUserProviderTest
     }
 
     @Test
-    public void testFindUsersSingleTermNotSeparated() throws UserNotFoundException
+    public void testFindUsersSingleTermNotSeparated() throws Exception
     {
         String searchTerm = "*search term*";
         
@@ -234,6 +556,372 @@ public class ExtendedLdapUserProviderTest
 
         testFindUsers(searchTerm, expected, testFields, -1, -1);
     }
+
+    @Test
+    public void testFindUsersWindow() throws Exception
+    {
+        String searchTerm = "test";
+        String expected = "(&((uid=*))(|(sn=test*)(givenName=test*)))";
+
+        Set<String> testFields = new HashSet<String>();
+        testFields.add("Name");
+
+        testFindUsers(searchTerm, expected, testFields, 1, 2,
+                Arrays.asList("testuser1", "testuser2", "testuser3",
+                        "testuser4"),
+                Arrays.asList("testuser2", "testuser3"));
+    }
+
+    @Test
+    public void testFindUsersSeedsCache() throws Exception
+    {
+        String searchTerm = "test";
+        String expected = "(&((uid=*))(|(sn=test*)(givenName=test*)))";
+
+        userProvider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU));
+
+        Set<String> testFields = new HashSet<String>();
+        testFields.add("Name");
+
+        Collection<User> result = testFindUsers(searchTerm, expected,
+                testFields, -1, -1);
+
+        for (User user : result) {
+            assertSame("Found user not cached", user,
+                    userProvider.loadUser(user.getUsername()));
+        }
+
+        verify(manager, never()).findUserDN(anyString());
+    }
+
+    @Test
+    public void testFindUsersUsesSearchCache() throws Exception
+    {
+        String expected = "(&((uid=*))(|(sn=test*)(givenName=test*)))";
+
+        userProvider.setSearchResultCache(new SearchResultCache(10, 60000));
+
+        Set<String> testFields = new HashSet<String>();
+        testFields.add("Name");
+
+        Collection<User> result = testFindUsers("test", expected, testFields,
+                -1, -1);
+
+        assertSame("Cached results not returned for equivalent query", result,
+                userProvider.findUsers(testFields, "TEST ", -1, -1));
+        verify(manager, times(1)).getContext("ou=test");
+
+        userProvider.setName("testuser1", "New Name");
+        userProvider.findUsers(testFields, "test", -1, -1);
+
+        verify(manager, times(2)).getContext("ou=test");
+        assertEquals("Hit not counted", 1, userProvider
+                .getSearchResultCache().getCache().getHits());
+    }
+
+    @Test
+    public void testSlowFindUsersIsLogged() throws Exception
+    {
+        String expected = "(&((uid=*))(|(sn=test*)(givenName=test*)))";
+
+        userProvider.setSlowQueryLog(new SlowQueryLog(0, 5));
+
+        Set<String> testFields = new HashSet<String>();
+        testFields.add("Name");
+
+        testFindUsers("test", expected, testFields, -1, -1);
+
+        SlowQueryLog log = userProvider.getSlowQueryLog();
+
+        assertEquals("Slow search not counted", 1, log.getSlowQueryCount());
+        assertEquals("Wrong shape", "(&((uid=*))(|(sn=?*)(givenName=?*)))",
+                log.getSlowestShapes().get(0).getFingerprint());
+    }
+
+    @Test
+    public void testTemplateReloadRebuildsCachedUsers() throws Exception
+    {
+        String username = "testuser";
+
+        userProvider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU));
+
+        loadUser(username, attrs);
+
+        userProvider.applyConfiguration(userProvider.getConfiguration()
+                .withDisplayNameTemplate("{sn}, {givenName}"));
+
+        assertEquals("Users with the old name kept", 0, userProvider
+                .getUserCache().size());
+        assertEquals("New template not used", "sn, givenName", userProvider
+                .loadUser(username).getName());
+    }
+
+    @Test
+    public void testSearchSettingsReloadKeepsCachedUsers() throws Exception
+    {
+        String username = "testuser";
+
+        userProvider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU));
+
+        User user = loadUser(username, attrs);
+
+        userProvider.applyConfiguration(new ProviderConfiguration(Arrays
+                .asList("uid", "sn"), TEST_DISPLAY_NAME_TEMPLATE, false,
+                userProvider.parseSearchFields(TEST_SEARCH_FIELDS),
+                userProvider.parseSearchNameFields("Family Name")));
+
+        assertSame("Cached user dropped", user,
+                userProvider.loadUser(username));
+
+        Set<String> testFields = new HashSet<String>();
+        testFields.add("Name");
+
+        testFindUsers("*search term*", "(&((uid=*))(sn=*search term*))",
+                testFields, -1, -1);
+    }
+
+    @Test
+    public void testUnrelatedPropertyChangesAreIgnored()
+    {
+        ProviderConfiguration config = userProvider.getConfiguration();
+
+        userProvider.getConfigurationListener().propertySet(
+                "ldap.userCache.ttl", new HashMap<String, Object>());
+
+        assertSame("Configuration reloaded", config,
+                userProvider.getConfiguration());
+    }
+
+    @Test
+    public void testCloseStopsBackgroundWork()
+    {
+        DirectoryMirror mirror = mock(DirectoryMirror.class);
+        RequestHedger hedger = mock(RequestHedger.class);
+        LookupExecutor lookupExecutor = mock(LookupExecutor.class);
+        LdapContextSource contextSource = mock(LdapContextSource.class);
+
+        userProvider.setMirror(mirror);
+        userProvider.setHedger(hedger);
+        userProvider.setLookupExecutor(lookupExecutor);
+        userProvider.setContextSource(contextSource);
+
+        PowerMockito.mockStatic(PropertyEventDispatcher.class);
+
+        userProvider.close();
+
+        verify(mirror).stop();
+        verify(hedger).shutdown();
+        verify(lookupExecutor).shutdown();
+        verify(contextSource).close();
+
+        PowerMockito.verifyStatic();
+        PropertyEventDispatcher.removeListener(userProvider
+                .getConfigurationListener());
+    }
+
+    @Test
+    public void testReplacedProviderIsClosed()
+    {
+        LdapContextSource contextSource = mock(LdapContextSource.class);
+
+        userProvider.setContextSource(contextSource);
+
+        PowerMockito.mockStatic(JiveGlobals.class);
+        PowerMockito.mockStatic(PropertyEventDispatcher.class);
+
+        when(JiveGlobals.getProperty("provider.user.className")).thenReturn(
+                ExtendedLdapUserProvider.class.getName());
+        userProvider.getConfigurationListener().propertySet(
+                "provider.user.className", new HashMap<String, Object>());
+
+        verify(contextSource, never()).close();
+
+        when(JiveGlobals.getProperty("provider.user.className")).thenReturn(
+                "org.jivesoftware.openfire.user.DefaultUserProvider");
+        userProvider.getConfigurationListener().propertySet(
+                "provider.user.className", new HashMap<String, Object>());
+
+        verify(contextSource).close();
+    }
+
+    @Test
+    public void testLoadUserCachesUnknownUsers() throws Exception
+    {
+        String username = "unknown";
+
+        userProvider.setNegativeUserCache(new ExpiringCache<String, Boolean>(
+                "test", 10, 60000, ExpiringCache.EvictionPolicy.LRU));
+
+        when(manager.findUserDN(username)).thenThrow(
+                new UserNotFoundException("Username " + username
+                        + " not found"));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                userProvider.loadUser(username);
+                fail("Unknown user loaded");
+            } catch (UnknownUserException e) {
+                assertEquals("Stack trace captured", 0,
+                        e.getStackTrace().length);
+            }
+        }
+
+        verify(manager, times(1)).findUserDN(username);
+        assertEquals("Negative cache hit not counted", 1, userProvider
+                .getNegativeUserCache().getHits());
+    }
+
+    @Test
+    public void testLoadUserDoesNotCacheDirectoryErrors() throws Exception
+    {
+        String username = "testuser";
+
+        userProvider.setNegativeUserCache(new ExpiringCache<String, Boolean>(
+                "test", 10, 60000, ExpiringCache.EvictionPolicy.LRU));
+
+        when(manager.findUserDN(username)).thenThrow(
+                new NamingException("Directory unavailable"));
+
+        try {
+            userProvider.loadUser(username);
+            fail("User loaded despite directory error");
+        } catch (UserNotFoundException e) {
+            assertFalse("Directory error reported as unknown user",
+                    e instanceof UnknownUserException);
+        }
+
+        assertEquals("Directory error cached", 0, userProvider
+                .getNegativeUserCache().size());
+    }
+
+    @Test
+    public void testOpenCircuitServesStaleUsers() throws Exception
+    {
+        String username = "testuser";
+        final long[] now = { 1000000 };
+
+        userProvider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU, 600000) {
+            @Override
+            long currentTime()
+            {
+                return now[0];
+            }
+        });
+        userProvider.setCircuitBreakers(new CircuitBreaker("loadUser", 50, 0,
+                1, 60000, 0), null, null);
+
+        User user = loadUser(username, attrs);
+
+        now[0] += 61000;
+        when(manager.findUserDN(username)).thenThrow(
+                new NamingException("Directory unavailable"));
+
+        try {
+            userProvider.loadUser(username);
+            fail("User loaded despite directory error");
+        } catch (UserNotFoundException e) {
+            // Opens the circuit
+        }
+
+        assertSame("Stale user not returned", user,
+                userProvider.loadUser(username));
+        verify(manager, times(2)).findUserDN(username);
+
+        try {
+            userProvider.loadUser("otheruser");
+            fail("Uncached user loaded while circuit open");
+        } catch (UserNotFoundException e) {
+            assertFalse("Open circuit reported as unknown user",
+                    e instanceof UnknownUserException);
+        }
+
+        assertEquals("Rejections not counted", 2, userProvider
+                .getCircuitBreakers().get(0).getOpenRejectionCount());
+    }
+
+    @Test
+    public void testLoadUsersInBatches() throws Exception
+    {
+        String baseDn = "ou=test";
+        LdapContext context = mock(LdapContext.class);
+
+        userProvider.setUserLoadBatchSize(2);
+
+        when(manager.getSearchFilter()).thenReturn("(uid={0})");
+        when(manager.getBaseDN()).thenReturn(baseDn);
+        when(manager.getContext(baseDn)).thenReturn(context);
+        when(
+                context.search(eq(""), eq("(|(uid=testuser1)(uid=testuser2))"),
+                        any(SearchControls.class))).thenReturn(
+                searchResults(userResult("TestUser1")));
+        when(
+                context.search(eq(""), eq("(uid=testuser3)"),
+                        any(SearchControls.class))).thenReturn(
+                searchResults());
+
+        List<String> missing = new ArrayList<String>();
+
+        Map<String, User> users = userProvider.loadUsers(
+                Arrays.asList("testuser1", "testuser2", "testuser3"), missing);
+
+        assertEquals("Wrong number of users loaded", 1, users.size());
+        assertEquals("User not keyed on requested username", "TestUser1",
+                users.get("testuser1").getUsername());
+        assertEquals("Missing users not reported",
+                Arrays.asList("testuser2", "testuser3"), missing);
+        verify(context, times(2)).search(anyString(), anyString(),
+                any(SearchControls.class));
+    }
+
+    @Test
+    public void testLoadUsersWithCaseVariants() throws Exception
+    {
+        String baseDn = "ou=test";
+        LdapContext context = mock(LdapContext.class);
+
+        when(manager.getSearchFilter()).thenReturn("(uid={0})");
+        when(manager.getBaseDN()).thenReturn(baseDn);
+        when(manager.getContext(baseDn)).thenReturn(context);
+        when(
+                context.search(eq(""), eq("(|(uid=testuser1)(uid=testuser2))"),
+                        any(SearchControls.class))).thenReturn(
+                searchResults(userResult("TestUser1")));
+
+        List<String> missing = new ArrayList<String>();
+
+        Map<String, User> users = userProvider.loadUsers(Arrays.asList(
+                "testuser1", "TestUser1", "testuser2", "TESTUSER2"), missing);
+
+        assertEquals("Wrong number of users loaded", 2, users.size());
+        assertSame("Spellings given different users", users.get("testuser1"),
+                users.get("TestUser1"));
+        assertEquals("Missing spellings not reported",
+                Arrays.asList("testuser2", "TESTUSER2"), missing);
+        verify(context, times(1)).search(anyString(), anyString(),
+                any(SearchControls.class));
+    }
+
+    @Test
+    public void testLoadUsersUsesCache() throws Exception
+    {
+        String username = "testuser";
+
+        userProvider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU));
+
+        User user = loadUser(username, attrs);
+
+        Map<String, User> users = userProvider.loadUsers(Arrays
+                .asList(username));
+
+        assertSame("Cached user not returned", user, users.get(username));
+        verify(manager, never()).getBaseDN();
+    }
+
     private User loadUser(String username, Attributes attrs) throws Exception
     {
         String userDn = "cn=" + username + ",ou=test";
@@ -250,38 +938,111 @@ public class ExtendedLdapUserProviderTest
         return userProvider.loadUser(username);
     }
 
-    private void testFindUsers(String search, String expectedQuery,
-            Set<String> fields, int startIndex, int numResults)
-            throws UserNotFoundException
+    /**
+     * Creates a {@link NamingEnumeration} over some search results.
+     */
+    static NamingEnumeration<SearchResult> searchResults(
+            final SearchResult... results)
     {
-        when(manager.getSearchFilter()).thenReturn("(uid={0})");
+        final Iterator<SearchResult> iterator = Arrays.asList(results)
+                .iterator();
+
+        return new NamingEnumeration<SearchResult>() {
+            public boolean hasMoreElements()
+            {
+                return iterator.hasNext();
+            }
+
+            public SearchResult nextElement()
+            {
+                return iterator.next();
+            }
+
+            public boolean hasMore()
+            {
+                return iterator.hasNext();
+            }
+
+            public SearchResult next()
+            {
+                return iterator.next();
+            }
 
-        List<String> resultList = Arrays.asList("testuser1", "testuser2");
+            public void close()
+            {
+            }
+        };
+    }
+
+    /**
+     * Creates a search result for a user with the given username.
+     */
+    static SearchResult userResult(final String username)
+    {
+        Attributes userAttrs = new BasicAttributes(true);
+
+        userAttrs.put("uid", username);
+        userAttrs.put("givenName", "Given");
+        userAttrs.put("sn", username);
+
+        return new SearchResult("uid=" + username, null, userAttrs);
+    }
+
+    private Collection<User> testFindUsers(String search,
+            String expectedQuery, Set<String> fields, int startIndex,
+            int numResults) throws Exception
+    {
+        return testFindUsers(search, expectedQuery, fields, startIndex,
+                numResults, Arrays.asList("testuser1", "testuser2"),
+                Arrays.asList("testuser1", "testuser2"));
+    }
+
+    private Collection<User> testFindUsers(String search,
+            String expectedQuery, Set<String> fields, int startIndex,
+            int numResults, List<String> directoryUsers,
+            List<String> expectedUsers) throws Exception
+    {
+        String baseDn = "ou=test";
+        LdapContext context = mock(LdapContext.class);
+        SearchResult[] results = new SearchResult[directoryUsers.size()];
+
+        for (int i = 0; i < results.length; i++) {
+            results[i] = userResult(directoryUsers.get(i));
+        }
+
+        when(manager.getSearchFilter()).thenReturn("(uid={0})");
+        when(manager.getBaseDN()).thenReturn(baseDn);
+        when(manager.getContext(baseDn)).thenReturn(context);
 
         // Only return something if the expected happens
         when(
-                manager.retrieveList("uid", expectedQuery, startIndex,
-                        numResults, null)).thenReturn(resultList);
+                context.search(eq(""), eq(expectedQuery),
+                        any(SearchControls.class))).thenReturn(
+                searchResults(results));
 
         Collection<User> result = userProvider.findUsers(fields, search,
                 startIndex, numResults);
 
-        verify(manager).retrieveList("uid", expectedQuery, startIndex,
-                numResults, null);
-        
-        Collection<User> users = new HashSet<User>();
+        verify(context).search(eq(""), eq(expectedQuery),
+                any(SearchControls.class));
+        verify(manager, never()).retrieveList(anyString(), anyString(),
+                anyInt(), anyInt(), anyString());
 
-        for (String username : resultList) {
-            User user = mock(User.class);
+        List<String> usernames = new ArrayList<String>();
 
-            users.add(user);
+        for (User user : result) {
+            usernames.add(user.getUsername());
 
-            when(userManager.getUser(username)).thenReturn(user);
+            assertEquals("User not built from search result", "Given "
+                    + user.getUsername(), user.getName());
         }
 
         assertTrue(
                 "Users not correctly returned: "
-                        + CollectionUtils.disjunction(result, users),
-                CollectionUtils.isEqualCollection(result, users));
+                        + CollectionUtils.disjunction(usernames,
+                                expectedUsers),
+                CollectionUtils.isEqualCollection(usernames, expectedUsers));
+
+        return result;
     }
 }
@@ -0,0 +1,101 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class GeneralizedTimeParserTest
+{
+    /**
+     * 2003-02-28 15:08:20 UTC.
+     */
+    static final long FEB_28_2003 = 1046444900000L;
+
+    @Test
+    public void testParseUtc()
+    {
+        assertEquals(FEB_28_2003,
+                GeneralizedTimeParser.parse("20030228150820Z"));
+        assertEquals(1152580660000L,
+                GeneralizedTimeParser.parse("20060711011740.0Z"));
+        assertEquals("Leap day not handled", 951868799000L,
+                GeneralizedTimeParser.parse("20000229235959Z"));
+        assertEquals("Pre-epoch date not handled", -3600000L,
+                GeneralizedTimeParser.parse("1969123123Z"));
+    }
+
+    @Test
+    public void testParseWithoutMinutesOrSeconds()
+    {
+        assertEquals(FEB_28_2003 - 8 * 60 * 1000 - 20 * 1000,
+                GeneralizedTimeParser.parse("2003022815Z"));
+        assertEquals(FEB_28_2003 - 20 * 1000,
+                GeneralizedTimeParser.parse("200302281508Z"));
+    }
+
+    @Test
+    public void testParseFractions()
+    {
+        assertEquals("Fraction of a second not handled", FEB_28_2003 + 120,
+                GeneralizedTimeParser.parse("20030228150820.12Z"));
+        assertEquals("Comma not accepted", FEB_28_2003 + 500,
+                GeneralizedTimeParser.parse("20030228150820,5Z"));
+        assertEquals("Fraction of a minute not handled", FEB_28_2003 + 10
+                * 1000, GeneralizedTimeParser.parse("200302281508.5Z"));
+        assertEquals("Fraction of an hour not handled", FEB_28_2003 - 8 * 60
+                * 1000 - 20 * 1000 + 15 * 60 * 1000,
+                GeneralizedTimeParser.parse("2003022815.25Z"));
+        assertEquals("Excess precision not ignored", FEB_28_2003 + 123,
+                GeneralizedTimeParser.parse("20030228150820.1234567890123Z"));
+    }
+
+    @Test
+    public void testParseOffsets()
+    {
+        assertEquals(FEB_28_2003 - 60 * 60 * 1000,
+                GeneralizedTimeParser.parse("20030228150820+0100"));
+        assertEquals(FEB_28_2003 + 5 * 60 * 60 * 1000 + 30 * 60 * 1000,
+                GeneralizedTimeParser.parse("20030228150820-0530"));
+        assertEquals(FEB_28_2003 + 5 * 60 * 60 * 1000,
+                GeneralizedTimeParser.parse("20030228150820-05"));
+    }
+
+    @Test
+    public void testParseWithoutTimeZoneUsesDefault()
+    {
+        long expected = FEB_28_2003
+                - TimeZone.getDefault().getOffset(FEB_28_2003);
+
+        assertEquals(expected, GeneralizedTimeParser.parse("20030228150820"));
+    }
+
+    @Test
+    public void testParseInvalid()
+    {
+        String[] invalid = { "", "2003", "2003022815X", "20031328150820Z",
+                "20030229150820Z", "20030228250820Z", "20030228150820.Z",
+                "20030228150820+1", "20030228150820Zjunk", "2003-02-28T15Z" };
+
+        for (String value : invalid) {
+            try {
+                GeneralizedTimeParser.parse(value);
+                fail("Invalid value parsed: " + value);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testParseLDAPDate()
+    {
+        assertEquals(FEB_28_2003, ExtendedLdapUserProvider.parseLDAPDate(
+                " 20030228150820Z ").getTime());
+        assertNull("Blank date parsed",
+                ExtendedLdapUserProvider.parseLDAPDate(" "));
+        assertNull("Invalid date parsed",
+                ExtendedLdapUserProvider.parseLDAPDate("createTimestamp"));
+    }
+}
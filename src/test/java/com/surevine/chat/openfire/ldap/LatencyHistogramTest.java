@@ -0,0 +1,149 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+    static final long MILLIS = 1000000;
+
+    @Test
+    public void testBucketsCoverValues()
+    {
+        for (long value : new long[] { 0, 1, 31, 32, 33, 100, 1000,
+                123456789, 1L << 40 }) {
+            int index = LatencyHistogram.index(value);
+
+            assertTrue("Value " + value + " above its bucket",
+                    value <= LatencyHistogram.highestValue(index));
+            assertTrue("Value " + value + " below its bucket", index == 0
+                    || value > LatencyHistogram.highestValue(index - 1));
+        }
+    }
+
+    @Test
+    public void testBucketsArePrecise()
+    {
+        long value = 987654321;
+        long highest = LatencyHistogram.highestValue(LatencyHistogram
+                .index(value));
+
+        assertTrue("Bucket too wide", (highest - value) / (double) value < 0.04);
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * MILLIS);
+        }
+
+        assertEquals("Wrong count", 100, histogram.getCount());
+        assertEquals("Wrong mean", 50.5, histogram.getMean(), 0.001);
+        assertEquals("Wrong max", 100, histogram.getMax(), 0.001);
+        assertEquals("Wrong median", 50, histogram.getValueAtPercentile(50),
+                50 * 0.04);
+        assertEquals("Wrong p99", 99, histogram.getValueAtPercentile(99),
+                99 * 0.04);
+        assertEquals("Wrong p100", 100, histogram.getValueAtPercentile(100),
+                0.001);
+    }
+
+    @Test
+    public void testOutOfRangeValues()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals("Values not counted", 2, histogram.getCount());
+        assertEquals("Negative value not clamped", 0,
+                histogram.getValueAtPercentile(50), 0);
+    }
+
+    @Test
+    public void testReset()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(MILLIS);
+        histogram.reset();
+
+        assertEquals("Count not reset", 0, histogram.getCount());
+        assertEquals("Percentile not reset", 0,
+                histogram.getValueAtPercentile(99), 0);
+    }
+
+    @Test
+    public void testOperationMetrics()
+    {
+        OperationMetrics loadUser = new OperationMetrics("loadUser");
+        OperationMetrics loadUsers = new OperationMetrics("loadUsers");
+
+        OperationMetrics outer = loadUsers.enter();
+        OperationMetrics.roundTrip();
+
+        OperationMetrics inner = loadUser.enter();
+        OperationMetrics.roundTrip();
+        OperationMetrics.roundTrip();
+        loadUser.exit(inner, System.nanoTime(), new IllegalStateException());
+
+        OperationMetrics.roundTrip();
+        loadUsers.exit(outer, System.nanoTime(), null);
+
+        assertNull("Operation still current", OperationMetrics.current());
+        assertEquals("Wrong outer round trips", 2,
+                loadUsers.getRoundTripCount());
+        assertEquals("Wrong inner round trips", 2,
+                loadUser.getRoundTripCount());
+        assertEquals("Error not counted", 1, loadUser.getErrorCount());
+        assertEquals("Error type not counted", Long.valueOf(1), loadUser
+                .getErrorCountsByType().get("IllegalStateException"));
+        assertEquals("Wrong round trips per operation", 2,
+                loadUser.getRoundTripsPerOperation(), 0);
+
+        // Round trips outside an operation aren't counted anywhere
+        OperationMetrics.roundTrip();
+        assertEquals("Round trip counted", 2, loadUsers.getRoundTripCount());
+    }
+
+    @Test
+    public void testTimedOperation() throws Exception
+    {
+        final OperationMetrics loadUser = new OperationMetrics("loadUser");
+
+        assertEquals("Wrong result", "user", loadUser
+                .time(new OperationMetrics.Timed<String, RuntimeException>() {
+                    public String call()
+                    {
+                        assertSame("Operation not current", loadUser,
+                                OperationMetrics.current());
+                        return "user";
+                    }
+                }));
+
+        final Exception failure = new Exception("Not found");
+
+        try {
+            loadUser.time(new OperationMetrics.Timed<String, Exception>() {
+                public String call() throws Exception
+                {
+                    throw failure;
+                }
+            });
+            fail("Failure not rethrown");
+        } catch (Exception e) {
+            assertSame("Wrong failure", failure, e);
+        }
+
+        assertNull("Operation still current", OperationMetrics.current());
+        assertEquals("Wrong count", 2, loadUser.getCount());
+        assertEquals("Error not counted", 1, loadUser.getErrorCount());
+        assertEquals("Error type not counted", Long.valueOf(1), loadUser
+                .getErrorCountsByType().get("Exception"));
+    }
+}
@@ -0,0 +1,258 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LdapContextPoolTest
+{
+    List<LdapContext> contexts;
+
+    LdapContextFactory factory;
+
+    long now;
+
+    LdapContextPool pool;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        contexts = new ArrayList<LdapContext>();
+
+        factory = new LdapContextFactory() {
+            public LdapContext createContext(final String baseDN)
+                    throws NamingException
+            {
+                LdapContext context = mock(LdapContext.class);
+                contexts.add(context);
+                return context;
+            }
+        };
+
+        now = 1000000;
+
+        pool = createPool(1, 2, 60000, 0, false);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        pool.close();
+    }
+
+    LdapContextPool createPool(final int minSize, final int maxSize,
+            final long idleTimeout, final long maxWait,
+            final boolean validateOnBorrow)
+    {
+        return new LdapContextPool(factory, minSize, maxSize, idleTimeout,
+                maxWait, validateOnBorrow) {
+            @Override
+            long currentTime()
+            {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testContextIsReused() throws Exception
+    {
+        LdapConnection connection = pool.acquire("ou=people");
+        pool.release(connection, false);
+
+        assertSame("Context not reused", connection, pool.acquire("ou=people"));
+        assertEquals("Wrong number of contexts created", 1,
+                pool.getCreatedCount());
+        assertEquals("Wrong number of borrows", 2, pool.getBorrowedCount());
+        assertEquals("Wrong number of active contexts", 1,
+                pool.getActiveCount());
+    }
+
+    @Test
+    public void testContextsAreKeyedOnBaseDN() throws Exception
+    {
+        LdapConnection connection = pool.acquire("ou=people");
+        pool.release(connection, false);
+
+        LdapConnection other = pool.acquire("ou=staff");
+
+        assertNotSame("Context reused for another base DN", connection, other);
+        assertEquals("Wrong base DN", "ou=staff", other.getBaseDN());
+        assertEquals("Wrong number of idle contexts", 1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testBrokenContextIsClosed() throws Exception
+    {
+        LdapConnection connection = pool.acquire("ou=people");
+        pool.release(connection, true);
+
+        verify(contexts.get(0)).close();
+
+        assertNotSame("Broken context reused", connection,
+                pool.acquire("ou=people"));
+        assertEquals("Broken eviction not counted", 1,
+                pool.getBrokenEvictionCount());
+        assertEquals("Wrong number of open contexts", 1, pool.getOpenCount());
+    }
+
+    @Test
+    public void testContextReleasedAfterCloseIsClosed() throws Exception
+    {
+        LdapConnection connection = pool.acquire("ou=people");
+
+        pool.close();
+        pool.release(connection, false);
+
+        verify(contexts.get(0)).close();
+        assertEquals("Context kept after close", 0, pool.getIdleCount());
+        assertEquals("Wrong number of open contexts", 0, pool.getOpenCount());
+    }
+
+    @Test
+    public void testAcquireAfterCloseFails() throws Exception
+    {
+        pool.close();
+
+        try {
+            pool.acquire("ou=people");
+            fail("Context acquired from a closed pool");
+        } catch (ServiceUnavailableException e) {
+            // Expected
+        }
+
+        assertTrue("Context created after close", contexts.isEmpty());
+    }
+
+    @Test
+    public void testExhaustedPoolTimesOut() throws Exception
+    {
+        pool.acquire("ou=people");
+        pool.acquire("ou=people");
+
+        try {
+            pool.acquire("ou=people");
+            fail("Context acquired from an exhausted pool");
+        } catch (ServiceUnavailableException e) {
+            // Expected
+        }
+
+        assertEquals("Timeout not counted", 1, pool.getTimeoutCount());
+        assertEquals("Too many contexts created", 2, pool.getCreatedCount());
+    }
+
+    @Test
+    public void testIdleContextForAnotherBaseDNIsReplacedWhenFull()
+            throws Exception
+    {
+        LdapConnection first = pool.acquire("ou=people");
+        pool.acquire("ou=people");
+        pool.release(first, false);
+
+        pool.acquire("ou=staff");
+
+        verify(contexts.get(0)).close();
+        assertEquals("Wrong number of contexts created", 3,
+                pool.getCreatedCount());
+        assertEquals("Wrong number of open contexts", 2, pool.getOpenCount());
+    }
+
+    @Test
+    public void testIdleContextIsClosedOnBorrow() throws Exception
+    {
+        LdapConnection connection = pool.acquire("ou=people");
+        pool.release(connection, false);
+
+        now += 60000;
+
+        assertNotSame("Idle context reused", connection,
+                pool.acquire("ou=people"));
+        verify(contexts.get(0)).close();
+        assertEquals("Idle eviction not counted", 1,
+                pool.getIdleEvictionCount());
+    }
+
+    @Test
+    public void testSweepKeepsMinimumIdleContexts() throws Exception
+    {
+        LdapConnection first = pool.acquire("ou=people");
+        LdapConnection second = pool.acquire("ou=people");
+        pool.release(first, false);
+        now += 10;
+        pool.release(second, false);
+
+        now += 60000;
+
+        pool.sweep();
+
+        assertEquals("Wrong number of idle contexts", 1, pool.getIdleCount());
+        verify(contexts.get(0)).close();
+        verify(contexts.get(1), never()).close();
+    }
+
+    @Test
+    public void testSweepEvictsBrokenContexts() throws Exception
+    {
+        pool.release(pool.acquire("ou=people"), false);
+
+        when(contexts.get(0).getAttributes(eq(""), any(String[].class)))
+                .thenThrow(new CommunicationException());
+
+        pool.sweep();
+
+        assertEquals("Broken context not evicted", 0, pool.getOpenCount());
+        assertEquals("Broken eviction not counted", 1,
+                pool.getBrokenEvictionCount());
+    }
+
+    @Test
+    public void testValidateOnBorrow() throws Exception
+    {
+        pool = createPool(1, 2, 60000, 0, true);
+
+        LdapConnection connection = pool.acquire("ou=people");
+        pool.release(connection, false);
+
+        when(contexts.get(0).getAttributes(eq(""), any(String[].class)))
+                .thenThrow(new CommunicationException());
+
+        assertNotSame("Broken context reused", connection,
+                pool.acquire("ou=people"));
+        assertEquals("Wrong number of contexts created", 2,
+                pool.getCreatedCount());
+    }
+
+    @Test
+    public void testFailedCreateFreesSlot() throws Exception
+    {
+        factory = new LdapContextFactory() {
+            public LdapContext createContext(final String baseDN)
+                    throws NamingException
+            {
+                throw new CommunicationException();
+            }
+        };
+        pool = createPool(1, 1, 60000, 0, false);
+
+        try {
+            pool.acquire("ou=people");
+            fail("Context acquired without a directory");
+        } catch (CommunicationException e) {
+            // Expected
+        }
+
+        assertEquals("Slot not freed", 0, pool.getOpenCount());
+    }
+}
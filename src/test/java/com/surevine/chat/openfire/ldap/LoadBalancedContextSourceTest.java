@@ -0,0 +1,252 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoadBalancedContextSourceTest
+{
+    /**
+     * A source of contexts for one server, which can be made to fail.
+     */
+    static class FakeSource implements LdapContextSource
+    {
+        boolean failing;
+
+        int acquired;
+
+        int released;
+
+        public LdapConnection acquire(final String baseDN)
+                throws NamingException
+        {
+            if (failing) {
+                throw new CommunicationException("Connection refused");
+            }
+            acquired++;
+            return new LdapConnection(context(this), baseDN, 0);
+        }
+
+        public void release(final LdapConnection connection,
+                final boolean broken)
+        {
+            released++;
+        }
+
+        public void close()
+        {
+        }
+    }
+
+    /**
+     * Creates a context whose reads fail if the source is failing.
+     */
+    static LdapContext context(final FakeSource source)
+    {
+        return (LdapContext) Proxy.newProxyInstance(
+                LdapContext.class.getClassLoader(),
+                new Class<?>[] { LdapContext.class }, new InvocationHandler() {
+                    public Object invoke(final Object proxy,
+                            final Method method, final Object[] args)
+                            throws Throwable
+                    {
+                        if (source.failing) {
+                            throw new CommunicationException();
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    FakeSource first;
+
+    FakeSource second;
+
+    LdapServer firstServer;
+
+    LdapServer secondServer;
+
+    long now;
+
+    @Before
+    public void setUp()
+    {
+        first = new FakeSource();
+        second = new FakeSource();
+        firstServer = new LdapServer("ldap://first:389", first);
+        secondServer = new LdapServer("ldap://second:389", second);
+        now = 1000000;
+    }
+
+    LoadBalancedContextSource balancer(
+            final LoadBalancedContextSource.Strategy strategy)
+    {
+        return new LoadBalancedContextSource(Arrays.asList(firstServer,
+                secondServer), strategy, 2, 30000, 0, "ou=people") {
+            @Override
+            long currentTime()
+            {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception
+    {
+        LoadBalancedContextSource balancer = balancer(LoadBalancedContextSource.Strategy.ROUND_ROBIN);
+
+        for (int i = 0; i < 4; i++) {
+            balancer.release(balancer.acquire("ou=people"), false);
+        }
+
+        assertEquals("Wrong use of first server", 2, first.acquired);
+        assertEquals("Wrong use of second server", 2, second.acquired);
+        assertEquals("Connections not released to their server", 2,
+                first.released);
+    }
+
+    @Test
+    public void testLeastOutstanding() throws Exception
+    {
+        LoadBalancedContextSource balancer = balancer(LoadBalancedContextSource.Strategy.LEAST_OUTSTANDING);
+
+        // Each connection is held, so the other server has fewer outstanding
+        List<LdapConnection> held = new ArrayList<LdapConnection>();
+
+        for (int i = 0; i < 4; i++) {
+            held.add(balancer.acquire("ou=people"));
+        }
+
+        assertEquals("Wrong outstanding on first server", 2,
+                firstServer.getOutstanding());
+        assertEquals("Wrong outstanding on second server", 2,
+                secondServer.getOutstanding());
+
+        balancer.release(held.get(0), false);
+        balancer.release(held.get(2), false);
+
+        assertEquals("Released connections not counted", 2,
+                firstServer.getOutstanding() + secondServer.getOutstanding());
+    }
+
+    @Test
+    public void testFailoverAndEjection() throws Exception
+    {
+        LoadBalancedContextSource balancer = balancer(LoadBalancedContextSource.Strategy.ROUND_ROBIN);
+
+        first.failing = true;
+
+        for (int i = 0; i < 4; i++) {
+            balancer.release(balancer.acquire("ou=people"), false);
+        }
+
+        assertEquals("Operations not failed over", 4, second.acquired);
+        assertTrue("Failing server not ejected", !firstServer.isAvailable(now));
+        assertEquals("Ejected server still tried", 2,
+                firstServer.getFailureCount());
+        assertEquals("Ejection not counted", 1, firstServer.getEjectionCount());
+    }
+
+    @Test
+    public void testHealthCheckReinstatesServer() throws Exception
+    {
+        LoadBalancedContextSource balancer = balancer(LoadBalancedContextSource.Strategy.ROUND_ROBIN);
+
+        first.failing = true;
+
+        for (int i = 0; i < 4; i++) {
+            balancer.release(balancer.acquire("ou=people"), false);
+        }
+
+        balancer.checkHealth();
+        assertFalse("Failing server reinstated", firstServer.isAvailable(now));
+
+        first.failing = false;
+        balancer.checkHealth();
+
+        assertTrue("Recovered server not reinstated",
+                firstServer.isAvailable(now));
+        assertFalse("Recovered server still suspect", firstServer.isSuspect());
+    }
+
+    @Test
+    public void testAllEjectedUsesSoonestBack() throws Exception
+    {
+        LoadBalancedContextSource balancer = balancer(LoadBalancedContextSource.Strategy.ROUND_ROBIN);
+
+        secondServer.failed(now, 1, 60000);
+        firstServer.failed(now, 1, 30000);
+
+        assertSame("Wrong server chosen", firstServer,
+                balancer.select(Collections.<LdapServer> emptySet()));
+    }
+
+    @Test
+    public void testLatencyWeighted() throws Exception
+    {
+        LoadBalancedContextSource balancer = balancer(LoadBalancedContextSource.Strategy.LATENCY_WEIGHTED);
+
+        firstServer.started();
+        firstServer.completed(1000000, false, now, 2, 30000);
+        secondServer.started();
+        secondServer.completed(20000000, false, now, 2, 30000);
+
+        int fast = 0;
+
+        for (int i = 0; i < 1000; i++) {
+            if (balancer.select(Collections.<LdapServer> emptySet()) == firstServer) {
+                fast++;
+            }
+        }
+
+        assertTrue("Fast server not favoured: " + fast, fast > 850);
+    }
+
+    @Test
+    public void testParseStrategy()
+    {
+        assertEquals(LoadBalancedContextSource.Strategy.ROUND_ROBIN,
+                LoadBalancedContextSource.Strategy.parse("round-robin",
+                        LoadBalancedContextSource.Strategy.LEAST_OUTSTANDING));
+        assertEquals(LoadBalancedContextSource.Strategy.LEAST_OUTSTANDING,
+                LoadBalancedContextSource.Strategy.parse("random",
+                        LoadBalancedContextSource.Strategy.LEAST_OUTSTANDING));
+    }
+
+    @Test
+    public void testReadTimeoutIsConnectionFailure()
+    {
+        assertTrue("Read timeout not a connection failure",
+                LdapConnection.isConnectionFailure(new NamingException(
+                        "LDAP response read timed out, timeout used:10000ms.")));
+        assertTrue("Interruption not a connection failure",
+                LdapConnection.isConnectionFailure(
+                        new InterruptedNamingException("Interrupted")));
+        assertFalse("Other errors are connection failures",
+                LdapConnection.isConnectionFailure(new NamingException(
+                        "Invalid filter")));
+    }
+
+    @Test
+    public void testServerUrl()
+    {
+        assertEquals("ldap://ldap1:389", ServerContextFactory.url("ldap1", 389));
+        assertEquals("ldap://ldap1:636", ServerContextFactory.url("ldap1:636",
+                389));
+    }
+}
@@ -0,0 +1,182 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LookupExecutorTest
+{
+    LookupExecutor executor;
+
+    /**
+     * Released to let blocked lookups finish.
+     */
+    CountDownLatch release;
+
+    @Before
+    public void setUp()
+    {
+        executor = new LookupExecutor(1, 1, 10000);
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown()
+    {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    static Callable<String> result(final String value)
+    {
+        return new Callable<String>() {
+            public String call()
+            {
+                return value;
+            }
+        };
+    }
+
+    Callable<String> blocking()
+    {
+        return new Callable<String>() {
+            public String call() throws InterruptedException
+            {
+                release.await();
+                return "released";
+            }
+        };
+    }
+
+    static Throwable cause(final Future<?> future) throws Exception
+    {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Lookup succeeded");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void testCallbackIsToldOfResult() throws Exception
+    {
+        final AtomicReference<String> result = new AtomicReference<String>();
+        final CountDownLatch called = new CountDownLatch(1);
+
+        Future<String> future = executor.submit(result("jsmith"), 0,
+                new LookupExecutor.Callback<String>() {
+                    public void completed(final String value)
+                    {
+                        result.set(value);
+                        called.countDown();
+                    }
+
+                    public void failed(final Throwable cause)
+                    {
+                        called.countDown();
+                    }
+                });
+
+        assertEquals("Wrong result", "jsmith", future.get(5, TimeUnit.SECONDS));
+        assertTrue("Callback not called", called.await(5, TimeUnit.SECONDS));
+        assertEquals("Wrong result given to callback", "jsmith", result.get());
+    }
+
+    @Test
+    public void testRunningLookupIsInterruptedAtDeadline() throws Exception
+    {
+        Future<String> future = executor.submit(blocking(), 50, null);
+
+        assertTrue("Wrong failure", cause(future) instanceof TimeoutException);
+        assertEquals("Timeout not counted", 1, executor.getTimeoutCount());
+
+        // The thread was freed by the interrupt
+        assertEquals("Thread not freed", "next",
+                executor.submit(result("next"), 0, null).get(5,
+                        TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testQueuedLookupTimeoutIsCountedOnce() throws Exception
+    {
+        Future<String> running = executor.submit(blocking(), 0, null);
+        Future<String> queued = executor.submit(result("queued"), 50, null);
+
+        assertTrue("Wrong failure", cause(queued) instanceof TimeoutException);
+
+        release.countDown();
+        assertEquals("released", running.get(5, TimeUnit.SECONDS));
+
+        final long deadline = System.currentTimeMillis() + 5000;
+
+        while (executor.getQueueSize() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Runs after the timed out lookup is taken off the queue
+        assertEquals("next", executor.submit(result("next"), 0, null).get(5,
+                TimeUnit.SECONDS));
+        assertEquals("Timeout counted twice", 1, executor.getTimeoutCount());
+    }
+
+    @Test
+    public void testFullQueueRejectsLookups() throws Exception
+    {
+        executor.submit(blocking(), 0, null);
+        executor.submit(blocking(), 0, null);
+
+        // One is running and one is queued
+        Future<String> rejected = executor.submit(result("rejected"), 0, null);
+
+        assertTrue("Wrong failure",
+                cause(rejected) instanceof RejectedExecutionException);
+        assertEquals("Rejection not counted", 1, executor.getRejectionCount());
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception
+    {
+        executor.shutdown();
+        executor = new LookupExecutor(1, 1, 10000, true);
+
+        boolean supported = LookupExecutor.newVirtualThreadExecutor() != null;
+
+        assertEquals("Wrong mode", supported,
+                executor.isUsingVirtualThreads());
+        assertEquals("Wrong result", "jsmith",
+                executor.submit(result("jsmith"), 0, null).get(5,
+                        TimeUnit.SECONDS));
+
+        // The thread count plus queue size bounds the lookups in flight
+        executor.submit(blocking(), 0, null);
+        executor.submit(blocking(), 0, null);
+
+        assertTrue("Wrong failure", cause(executor.submit(result("rejected"),
+                0, null)) instanceof RejectedExecutionException);
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCancel() throws Exception
+    {
+        Future<String> future = executor.submit(blocking(), 0, null);
+
+        assertTrue("Not cancelled", future.cancel(true));
+
+        future.get();
+    }
+}
@@ -0,0 +1,369 @@
+package com.surevine.chat.openfire.ldap;
+
+import static com.surevine.chat.openfire.ldap.ExtendedLdapUserProviderTest.searchResults;
+import static com.surevine.chat.openfire.ldap.ExtendedLdapUserProviderTest.userResult;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class PagedSearchTest
+{
+    static final String FILTER = "(&(uid=*)(sn=smi*))";
+
+    LdapContext context;
+
+    SearchControls controls;
+
+    List<SearchResult> results;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        context = mock(LdapContext.class);
+        controls = new SearchControls();
+        results = new ArrayList<SearchResult>();
+    }
+
+    static Control vlvResponse(final int targetPosition,
+            final int contentCount, final int result)
+    {
+        return new BasicControl(VirtualListViewControl.RESPONSE_OID, false,
+                new BerEncoder().beginSequence(BerEncoder.SEQUENCE)
+                        .writeInteger(BerEncoder.INTEGER, targetPosition)
+                        .writeInteger(BerEncoder.INTEGER, contentCount)
+                        .writeInteger(BerEncoder.ENUMERATED, result)
+                        .endSequence().toByteArray());
+    }
+
+    static Control pagedResponse(final String cookie) throws Exception
+    {
+        byte[] cookieBytes = new byte[0];
+
+        if (cookie != null) {
+            cookieBytes = cookie.getBytes("UTF-8");
+        }
+
+        return new PagedResultsResponseControl(
+                PagedResultsResponseControl.OID, false, new BerEncoder()
+                        .beginSequence(BerEncoder.SEQUENCE)
+                        .writeInteger(BerEncoder.INTEGER, 0)
+                        .writeOctetString(BerEncoder.OCTET_STRING, cookieBytes)
+                        .endSequence().toByteArray());
+    }
+
+    @Test
+    public void testVirtualListViewWindow() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.AUTO, 100);
+
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenReturn(
+                searchResults(userResult("user10"), userResult("user11")));
+        when(context.getResponseControls()).thenReturn(
+                new Control[] { vlvResponse(11, 300, 0) });
+
+        assertEquals("Wrong number skipped", 10, search.search(context,
+                FILTER, controls, "uid", 10, 2, results));
+
+        assertEquals("Wrong number of results", 2, results.size());
+        assertEquals("Wrong first result", "user10", results.get(0)
+                .getAttributes().get("uid").get());
+
+        verify(context).search(eq(""), eq(FILTER), same(controls));
+        verify(context).setRequestControls(null);
+    }
+
+    @Test
+    public void testVirtualListViewPastTheEnd() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.AUTO, 100);
+
+        // The directory returns the last entry when the offset is too big
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenReturn(
+                searchResults(userResult("user4")));
+        when(context.getResponseControls()).thenReturn(
+                new Control[] { vlvResponse(5, 5, 0) });
+
+        assertEquals("Wrong number skipped", 5, search.search(context, FILTER,
+                controls, "uid", 20, 10, results));
+        assertTrue("Results returned past the end", results.isEmpty());
+    }
+
+    @Test
+    public void testUnsupportedVirtualListViewFallsBackToPaging()
+            throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.AUTO, 100);
+
+        when(context.search(eq(""), eq(FILTER), same(controls)))
+                .thenThrow(new OperationNotSupportedException())
+                .thenReturn(
+                        searchResults(userResult("user0"),
+                                userResult("user1"), userResult("user2")))
+                .thenReturn(searchResults(userResult("user1")));
+
+        assertEquals("Wrong number skipped", 1, search.search(context, FILTER,
+                controls, "uid", 1, 10, results));
+        assertEquals("Wrong number of results", 2, results.size());
+
+        // Virtual list view isn't tried again
+        results.clear();
+        search.search(context, FILTER, controls, "uid", 1, 10, results);
+
+        verify(context, times(3)).search(eq(""), eq(FILTER), same(controls));
+    }
+
+    @Test
+    public void testFirstPageUsesVirtualListView() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.AUTO, 100);
+
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenReturn(
+                searchResults(userResult("user0"), userResult("user1")));
+        when(context.getResponseControls()).thenReturn(
+                new Control[] { vlvResponse(1, 300, 0) });
+
+        assertEquals("Wrong number skipped", 0, search.search(context,
+                FILTER, controls, "uid", 0, 2, results));
+        assertEquals("Wrong number of results", 2, results.size());
+
+        ArgumentCaptor<Control[]> requestControls = ArgumentCaptor
+                .forClass(Control[].class);
+
+        verify(context, times(2)).setRequestControls(
+                requestControls.capture());
+        assertTrue("First page not sorted",
+                requestControls.getAllValues().get(0)[0] instanceof SortControl);
+        assertTrue("First page not a virtual list view", requestControls
+                .getAllValues().get(0)[1] instanceof VirtualListViewControl);
+    }
+
+    @Test
+    public void testUnlistedVirtualListViewIsNotTried() throws Exception
+    {
+        final AtomicInteger reads = new AtomicInteger();
+
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.AUTO, 100,
+                new PagedSearch.ControlSupport() {
+                    public Set<String> getSupportedControls()
+                    {
+                        reads.incrementAndGet();
+                        return new HashSet<String>(Arrays.asList(
+                                PagedResultsControl.OID, SortControl.OID));
+                    }
+                });
+
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenReturn(
+                searchResults(userResult("user0"), userResult("user1")),
+                searchResults(userResult("user0"), userResult("user1")));
+
+        search.search(context, FILTER, controls, "uid", 1, 1, results);
+        search.search(context, FILTER, controls, "uid", 1, 1, results);
+
+        assertEquals("Supported controls not read once", 1, reads.get());
+
+        ArgumentCaptor<Control[]> requestControls = ArgumentCaptor
+                .forClass(Control[].class);
+
+        verify(context, times(4)).setRequestControls(
+                requestControls.capture());
+        for (Control[] request : requestControls.getAllValues()) {
+            assertFalse("Virtual list view tried", request != null
+                    && request[0] instanceof SortControl);
+        }
+    }
+
+    @Test
+    public void testListedVirtualListViewIsUsed() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.AUTO, 100,
+                new PagedSearch.ControlSupport() {
+                    public Set<String> getSupportedControls()
+                    {
+                        return new HashSet<String>(Arrays.asList(
+                                VirtualListViewControl.OID, SortControl.OID));
+                    }
+                });
+
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenReturn(
+                searchResults(userResult("user10")));
+        when(context.getResponseControls()).thenReturn(
+                new Control[] { vlvResponse(11, 300, 0) });
+
+        assertEquals("Wrong number skipped", 10, search.search(context,
+                FILTER, controls, "uid", 10, 1, results));
+        assertEquals("Wrong result", "user10", results.get(0)
+                .getAttributes().get("uid").get());
+    }
+
+    @Test
+    public void testFailedVirtualListViewFallsBackToPaging() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.AUTO, 100);
+
+        when(context.search(eq(""), eq(FILTER), same(controls)))
+                .thenThrow(new NamingException("Unwilling to perform"))
+                .thenReturn(
+                        searchResults(userResult("user0"),
+                                userResult("user1"), userResult("user2")))
+                .thenReturn(searchResults(userResult("user0")));
+
+        assertEquals("Wrong number skipped", 1, search.search(context, FILTER,
+                controls, "uid", 1, 10, results));
+        assertEquals("Wrong number of results", 2, results.size());
+
+        // Virtual list view isn't tried again
+        results.clear();
+        search.search(context, FILTER, controls, "uid", 0, 10, results);
+
+        verify(context, times(3)).search(eq(""), eq(FILTER), same(controls));
+        assertEquals("Paged search results not returned", 1, results.size());
+    }
+
+    @Test(expected = CommunicationException.class)
+    public void testConnectionFailureIsNotPaged() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.AUTO, 100);
+
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenThrow(
+                new CommunicationException("Connection reset"));
+
+        search.search(context, FILTER, controls, "uid", 1, 10, results);
+    }
+
+    @Test
+    public void testPagedSearchFollowsCookies() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.PAGED, 2);
+
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenReturn(
+                searchResults(userResult("user0"), userResult("user1")),
+                searchResults(userResult("user2"), userResult("user3")),
+                searchResults(userResult("user4")));
+        when(context.getResponseControls()).thenReturn(
+                new Control[] { pagedResponse("page2") },
+                new Control[] { pagedResponse("page3") },
+                new Control[] { pagedResponse(null) });
+
+        assertEquals("Wrong number skipped", 3, search.search(context, FILTER,
+                controls, "uid", 3, -1, results));
+
+        assertEquals("Wrong number of results", 2, results.size());
+        assertEquals("Wrong first result", "user3", results.get(0)
+                .getAttributes().get("uid").get());
+        verify(context, times(3)).search(eq(""), eq(FILTER), same(controls));
+        verify(context).setRequestControls(null);
+    }
+
+    @Test
+    public void testPagedSearchIsAbandonedWhenWindowIsFull() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.PAGED, 2);
+
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenReturn(
+                searchResults(userResult("user0"), userResult("user1")),
+                searchResults());
+        when(context.getResponseControls()).thenReturn(
+                new Control[] { pagedResponse("page2") });
+
+        search.search(context, FILTER, controls, "uid", 0, 2, results);
+
+        assertEquals("Wrong number of results", 2, results.size());
+
+        // The second search is the abandon, whose results are ignored
+        verify(context, times(2)).search(eq(""), eq(FILTER), same(controls));
+        verify(context, times(3)).setRequestControls(any(Control[].class));
+    }
+
+    @Test
+    public void testPlainSearch() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.NONE, 2);
+
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenReturn(
+                searchResults(userResult("user0"), userResult("user1"),
+                        userResult("user2"), userResult("user3")));
+
+        assertEquals("Wrong number skipped", 1, search.search(context, FILTER,
+                controls, "uid", 1, 2, results));
+
+        assertEquals("Wrong number of results", 2, results.size());
+        assertEquals("Wrong last result", "user2", results.get(1)
+                .getAttributes().get("uid").get());
+        verify(context, never()).setRequestControls(any(Control[].class));
+    }
+
+    @Test
+    public void testScanIsPagedWhenPagingIsOff() throws Exception
+    {
+        PagedSearch search = new PagedSearch(PagedSearch.Mode.NONE, 2);
+        final List<String> scanned = new ArrayList<String>();
+
+        when(context.search(eq(""), eq(FILTER), same(controls))).thenReturn(
+                searchResults(userResult("user0"), userResult("user1")),
+                searchResults(userResult("user2")));
+        when(context.getResponseControls()).thenReturn(
+                new Control[] { pagedResponse("page2") },
+                new Control[] { pagedResponse(null) });
+
+        search.scan(context, FILTER, controls,
+                new PagedSearch.ResultHandler() {
+                    public boolean handle(final SearchResult result)
+                            throws NamingException
+                    {
+                        scanned.add((String) result.getAttributes()
+                                .get("uid").get());
+                        return true;
+                    }
+                });
+
+        assertEquals("Wrong results", Arrays.asList("user0", "user1",
+                "user2"), scanned);
+
+        ArgumentCaptor<Control[]> requestControls = ArgumentCaptor
+                .forClass(Control[].class);
+
+        verify(context, times(3)).setRequestControls(
+                requestControls.capture());
+        for (Control[] request : requestControls.getAllValues().subList(0, 2)) {
+            assertTrue("Scan not paged",
+                    request[0] instanceof PagedResultsControl);
+            assertFalse("Paging critical", request[0].isCritical());
+        }
+        assertNull("Request controls not cleared", requestControls
+                .getAllValues().get(2));
+    }
+
+    @Test
+    public void testParseMode()
+    {
+        assertEquals(PagedSearch.Mode.VLV,
+                PagedSearch.Mode.parse(" vlv ", PagedSearch.Mode.AUTO));
+        assertEquals(PagedSearch.Mode.AUTO,
+                PagedSearch.Mode.parse("bogus", PagedSearch.Mode.AUTO));
+        assertEquals(PagedSearch.Mode.NONE,
+                PagedSearch.Mode.parse(null, PagedSearch.Mode.NONE));
+    }
+}
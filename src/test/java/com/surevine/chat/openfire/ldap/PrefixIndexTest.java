@@ -0,0 +1,79 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrefixIndexTest
+{
+    PrefixIndex index;
+
+    @Before
+    public void setUp()
+    {
+        index = new PrefixIndex(2);
+
+        index.put("jsmith", values("john", "smith"), null);
+        index.put("asmithers", values("anne", "smithers"), null);
+        index.put("bjones", values("bob", "jones"), null);
+    }
+
+    static String[][] values(final String givenName, final String sn)
+    {
+        return new String[][] { { givenName }, { sn } };
+    }
+
+    @Test
+    public void testFind()
+    {
+        assertEquals("Wrong users found",
+                Arrays.asList("asmithers", "jsmith"), new ArrayList<String>(
+                        index.find(new int[] { 0, 1 }, "smi")));
+        assertEquals("Wrong users found in one attribute",
+                Arrays.asList("bjones", "jsmith"), new ArrayList<String>(
+                        index.find(new int[] { 0, 1 }, "j")));
+        assertTrue("Unsearched attribute matched",
+                index.find(new int[] { 0 }, "smi").isEmpty());
+    }
+
+    @Test
+    public void testFindAll()
+    {
+        assertEquals("Terms not all required", Arrays.asList("jsmith"),
+                new ArrayList<String>(index.findAll(new int[] { 0, 1 },
+                        new String[] { "smi", "jo" })));
+        assertTrue("Unmatched term ignored", index.findAll(
+                new int[] { 0, 1 }, new String[] { "smi", "zz" }).isEmpty());
+    }
+
+    @Test
+    public void testRemove()
+    {
+        index.remove("jsmith", values("john", "smith"));
+
+        assertEquals("Removed user still indexed",
+                Arrays.asList("asmithers"), new ArrayList<String>(
+                        index.find(new int[] { 0, 1 }, "smi")));
+        assertTrue("Removed user's other values still indexed", index.find(
+                new int[] { 0 }, "john").isEmpty());
+    }
+
+    @Test
+    public void testPutReplacesValues()
+    {
+        index.put("asmithers", values("anne", "jones"), values("anne",
+                "smithers"));
+
+        assertEquals("Old value still indexed", Arrays.asList("jsmith"),
+                new ArrayList<String>(index.find(new int[] { 1 }, "smi")));
+        assertEquals("New value not indexed",
+                Arrays.asList("asmithers", "bjones"), new ArrayList<String>(
+                        index.find(new int[] { 1 }, "jones")));
+        assertEquals("Unchanged value dropped", Arrays.asList("asmithers"),
+                new ArrayList<String>(index.find(new int[] { 0 }, "anne")));
+    }
+}
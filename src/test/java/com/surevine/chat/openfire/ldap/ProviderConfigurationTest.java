@@ -0,0 +1,87 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProviderConfigurationTest
+{
+    Map<String, String> searchFields;
+
+    ProviderConfiguration config;
+
+    @Before
+    public void setUp()
+    {
+        searchFields = new LinkedHashMap<String, String>();
+        searchFields.put("Username", "uid");
+        searchFields.put("Family Name", "sn");
+
+        config = new ProviderConfiguration(Arrays.asList("uid", "cn"),
+                "{givenName} {sn}", true, searchFields,
+                Collections.singleton("Family Name"));
+    }
+
+    @Test
+    public void testUserAttributesIncludeTemplateAttributes()
+    {
+        assertEquals(new HashSet<String>(Arrays.asList("uid", "cn",
+                "givenName", "sn")), new HashSet<String>(Arrays.asList(config
+                .getUserAttributes())));
+        assertEquals("{givenName} {sn}",
+                config.getDisplayNameTemplateString());
+    }
+
+    @Test
+    public void testIsASnapshot()
+    {
+        searchFields.put("Email", "mail");
+
+        assertFalse("Later changes seen", config.getSearchFields()
+                .containsKey("Email"));
+
+        try {
+            config.getSearchFields().put("Email", "mail");
+            fail("Search fields modified");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testWithDisplayNameTemplate()
+    {
+        ProviderConfiguration updated = config.withDisplayNameTemplate(null);
+
+        assertNull("Template not replaced", updated.getDisplayNameTemplate());
+        assertEquals("Attributes not reduced", new HashSet<String>(Arrays
+                .asList("uid", "cn")), new HashSet<String>(Arrays
+                .asList(updated.getUserAttributes())));
+        assertTrue("Search settings not kept", updated.isSeperateSearchTerms());
+        assertEquals(config.getSearchFields(), updated.getSearchFields());
+        assertEquals(config.getSearchNameFields(),
+                updated.getSearchNameFields());
+    }
+
+    @Test
+    public void testBuildsSameUsers()
+    {
+        assertTrue("Same template builds different users",
+                config.buildsSameUsers(new ProviderConfiguration(Arrays.asList(
+                        "uid", "cn"), "{givenName} {sn}", false, searchFields,
+                        Collections.<String> emptySet())));
+        assertFalse("Different template builds the same users",
+                config.buildsSameUsers(config.withDisplayNameTemplate("{sn}")));
+        assertFalse("No template builds the same users",
+                config.buildsSameUsers(config.withDisplayNameTemplate(null)));
+        assertTrue(config.withDisplayNameTemplate(null).buildsSameUsers(
+                config.withDisplayNameTemplate(null)));
+    }
+}
@@ -0,0 +1,152 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.ldap.LdapManager;
+import org.jivesoftware.openfire.ldap.LdapUserProvider;
+import org.jivesoftware.openfire.user.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProviderMonitorTest
+{
+    LdapManager manager;
+
+    ExtendedLdapUserProvider provider;
+
+    ProviderMonitor monitor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        manager = mock(LdapManager.class);
+
+        when(manager.getUsernameField()).thenReturn("uid");
+        when(manager.getNameField()).thenReturn("cn");
+        when(manager.getEmailField()).thenReturn("mail");
+
+        provider = new ExtendedLdapUserProvider(manager,
+                mock(LdapUserProvider.class), mock(XMPPServer.class),
+                "{givenName} {sn}", true, "Username/uid,Name/cn", null);
+        monitor = new ProviderMonitor(provider);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ProviderMonitor.OBJECT_NAME);
+
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testRegister() throws Exception
+    {
+        assertNotNull("Monitor not registered",
+                ProviderMonitor.register(provider));
+        assertNotNull("Monitor not replaced",
+                ProviderMonitor.register(provider));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ProviderMonitor.OBJECT_NAME);
+
+        assertEquals("Wrong template", "{givenName} {sn}",
+                server.getAttribute(name, "DisplayNameTemplate"));
+        assertEquals("Wrong separate search terms", Boolean.TRUE,
+                server.getAttribute(name, "SeperateSearchTerms"));
+        assertNotNull("Latencies not readable",
+                server.getAttribute(name, "Latency99thPercentile"));
+    }
+
+    @Test
+    public void testUnregister() throws Exception
+    {
+        ExtendedLdapUserProvider later = new ExtendedLdapUserProvider(manager,
+                mock(LdapUserProvider.class), mock(XMPPServer.class),
+                "{givenName} {sn}", true, "Username/uid,Name/cn", null);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ProviderMonitor.OBJECT_NAME);
+
+        ProviderMonitor.register(provider);
+        ProviderMonitor.register(later);
+        ProviderMonitor.unregister(provider);
+
+        assertTrue("Later provider's monitor unregistered",
+                server.isRegistered(name));
+
+        ProviderMonitor.unregister(later);
+
+        assertFalse("Monitor still registered", server.isRegistered(name));
+    }
+
+    @Test
+    public void testDisabledFeatures()
+    {
+        assertEquals("Disabled cache has a size", -1,
+                monitor.getUserCacheSize());
+        assertEquals("Disabled pool has contexts", -1,
+                monitor.getPoolActiveCount());
+        assertEquals("Disabled mirror has users", -1, monitor.getMirrorSize());
+        assertTrue("Circuits reported", monitor.getCircuitStates().isEmpty());
+        assertEquals("Disabled slow query log has searches", -1,
+                monitor.getSlowQueryCount());
+    }
+
+    @Test
+    public void testEvictAndFlush()
+    {
+        provider.setUserCache(new ExpiringCache<String, User>("test", 10,
+                60000, ExpiringCache.EvictionPolicy.LRU));
+
+        ExpiringCache<String, User> cache = provider.getUserCache();
+
+        cache.put("jsmith", new User("jsmith", "John Smith", null, new Date(),
+                new Date()));
+        cache.put("bjones", new User("bjones", "Bob Jones", null, new Date(),
+                new Date()));
+        cache.get("jsmith");
+        cache.get("nobody");
+
+        assertEquals("Wrong cache size", 2, monitor.getUserCacheSize());
+        assertEquals("Wrong hit ratio", 0.5, monitor.getUserCacheHitRatio(),
+                0.001);
+
+        monitor.evictUser("JSmith@example.com");
+
+        assertNull("User not evicted", cache.get("jsmith"));
+        assertEquals("Other user evicted", 1, monitor.getUserCacheSize());
+
+        monitor.flushCaches();
+
+        assertEquals("Cache not flushed", 0, monitor.getUserCacheSize());
+    }
+
+    @Test
+    public void testOperationFigures()
+    {
+        provider.getMetrics().get(ProviderMetrics.Operation.FIND_USERS)
+                .getLatency().record(2000000);
+
+        assertEquals("Wrong count", Long.valueOf(1), monitor
+                .getOperationCounts().get("findUsers"));
+        assertEquals("Wrong max latency", 2, monitor.getMaxLatency()
+                .get("findUsers"), 0.001);
+
+        monitor.resetMetrics();
+
+        assertEquals("Metrics not reset", Long.valueOf(0), monitor
+                .getOperationCounts().get("findUsers"));
+    }
+}
@@ -0,0 +1,150 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestCoalescerTest
+{
+    static final int THREADS = 5;
+
+    /**
+     * The class under test.
+     */
+    RequestCoalescer<String, String> coalescer;
+
+    ExecutorService executor;
+
+    /**
+     * Holds the loader until all the threads have made their request.
+     */
+    CountDownLatch release;
+
+    /**
+     * The number of times the loader has been run.
+     */
+    AtomicInteger loads;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        coalescer = new RequestCoalescer<String, String>();
+        executor = Executors.newFixedThreadPool(THREADS);
+        release = new CountDownLatch(1);
+        loads = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentRequestsShareResult() throws Exception
+    {
+        List<Future<String>> results = loadConcurrently(new Callable<String>() {
+            public String call() throws Exception
+            {
+                loads.incrementAndGet();
+                release.await();
+                return "result";
+            }
+        });
+
+        for (Future<String> result : results) {
+            assertEquals("Result not shared", "result",
+                    result.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals("Loader run more than once", 1, loads.get());
+        assertEquals("Coalesced requests not counted", THREADS - 1,
+                coalescer.getCoalescedCount());
+        assertEquals("Request still in flight", 0,
+                coalescer.getInFlightCount());
+    }
+
+    @Test
+    public void testConcurrentRequestsShareException() throws Exception
+    {
+        final Exception failure = new Exception("failure");
+
+        List<Future<String>> results = loadConcurrently(new Callable<String>() {
+            public String call() throws Exception
+            {
+                loads.incrementAndGet();
+                release.await();
+                throw failure;
+            }
+        });
+
+        for (Future<String> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Exception not shared");
+            } catch (java.util.concurrent.ExecutionException e) {
+                assertSame("Wrong exception thrown", failure, e.getCause());
+            }
+        }
+
+        assertEquals("Loader run more than once", 1, loads.get());
+    }
+
+    @Test
+    public void testSequentialRequestsAreNotCoalesced() throws Exception
+    {
+        Callable<String> loader = new Callable<String>() {
+            public String call() throws Exception
+            {
+                return "result" + loads.incrementAndGet();
+            }
+        };
+
+        assertEquals("result1", coalescer.load("key", loader));
+        assertEquals("result2", coalescer.load("key", loader));
+        assertEquals("Sequential requests coalesced", 0,
+                coalescer.getCoalescedCount());
+    }
+
+    /**
+     * Makes {@link #THREADS} concurrent requests for the same key, releasing
+     * the loader once they have all been made.
+     */
+    private List<Future<String>> loadConcurrently(final Callable<String> loader)
+            throws Exception
+    {
+        List<Future<String>> results = new ArrayList<Future<String>>();
+
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception
+                {
+                    return coalescer.load("key", loader);
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (coalescer.getCoalescedCount() < THREADS - 1
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        release.countDown();
+
+        return results;
+    }
+}
@@ -0,0 +1,213 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RequestHedgerTest
+{
+    RequestHedger hedger;
+
+    @After
+    public void tearDown()
+    {
+        if (hedger != null) {
+            hedger.shutdown();
+        }
+    }
+
+    /**
+     * Records enough fast latencies for lookups to be hedged.
+     */
+    void warmUp()
+    {
+        for (int i = 0; i < 20; i++) {
+            hedger.record(1000000);
+        }
+    }
+
+    /**
+     * A lookup whose first run is slow and whose later runs are fast.
+     */
+    static Callable<String> slowFirstRun(final long millis)
+    {
+        final AtomicInteger runs = new AtomicInteger();
+
+        return new Callable<String>() {
+            public String call() throws Exception
+            {
+                if (runs.incrementAndGet() == 1) {
+                    Thread.sleep(millis);
+                    return "primary";
+                }
+                return "hedge";
+            }
+        };
+    }
+
+    @Test
+    public void testNotHedgedUntilWarmedUp() throws Exception
+    {
+        hedger = new RequestHedger(4, 50, 10, 100);
+
+        assertEquals("Delay known without latencies", -1, hedger.getDelay(),
+                0);
+        assertEquals("Lookup hedged before warm up", "primary",
+                hedger.call(slowFirstRun(100)));
+        assertEquals("Hedge counted", 0, hedger.getHedgeCount());
+    }
+
+    @Test
+    public void testDelayIsPercentileWithMinimum() throws Exception
+    {
+        hedger = new RequestHedger(4, 90, 10, 100);
+
+        for (int i = 1; i <= 20; i++) {
+            hedger.record(i * 2000000L);
+        }
+
+        assertEquals("Wrong delay", 36, hedger.getDelay(), 0.001);
+
+        hedger = new RequestHedger(4, 90, 100, 100);
+        warmUp();
+
+        assertEquals("Minimum delay not applied", 100, hedger.getDelay(),
+                0.001);
+    }
+
+    @Test
+    public void testSlowLookupIsHedged() throws Exception
+    {
+        hedger = new RequestHedger(4, 50, 10, 100);
+        warmUp();
+
+        final long started = System.currentTimeMillis();
+
+        assertEquals("Hedge didn't win", "hedge",
+                hedger.call(slowFirstRun(5000)));
+        assertTrue("Waited for the slow run",
+                System.currentTimeMillis() - started < 2500);
+        assertEquals("Hedge not counted", 1, hedger.getHedgeCount());
+        assertEquals("Hedge win not counted", 1, hedger.getHedgeWinCount());
+    }
+
+    @Test
+    public void testLosingRunIsRecordedNotInterrupted() throws Exception
+    {
+        hedger = new RequestHedger(4, 50, 10, 100);
+        warmUp();
+
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final CountDownLatch primaryFinished = new CountDownLatch(1);
+
+        assertEquals("Hedge didn't win", "hedge",
+                hedger.call(new Callable<String>() {
+                    public String call() throws Exception
+                    {
+                        if (runs.incrementAndGet() == 1) {
+                            try {
+                                Thread.sleep(300);
+                            } catch (InterruptedException e) {
+                                interrupted.set(true);
+                            } finally {
+                                primaryFinished.countDown();
+                            }
+                            return "primary";
+                        }
+                        return "hedge";
+                    }
+                }));
+
+        assertTrue("Losing run didn't finish",
+                primaryFinished.await(5, TimeUnit.SECONDS));
+        assertFalse("Losing run interrupted", interrupted.get());
+
+        // Recorded after the run returns
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (hedger.getSampleCount() < 22
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("Losing run's latency not recorded", 22,
+                hedger.getSampleCount());
+    }
+
+    @Test
+    public void testFailedRunIsRecorded() throws Exception
+    {
+        hedger = new RequestHedger(4, 50, 10, 100);
+
+        try {
+            hedger.call(new Callable<String>() {
+                public String call() throws Exception
+                {
+                    throw new NamingException("Directory unavailable");
+                }
+            });
+            fail("Failure not thrown");
+        } catch (NamingException e) {
+            // Expected
+        }
+
+        assertEquals("Failed run's latency not recorded", 1,
+                hedger.getSampleCount());
+    }
+
+    @Test
+    public void testBudgetLimitsHedges() throws Exception
+    {
+        hedger = new RequestHedger(4, 50, 10, 0);
+        warmUp();
+
+        assertEquals("Lookup hedged without budget", "primary",
+                hedger.call(slowFirstRun(100)));
+        assertEquals("Refusal not counted", 1, hedger.getBudgetRefusalCount());
+    }
+
+    @Test
+    public void testFailedRunLeavesOther() throws Exception
+    {
+        hedger = new RequestHedger(4, 50, 10, 100);
+        warmUp();
+
+        final AtomicInteger runs = new AtomicInteger();
+
+        assertEquals("Hedge result not used", "hedge",
+                hedger.call(new Callable<String>() {
+                    public String call() throws Exception
+                    {
+                        if (runs.incrementAndGet() == 1) {
+                            Thread.sleep(100);
+                            throw new NamingException("Primary failed");
+                        }
+                        Thread.sleep(200);
+                        return "hedge";
+                    }
+                }));
+    }
+
+    @Test(expected = NamingException.class)
+    public void testEveryRunFailing() throws Exception
+    {
+        hedger = new RequestHedger(4, 50, 10, 100);
+        warmUp();
+
+        hedger.call(new Callable<String>() {
+            public String call() throws Exception
+            {
+                Thread.sleep(50);
+                throw new NamingException("Directory unavailable");
+            }
+        });
+    }
+}
@@ -0,0 +1,78 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.openfire.user.User;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SearchResultCacheTest
+{
+    SearchResultCache cache;
+
+    List<User> users;
+
+    @Before
+    public void setUp()
+    {
+        cache = new SearchResultCache(10, 60000);
+        users = new ArrayList<User>();
+        users.add(new User("jsmith", "John Smith", null, new Date(),
+                new Date()));
+    }
+
+    @Test
+    public void testKeyIsNormalized()
+    {
+        assertEquals("Equivalent searches have different keys",
+                SearchResultCache.key(Arrays.asList("sn", "givenName"),
+                        new String[] { "Smi", "jo" }, 0, 20),
+                SearchResultCache.key(Arrays.asList("givenname", "sn"),
+                        new String[] { "JO", "smi", "jo ", "" }, 0, 20));
+        assertFalse("Different windows have the same key", SearchResultCache
+                .key(Arrays.asList("sn"), new String[] { "smi" }, 0, 20)
+                .equals(SearchResultCache.key(Arrays.asList("sn"),
+                        new String[] { "smi" }, 20, 20)));
+        assertFalse("Different attributes have the same key",
+                SearchResultCache.key(Arrays.asList("sn"),
+                        new String[] { "smi" }, -1, -1).equals(
+                        SearchResultCache.key(Arrays.asList("cn"),
+                                new String[] { "smi" }, -1, -1)));
+    }
+
+    @Test
+    public void testPutAndGet()
+    {
+        List<User> cached = cache.put("key", users, cache.getGeneration(),
+                5000000);
+
+        assertEquals("Wrong results", users, cached);
+        assertSame("Results not cached", cached, cache.get("key"));
+        assertEquals("Wrong average miss time", 5.0,
+                cache.getAverageMissTime(), 0.001);
+        assertEquals("Wrong time saved", 5.0, cache.getEstimatedTimeSaved(),
+                0.001);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testResultsCantBeModified()
+    {
+        cache.put("key", users, cache.getGeneration(), 0).clear();
+    }
+
+    @Test
+    public void testResultsOfSearchesRunningDuringInvalidationArentCached()
+    {
+        long generation = cache.getGeneration();
+
+        cache.invalidate();
+        cache.put("key", users, generation, 0);
+
+        assertNull("Stale results cached", cache.get("key"));
+    }
+}
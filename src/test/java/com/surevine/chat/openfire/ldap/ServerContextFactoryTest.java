@@ -0,0 +1,164 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.Hashtable;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
+
+import org.jivesoftware.openfire.ldap.LdapManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+public class ServerContextFactoryTest
+{
+    static final String URL = "ldap://ldap1:389";
+
+    LdapManager manager;
+
+    LdapContext context;
+
+    StartTlsResponse tls;
+
+    /**
+     * The environment the last context was created with.
+     */
+    Hashtable<String, Object> env;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        manager = mock(LdapManager.class);
+        context = mock(LdapContext.class);
+        tls = mock(StartTlsResponse.class);
+
+        when(manager.getInitialContextFactory()).thenReturn(
+                "com.sun.jndi.ldap.LdapCtxFactory");
+        when(manager.getAdminDN()).thenReturn("cn=admin");
+        when(manager.getAdminPassword()).thenReturn("secret");
+        when(context.extendedOperation(any(ExtendedRequest.class)))
+                .thenReturn(tls);
+    }
+
+    ServerContextFactory factory(final boolean startTls,
+            final boolean derefAliases)
+    {
+        return new ServerContextFactory(manager, URL, 5000, 10000, startTls,
+                derefAliases) {
+            @Override
+            LdapContext newContext(final Hashtable<String, Object> env)
+            {
+                ServerContextFactoryTest.this.env = env;
+                return context;
+            }
+        };
+    }
+
+    @Test
+    public void testEnvironment() throws Exception
+    {
+        when(manager.isConnectionPoolEnabled()).thenReturn(true);
+        when(manager.isFollowReferralsEnabled()).thenReturn(true);
+
+        Hashtable<String, Object> env = factory(false, true).getEnvironment(
+                "ou=people,dc=example");
+
+        assertEquals("Wrong URL", URL + "/ou%3Dpeople%2Cdc%3Dexample",
+                env.get(Context.PROVIDER_URL));
+        assertEquals("Admin not bound", "cn=admin",
+                env.get(Context.SECURITY_PRINCIPAL));
+        assertEquals("Password not sent", "secret",
+                env.get(Context.SECURITY_CREDENTIALS));
+        assertEquals("Not pooled", "true",
+                env.get("com.sun.jndi.ldap.connect.pool"));
+        assertEquals("Referrals not followed", "follow",
+                env.get(Context.REFERRAL));
+        assertEquals("Aliases not dereferenced", "always",
+                env.get("java.naming.ldap.derefAliases"));
+        assertEquals("Wrong read timeout", "10000",
+                env.get("com.sun.jndi.ldap.read.timeout"));
+        assertNull("BER traced", env.get("com.sun.jndi.ldap.trace.ber"));
+    }
+
+    @Test
+    public void testAliasesAndDebug()
+    {
+        when(manager.isDebugEnabled()).thenReturn(true);
+
+        Hashtable<String, Object> env = factory(false, false).getEnvironment(
+                "");
+
+        assertEquals("Aliases dereferenced", "never",
+                env.get("java.naming.ldap.derefAliases"));
+        assertSame("BER not traced", System.err,
+                env.get("com.sun.jndi.ldap.trace.ber"));
+        assertEquals("Pooled", "false",
+                env.get("com.sun.jndi.ldap.connect.pool"));
+    }
+
+    @Test
+    public void testStartTlsBindsAfterNegotiating() throws Exception
+    {
+        when(manager.isConnectionPoolEnabled()).thenReturn(true);
+
+        assertSame("Wrong context", context, factory(true, true)
+                .createContext("ou=people"));
+
+        assertEquals("Bound before TLS", "none",
+                env.get(Context.SECURITY_AUTHENTICATION));
+        assertNull("Password sent before TLS",
+                env.get(Context.SECURITY_CREDENTIALS));
+        assertEquals("StartTLS connection pooled", "false",
+                env.get("com.sun.jndi.ldap.connect.pool"));
+
+        InOrder order = inOrder(context, tls);
+
+        order.verify(context).extendedOperation(any(StartTlsRequest.class));
+        order.verify(tls).negotiate();
+        order.verify(context).addToEnvironment(Context.SECURITY_AUTHENTICATION,
+                "simple");
+        order.verify(context).addToEnvironment(Context.SECURITY_PRINCIPAL,
+                "cn=admin");
+        order.verify(context).addToEnvironment(Context.SECURITY_CREDENTIALS,
+                "secret");
+    }
+
+    @Test
+    public void testStartTlsNotUsedWithSsl() throws Exception
+    {
+        when(manager.isSslEnabled()).thenReturn(true);
+
+        factory(true, true).createContext("");
+
+        assertEquals("Admin not bound", "simple",
+                env.get(Context.SECURITY_AUTHENTICATION));
+        verify(context, never()).extendedOperation(
+                any(ExtendedRequest.class));
+    }
+
+    @Test
+    public void testFailedNegotiationClosesContext() throws Exception
+    {
+        when(tls.negotiate()).thenThrow(new IOException("Handshake failed"));
+
+        try {
+            factory(true, true).createContext("");
+            fail("Unsecured context returned");
+        } catch (CommunicationException e) {
+            // Expected
+        }
+
+        verify(context).close();
+        verify(context, never()).addToEnvironment(
+                eq(Context.SECURITY_CREDENTIALS), any());
+    }
+}
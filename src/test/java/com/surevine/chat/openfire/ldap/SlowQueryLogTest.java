@@ -0,0 +1,103 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SlowQueryLogTest
+{
+    static long millis(final long millis)
+    {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void testFingerprint()
+    {
+        assertEquals("(&(uid=*)(|(givenName=?*)(sn=*?*)))",
+                SlowQueryLog.fingerprint("(&(uid=*)(|(givenName=jo*)"
+                        + "(sn=*smi*)))"));
+        assertEquals("Escapes not treated as literals", "(cn=?*?)",
+                SlowQueryLog.fingerprint("(cn=a\\2ab*c\\29d)"));
+        assertEquals("Operators not kept", "(&(sn~=?)(age>=?)(cn:dn:=?))",
+                SlowQueryLog.fingerprint("(&(sn~=smith)(age>=30)"
+                        + "(cn:dn:=John))"));
+        assertEquals("Different terms have different shapes",
+                SlowQueryLog.fingerprint("(sn=a*)"),
+                SlowQueryLog.fingerprint("(sn=smithers*)"));
+    }
+
+    @Test
+    public void testFastSearchesAreIgnored()
+    {
+        SlowQueryLog log = new SlowQueryLog(100, 5);
+
+        log.record("(sn=smi*)", millis(99), 3);
+
+        assertEquals("Fast search counted", 0, log.getSlowQueryCount());
+        assertTrue("Fast search aggregated", log.getSlowestShapes().isEmpty());
+    }
+
+    @Test
+    public void testShapesAreAggregated()
+    {
+        SlowQueryLog log = new SlowQueryLog(100, 5);
+
+        log.record("(|(sn=smi*)(givenName=smi*))", millis(100), 4);
+        log.record("(|(sn=a*)(givenName=a*))", millis(300), 10);
+
+        List<SlowQueryLog.Shape> shapes = log.getSlowestShapes();
+
+        assertEquals("Slow searches not counted", 2, log.getSlowQueryCount());
+        assertEquals("Shapes not combined", 1, shapes.size());
+
+        SlowQueryLog.Shape shape = shapes.get(0);
+
+        assertEquals("(|(sn=?*)(givenName=?*))", shape.getFingerprint());
+        assertEquals("Wrong count", 2, shape.getCount());
+        assertEquals("Wrong mean", 200.0, shape.getMeanTime(), 0.001);
+        assertEquals("Wrong max", 300.0, shape.getMaxTime(), 0.001);
+        assertEquals("Wrong mean results", 7.0, shape.getMeanResultCount(),
+                0.001);
+    }
+
+    @Test
+    public void testSlowestShapesAreKept()
+    {
+        SlowQueryLog log = new SlowQueryLog(0, 2);
+
+        log.record("(a=1)", millis(300), 0);
+        log.record("(b=1)", millis(200), 0);
+        log.record("(c=1)", millis(100), 0);
+
+        assertEquals("Faster shape replaced a slower one", "(b=?)", log
+                .getSlowestShapes().get(1).getFingerprint());
+
+        log.record("(d=1)", millis(500), 0);
+
+        List<SlowQueryLog.Shape> shapes = log.getSlowestShapes();
+
+        assertEquals("Too many shapes kept", 2, shapes.size());
+        assertEquals("Slowest shape not first", "(d=?)", shapes.get(0)
+                .getFingerprint());
+        assertEquals("Wrong second shape", "(a=?)", shapes.get(1)
+                .getFingerprint());
+        assertEquals("Dropped searches not counted", 4,
+                log.getSlowQueryCount());
+    }
+
+    @Test
+    public void testReset()
+    {
+        SlowQueryLog log = new SlowQueryLog(0, 2);
+
+        log.record("(a=1)", millis(300), 0);
+        log.reset();
+
+        assertEquals("Count not reset", 0, log.getSlowQueryCount());
+        assertTrue("Shapes not reset", log.getSlowestShapes().isEmpty());
+    }
+}
@@ -0,0 +1,121 @@
+package com.surevine.chat.openfire.ldap;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+import org.junit.Test;
+
+public class VirtualListViewControlTest
+{
+    static byte[] bytes(final int... values)
+    {
+        byte[] result = new byte[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+
+        return result;
+    }
+
+    @Test
+    public void testEncodeRequest()
+    {
+        VirtualListViewControl control = new VirtualListViewControl(11, 10);
+
+        assertEquals("Wrong OID", "2.16.840.1.113730.3.4.9", control.getID());
+        assertTrue("Control not critical", control.isCritical());
+        assertArrayEquals("Wrong encoding", bytes(0x30, 0x0e, 0x02, 0x01,
+                0x00, 0x02, 0x01, 0x09, 0xa0, 0x06, 0x02, 0x01, 0x0b, 0x02,
+                0x01, 0x00), control.getEncodedValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWindow()
+    {
+        new VirtualListViewControl(0, 10);
+    }
+
+    @Test
+    public void testDecodeResponse() throws Exception
+    {
+        Control[] controls = {
+                new BasicControl("1.2.3"),
+                new BasicControl(VirtualListViewControl.RESPONSE_OID, false,
+                        bytes(0x30, 0x0e, 0x02, 0x01, 0x0b, 0x02, 0x02, 0x01,
+                                0x2c, 0x0a, 0x01, 0x00, 0x04, 0x02, 0xab, 0xcd)) };
+
+        VirtualListViewControl.Response response = VirtualListViewControl
+                .findResponse(controls);
+
+        assertEquals("Wrong target position", 11, response.getTargetPosition());
+        assertEquals("Wrong content count", 300, response.getContentCount());
+        assertEquals("Wrong result", VirtualListViewControl.SUCCESS,
+                response.getResult());
+    }
+
+    @Test
+    public void testNoResponse() throws Exception
+    {
+        assertNull("Response found in no controls",
+                VirtualListViewControl.findResponse(null));
+        assertNull("Response found", VirtualListViewControl
+                .findResponse(new Control[] { new BasicControl("1.2.3") }));
+    }
+
+    @Test(expected = NamingException.class)
+    public void testDecodeTruncatedResponse() throws Exception
+    {
+        VirtualListViewControl.Response.decode(bytes(0x30, 0x0a, 0x02, 0x01,
+                0x0b));
+    }
+
+    @Test
+    public void testBerIntegers() throws Exception
+    {
+        byte[] encoded = new BerEncoder()
+                .writeInteger(BerEncoder.INTEGER, 128)
+                .writeInteger(BerEncoder.INTEGER, -1)
+                .writeInteger(BerEncoder.INTEGER, 100000).toByteArray();
+
+        assertArrayEquals("Wrong encoding", bytes(0x02, 0x02, 0x00, 0x80, 0x02,
+                0x01, 0xff, 0x02, 0x03, 0x01, 0x86, 0xa0), encoded);
+
+        BerDecoder decoder = new BerDecoder(encoded);
+
+        assertEquals(128, decoder.readInteger(BerEncoder.INTEGER));
+        assertEquals(-1, decoder.readInteger(BerEncoder.INTEGER));
+        assertEquals(100000, decoder.readInteger(BerEncoder.INTEGER));
+        assertFalse("Content left over", decoder.hasMore());
+    }
+
+    @Test
+    public void testBerLongLength() throws Exception
+    {
+        byte[] value = new byte[200];
+        Arrays.fill(value, (byte) 7);
+
+        byte[] encoded = new BerEncoder().beginSequence(BerEncoder.SEQUENCE)
+                .writeOctetString(BerEncoder.OCTET_STRING, value)
+                .writeBoolean(BerEncoder.BOOLEAN, true).endSequence()
+                .toByteArray();
+
+        assertEquals("Wrong sequence header", 0x81, encoded[1] & 0xff);
+        assertEquals("Wrong sequence length", 206, encoded[2] & 0xff);
+
+        BerDecoder decoder = new BerDecoder(encoded);
+        decoder.readSequence(BerEncoder.SEQUENCE);
+
+        assertArrayEquals("Wrong octet string", value,
+                decoder.readOctetString(BerEncoder.OCTET_STRING));
+        assertTrue("Wrong boolean", decoder.readBoolean(BerEncoder.BOOLEAN));
+        assertFalse("Content left over", decoder.hasMore());
+
+        decoder.endSequence();
+    }
+}